@@ -28,10 +28,8 @@ import java.awt.Graphics2D;
 import java.awt.Rectangle;
 import java.awt.Shape;
 import java.awt.geom.Point2D;
-import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Queue;
 
 import javax.vecmath.Point3i;
 
@@ -40,6 +38,8 @@ import plugins.nherve.toolbox.image.mask.Mask;
 import plugins.nherve.toolbox.image.mask.MaskException;
 import plugins.nherve.toolbox.image.segmentation.Segmentation;
 import plugins.nherve.toolbox.image.toolboxes.MorphologyToolbox;
+import plugins.nherve.toolbox.image.toolboxes.ScanlineFloodFill;
+import plugins.nherve.toolbox.image.toolboxes.ShapeRasterizer;
 import plugins.nherve.toolbox.image.toolboxes.SomeImageTools;
 
 /**
@@ -55,6 +55,9 @@ public class BinaryIcyBufferedImage extends IcyBufferedImage {
 	/** The Constant TRUE. */
 	public static final byte TRUE = (byte) 255;
 	
+	/** The Constant FILLING, temporary value of the pixels reached by a flood fill. */
+	public static final byte FILLING = (byte) 1;
+	
 	/** The raw binary data. */
 	private transient byte[] rawBinaryData;
 
@@ -327,19 +330,7 @@ public class BinaryIcyBufferedImage extends IcyBufferedImage {
 	 *            the val
 	 */
 	private void manageShape(Shape shape, byte val) {
-		int w = getWidth();
-		Rectangle r = shape.getBounds();
-		int x1 = (int) Math.max(Math.floor(r.getMinX()), 0);
-		int x2 = (int) Math.min(x1 + Math.ceil(r.getWidth()), w);
-		int y1 = (int) Math.max(Math.floor(r.getMinY()), 0);
-		int y2 = (int) Math.min(y1 + Math.ceil(r.getHeight()), getHeight());
-		for (int x = x1; x < x2; x++) {
-			for (int y = y1; y < y2; y++) {
-				if (shape.contains(x, y)) {
-					rawBinaryData[x + w * y] = val;
-				}
-			}
-		}
+		new ShapeRasterizer(shape).fill(rawBinaryData, getWidth(), getHeight(), val);
 	}
 
 	/**
@@ -446,49 +437,52 @@ public class BinaryIcyBufferedImage extends IcyBufferedImage {
 	}
 
 	/**
-	 * Fill hole not recursive.
+	 * Fill holes.
+	 * 
+	 * @param eightConnected
+	 *            the connectivity of the background
+	 */
+	public void fillHoles(boolean eightConnected) {
+		MorphologyToolbox.fillHolesInPlace(this, eightConnected);
+	}
+
+	/**
+	 * Fill hole, 4-connected.
 	 * 
 	 * @param x
 	 *            the x
 	 * @param y
 	 *            the y
 	 */
-	private void fillHoleNotRecursive(int x, int y) {
-		int width = getWidth();
-		int height = getHeight();
-
-		Queue<IcyPixel> todo = new ArrayDeque<IcyPixel>();
-		todo.offer(new IcyPixel(x, y));
-
-		IcyPixel pix = null;
-		int idx = 0;
-		do {
-			pix = todo.poll();
-			if (pix != null) {
-				x = (int) pix.x;
-				y = (int) pix.y;
-				idx = x + width * y;
-				if ((x >= 0) && (x < width) && (y >= 0) && (y < height) && (rawBinaryData[idx] == FALSE)) {
-					rawBinaryData[idx] = TRUE;
-					todo.offer(new IcyPixel(x + 1, y));
-					todo.offer(new IcyPixel(x - 1, y));
-					todo.offer(new IcyPixel(x, y + 1));
-					todo.offer(new IcyPixel(x, y - 1));
-				}
-			}
-		} while (pix != null);
+	public void fillHole(int x, int y) {
+		fillHole(x, y, false);
 	}
 
 	/**
-	 * Fill hole.
+	 * Fill the FALSE region connected to a pixel. The filled pixels are first
+	 * set to a temporary value, so that the fill can be completed if the
+	 * scratch memory bound of the flood fill is reached.
 	 * 
 	 * @param x
 	 *            the x
 	 * @param y
 	 *            the y
+	 * @param eightConnected
+	 *            the connectivity
 	 */
-	public void fillHole(int x, int y) {
-		fillHoleNotRecursive(x, y);
+	public void fillHole(int x, int y, boolean eightConnected) {
+		int width = getWidth();
+		ScanlineFloodFill ff = new ScanlineFloodFill(width, getHeight(), eightConnected);
+		if (ff.fill(new ScanlineFloodFill.ByteRegion(rawBinaryData, FALSE, FILLING), x, y) > 0) {
+			for (int j = ff.getMinY(); j <= ff.getMaxY(); j++) {
+				for (int i = ff.getMinX(), idx = ff.getMinX() + width * j; i <= ff.getMaxX(); i++, idx++) {
+					if (rawBinaryData[idx] == FILLING) {
+						rawBinaryData[idx] = TRUE;
+					}
+				}
+			}
+			dataChanged();
+		}
 	}
 
 	/**
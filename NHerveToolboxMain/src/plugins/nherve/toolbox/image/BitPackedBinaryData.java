@@ -0,0 +1,571 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * 
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ * 
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Bit packed storage for binary masks : one bit per pixel, stored in 64 bits
+ * words. Each row starts on a new word so that row based algorithms can work
+ * directly on the words. The unused bits at the end of each row are always
+ * kept to 0.
+ * 
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class BitPackedBinaryData implements Serializable {
+	private static final long serialVersionUID = 2894327140735914093L;
+
+	/** The Constant WORD_SHIFT. */
+	public final static int WORD_SHIFT = 6;
+	
+	/** The Constant WORD_SIZE. */
+	public final static int WORD_SIZE = 1 << WORD_SHIFT;
+	
+	/** The Constant WORD_MASK. */
+	public final static int WORD_MASK = WORD_SIZE - 1;
+
+	/**
+	 * Gets the number of words needed to store a row.
+	 * 
+	 * @param width
+	 *            the width
+	 * @return the number of words per row
+	 */
+	public static int getWordsPerRow(int width) {
+		return (width + WORD_MASK) >>> WORD_SHIFT;
+	}
+
+	/**
+	 * Sets or clears the bits [x1, x2[ of a row stored in words, starting at
+	 * the given word offset.
+	 * 
+	 * @param words
+	 *            the words
+	 * @param offset
+	 *            the offset of the first word of the row
+	 * @param x1
+	 *            the first bit (inclusive)
+	 * @param x2
+	 *            the last bit (exclusive)
+	 * @param value
+	 *            the value
+	 */
+	static void setBits(long[] words, int offset, int x1, int x2, boolean value) {
+		if (x1 >= x2) {
+			return;
+		}
+		final int w1 = offset + (x1 >>> WORD_SHIFT);
+		final int w2 = offset + ((x2 - 1) >>> WORD_SHIFT);
+		final long first = -1L << x1;
+		final long last = -1L >>> (WORD_SIZE - (((x2 - 1) & WORD_MASK) + 1));
+		if (w1 == w2) {
+			if (value) {
+				words[w1] |= first & last;
+			} else {
+				words[w1] &= ~(first & last);
+			}
+		} else if (value) {
+			words[w1] |= first;
+			for (int w = w1 + 1; w < w2; w++) {
+				words[w] = -1L;
+			}
+			words[w2] |= last;
+		} else {
+			words[w1] &= ~first;
+			for (int w = w1 + 1; w < w2; w++) {
+				words[w] = 0L;
+			}
+			words[w2] &= ~last;
+		}
+	}
+
+	/**
+	 * Pack.
+	 * 
+	 * @param bin
+	 *            the binary image
+	 * @return the bit packed binary data
+	 */
+	public static BitPackedBinaryData pack(BinaryIcyBufferedImage bin) {
+		return pack(bin.getRawData(), bin.getWidth(), bin.getHeight());
+	}
+
+	/**
+	 * Pack.
+	 * 
+	 * @param raw
+	 *            the raw byte data (one byte per pixel)
+	 * @param width
+	 *            the width
+	 * @param height
+	 *            the height
+	 * @return the bit packed binary data
+	 */
+	public static BitPackedBinaryData pack(byte[] raw, int width, int height) {
+		BitPackedBinaryData res = new BitPackedBinaryData(width, height);
+		res.add(raw);
+		return res;
+	}
+
+	/**
+	 * Intersection.
+	 * 
+	 * @param m1
+	 *            the m1
+	 * @param m2
+	 *            the m2
+	 * @return the number of pixels in both masks
+	 */
+	public static double intersection(BitPackedBinaryData m1, BitPackedBinaryData m2) {
+		long s = 0;
+		final long[] w1 = m1.words;
+		final long[] w2 = m2.words;
+		for (int i = 0; i < w1.length; i++) {
+			s += Long.bitCount(w1[i] & w2[i]);
+		}
+		return s;
+	}
+
+	/**
+	 * Union.
+	 * 
+	 * @param m1
+	 *            the m1
+	 * @param m2
+	 *            the m2
+	 * @return the number of pixels in at least one of the masks
+	 */
+	public static double union(BitPackedBinaryData m1, BitPackedBinaryData m2) {
+		long s = 0;
+		final long[] w1 = m1.words;
+		final long[] w2 = m2.words;
+		for (int i = 0; i < w1.length; i++) {
+			s += Long.bitCount(w1[i] | w2[i]);
+		}
+		return s;
+	}
+
+	/**
+	 * Difference.
+	 * 
+	 * @param m1
+	 *            the m1
+	 * @param m2
+	 *            the m2
+	 * @return the number of pixels in m1 and not in m2
+	 */
+	public static double difference(BitPackedBinaryData m1, BitPackedBinaryData m2) {
+		long s = 0;
+		final long[] w1 = m1.words;
+		final long[] w2 = m2.words;
+		for (int i = 0; i < w1.length; i++) {
+			s += Long.bitCount(w1[i] & ~w2[i]);
+		}
+		return s;
+	}
+
+	/** The width. */
+	private final int width;
+	
+	/** The height. */
+	private final int height;
+	
+	/** The words per row. */
+	private final int wordsPerRow;
+	
+	/** The mask of the valid bits in the last word of each row. */
+	private final long lastWordMask;
+	
+	/** The words. */
+	private final long[] words;
+
+	/**
+	 * Instantiates a new empty bit packed binary data.
+	 * 
+	 * @param width
+	 *            the width
+	 * @param height
+	 *            the height
+	 */
+	public BitPackedBinaryData(int width, int height) {
+		this(width, height, false);
+	}
+
+	/**
+	 * Instantiates a new bit packed binary data.
+	 * 
+	 * @param width
+	 *            the width
+	 * @param height
+	 *            the height
+	 * @param value
+	 *            the initial value of all the pixels
+	 */
+	public BitPackedBinaryData(int width, int height, boolean value) {
+		super();
+		this.width = width;
+		this.height = height;
+		this.wordsPerRow = getWordsPerRow(width);
+		int rem = width & WORD_MASK;
+		this.lastWordMask = (rem == 0) ? -1L : (1L << rem) - 1;
+		this.words = new long[wordsPerRow * height];
+		fill(value);
+	}
+
+	/**
+	 * Fill.
+	 * 
+	 * @param value
+	 *            the value
+	 */
+	public void fill(boolean value) {
+		if (value) {
+			Arrays.fill(words, -1L);
+			clearTails();
+		} else {
+			Arrays.fill(words, 0L);
+		}
+	}
+
+	/**
+	 * Resets the unused bits at the end of each row. Must be called after
+	 * working directly on the words.
+	 */
+	public void clearTails() {
+		if (lastWordMask != -1L) {
+			for (int w = wordsPerRow - 1; w < words.length; w += wordsPerRow) {
+				words[w] &= lastWordMask;
+			}
+		}
+	}
+
+	/**
+	 * Gets the.
+	 * 
+	 * @param x
+	 *            the x
+	 * @param y
+	 *            the y
+	 * @return true, if successful
+	 */
+	public boolean get(int x, int y) {
+		return (words[y * wordsPerRow + (x >>> WORD_SHIFT)] & (1L << x)) != 0;
+	}
+
+	/**
+	 * Sets the.
+	 * 
+	 * @param x
+	 *            the x
+	 * @param y
+	 *            the y
+	 * @param b
+	 *            the b
+	 */
+	public void set(int x, int y, boolean b) {
+		int w = y * wordsPerRow + (x >>> WORD_SHIFT);
+		if (b) {
+			words[w] |= (1L << x);
+		} else {
+			words[w] &= ~(1L << x);
+		}
+	}
+
+	/**
+	 * Sets the pixels [x1, x2[ of a row.
+	 * 
+	 * @param y
+	 *            the row
+	 * @param x1
+	 *            the first column (inclusive)
+	 * @param x2
+	 *            the last column (exclusive)
+	 * @param value
+	 *            the value
+	 */
+	public void setRow(int y, int x1, int x2, boolean value) {
+		setBits(words, y * wordsPerRow, x1, x2, value);
+	}
+
+	/**
+	 * Contains.
+	 * 
+	 * @param x
+	 *            the x
+	 * @param y
+	 *            the y
+	 * @return true, if successful
+	 */
+	public boolean contains(int x, int y) {
+		if ((x >= 0) && (x < width) && (y >= 0) && (y < height)) {
+			return get(x, y);
+		} else {
+			return false;
+		}
+	}
+
+	/**
+	 * Gets the surface.
+	 * 
+	 * @return the surface
+	 */
+	public int getSurface() {
+		int s = 0;
+		for (long w : words) {
+			s += Long.bitCount(w);
+		}
+		return s;
+	}
+
+	/**
+	 * Adds the.
+	 * 
+	 * @param other
+	 *            the other
+	 */
+	public void add(BitPackedBinaryData other) {
+		final long[] o = other.words;
+		for (int i = 0; i < words.length; i++) {
+			words[i] |= o[i];
+		}
+	}
+
+	/**
+	 * Removes the.
+	 * 
+	 * @param other
+	 *            the other
+	 */
+	public void remove(BitPackedBinaryData other) {
+		final long[] o = other.words;
+		for (int i = 0; i < words.length; i++) {
+			words[i] &= ~o[i];
+		}
+	}
+
+	/**
+	 * Keeps only the pixels also present in the other mask.
+	 * 
+	 * @param other
+	 *            the other
+	 */
+	public void intersect(BitPackedBinaryData other) {
+		final long[] o = other.words;
+		for (int i = 0; i < words.length; i++) {
+			words[i] &= o[i];
+		}
+	}
+
+	/**
+	 * Invert.
+	 */
+	public void invert() {
+		for (int i = 0; i < words.length; i++) {
+			words[i] = ~words[i];
+		}
+		clearTails();
+	}
+
+	/**
+	 * Adds the pixels set in a raw byte buffer.
+	 * 
+	 * @param raw
+	 *            the raw byte data (one byte per pixel)
+	 */
+	public void add(byte[] raw) {
+		int idx = 0;
+		int w = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x0 = 0; x0 < width; x0 += WORD_SIZE) {
+				final int limit = Math.min(WORD_SIZE, width - x0);
+				long word = 0;
+				for (int b = 0; b < limit; b++) {
+					if (raw[idx++] == BinaryIcyBufferedImage.TRUE) {
+						word |= (1L << b);
+					}
+				}
+				words[w++] |= word;
+			}
+		}
+	}
+
+	/**
+	 * Removes the pixels set in a raw byte buffer.
+	 * 
+	 * @param raw
+	 *            the raw byte data (one byte per pixel)
+	 */
+	public void remove(byte[] raw) {
+		BitPackedBinaryData other = pack(raw, width, height);
+		remove(other);
+	}
+
+	/**
+	 * Writes the content of this mask in a raw byte buffer.
+	 * 
+	 * @param raw
+	 *            the raw byte data (one byte per pixel)
+	 */
+	public void unpackInto(byte[] raw) {
+		int idx = 0;
+		int w = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x0 = 0; x0 < width; x0 += WORD_SIZE) {
+				final int limit = Math.min(WORD_SIZE, width - x0);
+				final long word = words[w++];
+				if (word == 0) {
+					Arrays.fill(raw, idx, idx + limit, BinaryIcyBufferedImage.FALSE);
+					idx += limit;
+				} else {
+					for (int b = 0; b < limit; b++) {
+						raw[idx++] = ((word & (1L << b)) != 0) ? BinaryIcyBufferedImage.TRUE : BinaryIcyBufferedImage.FALSE;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets to TRUE, in a raw byte buffer, the pixels of this mask.
+	 * 
+	 * @param raw
+	 *            the raw byte data (one byte per pixel)
+	 */
+	public void addInto(byte[] raw) {
+		paintInto(raw, BinaryIcyBufferedImage.TRUE);
+	}
+
+	/**
+	 * Sets to FALSE, in a raw byte buffer, the pixels of this mask.
+	 * 
+	 * @param raw
+	 *            the raw byte data (one byte per pixel)
+	 */
+	public void removeFrom(byte[] raw) {
+		paintInto(raw, BinaryIcyBufferedImage.FALSE);
+	}
+
+	/**
+	 * Paint into.
+	 * 
+	 * @param raw
+	 *            the raw
+	 * @param val
+	 *            the val
+	 */
+	private void paintInto(byte[] raw, byte val) {
+		int idx = 0;
+		int w = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x0 = 0; x0 < width; x0 += WORD_SIZE) {
+				final int limit = Math.min(WORD_SIZE, width - x0);
+				long word = words[w++];
+				while (word != 0) {
+					int b = Long.numberOfTrailingZeros(word);
+					raw[idx + b] = val;
+					word &= word - 1;
+				}
+				idx += limit;
+			}
+		}
+	}
+
+	/**
+	 * Sets a value, in an int buffer of the image size, for all the pixels of
+	 * this mask.
+	 * 
+	 * @param data
+	 *            the data
+	 * @param value
+	 *            the value
+	 */
+	public void paintInto(int[] data, int value) {
+		int w = 0;
+		for (int y = 0; y < height; y++) {
+			int idx = y * width;
+			for (int k = 0; k < wordsPerRow; k++) {
+				long word = words[w++];
+				while (word != 0) {
+					data[idx + Long.numberOfTrailingZeros(word)] = value;
+					word &= word - 1;
+				}
+				idx += WORD_SIZE;
+			}
+		}
+	}
+
+	/**
+	 * Unpack.
+	 * 
+	 * @return the binary icy buffered image
+	 */
+	public BinaryIcyBufferedImage unpack() {
+		BinaryIcyBufferedImage bin = new BinaryIcyBufferedImage(width, height);
+		unpackInto(bin.getRawData());
+		return bin;
+	}
+
+	/**
+	 * Gets the copy.
+	 * 
+	 * @return the copy
+	 */
+	public BitPackedBinaryData getCopy() {
+		BitPackedBinaryData n = new BitPackedBinaryData(width, height);
+		System.arraycopy(words, 0, n.words, 0, words.length);
+		return n;
+	}
+
+	/**
+	 * Gets the words.
+	 * 
+	 * @return the words
+	 */
+	public long[] getWords() {
+		return words;
+	}
+
+	/**
+	 * Gets the words per row.
+	 * 
+	 * @return the words per row
+	 */
+	public int getWordsPerRow() {
+		return wordsPerRow;
+	}
+
+	/**
+	 * Gets the width.
+	 * 
+	 * @return the width
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Gets the height.
+	 * 
+	 * @return the height
+	 */
+	public int getHeight() {
+		return height;
+	}
+}
@@ -0,0 +1,833 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * 
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ * 
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Sparse storage for binary masks. The image is cut in square tiles, each
+ * tile is bit packed. Empty tiles are not allocated and full tiles all share
+ * the same instance, so the memory used grows with the border length of the
+ * mask instead of the image size.
+ * 
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class TiledBinaryData implements Serializable {
+	private static final long serialVersionUID = -3167484320436735372L;
+
+	/** The Constant TILE_SHIFT. */
+	public final static int TILE_SHIFT = 8;
+
+	/** The Constant TILE_SIZE. */
+	public final static int TILE_SIZE = 1 << TILE_SHIFT;
+
+	/** The Constant TILE_MASK. */
+	public final static int TILE_MASK = TILE_SIZE - 1;
+
+	/** The Constant WORDS_PER_TILE_ROW. */
+	public final static int WORDS_PER_TILE_ROW = TILE_SIZE >>> BitPackedBinaryData.WORD_SHIFT;
+
+	/** The Constant WORDS_PER_TILE. */
+	public final static int WORDS_PER_TILE = WORDS_PER_TILE_ROW * TILE_SIZE;
+
+	/** The shared full tile. Never modified. */
+	private final static long[] FULL_TILE = new long[WORDS_PER_TILE];
+
+	static {
+		Arrays.fill(FULL_TILE, -1L);
+	}
+
+	/**
+	 * Pack.
+	 * 
+	 * @param bin
+	 *            the binary image
+	 * @return the tiled binary data
+	 */
+	public static TiledBinaryData pack(BinaryIcyBufferedImage bin) {
+		TiledBinaryData res = new TiledBinaryData(bin.getWidth(), bin.getHeight());
+		res.add(bin.getRawData());
+		return res;
+	}
+
+	/**
+	 * Intersection.
+	 * 
+	 * @param m1
+	 *            the m1
+	 * @param m2
+	 *            the m2
+	 * @return the number of pixels in both masks
+	 */
+	public static double intersection(TiledBinaryData m1, TiledBinaryData m2) {
+		long s = 0;
+		for (int t = 0; t < m1.tiles.length; t++) {
+			long[] t1 = m1.tiles[t];
+			long[] t2 = m2.tiles[t];
+			if ((t1 == null) || (t2 == null)) {
+				continue;
+			}
+			if (t1 == FULL_TILE) {
+				s += m2.getTileSurface(t);
+			} else if (t2 == FULL_TILE) {
+				s += m1.getTileSurface(t);
+			} else {
+				for (int i = 0; i < WORDS_PER_TILE; i++) {
+					s += Long.bitCount(t1[i] & t2[i]);
+				}
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Union.
+	 * 
+	 * @param m1
+	 *            the m1
+	 * @param m2
+	 *            the m2
+	 * @return the number of pixels in at least one of the masks
+	 */
+	public static double union(TiledBinaryData m1, TiledBinaryData m2) {
+		long s = 0;
+		for (int t = 0; t < m1.tiles.length; t++) {
+			long[] t1 = m1.tiles[t];
+			long[] t2 = m2.tiles[t];
+			if ((t1 == FULL_TILE) || (t2 == FULL_TILE)) {
+				s += m1.getTileArea(t);
+			} else if (t1 == null) {
+				s += m2.getTileSurface(t);
+			} else if (t2 == null) {
+				s += m1.getTileSurface(t);
+			} else {
+				for (int i = 0; i < WORDS_PER_TILE; i++) {
+					s += Long.bitCount(t1[i] | t2[i]);
+				}
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Difference.
+	 * 
+	 * @param m1
+	 *            the m1
+	 * @param m2
+	 *            the m2
+	 * @return the number of pixels in m1 and not in m2
+	 */
+	public static double difference(TiledBinaryData m1, TiledBinaryData m2) {
+		long s = 0;
+		for (int t = 0; t < m1.tiles.length; t++) {
+			long[] t1 = m1.tiles[t];
+			long[] t2 = m2.tiles[t];
+			if ((t1 == null) || (t2 == FULL_TILE)) {
+				continue;
+			}
+			if (t2 == null) {
+				s += m1.getTileSurface(t);
+			} else if (t1 == FULL_TILE) {
+				s += m1.getTileArea(t) - m2.getTileSurface(t);
+			} else {
+				for (int i = 0; i < WORDS_PER_TILE; i++) {
+					s += Long.bitCount(t1[i] & ~t2[i]);
+				}
+			}
+		}
+		return s;
+	}
+
+	/** The width. */
+	private final int width;
+
+	/** The height. */
+	private final int height;
+
+	/** The number of tiles along x. */
+	private final int nbTilesX;
+
+	/** The number of tiles along y. */
+	private final int nbTilesY;
+
+	/** The tiles, null for empty tiles. */
+	private final long[][] tiles;
+
+	/**
+	 * Instantiates a new empty tiled binary data.
+	 * 
+	 * @param width
+	 *            the width
+	 * @param height
+	 *            the height
+	 */
+	public TiledBinaryData(int width, int height) {
+		this(width, height, false);
+	}
+
+	/**
+	 * Instantiates a new tiled binary data.
+	 * 
+	 * @param width
+	 *            the width
+	 * @param height
+	 *            the height
+	 * @param value
+	 *            the initial value of all the pixels
+	 */
+	public TiledBinaryData(int width, int height, boolean value) {
+		super();
+		this.width = width;
+		this.height = height;
+		this.nbTilesX = (width + TILE_MASK) >>> TILE_SHIFT;
+		this.nbTilesY = (height + TILE_MASK) >>> TILE_SHIFT;
+		this.tiles = new long[nbTilesX * nbTilesY][];
+		fill(value);
+	}
+
+	/**
+	 * Fill.
+	 * 
+	 * @param value
+	 *            the value
+	 */
+	public void fill(boolean value) {
+		Arrays.fill(tiles, value ? FULL_TILE : null);
+	}
+
+	/**
+	 * Gets the tile width.
+	 * 
+	 * @param t
+	 *            the tile index
+	 * @return the number of columns of the tile inside the image
+	 */
+	private int getTileWidth(int t) {
+		return Math.min(TILE_SIZE, width - ((t % nbTilesX) << TILE_SHIFT));
+	}
+
+	/**
+	 * Gets the tile height.
+	 * 
+	 * @param t
+	 *            the tile index
+	 * @return the number of rows of the tile inside the image
+	 */
+	private int getTileHeight(int t) {
+		return Math.min(TILE_SIZE, height - ((t / nbTilesX) << TILE_SHIFT));
+	}
+
+	/**
+	 * Gets the tile area.
+	 * 
+	 * @param t
+	 *            the tile index
+	 * @return the number of pixels of the tile inside the image
+	 */
+	private int getTileArea(int t) {
+		return getTileWidth(t) * getTileHeight(t);
+	}
+
+	/**
+	 * Gets the tile surface.
+	 * 
+	 * @param t
+	 *            the tile index
+	 * @return the number of pixels set in the tile
+	 */
+	private int getTileSurface(int t) {
+		long[] tile = tiles[t];
+		if (tile == null) {
+			return 0;
+		}
+		if (tile == FULL_TILE) {
+			return getTileArea(t);
+		}
+		int s = 0;
+		for (long w : tile) {
+			s += Long.bitCount(w);
+		}
+		return s;
+	}
+
+	/**
+	 * Creates a new allocated tile with all the pixels inside the image set.
+	 * 
+	 * @param t
+	 *            the tile index
+	 * @return the tile
+	 */
+	private long[] createFullTile(int t) {
+		long[] tile = new long[WORDS_PER_TILE];
+		final int tw = getTileWidth(t);
+		final int th = getTileHeight(t);
+		for (int r = 0; r < th; r++) {
+			int o = r * WORDS_PER_TILE_ROW;
+			for (int k = 0; k < WORDS_PER_TILE_ROW; k++) {
+				int remaining = tw - (k << BitPackedBinaryData.WORD_SHIFT);
+				if (remaining >= BitPackedBinaryData.WORD_SIZE) {
+					tile[o + k] = -1L;
+				} else if (remaining > 0) {
+					tile[o + k] = (1L << remaining) - 1;
+				}
+			}
+		}
+		return tile;
+	}
+
+	/**
+	 * Gets a tile that can be modified, allocating it if needed.
+	 * 
+	 * @param t
+	 *            the tile index
+	 * @return the tile
+	 */
+	private long[] getWritableTile(int t) {
+		long[] tile = tiles[t];
+		if (tile == null) {
+			tile = new long[WORDS_PER_TILE];
+			tiles[t] = tile;
+		} else if (tile == FULL_TILE) {
+			tile = createFullTile(t);
+			tiles[t] = tile;
+		}
+		return tile;
+	}
+
+	/**
+	 * Replaces an allocated tile by the shared representations when it is
+	 * empty or full.
+	 * 
+	 * @param t
+	 *            the tile index
+	 */
+	private void compactTile(int t) {
+		long[] tile = tiles[t];
+		if ((tile == null) || (tile == FULL_TILE)) {
+			return;
+		}
+		int s = 0;
+		for (long w : tile) {
+			s += Long.bitCount(w);
+		}
+		if (s == 0) {
+			tiles[t] = null;
+		} else if (s == getTileArea(t)) {
+			tiles[t] = FULL_TILE;
+		}
+	}
+
+	/**
+	 * Replaces all the empty or full tiles by their shared representations.
+	 */
+	public void compact() {
+		for (int t = 0; t < tiles.length; t++) {
+			compactTile(t);
+		}
+	}
+
+	/**
+	 * Gets the.
+	 * 
+	 * @param x
+	 *            the x
+	 * @param y
+	 *            the y
+	 * @return true, if successful
+	 */
+	public boolean get(int x, int y) {
+		long[] tile = tiles[(y >>> TILE_SHIFT) * nbTilesX + (x >>> TILE_SHIFT)];
+		if (tile == null) {
+			return false;
+		}
+		if (tile == FULL_TILE) {
+			return true;
+		}
+		return (tile[(y & TILE_MASK) * WORDS_PER_TILE_ROW + ((x & TILE_MASK) >>> BitPackedBinaryData.WORD_SHIFT)] & (1L << x)) != 0;
+	}
+
+	/**
+	 * Sets the.
+	 * 
+	 * @param x
+	 *            the x
+	 * @param y
+	 *            the y
+	 * @param b
+	 *            the b
+	 */
+	public void set(int x, int y, boolean b) {
+		int t = (y >>> TILE_SHIFT) * nbTilesX + (x >>> TILE_SHIFT);
+		long[] tile = tiles[t];
+		if ((b && (tile == FULL_TILE)) || (!b && (tile == null))) {
+			return;
+		}
+		tile = getWritableTile(t);
+		int w = (y & TILE_MASK) * WORDS_PER_TILE_ROW + ((x & TILE_MASK) >>> BitPackedBinaryData.WORD_SHIFT);
+		if (b) {
+			tile[w] |= (1L << x);
+		} else {
+			tile[w] &= ~(1L << x);
+		}
+	}
+
+	/**
+	 * Sets the pixels [x1, x2[ of a row. The tiles are not compacted, call
+	 * compact() once all the rows have been set.
+	 * 
+	 * @param y
+	 *            the row
+	 * @param x1
+	 *            the first column (inclusive)
+	 * @param x2
+	 *            the last column (exclusive)
+	 * @param value
+	 *            the value
+	 */
+	public void setRow(int y, int x1, int x2, boolean value) {
+		if (x1 >= x2) {
+			return;
+		}
+		final int tRow = (y >>> TILE_SHIFT) * nbTilesX;
+		final int o = (y & TILE_MASK) * WORDS_PER_TILE_ROW;
+		for (int tx = x1 >>> TILE_SHIFT; tx <= ((x2 - 1) >>> TILE_SHIFT); tx++) {
+			final int t = tRow + tx;
+			if ((value && (tiles[t] == FULL_TILE)) || (!value && (tiles[t] == null))) {
+				continue;
+			}
+			final int tx0 = tx << TILE_SHIFT;
+			final int lx1 = Math.max(x1, tx0) - tx0;
+			final int lx2 = Math.min(x2, tx0 + TILE_SIZE) - tx0;
+			BitPackedBinaryData.setBits(getWritableTile(t), o, lx1, lx2, value);
+		}
+	}
+
+	/**
+	 * Contains.
+	 * 
+	 * @param x
+	 *            the x
+	 * @param y
+	 *            the y
+	 * @return true, if successful
+	 */
+	public boolean contains(int x, int y) {
+		if ((x >= 0) && (x < width) && (y >= 0) && (y < height)) {
+			return get(x, y);
+		} else {
+			return false;
+		}
+	}
+
+	/**
+	 * Gets the surface.
+	 * 
+	 * @return the surface
+	 */
+	public int getSurface() {
+		int s = 0;
+		for (int t = 0; t < tiles.length; t++) {
+			s += getTileSurface(t);
+		}
+		return s;
+	}
+
+	/**
+	 * Adds the.
+	 * 
+	 * @param other
+	 *            the other
+	 */
+	public void add(TiledBinaryData other) {
+		for (int t = 0; t < tiles.length; t++) {
+			long[] o = other.tiles[t];
+			long[] tile = tiles[t];
+			if ((o == null) || (tile == FULL_TILE)) {
+				continue;
+			}
+			if (o == FULL_TILE) {
+				tiles[t] = FULL_TILE;
+			} else if (tile == null) {
+				tiles[t] = o.clone();
+			} else {
+				for (int i = 0; i < WORDS_PER_TILE; i++) {
+					tile[i] |= o[i];
+				}
+				compactTile(t);
+			}
+		}
+	}
+
+	/**
+	 * Removes the.
+	 * 
+	 * @param other
+	 *            the other
+	 */
+	public void remove(TiledBinaryData other) {
+		for (int t = 0; t < tiles.length; t++) {
+			long[] o = other.tiles[t];
+			if ((o == null) || (tiles[t] == null)) {
+				continue;
+			}
+			if (o == FULL_TILE) {
+				tiles[t] = null;
+			} else {
+				long[] tile = getWritableTile(t);
+				for (int i = 0; i < WORDS_PER_TILE; i++) {
+					tile[i] &= ~o[i];
+				}
+				compactTile(t);
+			}
+		}
+	}
+
+	/**
+	 * Invert.
+	 */
+	public void invert() {
+		for (int t = 0; t < tiles.length; t++) {
+			long[] tile = tiles[t];
+			if (tile == null) {
+				tiles[t] = FULL_TILE;
+			} else if (tile == FULL_TILE) {
+				tiles[t] = null;
+			} else {
+				long[] full = createFullTile(t);
+				for (int i = 0; i < WORDS_PER_TILE; i++) {
+					tile[i] = ~tile[i] & full[i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds the pixels set in a raw byte buffer.
+	 * 
+	 * @param raw
+	 *            the raw byte data (one byte per pixel)
+	 */
+	public void add(byte[] raw) {
+		manageRaw(raw, true);
+	}
+
+	/**
+	 * Removes the pixels set in a raw byte buffer.
+	 * 
+	 * @param raw
+	 *            the raw byte data (one byte per pixel)
+	 */
+	public void remove(byte[] raw) {
+		manageRaw(raw, false);
+	}
+
+	/**
+	 * Manage raw.
+	 * 
+	 * @param raw
+	 *            the raw
+	 * @param add
+	 *            the add
+	 */
+	private void manageRaw(byte[] raw, boolean add) {
+		long[] words = new long[WORDS_PER_TILE];
+		for (int t = 0; t < tiles.length; t++) {
+			if ((add && (tiles[t] == FULL_TILE)) || (!add && (tiles[t] == null))) {
+				continue;
+			}
+			final int x0 = (t % nbTilesX) << TILE_SHIFT;
+			final int y0 = (t / nbTilesX) << TILE_SHIFT;
+			final int tw = getTileWidth(t);
+			final int th = getTileHeight(t);
+			boolean any = false;
+			Arrays.fill(words, 0L);
+			for (int r = 0; r < th; r++) {
+				int idx = x0 + (y0 + r) * width;
+				int o = r * WORDS_PER_TILE_ROW;
+				for (int c = 0; c < tw; c++) {
+					if (raw[idx++] == BinaryIcyBufferedImage.TRUE) {
+						words[o + (c >>> BitPackedBinaryData.WORD_SHIFT)] |= (1L << c);
+						any = true;
+					}
+				}
+			}
+			if (!any) {
+				continue;
+			}
+			long[] tile = getWritableTile(t);
+			for (int i = 0; i < WORDS_PER_TILE; i++) {
+				if (add) {
+					tile[i] |= words[i];
+				} else {
+					tile[i] &= ~words[i];
+				}
+			}
+			compactTile(t);
+		}
+	}
+
+	/**
+	 * Writes the content of this mask in a raw byte buffer.
+	 * 
+	 * @param raw
+	 *            the raw byte data (one byte per pixel)
+	 */
+	public void unpackInto(byte[] raw) {
+		Arrays.fill(raw, BinaryIcyBufferedImage.FALSE);
+		addInto(raw);
+	}
+
+	/**
+	 * Sets to TRUE, in a raw byte buffer, the pixels of this mask.
+	 * 
+	 * @param raw
+	 *            the raw byte data (one byte per pixel)
+	 */
+	public void addInto(byte[] raw) {
+		for (int t = 0; t < tiles.length; t++) {
+			long[] tile = tiles[t];
+			if (tile == null) {
+				continue;
+			}
+			final int x0 = (t % nbTilesX) << TILE_SHIFT;
+			final int y0 = (t / nbTilesX) << TILE_SHIFT;
+			final int tw = getTileWidth(t);
+			final int th = getTileHeight(t);
+			for (int r = 0; r < th; r++) {
+				int idx = x0 + (y0 + r) * width;
+				if (tile == FULL_TILE) {
+					Arrays.fill(raw, idx, idx + tw, BinaryIcyBufferedImage.TRUE);
+				} else {
+					int o = r * WORDS_PER_TILE_ROW;
+					for (int k = 0; k < WORDS_PER_TILE_ROW; k++) {
+						long word = tile[o + k];
+						while (word != 0) {
+							raw[idx + Long.numberOfTrailingZeros(word)] = BinaryIcyBufferedImage.TRUE;
+							word &= word - 1;
+						}
+						idx += BitPackedBinaryData.WORD_SIZE;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets to FALSE, in a raw byte buffer, the pixels of this mask.
+	 * 
+	 * @param raw
+	 *            the raw byte data (one byte per pixel)
+	 */
+	public void removeFrom(byte[] raw) {
+		for (int t = 0; t < tiles.length; t++) {
+			long[] tile = tiles[t];
+			if (tile == null) {
+				continue;
+			}
+			final int x0 = (t % nbTilesX) << TILE_SHIFT;
+			final int y0 = (t / nbTilesX) << TILE_SHIFT;
+			final int tw = getTileWidth(t);
+			final int th = getTileHeight(t);
+			for (int r = 0; r < th; r++) {
+				int idx = x0 + (y0 + r) * width;
+				if (tile == FULL_TILE) {
+					Arrays.fill(raw, idx, idx + tw, BinaryIcyBufferedImage.FALSE);
+				} else {
+					int o = r * WORDS_PER_TILE_ROW;
+					for (int k = 0; k < WORDS_PER_TILE_ROW; k++) {
+						long word = tile[o + k];
+						while (word != 0) {
+							raw[idx + Long.numberOfTrailingZeros(word)] = BinaryIcyBufferedImage.FALSE;
+							word &= word - 1;
+						}
+						idx += BitPackedBinaryData.WORD_SIZE;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets a value, in an int buffer of the image size, for all the pixels of
+	 * this mask. Only the non empty tiles are visited.
+	 * 
+	 * @param data
+	 *            the data
+	 * @param value
+	 *            the value
+	 */
+	public void paintInto(int[] data, int value) {
+		for (int t = 0; t < tiles.length; t++) {
+			long[] tile = tiles[t];
+			if (tile == null) {
+				continue;
+			}
+			final int x0 = (t % nbTilesX) << TILE_SHIFT;
+			final int y0 = (t / nbTilesX) << TILE_SHIFT;
+			final int tw = getTileWidth(t);
+			final int th = getTileHeight(t);
+			for (int r = 0; r < th; r++) {
+				int idx = x0 + (y0 + r) * width;
+				if (tile == FULL_TILE) {
+					Arrays.fill(data, idx, idx + tw, value);
+				} else {
+					int o = r * WORDS_PER_TILE_ROW;
+					for (int k = 0; k < WORDS_PER_TILE_ROW; k++) {
+						long word = tile[o + k];
+						while (word != 0) {
+							data[idx + Long.numberOfTrailingZeros(word)] = value;
+							word &= word - 1;
+						}
+						idx += BitPackedBinaryData.WORD_SIZE;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Unpack.
+	 * 
+	 * @return the binary icy buffered image
+	 */
+	public BinaryIcyBufferedImage unpack() {
+		BinaryIcyBufferedImage bin = new BinaryIcyBufferedImage(width, height);
+		addInto(bin.getRawData());
+		return bin;
+	}
+
+	/**
+	 * Gets the copy.
+	 * 
+	 * @return the copy
+	 */
+	public TiledBinaryData getCopy() {
+		TiledBinaryData n = new TiledBinaryData(width, height);
+		for (int t = 0; t < tiles.length; t++) {
+			long[] tile = tiles[t];
+			if ((tile == null) || (tile == FULL_TILE)) {
+				n.tiles[t] = tile;
+			} else {
+				n.tiles[t] = tile.clone();
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Gets the number of allocated tiles.
+	 * 
+	 * @return the number of tiles that are neither empty nor full
+	 */
+	public int getNbAllocatedTiles() {
+		int n = 0;
+		for (long[] tile : tiles) {
+			if ((tile != null) && (tile != FULL_TILE)) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Gets the number of words of a row copied by getRow, WORDS_PER_TILE_ROW
+	 * per tile along x.
+	 * 
+	 * @return the number of words per row
+	 */
+	public int getWordsPerRow() {
+		return nbTilesX * WORDS_PER_TILE_ROW;
+	}
+
+	/**
+	 * Copies the bits of a row in packed words, as in a BitPackedBinaryData
+	 * row. The bits beyond the width are not cleared.
+	 * 
+	 * @param y
+	 *            the row
+	 * @param row
+	 *            the words, at least getWordsPerRow()
+	 */
+	public void getRow(int y, long[] row) {
+		final int tRow = (y >>> TILE_SHIFT) * nbTilesX;
+		final int o = (y & TILE_MASK) * WORDS_PER_TILE_ROW;
+		for (int tx = 0; tx < nbTilesX; tx++) {
+			long[] tile = tiles[tRow + tx];
+			final int k = tx * WORDS_PER_TILE_ROW;
+			if (tile == null) {
+				Arrays.fill(row, k, k + WORDS_PER_TILE_ROW, 0L);
+			} else {
+				System.arraycopy(tile, o, row, k, WORDS_PER_TILE_ROW);
+			}
+		}
+	}
+
+	/**
+	 * Gets the width.
+	 * 
+	 * @return the width
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Gets the height.
+	 * 
+	 * @return the height
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Restores the shared full tile after deserialization.
+	 * 
+	 * @param in
+	 *            the in
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws ClassNotFoundException
+	 *             the class not found exception
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		for (int t = 0; t < tiles.length; t++) {
+			long[] tile = tiles[t];
+			if (tile != null) {
+				boolean full = true;
+				for (long w : tile) {
+					if (w != -1L) {
+						full = false;
+						break;
+					}
+				}
+				if (full) {
+					tiles[t] = FULL_TILE;
+				} else {
+					compactTile(t);
+				}
+			}
+		}
+	}
+}
@@ -21,12 +21,16 @@ package plugins.nherve.toolbox.image.feature;
 import icy.image.IcyBufferedImage;
 
 import java.text.DecimalFormat;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 
 import plugins.nherve.toolbox.Algorithm;
+import plugins.nherve.toolbox.concurrent.TaskManager;
+import plugins.nherve.toolbox.image.toolboxes.ColorSpaceTools;
+import plugins.nherve.toolbox.image.toolboxes.MedianFilter;
+import plugins.nherve.toolbox.image.toolboxes.ParallelBands;
+import plugins.nherve.toolbox.image.toolboxes.ScanlineFloodFill;
 import plugins.nherve.toolbox.image.toolboxes.SomeImageTools;
+import edu.emory.mathcs.jtransforms.fft.DoubleFFT_2D;
 
 
 /**
@@ -81,6 +85,24 @@ public class ConvolutionKernel2D extends Algorithm {
 	/** The Constant SOBEL_Y_KERNEL. */
 	private static final double[] SOBEL_Y_KERNEL = { 1.0, 0.0, -1.0, 2.0, 0.0, -2.0, 1.0, 0.0, -1.0 };
 
+	/** The Constant SEPARABILITY_TOLERANCE, relative to the largest coefficient. */
+	private static final double SEPARABILITY_TOLERANCE = 1e-12;
+
+	/** The Constant EDGE_WEAK, local maximum above the low threshold. */
+	private static final byte EDGE_WEAK = 1;
+
+	/** The Constant EDGE_STRONG, local maximum above the high threshold. */
+	private static final byte EDGE_STRONG = 2;
+
+	/** The Constant EDGE_DONE, edge kept by the hysteresis. */
+	private static final byte EDGE_DONE = 4;
+
+	/** The Constant MIN_BAND_HEIGHT, minimum number of rows of a band computed by one task. */
+	private static final int MIN_BAND_HEIGHT = 64;
+
+	/** The Constant FFT_MIN_KERNEL_SIZE, non separable kernels of at least this many coefficients (21x21) go through the FFT. */
+	private static final int FFT_MIN_KERNEL_SIZE = 441;
+
 	/**
 	 * The Interface Operator.
 	 * 
@@ -120,12 +142,65 @@ public class ConvolutionKernel2D extends Algorithm {
 		public int getKernelHalfHeight();
 	}
 
+	/**
+	 * An operator able to compute a band of rows of the result directly from
+	 * the image, without the bordered copy.
+	 * 
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	private interface BandOperator extends Operator {
+
+		/**
+		 * Checks if the bands can be used with the current settings.
+		 * 
+		 * @return true, if successful
+		 */
+		boolean canConvolveBands();
+
+		/**
+		 * Computes the rows [y1, y2[ of the result, the same as
+		 * borderAndConvolve would, normalization included.
+		 * 
+		 * @param data
+		 *            the data, without borders
+		 * @param w
+		 *            the w
+		 * @param h
+		 *            the h
+		 * @param result
+		 *            the result
+		 * @param y1
+		 *            the first row
+		 * @param y2
+		 *            the last row, excluded
+		 */
+		void convolveBand(final double[] data, int w, int h, double[] result, int y1, int y2);
+
+		/**
+		 * Same as above, in single precision.
+		 * 
+		 * @param data
+		 *            the data, without borders
+		 * @param w
+		 *            the w
+		 * @param h
+		 *            the h
+		 * @param result
+		 *            the result
+		 * @param y1
+		 *            the first row
+		 * @param y2
+		 *            the last row, excluded
+		 */
+		void convolveBand(final float[] data, int w, int h, float[] result, int y1, int y2);
+	}
+
 	/**
 	 * The Class ThresholdOperator.
 	 * 
 	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
 	 */
-	private class ThresholdOperator implements Operator {
+	private class ThresholdOperator implements BandOperator {
 		
 		/** The min. */
 		private final double min;
@@ -180,6 +255,46 @@ public class ConvolutionKernel2D extends Algorithm {
 			return result;
 		}
 
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.image.feature.ConvolutionKernel2D.BandOperator#canConvolveBands()
+		 */
+		@Override
+		public boolean canConvolveBands() {
+			return true;
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.image.feature.ConvolutionKernel2D.BandOperator#convolveBand(double[], int, int, double[], int, int)
+		 */
+		@Override
+		public void convolveBand(final double[] data, int w, int h, double[] result, int y1, int y2) {
+			final int end = y2 * w;
+			for (int idx = y1 * w; idx < end; idx++) {
+				final double val = data[idx];
+				if ((val >= min) && (val <= max)) {
+					result[idx] = binarize ? 1.0 : val;
+				} else {
+					result[idx] = 0;
+				}
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.image.feature.ConvolutionKernel2D.BandOperator#convolveBand(float[], int, int, float[], int, int)
+		 */
+		@Override
+		public void convolveBand(final float[] data, int w, int h, float[] result, int y1, int y2) {
+			final int end = y2 * w;
+			for (int idx = y1 * w; idx < end; idx++) {
+				final float val = data[idx];
+				if ((val >= min) && (val <= max)) {
+					result[idx] = binarize ? 1f : val;
+				} else {
+					result[idx] = 0;
+				}
+			}
+		}
+
 		/* (non-Javadoc)
 		 * @see plugins.nherve.toolbox.image.feature.ConvolutionKernel2D.Operator#getKernelHalfHeight()
 		 */
@@ -198,11 +313,13 @@ public class ConvolutionKernel2D extends Algorithm {
 	}
 
 	/**
-	 * The Class MedianOperator.
+	 * The Class MedianOperator. The work is done by MedianFilter, with
+	 * histograms for 8 and 16 bits data and a sliding sorted window for the
+	 * others.
 	 * 
 	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
 	 */
-	private class MedianOperator implements Operator {
+	private class MedianOperator implements BandOperator {
 		
 		/** The half width. */
 		private final int halfWidth;
@@ -230,35 +347,45 @@ public class ConvolutionKernel2D extends Algorithm {
 		@Override
 		public double[] convolve(final double[] data, int w, int h, int w2, int h2) {
 			double[] result = new double[w * h];
-			Arrays.fill(result, 0.0);
-
-			ArrayList<Double> temp = new ArrayList<Double>();
-			int idx = 0;
-			int mx = w * h;
-			for (int x2 = 0; x2 < w; x2++) {
-				for (int y2 = 0; y2 < h; y2++) {
-					temp.clear();
-					for (int ky = -halfHeight; ky <= halfHeight; ky++) {
-						for (int kx = -halfWidth; kx <= halfWidth; kx++) {
-							idx = x2 + kx + (y2 + ky) * w;
-							if ((idx >= 0) && (idx < mx)) {
-								temp.add(data[idx]);
-							}
-						}
-					}
-					Collections.sort(temp);
-					int mi = (int) Math.floor(temp.size() / 2.0);
-					if (doBorders) {
-						result[x2 - halfWidth + (y2 - halfHeight) * w] = temp.get(mi);
-					} else {
-						result[x2 + y2 * w] = temp.get(mi);
-					}
-				}
+			if (!doBorders) {
+				convolveBand(data, w, h, result, 0, h);
+				return result;
+			}
+			// the data is bordered, w2 x h2 : the median of the bordered image
+			// is computed and its center is kept
+			double[] bordered = new double[w2 * h2];
+			MedianFilter.median(data, w2, h2, halfWidth, halfHeight, bordered, 0, h2);
+			for (int y = 0; y < h; y++) {
+				System.arraycopy(bordered, (y + halfHeight) * w2 + halfWidth, result, y * w, w);
 			}
 
 			return result;
 		}
 
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.image.feature.ConvolutionKernel2D.BandOperator#canConvolveBands()
+		 */
+		@Override
+		public boolean canConvolveBands() {
+			return !doBorders;
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.image.feature.ConvolutionKernel2D.BandOperator#convolveBand(double[], int, int, double[], int, int)
+		 */
+		@Override
+		public void convolveBand(final double[] data, int w, int h, double[] result, int y1, int y2) {
+			MedianFilter.median(data, w, h, halfWidth, halfHeight, result, y1, y2);
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.image.feature.ConvolutionKernel2D.BandOperator#convolveBand(float[], int, int, float[], int, int)
+		 */
+		@Override
+		public void convolveBand(final float[] data, int w, int h, float[] result, int y1, int y2) {
+			MedianFilter.median(data, w, h, halfWidth, halfHeight, result, y1, y2);
+		}
+
 		/* (non-Javadoc)
 		 * @see plugins.nherve.toolbox.image.feature.ConvolutionKernel2D.Operator#getKernelHalfHeight()
 		 */
@@ -275,11 +402,15 @@ public class ConvolutionKernel2D extends Algorithm {
 	}
 
 	/**
-	 * The Class StandardOperator.
+	 * The Class StandardOperator. Rank one kernels (Gaussian, box, Sobel) are
+	 * applied as two 1-D passes, large non separable kernels through the FFT
+	 * and the others directly. In all cases, the output pixel (x, y) is the
+	 * correlation of the kernel with the window of the input whose top left
+	 * corner is (x, y), the input being w2 x h2.
 	 * 
 	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
 	 */
-	class StandardOperator implements Operator {
+	class StandardOperator implements BandOperator {
 		
 		/** The k. */
 		private final double[] k;
@@ -293,6 +424,12 @@ public class ConvolutionKernel2D extends Algorithm {
 		/** The normalization factor. */
 		private double normalizationFactor;
 
+		/** The horizontal factor of the kernel, null if not separable. */
+		private double[] rowKernel;
+
+		/** The vertical factor of the kernel, null if not separable. */
+		private double[] colKernel;
+
 		/**
 		 * Instantiates a new standard operator.
 		 * 
@@ -309,6 +446,7 @@ public class ConvolutionKernel2D extends Algorithm {
 			this.kernelHalfWidth = kdw;
 			this.kernelHalfHeight = kdh;
 			computeNormalizationFactor();
+			computeSeparability();
 		}
 
 		/**
@@ -326,6 +464,64 @@ public class ConvolutionKernel2D extends Algorithm {
 			}
 		}
 
+		/**
+		 * Checks if the kernel is the outer product of a column and a row,
+		 * taking the row and the column of its largest coefficient as factors.
+		 */
+		private void computeSeparability() {
+			rowKernel = null;
+			colKernel = null;
+
+			final int kw = 2 * kernelHalfWidth + 1;
+			final int kh = 2 * kernelHalfHeight + 1;
+			if ((kw == 1) || (kh == 1)) {
+				return;
+			}
+
+			int pivot = 0;
+			for (int i = 1; i < k.length; i++) {
+				if (Math.abs(k[i]) > Math.abs(k[pivot])) {
+					pivot = i;
+				}
+			}
+			final double pv = k[pivot];
+			if (pv == 0) {
+				return;
+			}
+			final int pr = pivot / kw;
+			final int pc = pivot % kw;
+
+			double[] row = new double[kw];
+			double[] col = new double[kh];
+			for (int kx = 0; kx < kw; kx++) {
+				row[kx] = k[pr * kw + kx];
+			}
+			for (int ky = 0; ky < kh; ky++) {
+				col[ky] = k[ky * kw + pc] / pv;
+			}
+
+			final double tol = SEPARABILITY_TOLERANCE * Math.abs(pv);
+			for (int ky = 0, ki = 0; ky < kh; ky++) {
+				for (int kx = 0; kx < kw; kx++, ki++) {
+					if (Math.abs(k[ki] - col[ky] * row[kx]) > tol) {
+						return;
+					}
+				}
+			}
+
+			rowKernel = row;
+			colKernel = col;
+		}
+
+		/**
+		 * Checks if the kernel is separable.
+		 * 
+		 * @return true, if separable
+		 */
+		public boolean isSeparable() {
+			return rowKernel != null;
+		}
+
 		/* (non-Javadoc)
 		 * @see java.lang.Object#toString()
 		 */
@@ -349,41 +545,425 @@ public class ConvolutionKernel2D extends Algorithm {
 		@Override
 		public double[] convolve(final double[] data, int w, int h, int w2, int h2) {
 			double[] result = new double[w * h];
-			Arrays.fill(result, 0f);
 
-			int ki;
-			double val;
-			int idx;
-			for (int x2 = kernelHalfWidth; x2 < w2 - kernelHalfWidth; x2++) {
-				for (int y2 = kernelHalfHeight; y2 < h2 - kernelHalfHeight; y2++) {
-					val = 0;
-					ki = 0;
-					for (int ky = -kernelHalfHeight; ky <= kernelHalfHeight; ky++) {
-						for (int kx = -kernelHalfWidth; kx <= kernelHalfWidth; kx++) {
-							idx = x2 + kx + (y2 + ky) * w2;
-//							if (idx == 260) {
-//								System.out.println("idx");
-//							}
-							val += data[idx] * k[ki];
-							ki++;
+			final int vw = w2 - 2 * kernelHalfWidth;
+			final int vh = h2 - 2 * kernelHalfHeight;
+			if ((vw <= 0) || (vh <= 0)) {
+				return result;
+			}
+
+			final int ro = doBorders ? 0 : kernelHalfWidth + kernelHalfHeight * w;
+			if (isSeparable()) {
+				convolveSeparable(data, 0, w2, vw, vh, result, ro, w);
+			} else if (useFFT()) {
+				convolveFFT(data, w2, h2, vw, vh, result, ro, w);
+			} else {
+				convolveDirect(data, 0, w2, vw, vh, result, ro, w);
+			}
+
+			normalize(result, 0, w * h);
+
+			return result;
+		}
+
+		/**
+		 * Checks if the FFT is used.
+		 * 
+		 * @return true, if successful
+		 */
+		private boolean useFFT() {
+			return !isSeparable() && (k.length >= FFT_MIN_KERNEL_SIZE);
+		}
+
+		/**
+		 * Normalize.
+		 * 
+		 * @param result
+		 *            the result
+		 * @param from
+		 *            the from
+		 * @param to
+		 *            the to
+		 */
+		private void normalize(double[] result, int from, int to) {
+			if (normalizationFactor != 1f) {
+				for (int i = from; i < to; i++) {
+					result[i] *= normalizationFactor;
+				}
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.image.feature.ConvolutionKernel2D.BandOperator#canConvolveBands()
+		 */
+		@Override
+		public boolean canConvolveBands() {
+			return !useFFT();
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.image.feature.ConvolutionKernel2D.BandOperator#convolveBand(double[], int, int, double[], int, int)
+		 */
+		@Override
+		public void convolveBand(final double[] data, int w, int h, double[] result, int y1, int y2) {
+			final int kdw = kernelHalfWidth;
+			final int kdh = kernelHalfHeight;
+
+			if (doBorders) {
+				// replicated borders, only for the rows needed by this band
+				final int tw = w + 2 * kdw;
+				final int th = y2 - y1 + 2 * kdh;
+				double[] tile = new double[tw * th];
+				for (int ty = 0; ty < th; ty++) {
+					final int so = Math.min(h - 1, Math.max(0, y1 - kdh + ty)) * w;
+					final int to = ty * tw;
+					Arrays.fill(tile, to, to + kdw, data[so]);
+					System.arraycopy(data, so, tile, to + kdw, w);
+					Arrays.fill(tile, to + kdw + w, to + tw, data[so + w - 1]);
+				}
+				if (isSeparable()) {
+					convolveSeparable(tile, 0, tw, w, y2 - y1, result, y1 * w, w);
+				} else {
+					convolveDirect(tile, 0, tw, w, y2 - y1, result, y1 * w, w);
+				}
+			} else {
+				// no borders, the pixels closer than the kernel half size to the image borders stay at 0
+				Arrays.fill(result, y1 * w, y2 * w, 0);
+				final int ys = Math.max(y1, kdh);
+				final int ye = Math.min(y2, h - kdh);
+				final int vw = w - 2 * kdw;
+				if ((ys >= ye) || (vw <= 0)) {
+					return;
+				}
+				if (isSeparable()) {
+					convolveSeparable(data, (ys - kdh) * w, w, vw, ye - ys, result, kdw + ys * w, w);
+				} else {
+					convolveDirect(data, (ys - kdh) * w, w, vw, ye - ys, result, kdw + ys * w, w);
+				}
+			}
+
+			normalize(result, y1 * w, y2 * w);
+		}
+
+		/**
+		 * Normalize, in single precision.
+		 * 
+		 * @param result
+		 *            the result
+		 * @param from
+		 *            the from
+		 * @param to
+		 *            the to
+		 */
+		private void normalize(float[] result, int from, int to) {
+			if (normalizationFactor != 1f) {
+				for (int i = from; i < to; i++) {
+					result[i] *= normalizationFactor;
+				}
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.image.feature.ConvolutionKernel2D.BandOperator#convolveBand(float[], int, int, float[], int, int)
+		 */
+		@Override
+		public void convolveBand(final float[] data, int w, int h, float[] result, int y1, int y2) {
+			final int kdw = kernelHalfWidth;
+			final int kdh = kernelHalfHeight;
+
+			if (doBorders) {
+				final int tw = w + 2 * kdw;
+				final int th = y2 - y1 + 2 * kdh;
+				float[] tile = new float[tw * th];
+				for (int ty = 0; ty < th; ty++) {
+					final int so = Math.min(h - 1, Math.max(0, y1 - kdh + ty)) * w;
+					final int to = ty * tw;
+					Arrays.fill(tile, to, to + kdw, data[so]);
+					System.arraycopy(data, so, tile, to + kdw, w);
+					Arrays.fill(tile, to + kdw + w, to + tw, data[so + w - 1]);
+				}
+				if (isSeparable()) {
+					convolveSeparable(tile, 0, tw, w, y2 - y1, result, y1 * w, w);
+				} else {
+					convolveDirect(tile, 0, tw, w, y2 - y1, result, y1 * w, w);
+				}
+			} else {
+				Arrays.fill(result, y1 * w, y2 * w, 0);
+				final int ys = Math.max(y1, kdh);
+				final int ye = Math.min(y2, h - kdh);
+				final int vw = w - 2 * kdw;
+				if ((ys >= ye) || (vw <= 0)) {
+					return;
+				}
+				if (isSeparable()) {
+					convolveSeparable(data, (ys - kdh) * w, w, vw, ye - ys, result, kdw + ys * w, w);
+				} else {
+					convolveDirect(data, (ys - kdh) * w, w, vw, ye - ys, result, kdw + ys * w, w);
+				}
+			}
+
+			normalize(result, y1 * w, y2 * w);
+		}
+
+		/**
+		 * Direct convolution, in single precision with double accumulation.
+		 * 
+		 * @param src
+		 *            the source
+		 * @param so
+		 *            the source offset
+		 * @param sw
+		 *            the source width
+		 * @param vw
+		 *            the valid width
+		 * @param vh
+		 *            the valid height
+		 * @param dst
+		 *            the destination
+		 * @param dOff
+		 *            the destination offset
+		 * @param dw
+		 *            the destination width
+		 */
+		private void convolveDirect(final float[] src, int so, int sw, int vw, int vh, float[] dst, int dOff, int dw) {
+			final int kw = 2 * kernelHalfWidth + 1;
+			final int kh = 2 * kernelHalfHeight + 1;
+			for (int y = 0; y < vh; y++) {
+				for (int x = 0; x < vw; x++) {
+					double val = 0;
+					int ki = 0;
+					for (int ky = 0; ky < kh; ky++) {
+						int idx = so + x + (y + ky) * sw;
+						for (int kx = 0; kx < kw; kx++, ki++, idx++) {
+							val += src[idx] * k[ki];
 						}
 					}
-					if (doBorders) {
-						result[x2 - kernelHalfWidth + (y2 - kernelHalfHeight) * w] = val;
-					} else {
-						result[x2 + y2 * w] = val;
+					dst[dOff + x + y * dw] = (float) val;
+				}
+			}
+		}
+
+		/**
+		 * Separable convolution, in single precision.
+		 * 
+		 * @param src
+		 *            the source
+		 * @param so
+		 *            the source offset
+		 * @param sw
+		 *            the source width
+		 * @param vw
+		 *            the valid width
+		 * @param vh
+		 *            the valid height
+		 * @param dst
+		 *            the destination
+		 * @param dOff
+		 *            the destination offset
+		 * @param dw
+		 *            the destination width
+		 */
+		private void convolveSeparable(final float[] src, int so, int sw, int vw, int vh, float[] dst, int dOff, int dw) {
+			final int kw = rowKernel.length;
+			final int kh = colKernel.length;
+			final int sh = vh + kh - 1;
+
+			float[] tmp = new float[vw * sh];
+			for (int y = 0; y < sh; y++) {
+				final int o = so + y * sw;
+				final int to = y * vw;
+				for (int x = 0; x < vw; x++) {
+					double val = 0;
+					for (int kx = 0, idx = o + x; kx < kw; kx++, idx++) {
+						val += src[idx] * rowKernel[kx];
 					}
+					tmp[to + x] = (float) val;
 				}
 			}
 
-			if (normalizationFactor != 1f) {
-				int sz = w * h;
-				for (int i = 0; i < sz; i++) {
-					result[i] *= normalizationFactor;
+			double[] acc = new double[vw];
+			for (int y = 0; y < vh; y++) {
+				Arrays.fill(acc, 0);
+				for (int ky = 0; ky < kh; ky++) {
+					final double c = colKernel[ky];
+					if (c == 0) {
+						continue;
+					}
+					final int to = (y + ky) * vw;
+					for (int x = 0; x < vw; x++) {
+						acc[x] += c * tmp[to + x];
+					}
+				}
+				final int o = dOff + y * dw;
+				for (int x = 0; x < vw; x++) {
+					dst[o + x] = (float) acc[x];
 				}
 			}
+		}
 
-			return result;
+		/**
+		 * Direct convolution, row by row.
+		 * 
+		 * @param src
+		 *            the source
+		 * @param so
+		 *            the source offset
+		 * @param sw
+		 *            the source width
+		 * @param vw
+		 *            the valid width
+		 * @param vh
+		 *            the valid height
+		 * @param dst
+		 *            the destination
+		 * @param dOff
+		 *            the destination offset
+		 * @param dw
+		 *            the destination width
+		 */
+		private void convolveDirect(final double[] src, int so, int sw, int vw, int vh, double[] dst, int dOff, int dw) {
+			final int kw = 2 * kernelHalfWidth + 1;
+			final int kh = 2 * kernelHalfHeight + 1;
+			for (int y = 0; y < vh; y++) {
+				for (int x = 0; x < vw; x++) {
+					double val = 0;
+					int ki = 0;
+					for (int ky = 0; ky < kh; ky++) {
+						int idx = so + x + (y + ky) * sw;
+						for (int kx = 0; kx < kw; kx++, ki++, idx++) {
+							val += src[idx] * k[ki];
+						}
+					}
+					dst[dOff + x + y * dw] = val;
+				}
+			}
+		}
+
+		/**
+		 * Separable convolution : an horizontal pass on all the rows of the
+		 * source, then a vertical pass accumulated row by row.
+		 * 
+		 * @param src
+		 *            the source
+		 * @param so
+		 *            the source offset
+		 * @param sw
+		 *            the source width
+		 * @param vw
+		 *            the valid width
+		 * @param vh
+		 *            the valid height
+		 * @param dst
+		 *            the destination
+		 * @param dOff
+		 *            the destination offset
+		 * @param dw
+		 *            the destination width
+		 */
+		private void convolveSeparable(final double[] src, int so, int sw, int vw, int vh, double[] dst, int dOff, int dw) {
+			final int kw = rowKernel.length;
+			final int kh = colKernel.length;
+			final int sh = vh + kh - 1;
+
+			double[] tmp = new double[vw * sh];
+			for (int y = 0; y < sh; y++) {
+				final int o = so + y * sw;
+				final int to = y * vw;
+				for (int x = 0; x < vw; x++) {
+					double val = 0;
+					for (int kx = 0, idx = o + x; kx < kw; kx++, idx++) {
+						val += src[idx] * rowKernel[kx];
+					}
+					tmp[to + x] = val;
+				}
+			}
+
+			for (int y = 0; y < vh; y++) {
+				final int o = dOff + y * dw;
+				Arrays.fill(dst, o, o + vw, 0);
+				for (int ky = 0; ky < kh; ky++) {
+					final double c = colKernel[ky];
+					if (c == 0) {
+						continue;
+					}
+					final int to = (y + ky) * vw;
+					for (int x = 0; x < vw; x++) {
+						dst[o + x] += c * tmp[to + x];
+					}
+				}
+			}
+		}
+
+		/**
+		 * Convolution through the FFT. The transforms are circular, but the
+		 * valid window never wraps around the data, so no padding is needed
+		 * besides rounding the sizes up to fast FFT sizes.
+		 * 
+		 * @param data
+		 *            the data
+		 * @param w2
+		 *            the data width
+		 * @param h2
+		 *            the data height
+		 * @param vw
+		 *            the valid width
+		 * @param vh
+		 *            the valid height
+		 * @param dst
+		 *            the destination
+		 * @param dOff
+		 *            the destination offset
+		 * @param dw
+		 *            the destination width
+		 */
+		private void convolveFFT(final double[] data, int w2, int h2, int vw, int vh, double[] dst, int dOff, int dw) {
+			final int kw = 2 * kernelHalfWidth + 1;
+			final int kh = 2 * kernelHalfHeight + 1;
+			final int fw = getFFTSize(w2);
+			final int fh = getFFTSize(h2);
+
+			double[][] fd = new double[fh][2 * fw];
+			for (int y = 0; y < h2; y++) {
+				final int o = y * w2;
+				for (int x = 0; x < w2; x++) {
+					fd[y][2 * x] = data[o + x];
+				}
+			}
+
+			// correlation : the kernel coefficient (kx, ky) goes to (-kx, -ky)
+			double[][] fk = new double[fh][2 * fw];
+			for (int ky = 0, ki = 0; ky < kh; ky++) {
+				final int fy = (fh - ky) % fh;
+				for (int kx = 0; kx < kw; kx++, ki++) {
+					fk[fy][2 * ((fw - kx) % fw)] = k[ki];
+				}
+			}
+
+			DoubleFFT_2D fft = new DoubleFFT_2D(fh, fw);
+			fft.complexForward(fd);
+			fft.complexForward(fk);
+
+			for (int y = 0; y < fh; y++) {
+				final double[] d = fd[y];
+				final double[] kr = fk[y];
+				for (int x = 0; x < 2 * fw; x += 2) {
+					final double re = d[x] * kr[x] - d[x + 1] * kr[x + 1];
+					final double im = d[x] * kr[x + 1] + d[x + 1] * kr[x];
+					d[x] = re;
+					d[x + 1] = im;
+				}
+			}
+			fk = null;
+
+			fft.complexInverse(fd, true);
+
+			for (int y = 0; y < vh; y++) {
+				final double[] d = fd[y];
+				final int o = dOff + y * dw;
+				for (int x = 0; x < vw; x++) {
+					dst[o + x] = d[2 * x];
+				}
+			}
 		}
 
 		/* (non-Javadoc)
@@ -401,12 +981,122 @@ public class ConvolutionKernel2D extends Algorithm {
 		}
 	}
 
+	/**
+	 * Gets the smallest size greater or equal to n whose only prime factors
+	 * are 2, 3 and 5, the sizes the FFT handles without falling back to the
+	 * slower Bluestein algorithm.
+	 * 
+	 * @param n
+	 *            the n
+	 * @return the FFT size
+	 */
+	public static int getFFTSize(int n) {
+		int best = Integer.MAX_VALUE;
+		for (long p2 = 1; p2 < 2L * n; p2 *= 2) {
+			for (long p3 = p2; p3 < 2L * n; p3 *= 3) {
+				for (long p5 = p3; p5 < 2L * n; p5 *= 5) {
+					if ((p5 >= n) && (p5 < best)) {
+						best = (int) p5;
+					}
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Reusable buffers for the single precision Canny pipeline, grown when
+	 * needed. A workspace must not be shared between threads.
+	 * 
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	public static class CannyWorkspace {
+
+		/** The blurred image. */
+		private float[] blurred;
+
+		/** The amplitude. */
+		private float[] amplitude;
+
+		/** The orientation. */
+		private float[] orientation;
+
+		/** The edge flags of the non maximum suppression. */
+		private byte[] edges;
+
+		/**
+		 * Instantiates a new empty workspace.
+		 */
+		public CannyWorkspace() {
+			super();
+		}
+
+		/**
+		 * Gets the blurred buffer.
+		 * 
+		 * @param size
+		 *            the size
+		 * @return the buffer
+		 */
+		float[] getBlurred(int size) {
+			if ((blurred == null) || (blurred.length < size)) {
+				blurred = new float[size];
+			}
+			return blurred;
+		}
+
+		/**
+		 * Gets the amplitude buffer.
+		 * 
+		 * @param size
+		 *            the size
+		 * @return the buffer
+		 */
+		float[] getAmplitude(int size) {
+			if ((amplitude == null) || (amplitude.length < size)) {
+				amplitude = new float[size];
+			}
+			return amplitude;
+		}
+
+		/**
+		 * Gets the orientation buffer.
+		 * 
+		 * @param size
+		 *            the size
+		 * @return the buffer
+		 */
+		float[] getOrientation(int size) {
+			if ((orientation == null) || (orientation.length < size)) {
+				orientation = new float[size];
+			}
+			return orientation;
+		}
+
+		/**
+		 * Gets the edges buffer.
+		 * 
+		 * @param size
+		 *            the size
+		 * @return the buffer
+		 */
+		byte[] getEdges(int size) {
+			if ((edges == null) || (edges.length < size)) {
+				edges = new byte[size];
+			}
+			return edges;
+		}
+	}
+
 	/** The do borders. */
 	private boolean doBorders;
 	
 	/** The op. */
 	private Operator op;
 
+	/** The task manager used for the bands, null to stay on the calling thread. */
+	private TaskManager tm;
+
 	/**
 	 * Instantiates a new convolution kernel2 d.
 	 * 
@@ -417,6 +1107,26 @@ public class ConvolutionKernel2D extends Algorithm {
 		super();
 		doBorders = niceBorders;
 		op = null;
+		tm = TaskManager.getSecondLevelInstance();
+	}
+
+	/**
+	 * Gets the task manager.
+	 * 
+	 * @return the task manager
+	 */
+	public TaskManager getTm() {
+		return tm;
+	}
+
+	/**
+	 * Sets the task manager, null to convolve on the calling thread.
+	 * 
+	 * @param tm
+	 *            the new task manager
+	 */
+	public void setTm(TaskManager tm) {
+		this.tm = tm;
 	}
 
 	/**
@@ -575,12 +1285,112 @@ public class ConvolutionKernel2D extends Algorithm {
 	 * 
 	 * @return the gray level converter
 	 */
-	public static ConvolutionKernel2D getGrayLevelConverter() {
-		return getStandardKernel(GRAYLEVEL_KD, GRAYLEVEL_KERNEL, false);
+	public static ConvolutionKernel2D getGrayLevelConverter() {
+		return getStandardKernel(GRAYLEVEL_KD, GRAYLEVEL_KERNEL, false);
+	}
+
+	/**
+	 * Canny.
+	 * 
+	 * @param data
+	 *            the data
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param sigma
+	 *            the sigma
+	 * @param hystLow
+	 *            the hyst low
+	 * @param hystHigh
+	 *            the hyst high
+	 * @return the boolean[]
+	 */
+	public static boolean[] canny(double[] data, int w, int h, double sigma, double hystLow, double hystHigh) {
+		boolean[] edges = new boolean[w * h];
+		canny(data, w, h, sigma, hystLow, hystHigh, edges, null, null);
+		return edges;
+	}
+
+	/**
+	 * Canny.
+	 * 
+	 * @param data
+	 *            the data
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param sigma
+	 *            the sigma
+	 * @param hystLow
+	 *            the hyst low
+	 * @param hystHigh
+	 *            the hyst high
+	 * @param finalEdges
+	 *            the final edges
+	 * @param gradient
+	 *            the gradient
+	 * @param orientations
+	 *            the orientations
+	 */
+	public static void canny(double[] data, int w, int h, double sigma, double hystLow, double hystHigh, boolean[] finalEdges, double[] gradient, double[] orientations) {
+		canny(data, w, h, sigma, hystLow, hystHigh, finalEdges, gradient, orientations, false);
+	}
+
+	/**
+	 * Canny.
+	 * 
+	 * @param data
+	 *            the data
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param sigma
+	 *            the sigma
+	 * @param hystLow
+	 *            the hyst low
+	 * @param hystHigh
+	 *            the hyst high
+	 * @param finalEdges
+	 *            the final edges
+	 * @param gradient
+	 *            the gradient
+	 * @param orientations
+	 *            the orientations
+	 * @param parallel
+	 *            run the non maximum suppression and the hysteresis by bands
+	 *            on the task manager (needs an extra int per pixel), the
+	 *            final edges are left incomplete if the calling thread is
+	 *            interrupted
+	 */
+	public static void canny(double[] data, int w, int h, double sigma, double hystLow, double hystHigh, boolean[] finalEdges, double[] gradient, double[] orientations, boolean parallel) {
+		int size = w * h;
+		ConvolutionKernel2D gaussian = ConvolutionKernel2D.getGaussianFilter(sigma);
+		double[] blured = gaussian.borderAndConvolve(data, w, h);
+		double[][] sobel = ConvolutionKernel2D.sobel(blured, w, h, true);
+		blured = null;
+
+		if (gradient != null) {
+			System.arraycopy(sobel[0], 0, gradient, 0, size);
+		}
+
+		if (orientations != null) {
+			System.arraycopy(sobel[1], 0, orientations, 0, size);
+		}
+
+		byte[] edges = new byte[size];
+		if (!parallel || !isWorthCannyBands(h)) {
+			suppressNonMaxima(sobel[0], sobel[1], null, null, w, h, hystLow, hystHigh, edges, 0, h);
+			hysteresis(edges, w, h, finalEdges);
+		} else if (suppressNonMaximaByBands(sobel[0], sobel[1], null, null, w, h, hystLow, hystHigh, edges)) {
+			hysteresisByBands(edges, w, h, finalEdges);
+		}
 	}
 
 	/**
-	 * Canny.
+	 * Canny, in single precision.
 	 * 
 	 * @param data
 	 *            the data
@@ -594,16 +1404,21 @@ public class ConvolutionKernel2D extends Algorithm {
 	 *            the hyst low
 	 * @param hystHigh
 	 *            the hyst high
-	 * @return the boolean[]
+	 * @param finalEdges
+	 *            the final edges
+	 * @param gradient
+	 *            the gradient, may be null
+	 * @param orientations
+	 *            the orientations, may be null
+	 * @param ws
+	 *            the workspace, may be null
 	 */
-	public static boolean[] canny(double[] data, int w, int h, double sigma, double hystLow, double hystHigh) {
-		boolean[] edges = new boolean[w * h];
-		canny(data, w, h, sigma, hystLow, hystHigh, edges, null, null);
-		return edges;
+	public static void canny(float[] data, int w, int h, double sigma, double hystLow, double hystHigh, boolean[] finalEdges, float[] gradient, float[] orientations, CannyWorkspace ws) {
+		canny(data, w, h, sigma, hystLow, hystHigh, finalEdges, gradient, orientations, ws, false);
 	}
 
 	/**
-	 * Canny.
+	 * Canny, in single precision.
 	 * 
 	 * @param data
 	 *            the data
@@ -620,128 +1435,373 @@ public class ConvolutionKernel2D extends Algorithm {
 	 * @param finalEdges
 	 *            the final edges
 	 * @param gradient
-	 *            the gradient
+	 *            the gradient, may be null
 	 * @param orientations
-	 *            the orientations
+	 *            the orientations, may be null
+	 * @param ws
+	 *            the workspace, may be null
+	 * @param parallel
+	 *            run the non maximum suppression and the hysteresis by bands
+	 *            on the task manager (needs an extra int per pixel), the
+	 *            final edges are left incomplete if the calling thread is
+	 *            interrupted
 	 */
-	public static void canny(double[] data, int w, int h, double sigma, double hystLow, double hystHigh, boolean[] finalEdges, double[] gradient, double[] orientations) {
-		int size = w * h;
-		ConvolutionKernel2D gaussian = ConvolutionKernel2D.getGaussianFilter(sigma);
-		double[] blured = gaussian.borderAndConvolve(data, w, h);
-		double[][] sobel = ConvolutionKernel2D.sobel(blured, w, h, true);
-		blured = null;
-
-		if (gradient != null) {
-			for (int i = 0; i < size; i++) {
-				gradient[i] = sobel[0][i];
-			}
+	public static void canny(float[] data, int w, int h, double sigma, double hystLow, double hystHigh, boolean[] finalEdges, float[] gradient, float[] orientations, CannyWorkspace ws, boolean parallel) {
+		final int size = w * h;
+		if (ws == null) {
+			ws = new CannyWorkspace();
 		}
-
-		if (orientations != null) {
-			for (int i = 0; i < size; i++) {
-				orientations[i] = sobel[1][i];
-			}
+		float[] amp = (gradient != null) ? gradient : ws.getAmplitude(size);
+		float[] ori = (orientations != null) ? orientations : ws.getOrientation(size);
+
+		float[] blured = ws.getBlurred(size);
+		ConvolutionKernel2D.getGaussianFilter(sigma).borderAndConvolve(data, w, h, blured);
+		sobel(blured, w, h, true, amp, ori);
+
+		byte[] edges = ws.getEdges(size);
+		if (!parallel || !isWorthCannyBands(h)) {
+			suppressNonMaxima(null, null, amp, ori, w, h, hystLow, hystHigh, edges, 0, h);
+			hysteresis(edges, w, h, finalEdges);
+		} else if (suppressNonMaximaByBands(null, null, amp, ori, w, h, hystLow, hystHigh, edges)) {
+			hysteresisByBands(edges, w, h, finalEdges);
 		}
+	}
 
-		// Non maximum suppression
-		boolean[] edges = new boolean[size];
-		Arrays.fill(edges, false);
-		double step = Math.PI / 8.0;
+	/**
+	 * Checks if the image is high enough to run the Canny by bands.
+	 * 
+	 * @param h
+	 *            the h
+	 * @return true, if at least two bands
+	 */
+	private static boolean isWorthCannyBands(int h) {
+		return h >= 2 * MIN_BAND_HEIGHT;
+	}
 
-		int idx = 0;
-		double val = 0;
-		double a = 0;
-		for (int x = 1; x < w - 1; x++) {
-			for (int y = 1; y < h - 1; y++) {
-				idx = x + y * w;
-				val = sobel[0][idx];
-				a = sobel[1][idx];
+	/**
+	 * Non maximum suppression and double thresholding, fused in one row major
+	 * pass over the rows [y1, y2[. Each local maximum of the gradient
+	 * amplitude along the gradient direction gets the EDGE_WEAK flag if above
+	 * the low threshold and the EDGE_STRONG flag if above the high one. Either
+	 * the double or the float buffers are given.
+	 * 
+	 * @param amp
+	 *            the amplitude
+	 * @param ori
+	 *            the orientation
+	 * @param famp
+	 *            the amplitude, single precision
+	 * @param fori
+	 *            the orientation, single precision
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param low
+	 *            the low threshold
+	 * @param high
+	 *            the high threshold
+	 * @param edges
+	 *            the edge flags
+	 * @param y1
+	 *            the first row
+	 * @param y2
+	 *            the last row, excluded
+	 */
+	private static void suppressNonMaxima(double[] amp, double[] ori, float[] famp, float[] fori, int w, int h, double low, double high, byte[] edges, int y1, int y2) {
+		Arrays.fill(edges, y1 * w, y2 * w, (byte) 0);
+		final double step = Math.PI / 8.0;
+		final boolean single = (amp == null);
+		for (int y = Math.max(1, y1); y < Math.min(h - 1, y2); y++) {
+			for (int x = 1, idx = 1 + y * w; x < w - 1; x++, idx++) {
+				final double val = single ? famp[idx] : amp[idx];
+				if (val < low && val < high) {
+					continue;
+				}
+				double a = single ? fori[idx] : ori[idx];
 				if (a < 0) {
 					a += Math.PI;
 				}
 				if (a > Math.PI) {
 					a -= Math.PI;
 				}
-				int da = (int) Math.floor(a / step);
-				switch (da) {
+				int n1, n2;
+				switch ((int) Math.floor(a / step)) {
 				case 0:
 				case 7:
-					if ((val > sobel[0][x + (y - 1) * w]) && (val > sobel[0][x + (y + 1) * w])) {
-						edges[idx] = true;
-					}
+					n1 = idx - w;
+					n2 = idx + w;
 					break;
 				case 1:
 				case 2:
-					if ((val > sobel[0][x - 1 + (y - 1) * w]) && (val > sobel[0][x + 1 + (y + 1) * w])) {
-						edges[idx] = true;
-					}
+					n1 = idx - 1 - w;
+					n2 = idx + 1 + w;
 					break;
 				case 3:
 				case 4:
-					if ((val > sobel[0][x - 1 + y * w]) && (val > sobel[0][x + 1 + y * w])) {
-						edges[idx] = true;
-					}
+					n1 = idx - 1;
+					n2 = idx + 1;
 					break;
 				case 5:
 				case 6:
-					if ((val > sobel[0][x + 1 + (y - 1) * w]) && (val > sobel[0][x - 1 + (y + 1) * w])) {
-						edges[idx] = true;
-					}
+					n1 = idx + 1 - w;
+					n2 = idx - 1 + w;
 					break;
+				default:
+					continue;
+				}
+				final boolean max = single ? ((famp[idx] > famp[n1]) && (famp[idx] > famp[n2])) : ((val > amp[n1]) && (val > amp[n2]));
+				if (max) {
+					byte e = 0;
+					if (val >= low) {
+						e |= EDGE_WEAK;
+					}
+					if (val >= high) {
+						e |= EDGE_STRONG;
+					}
+					edges[idx] = e;
 				}
 			}
 		}
+	}
 
-		// Hysteresis
-		Arrays.fill(finalEdges, false);
-		for (int x = 0; x < w; x++) {
-			for (int y = 0; y < h; y++) {
-				idx = x + y * w;
-				if (edges[idx] && (sobel[0][idx] >= hystHigh)) {
-					findHystLowContour(sobel[0], edges, finalEdges, x, y, w, size, hystLow, true);
+	/**
+	 * Non maximum suppression by bands on the task manager.
+	 * 
+	 * @param amp
+	 *            the amplitude
+	 * @param ori
+	 *            the orientation
+	 * @param famp
+	 *            the amplitude, single precision
+	 * @param fori
+	 *            the orientation, single precision
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param low
+	 *            the low threshold
+	 * @param high
+	 *            the high threshold
+	 * @param edges
+	 *            the edge flags
+	 * @return false if interrupted
+	 */
+	private static boolean suppressNonMaximaByBands(final double[] amp, final double[] ori, final float[] famp, final float[] fori, final int w, final int h, final double low, final double high, final byte[] edges) {
+		return ParallelBands.run(h, MIN_BAND_HEIGHT, new ParallelBands.Band() {
+			@Override
+			public void run(int y1, int y2) {
+				suppressNonMaxima(amp, ori, famp, fori, w, h, low, high, edges, y1, y2);
+			}
+		});
+	}
+
+	/**
+	 * Hysteresis : the strong edges are kept, as well as the weak edges
+	 * 8-connected to them. Iterative scanline flood fill from each strong
+	 * edge, the reached pixels get the EDGE_DONE flag.
+	 * 
+	 * @param edges
+	 *            the edge flags, modified
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param finalEdges
+	 *            the final edges
+	 */
+	private static void hysteresis(final byte[] edges, int w, int h, boolean[] finalEdges) {
+		final int size = w * h;
+		ScanlineFloodFill ff = new ScanlineFloodFill(w, h, true);
+		ScanlineFloodFill.Region contour = new ScanlineFloodFill.Region() {
+			@Override
+			public boolean isFillable(int idx) {
+				return (edges[idx] & (EDGE_WEAK | EDGE_DONE)) == EDGE_WEAK;
+			}
+
+			@Override
+			public void fill(int idx) {
+				edges[idx] |= EDGE_DONE;
+			}
+
+			@Override
+			public boolean isFilled(int idx) {
+				return (edges[idx] & EDGE_DONE) != 0;
+			}
+		};
+
+		for (int y = 0, idx = 0; y < h; y++) {
+			for (int x = 0; x < w; x++, idx++) {
+				if ((edges[idx] & (EDGE_STRONG | EDGE_DONE)) == EDGE_STRONG) {
+					contour.fill(idx);
+					for (int dy = -1; dy <= 1; dy++) {
+						for (int dx = -1; dx <= 1; dx++) {
+							ff.fill(contour, x + dx, y + dy);
+						}
+					}
 				}
 			}
 		}
+
+		for (int i = 0; i < size; i++) {
+			finalEdges[i] = (edges[i] & EDGE_DONE) != 0;
+		}
 	}
 
 	/**
-	 * Find hyst low contour.
+	 * Hysteresis by bands, with a union-find on the edge pixels. Each band
+	 * links its 8-connected edges and propagates the EDGE_STRONG flag to the
+	 * roots, then the bands are merged along their borders and an edge is
+	 * kept if its root is strong.
 	 * 
-	 * @param gradient
-	 *            the gradient
 	 * @param edges
-	 *            the edges
+	 *            the edge flags, modified
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
 	 * @param finalEdges
 	 *            the final edges
-	 * @param x
-	 *            the x
-	 * @param y
-	 *            the y
+	 * @return false if interrupted
+	 */
+	private static boolean hysteresisByBands(final byte[] edges, final int w, final int h, final boolean[] finalEdges) {
+		final int[] parent = new int[w * h];
+		final boolean[] bandStarts = new boolean[h];
+
+		boolean linked = ParallelBands.run(h, MIN_BAND_HEIGHT, new ParallelBands.Band() {
+			@Override
+			public void run(int y1, int y2) {
+				bandStarts[y1] = true;
+				linkBand(edges, parent, w, y1, y2);
+			}
+		});
+		if (!linked) {
+			return false;
+		}
+
+		for (int y = 1; y < h; y++) {
+			if (!bandStarts[y]) {
+				continue;
+			}
+			final int o = y * w;
+			for (int x = 0; x < w; x++) {
+				if ((edges[o + x] & (EDGE_WEAK | EDGE_STRONG)) == 0) {
+					continue;
+				}
+				for (int dx = -1; dx <= 1; dx++) {
+					final int nx = x + dx;
+					if ((nx >= 0) && (nx < w) && ((edges[o - w + nx] & (EDGE_WEAK | EDGE_STRONG)) != 0)) {
+						union(edges, parent, o + x, o - w + nx);
+					}
+				}
+			}
+		}
+
+		return ParallelBands.run(h, MIN_BAND_HEIGHT, new ParallelBands.Band() {
+			@Override
+			public void run(int y1, int y2) {
+				final int i2 = y2 * w;
+				for (int i = y1 * w; i < i2; i++) {
+					if ((edges[i] & (EDGE_WEAK | EDGE_STRONG)) == 0) {
+						finalEdges[i] = false;
+					} else {
+						int r = i;
+						while (parent[r] != r) {
+							r = parent[r];
+						}
+						finalEdges[i] = (edges[r] & EDGE_STRONG) != 0;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Links the 8-connected edge pixels of the rows [y1, y2[, looking only at
+	 * the already visited neighbours inside the band.
+	 * 
+	 * @param edges
+	 *            the edges
+	 * @param parent
+	 *            the parent
 	 * @param w
 	 *            the w
-	 * @param size
-	 *            the size
-	 * @param thresh
-	 *            the thresh
-	 * @param init
-	 *            the init
-	 */
-	private static void findHystLowContour(double[] gradient, boolean[] edges, boolean[] finalEdges, int x, int y, int w, int size, double thresh, boolean init) {
-		int idx = x + y * w;
-		// FIXME : a revoir avec w et h
-		if ((idx >= 0) && (idx < size)) {
-			if (init || (edges[idx] && (gradient[idx] >= thresh))) {
-				finalEdges[idx] = true;
-				edges[idx] = false;
-				for (int dx = -1; dx <= 1; dx++) {
-					for (int dy = -1; dy <= 1; dy++) {
-						findHystLowContour(gradient, edges, finalEdges, x + dx, y + dy, w, size, thresh, false);
+	 * @param y1
+	 *            the y1
+	 * @param y2
+	 *            the y2
+	 */
+	private static void linkBand(byte[] edges, int[] parent, int w, int y1, int y2) {
+		final byte node = EDGE_WEAK | EDGE_STRONG;
+		for (int y = y1, idx = y1 * w; y < y2; y++) {
+			for (int x = 0; x < w; x++, idx++) {
+				if ((edges[idx] & node) == 0) {
+					continue;
+				}
+				parent[idx] = idx;
+				if ((x > 0) && ((edges[idx - 1] & node) != 0)) {
+					union(edges, parent, idx, idx - 1);
+				}
+				if (y > y1) {
+					for (int dx = -1; dx <= 1; dx++) {
+						final int nx = x + dx;
+						if ((nx >= 0) && (nx < w) && ((edges[idx - w + dx] & node) != 0)) {
+							union(edges, parent, idx, idx - w + dx);
+						}
 					}
 				}
 			}
 		}
 	}
 
+	/**
+	 * Find, with path halving.
+	 * 
+	 * @param parent
+	 *            the parent
+	 * @param i
+	 *            the i
+	 * @return the root
+	 */
+	private static int find(int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	/**
+	 * Union, the lowest index becomes the root and gets the strong flag of
+	 * both sets.
+	 * 
+	 * @param edges
+	 *            the edges
+	 * @param parent
+	 *            the parent
+	 * @param a
+	 *            the a
+	 * @param b
+	 *            the b
+	 */
+	private static void union(byte[] edges, int[] parent, int a, int b) {
+		int ra = find(parent, a);
+		int rb = find(parent, b);
+		if (ra == rb) {
+			return;
+		}
+		if (rb < ra) {
+			int t = ra;
+			ra = rb;
+			rb = t;
+		}
+		parent[rb] = ra;
+		if ((edges[rb] & EDGE_STRONG) != 0) {
+			edges[ra] |= EDGE_STRONG;
+		}
+	}
+
 	/**
 	 * Sobel.
 	 * 
@@ -756,26 +1816,52 @@ public class ConvolutionKernel2D extends Algorithm {
 	 * @return the double[][]
 	 */
 	public static double[][] sobel(double[] data, int w, int h, boolean niceBorders) {
-		double[] d = data;
-		if (niceBorders) {
-			d = addBorders(data, w, h, 1, 1);
-		}
 		double[][] result = new double[2][w * h];
 
-		double[] gx = getSobelOperator(SOBEL_X, niceBorders).convolve(d, w, h);
-		double[] gy = getSobelOperator(SOBEL_Y, niceBorders).convolve(d, w, h);
-		int idx = 0;
-		for (int x = 0; x < w; x++) {
-			for (int y = 0; y < h; y++) {
-				idx = x + y * w;
-				result[0][idx] = Math.sqrt(gx[idx] * gx[idx] + gy[idx] * gy[idx]);
-				result[1][idx] = Math.atan2(gy[idx], gx[idx]);
-			}
+		// gx and gy are computed in the result buffers, then replaced by the amplitude and the orientation
+		double[] gx = result[0];
+		double[] gy = result[1];
+		getSobelOperator(SOBEL_X, niceBorders).borderAndConvolve(data, w, h, gx);
+		getSobelOperator(SOBEL_Y, niceBorders).borderAndConvolve(data, w, h, gy);
+		final int sz = w * h;
+		for (int idx = 0; idx < sz; idx++) {
+			final double vx = gx[idx];
+			final double vy = gy[idx];
+			gx[idx] = Math.sqrt(vx * vx + vy * vy);
+			gy[idx] = Math.atan2(vy, vx);
 		}
 
 		return result;
 	}
 
+	/**
+	 * Sobel, in single precision, into the given buffers.
+	 * 
+	 * @param data
+	 *            the data
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param niceBorders
+	 *            the nice borders
+	 * @param amplitude
+	 *            the amplitude
+	 * @param orientation
+	 *            the orientation
+	 */
+	public static void sobel(float[] data, int w, int h, boolean niceBorders, float[] amplitude, float[] orientation) {
+		getSobelOperator(SOBEL_X, niceBorders).borderAndConvolve(data, w, h, amplitude);
+		getSobelOperator(SOBEL_Y, niceBorders).borderAndConvolve(data, w, h, orientation);
+		final int sz = w * h;
+		for (int idx = 0; idx < sz; idx++) {
+			final double vx = amplitude[idx];
+			final double vy = orientation[idx];
+			amplitude[idx] = (float) Math.sqrt(vx * vx + vy * vy);
+			orientation[idx] = (float) Math.atan2(vy, vx);
+		}
+	}
+
 	/**
 	 * Adds the borders.
 	 * 
@@ -895,6 +1981,12 @@ public class ConvolutionKernel2D extends Algorithm {
 	 * @return the double[]
 	 */
 	public double[] borderAndConvolve(double[] data, int w, int h) {
+		if (canConvolveBands()) {
+			double[] result = new double[w * h];
+			borderAndConvolve(data, w, h, result);
+			return result;
+		}
+
 		double[] myData = data;
 
 		int w2 = w;
@@ -909,6 +2001,100 @@ public class ConvolutionKernel2D extends Algorithm {
 		return op.convolve(myData, w, h, w2, h2);
 	}
 
+	/**
+	 * Border and convolve, into a given result buffer. When the operator
+	 * allows it, the rows are split in bands, computed in parallel on the
+	 * task manager. Each band replicates the borders it needs itself, the
+	 * whole bordered copy of the image is never built. If the calling thread
+	 * is interrupted, the result is left incomplete.
+	 * 
+	 * @param data
+	 *            the data
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param result
+	 *            the result, w * h
+	 */
+	public void borderAndConvolve(final double[] data, final int w, final int h, final double[] result) {
+		if (!canConvolveBands()) {
+			System.arraycopy(borderAndConvolve(data, w, h), 0, result, 0, w * h);
+			return;
+		}
+
+		final BandOperator bop = (BandOperator) op;
+		ParallelBands.run(tm, h, MIN_BAND_HEIGHT, new ParallelBands.Band() {
+			@Override
+			public void run(int y1, int y2) {
+				bop.convolveBand(data, w, h, result, y1, y2);
+			}
+		});
+	}
+
+	/**
+	 * Checks if the operator can work by bands.
+	 * 
+	 * @return true, if successful
+	 */
+	private boolean canConvolveBands() {
+		return (op instanceof BandOperator) && ((BandOperator) op).canConvolveBands();
+	}
+
+	/**
+	 * Border and convolve, in single precision, into a given result buffer.
+	 * The results are the same as the double precision version, up to the
+	 * float rounding : the sums are still accumulated in double.
+	 * 
+	 * @param data
+	 *            the data
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param result
+	 *            the result, w * h, may not be data
+	 */
+	public void borderAndConvolve(final float[] data, final int w, final int h, final float[] result) {
+		final int sz = w * h;
+		if (!canConvolveBands()) {
+			double[] dd = new double[sz];
+			for (int i = 0; i < sz; i++) {
+				dd[i] = data[i];
+			}
+			dd = borderAndConvolve(dd, w, h);
+			for (int i = 0; i < sz; i++) {
+				result[i] = (float) dd[i];
+			}
+			return;
+		}
+
+		final BandOperator bop = (BandOperator) op;
+		ParallelBands.run(tm, h, MIN_BAND_HEIGHT, new ParallelBands.Band() {
+			@Override
+			public void run(int y1, int y2) {
+				bop.convolveBand(data, w, h, result, y1, y2);
+			}
+		});
+	}
+
+	/**
+	 * Border and convolve, in single precision.
+	 * 
+	 * @param data
+	 *            the data
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @return the result
+	 */
+	public float[] borderAndConvolve(float[] data, int w, int h) {
+		float[] result = new float[w * h];
+		borderAndConvolve(data, w, h, result);
+		return result;
+	}
+
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
@@ -973,6 +2159,53 @@ public class ConvolutionKernel2D extends Algorithm {
 		return data;
 	}
 
+	/**
+	 * Gets the intensity, in single precision. The rows are converted, by
+	 * parallel bands, straight into the result : the values are the ones of
+	 * getIntensity(img) rounded to float, without the double gray image.
+	 * 
+	 * @param img
+	 *            the img
+	 * @param result
+	 *            the result, allocated if null or too small
+	 * @return the intensity
+	 */
+	public static float[] getIntensity(final IcyBufferedImage img, float[] result) {
+		final int w = img.getWidth();
+		final int sz = w * img.getHeight();
+		if ((result == null) || (result.length < sz)) {
+			result = new float[sz];
+		}
+		final float[] out = result;
+		ParallelBands.run(img.getHeight(), MIN_BAND_HEIGHT, new ParallelBands.Band() {
+			@Override
+			public void run(int from, int to) {
+				ColorSpaceTools.RowConverter rc = new ColorSpaceTools.RowConverter(ColorSpaceTools.RGB_TO_I1H2H3);
+				double[][] row = new double[ColorSpaceTools.NB_COLOR_CHANNELS][w];
+				for (int y = from; y < to; y++) {
+					rc.convert(img, y, row);
+					final double[] intensity = row[1];
+					for (int x = 0, idx = y * w; x < w; x++, idx++) {
+						out[idx] = (float) intensity[x];
+					}
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Convolve intensity, in single precision.
+	 * 
+	 * @param img
+	 *            the img
+	 * @param result
+	 *            the result
+	 */
+	public void convolveIntensity(IcyBufferedImage img, float[] result) {
+		borderAndConvolve(getIntensity(img, null), img.getWidth(), img.getHeight(), result);
+	}
+
 	/**
 	 * Convolve intensity.
 	 * 
@@ -985,10 +2218,6 @@ public class ConvolutionKernel2D extends Algorithm {
 		int h = img.getHeight();
 		double[] data = getIntensity(img);
 
-		if (doBorders) {
-			data = addBorders(data, w, h, op.getKernelHalfWidth(), op.getKernelHalfHeight());
-		}
-
-		return convolve(data, w, h);
+		return borderAndConvolve(data, w, h);
 	}
 }
@@ -24,13 +24,11 @@ import icy.type.TypeUtil;
 import java.util.List;
 
 import plugins.nherve.toolbox.Algorithm;
-import plugins.nherve.toolbox.image.BinaryIcyBufferedImage;
 import plugins.nherve.toolbox.image.feature.FeatureException;
 import plugins.nherve.toolbox.image.feature.SegmentableIcyBufferedImage;
 import plugins.nherve.toolbox.image.feature.descriptor.ColorPixel;
 import plugins.nherve.toolbox.image.feature.region.IcyPixel;
 import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
-import plugins.nherve.toolbox.image.mask.Mask;
 import plugins.nherve.toolbox.image.mask.MaskStack;
 import plugins.nherve.toolbox.image.toolboxes.ColorSpaceTools;
 
@@ -102,24 +100,10 @@ public class CooccurenceMatrixFactory extends Algorithm {
 		IcyBufferedImage index = new IcyBufferedImage(w, h, 1, TypeUtil.TYPE_INT);
 		int[] idxData = index.getDataXYAsInt(0);
 
-		byte[][] segData = new byte[s][];
-		int id = 0;
-		for (Mask m : seg) {
-			segData[id] = m.getBinaryData().getDataXYAsByte(0);
-			id++;
-		}
-
-		int idx = 0;
-		for (int y = 0; y < h; y++) {
-			for (int x = 0; x < w; x++) {
-				for (id = 0; id < s; id++) {
-					if (segData[id][idx] == BinaryIcyBufferedImage.TRUE) {
-						idxData[idx] = id;
-						break;
-					}
-				}
-				idx++;
-			}
+		// painted from the last mask to the first one, so that a pixel gets
+		// the position of the first mask that contains it
+		for (int id = s - 1; id >= 0; id--) {
+			seg.getByIndex(id).paintInto(idxData, id);
 		}
 
 		index.dataChanged();
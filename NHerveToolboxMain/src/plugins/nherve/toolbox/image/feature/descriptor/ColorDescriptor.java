@@ -19,14 +19,21 @@
 package plugins.nherve.toolbox.image.feature.descriptor;
 
 import icy.image.IcyBufferedImage;
+
+import java.util.HashMap;
+import java.util.Map;
+
 import plugins.nherve.toolbox.image.feature.SegmentableIcyBufferedImage;
 import plugins.nherve.toolbox.image.feature.Signature;
 import plugins.nherve.toolbox.image.feature.region.IcyPixel;
 import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+import plugins.nherve.toolbox.image.toolboxes.ColorChannelCache;
 import plugins.nherve.toolbox.image.toolboxes.ColorSpaceTools;
 
 /**
- * The Class ColorDescriptor.
+ * The Class ColorDescriptor. The preProcess converts the whole image once,
+ * through the ColorChannelCache shared by all the descriptors, and the color
+ * components of the pixels are then read from it until the postProcess.
  * 
  * @param <S>
  *            the generic type
@@ -40,6 +47,12 @@ public abstract class ColorDescriptor<S extends Signature> extends GlobalAndLoca
 	/** The use bounds. */
 	private boolean useBounds;
 	
+	/** The cached color components of the last preprocessed image. */
+	private volatile ColorChannelCache.Entry channels;
+	
+	/** The cache entries pinned by preProcess. */
+	private final Map<SegmentableIcyBufferedImage, ColorChannelCache.Entry> pinned;
+	
 	/**
 	 * Instantiates a new color descriptor.
 	 * 
@@ -50,6 +63,8 @@ public abstract class ColorDescriptor<S extends Signature> extends GlobalAndLoca
 		super(display);
 		setColorSpace(ColorSpaceTools.RGB);
 		setUseBounds(false);
+		channels = null;
+		pinned = new HashMap<SegmentableIcyBufferedImage, ColorChannelCache.Entry>();
 	}
 
 	/**
@@ -85,12 +100,178 @@ public abstract class ColorDescriptor<S extends Signature> extends GlobalAndLoca
 	 *             the signature exception
 	 */
 	public double[] getColorComponents_0_1(IcyBufferedImage icyb, int x, int y) throws SignatureException {
+		final ColorChannelCache.Entry e = channels;
+		if ((e != null) && (e.getImage() == icyb) && (e.getColorSpace() == getCachedColorSpace())) {
+			return getColorComponents_0_1(e, x, y);
+		}
 		if (useBounds) {
 			return ColorSpaceTools.getBoundedColorComponentsD_0_1(icyb, getColorSpace(), x, y);
 		}
 		return ColorSpaceTools.getColorComponentsD_0_1(icyb, getColorSpace(), x, y);
 	}
 	
+	/**
+	 * Gets the color components_0_1 from the cached color components, with
+	 * the same operations as ColorSpaceTools.getBoundedColorComponentsD_0_1 and
+	 * ColorSpaceTools.getColorComponentsD_0_1.
+	 * 
+	 * @param e
+	 *            the cache entry
+	 * @param x
+	 *            the x
+	 * @param y
+	 *            the y
+	 * @return the color components_0_1
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private double[] getColorComponents_0_1(ColorChannelCache.Entry e, int x, int y) throws SignatureException {
+		double[] res = new double[ColorSpaceTools.NB_COLOR_CHANNELS];
+		for (int c = 0; c < ColorSpaceTools.NB_COLOR_CHANNELS; c++) {
+			res[c] = e.get(x, y, c);
+		}
+		if (e.getColorSpace() == ColorSpaceTools.NONE) {
+			return res;
+		}
+		if (useBounds) {
+			for (int c = 0; c < ColorSpaceTools.NB_COLOR_CHANNELS; c++) {
+				int[] bds = ColorSpaceTools.getTheoreticalBounds(e.getColorSpace(), c);
+				res[c] = (res[c] - bds[0]) / (double) (bds[1] - bds[0]);
+			}
+		} else {
+			for (int c = 0; c < ColorSpaceTools.NB_COLOR_CHANNELS; c++) {
+				res[c] /= ColorSpaceTools.VMAX;
+			}
+		}
+		return res;
+	}
+	
+	/**
+	 * Creates a converter for getColorComponents_0_1 on whole rows, to be
+	 * used by a single thread.
+	 * 
+	 * @return the row converter, null if the rows are converted pixel by pixel
+	 */
+	protected ColorSpaceTools.RowConverter createRowConverter() {
+		final int cs = getCachedColorSpace();
+		if (cs < 0) {
+			return null;
+		}
+		return new ColorSpaceTools.RowConverter(cs);
+	}
+
+	/**
+	 * Gets the color components_0_1 of all the pixels of a row, with the
+	 * values of getColorComponents_0_1.
+	 * 
+	 * @param icyb
+	 *            the icyb
+	 * @param y
+	 *            the y
+	 * @param conv
+	 *            the row converter given by createRowConverter
+	 * @param row
+	 *            the color components, NB_COLOR_CHANNELS x w
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	protected void getColorComponents_0_1(IcyBufferedImage icyb, int y, ColorSpaceTools.RowConverter conv, double[][] row) throws SignatureException {
+		final int w = icyb.getWidth();
+		if (conv == null) {
+			for (int x = 0; x < w; x++) {
+				double[] col = getColorComponents_0_1(icyb, x, y);
+				for (int c = 0; c < ColorSpaceTools.NB_COLOR_CHANNELS; c++) {
+					row[c][x] = col[c];
+				}
+			}
+			return;
+		}
+
+		final int cs = getCachedColorSpace();
+		final ColorChannelCache.Entry e = channels;
+		if ((e != null) && (e.getImage() == icyb) && (e.getColorSpace() == cs)) {
+			final double[][] ch = e.getChannels();
+			for (int c = 0; c < ColorSpaceTools.NB_COLOR_CHANNELS; c++) {
+				System.arraycopy(ch[c], y * w, row[c], 0, w);
+			}
+		} else {
+			conv.convert(icyb, y, row);
+		}
+
+		if (cs == ColorSpaceTools.NONE) {
+			return;
+		}
+		for (int c = 0; c < ColorSpaceTools.NB_COLOR_CHANNELS; c++) {
+			final double[] r = row[c];
+			if (useBounds) {
+				int[] bds = ColorSpaceTools.getTheoreticalBounds(cs, c);
+				for (int x = 0; x < w; x++) {
+					r[x] = (r[x] - bds[0]) / (double) (bds[1] - bds[0]);
+				}
+			} else {
+				for (int x = 0; x < w; x++) {
+					r[x] /= ColorSpaceTools.VMAX;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the color space of the components read by getColorComponents_0_1 :
+	 * without bounds, the RGB components are used whatever the color space.
+	 * 
+	 * @return the color space to cache, -1 if the components are not cached
+	 */
+	private int getCachedColorSpace() {
+		if (colorSpace == ColorSpaceTools.NONE) {
+			return ColorSpaceTools.NONE;
+		}
+		if (!useBounds) {
+			return ColorSpaceTools.RGB;
+		}
+		if (colorSpace > ColorSpaceTools.RGB_TO_HSV) {
+			// no bounds, leave the error to the pixel by pixel conversion
+			return -1;
+		}
+		return colorSpace;
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.feature.Descriptor#preProcess(plugins.nherve.toolbox.image.feature.Segmentable)
+	 */
+	@Override
+	public void preProcess(SegmentableIcyBufferedImage img) throws SignatureException {
+		final int cs = getCachedColorSpace();
+		if (cs < 0) {
+			return;
+		}
+		ColorChannelCache.Entry e = ColorChannelCache.getInstance().acquire(img.getImage(), cs);
+		if (e == null) {
+			return;
+		}
+		ColorChannelCache.Entry previous = null;
+		synchronized (pinned) {
+			previous = pinned.put(img, e);
+			channels = e;
+		}
+		ColorChannelCache.getInstance().release(previous);
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.feature.Descriptor#postProcess(plugins.nherve.toolbox.image.feature.Segmentable)
+	 */
+	@Override
+	public void postProcess(SegmentableIcyBufferedImage img) throws SignatureException {
+		ColorChannelCache.Entry e = null;
+		synchronized (pinned) {
+			e = pinned.remove(img);
+			if (channels == e) {
+				channels = null;
+			}
+		}
+		ColorChannelCache.getInstance().release(e);
+	}
+	
 	/**
 	 * Gets the nb color channels.
 	 * 
@@ -22,16 +22,23 @@ import icy.image.IcyBufferedImage;
 
 import java.awt.Shape;
 import java.awt.geom.Rectangle2D;
+import java.util.HashMap;
+import java.util.Map;
 
 import plugins.nherve.toolbox.image.feature.SegmentableIcyBufferedImage;
 import plugins.nherve.toolbox.image.feature.SupportRegion;
+import plugins.nherve.toolbox.image.feature.region.FullImageSupportRegion;
 import plugins.nherve.toolbox.image.feature.region.IcyPixel;
+import plugins.nherve.toolbox.image.feature.region.RectangleSupportRegion;
 import plugins.nherve.toolbox.image.feature.signature.SignatureException;
 import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
+import plugins.nherve.toolbox.image.toolboxes.IntegralHistogram;
 
 
 /**
- * The Class ColorHistogram.
+ * The Class ColorHistogram. The preProcess builds an integral histogram of
+ * the image (if it is not too large), so that the signatures of rectangular
+ * regions are obtained in O(dim) instead of O(area).
  * 
  * @author Nicolas HERVE - nicolas.herve@pasteur.fr
  */
@@ -46,6 +53,9 @@ public class ColorHistogram extends ColorDescriptor<DefaultVectorSignature> {
 	/** The div minus1. */
 	private final int divMinus1;
 	
+	/** The integral histograms, built by preProcess. */
+	private Map<SegmentableIcyBufferedImage, IntegralHistogram> cacheIntegral;
+	
 	/**
 	 * Instantiates a new color histogram.
 	 * 
@@ -59,6 +69,7 @@ public class ColorHistogram extends ColorDescriptor<DefaultVectorSignature> {
 		this.div = div;
 		dim = div * div * div;
 		this.divMinus1 = div - 1;
+		cacheIntegral = new HashMap<SegmentableIcyBufferedImage, IntegralHistogram>();
 	}
 	
 	/**
@@ -96,6 +107,15 @@ public class ColorHistogram extends ColorDescriptor<DefaultVectorSignature> {
 	 */
 	@Override
 	public DefaultVectorSignature extractLocalSignature(SegmentableIcyBufferedImage img, Shape shp) throws SignatureException {
+		final Rectangle2D bb = shp.getBounds2D();
+		
+		if ((shp instanceof Rectangle2D) && isInteger(bb.getMinX()) && isInteger(bb.getMinY()) && isInteger(bb.getMaxX()) && isInteger(bb.getMaxY())) {
+			DefaultVectorSignature sig = extractLocalSignature(img, (int) bb.getMinX(), (int) bb.getMinY(), (int) bb.getMaxX(), (int) bb.getMaxY());
+			if (sig != null) {
+				return sig;
+			}
+		}
+		
 		IcyBufferedImage bimg = img.getImage();
 		
 		int w = img.getWidth();
@@ -104,8 +124,6 @@ public class ColorHistogram extends ColorDescriptor<DefaultVectorSignature> {
 		
 		DefaultVectorSignature sig = getEmptySignature(dim);
 
-		final Rectangle2D bb = shp.getBounds2D();
-
 		for (x = (int) bb.getMinX(); x < (int) bb.getMaxX(); x++) {
 			for (y = (int) bb.getMinY(); y < (int) bb.getMaxY(); y++) {
 				if (shp.contains(x, y)) {
@@ -132,6 +150,17 @@ public class ColorHistogram extends ColorDescriptor<DefaultVectorSignature> {
 	 */
 	@Override
 	public DefaultVectorSignature extractLocalSignature(SegmentableIcyBufferedImage img, SupportRegion<IcyPixel> reg) throws SignatureException {
+		DefaultVectorSignature isig = null;
+		if (reg instanceof RectangleSupportRegion) {
+			RectangleSupportRegion rect = (RectangleSupportRegion) reg;
+			isig = extractLocalSignature(img, rect.getStartX(), rect.getStartY(), rect.getStartX() + rect.getWidth(), rect.getStartY() + rect.getHeight());
+		} else if (reg instanceof FullImageSupportRegion) {
+			isig = extractLocalSignature(img, 0, 0, img.getWidth(), img.getHeight());
+		}
+		if (isig != null) {
+			return isig;
+		}
+		
 		IcyBufferedImage bimg = img.getImage();
 		
 		int w = img.getWidth();
@@ -159,6 +188,58 @@ public class ColorHistogram extends ColorDescriptor<DefaultVectorSignature> {
 		return sig;
 	}
 
+	/**
+	 * Extract local signature of the rectangle [x1, x2[ x [y1, y2[ from the
+	 * integral histogram.
+	 * 
+	 * @param img
+	 *            the img
+	 * @param x1
+	 *            the x1
+	 * @param y1
+	 *            the y1
+	 * @param x2
+	 *            the x2
+	 * @param y2
+	 *            the y2
+	 * @return the signature, null if preProcess has not built the integral
+	 *         histogram of this image
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private DefaultVectorSignature extractLocalSignature(SegmentableIcyBufferedImage img, int x1, int y1, int x2, int y2) throws SignatureException {
+		IntegralHistogram ih = null;
+		synchronized (cacheIntegral) {
+			ih = cacheIntegral.get(img);
+		}
+		if (ih == null) {
+			return null;
+		}
+		
+		int[] counts = ih.getHistogram(x1, y1, x2, y2, null);
+		DefaultVectorSignature sig = getEmptySignature(dim);
+		for (int d = 0; d < dim; d++) {
+			if (counts[d] != 0) {
+				sig.addTo(d, counts[d]);
+			}
+		}
+		
+		sig.normalizeSumToOne(true);
+		
+		return sig;
+	}
+	
+	/**
+	 * Checks if is integer.
+	 * 
+	 * @param v
+	 *            the v
+	 * @return true, if is integer
+	 */
+	private static boolean isInteger(double v) {
+		return (v == Math.rint(v)) && (Math.abs(v) < Integer.MAX_VALUE);
+	}
+
 	/* (non-Javadoc)
 	 * @see plugins.nherve.toolbox.image.feature.descriptor.DefaultDescriptorImpl#getSignatureSize()
 	 */
@@ -172,6 +253,10 @@ public class ColorHistogram extends ColorDescriptor<DefaultVectorSignature> {
 	 */
 	@Override
 	public void postProcess(SegmentableIcyBufferedImage img) throws SignatureException {
+		synchronized (cacheIntegral) {
+			cacheIntegral.remove(img);
+		}
+		super.postProcess(img);
 	}
 
 	/* (non-Javadoc)
@@ -179,6 +264,33 @@ public class ColorHistogram extends ColorDescriptor<DefaultVectorSignature> {
 	 */
 	@Override
 	public void preProcess(SegmentableIcyBufferedImage img) throws SignatureException {
+		super.preProcess(img);
+		
+		int w = img.getWidth();
+		int h = img.getHeight();
+		if (!IntegralHistogram.fits(w, h, dim)) {
+			return;
+		}
+		
+		IcyBufferedImage bimg = img.getImage();
+		int[] bins = new int[w * h];
+		int i = 0;
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				double[] col = getColorComponents_0_1(bimg, x, y);
+				int d = getIndexD(col[0], col[1], col[2]);
+				if ((d < 0) || (d >= dim)) {
+					// leave the errors to the pixel by pixel extraction
+					return;
+				}
+				bins[i++] = d;
+			}
+		}
+		
+		IntegralHistogram ih = new IntegralHistogram(bins, w, h, dim);
+		synchronized (cacheIntegral) {
+			cacheIntegral.put(img, ih);
+		}
 	}
 
 }
@@ -39,7 +39,7 @@ import plugins.nherve.toolbox.image.toolboxes.ColorSpaceTools;
  * 
  * @author Nicolas HERVE - nicolas.herve@pasteur.fr
  */
-public class ColorPixel extends ColorDescriptor<Signature> {
+public class ColorPixel extends ColorDescriptor<Signature> implements DenseLocalDescriptor<SegmentableIcyBufferedImage> {
 	
 	/** The Constant NO_NEIGHBOUR. */
 	public final static int NO_NEIGHBOUR = 1;
@@ -191,26 +191,87 @@ public class ColorPixel extends ColorDescriptor<Signature> {
 	}
 
 	/* (non-Javadoc)
-	 * @see plugins.nherve.toolbox.image.feature.descriptor.DefaultDescriptorImpl#getSignatureSize()
+	 * @see plugins.nherve.toolbox.image.feature.descriptor.DenseLocalDescriptor#isDenseExtractionSupported()
 	 */
 	@Override
-	public int getSignatureSize() {
-		return signatureSize;
+	public boolean isDenseExtractionSupported() {
+		return !isRotationInvariance() || (kernel.size() <= 1);
 	}
 
 	/* (non-Javadoc)
-	 * @see plugins.nherve.toolbox.image.feature.Descriptor#postProcess(plugins.nherve.toolbox.image.feature.Segmentable)
+	 * @see plugins.nherve.toolbox.image.feature.descriptor.DenseLocalDescriptor#extractDenseFeatures(plugins.nherve.toolbox.image.feature.Segmentable, int, int, plugins.nherve.toolbox.image.feature.descriptor.DenseFeatureMap)
 	 */
 	@Override
-	public void postProcess(SegmentableIcyBufferedImage img) throws SignatureException {
+	public void extractDenseFeatures(SegmentableIcyBufferedImage img, int y1, int y2, DenseFeatureMap map) throws SignatureException {
+		if (!isDenseExtractionSupported()) {
+			throw new SignatureException("ColorPixel : no dense extraction with rotation invariance");
+		}
+		IcyBufferedImage bimg = img.getImage();
+		int w = img.getWidth();
+		int h = img.getHeight();
+		int nbc = getNbColorChannels();
+		int nbk = kernel.size();
+		int[] kx = new int[nbk];
+		int[] ky = new int[nbk];
+		for (int k = 0; k < nbk; k++) {
+			kx[k] = (int) kernel.get(k).x;
+			ky[k] = (int) kernel.get(k).y;
+		}
+
+		// the kernel rows are at most one row away, three rows are enough
+		ColorSpaceTools.RowConverter conv = createRowConverter();
+		double[][][] rows = new double[3][nbc][w];
+		int[] rowsY = { -1, -1, -1 };
+		double[][][] kRows = new double[nbk][][];
 
+		float[] data = map.getData();
+		for (int y = y1; y < y2; y++) {
+			for (int k = 0; k < nbk; k++) {
+				int ry = mirror(y + ky[k], h);
+				int slot = ry % 3;
+				if (rowsY[slot] != ry) {
+					getColorComponents_0_1(bimg, ry, conv, rows[slot]);
+					rowsY[slot] = ry;
+				}
+				kRows[k] = rows[slot];
+			}
+			int off = map.getOffset(0, y);
+			for (int x = 0; x < w; x++) {
+				for (int k = 0; k < nbk; k++) {
+					int rx = mirror(x + kx[k], w);
+					double[][] row = kRows[k];
+					for (int c = 0; c < nbc; c++) {
+						data[off++] = (float) row[c][rx];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Mirrors a coordinate at the borders, as getColorComponentsManageBorders.
+	 * 
+	 * @param v
+	 *            the coordinate
+	 * @param size
+	 *            the size
+	 * @return the mirrored coordinate
+	 */
+	private static int mirror(int v, int size) {
+		if (v < 0) {
+			return Math.abs(v);
+		} else if (v >= size) {
+			return v - 2 * (v - size + 1);
+		}
+		return v;
 	}
 
 	/* (non-Javadoc)
-	 * @see plugins.nherve.toolbox.image.feature.Descriptor#preProcess(plugins.nherve.toolbox.image.feature.Segmentable)
+	 * @see plugins.nherve.toolbox.image.feature.descriptor.DefaultDescriptorImpl#getSignatureSize()
 	 */
 	@Override
-	public void preProcess(SegmentableIcyBufferedImage img) throws SignatureException {
+	public int getSignatureSize() {
+		return signatureSize;
 	}
 
 	/**
@@ -148,18 +148,4 @@ public class ColorPixelPair extends ColorDescriptor<Signature> {
 		return getNbColorChannels() * 2;
 	}
 
-	/* (non-Javadoc)
-	 * @see plugins.nherve.toolbox.image.feature.Descriptor#postProcess(plugins.nherve.toolbox.image.feature.Segmentable)
-	 */
-	@Override
-	public void postProcess(SegmentableIcyBufferedImage img) throws SignatureException {
-	}
-
-	/* (non-Javadoc)
-	 * @see plugins.nherve.toolbox.image.feature.Descriptor#preProcess(plugins.nherve.toolbox.image.feature.Segmentable)
-	 */
-	@Override
-	public void preProcess(SegmentableIcyBufferedImage img) throws SignatureException {
-	}
-
 }
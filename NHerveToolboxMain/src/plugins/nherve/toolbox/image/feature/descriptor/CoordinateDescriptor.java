@@ -34,7 +34,7 @@ import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
  *            the generic type
  * @author Nicolas HERVE - nicolas.herve@pasteur.fr
  */
-public class CoordinateDescriptor<T extends Segmentable> extends DefaultDescriptorImpl<T, DefaultVectorSignature> implements LocalDescriptor<T, DefaultVectorSignature, IcyPixel>{
+public class CoordinateDescriptor<T extends Segmentable> extends DefaultDescriptorImpl<T, DefaultVectorSignature> implements LocalDescriptor<T, DefaultVectorSignature, IcyPixel>, DenseLocalDescriptor<T> {
 	
 	/**
 	 * Instantiates a new coordinate descriptor.
@@ -61,6 +61,37 @@ public class CoordinateDescriptor<T extends Segmentable> extends DefaultDescript
 		return sig;
 	}
 	
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.feature.descriptor.DenseLocalDescriptor#isDenseExtractionSupported()
+	 */
+	@Override
+	public boolean isDenseExtractionSupported() {
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.feature.descriptor.DenseLocalDescriptor#extractDenseFeatures(plugins.nherve.toolbox.image.feature.Segmentable, int, int, plugins.nherve.toolbox.image.feature.descriptor.DenseFeatureMap)
+	 */
+	@Override
+	public void extractDenseFeatures(T img, int y1, int y2, DenseFeatureMap map) throws SignatureException {
+		int w = img.getWidth();
+		int h = img.getHeight();
+		float[] data = map.getData();
+		float[] xs = new float[w];
+		for (int x = 0; x < w; x++) {
+			xs[x] = (float) (((double) x / (double) w) - 0.5);
+		}
+		for (int y = y1; y < y2; y++) {
+			float fy = (float) (((double) y / (double) h) - 0.5);
+			int off = map.getOffset(0, y);
+			for (int x = 0; x < w; x++) {
+				data[off] = xs[x];
+				data[off + 1] = fy;
+				off += SIZE;
+			}
+		}
+	}
+
 	/* (non-Javadoc)
 	 * @see plugins.nherve.toolbox.image.feature.descriptor.LocalDescriptor#extractLocalSignature(plugins.nherve.toolbox.image.feature.Segmentable, java.awt.Shape)
 	 */
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ *
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ *
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.feature.descriptor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.DenseVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+
+/**
+ * The features of all the pixels of an image, stored in a single float array,
+ * pixel after pixel : the feature d of the pixel (x, y) is at
+ * (x + y * w) * dim + d. It replaces the w x h signatures of a pixel by pixel
+ * extraction, which are only built on demand. The values are stored in
+ * single precision : they are the values of the signatures rounded to float,
+ * and so are the signatures built back from the map.
+ * 
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class DenseFeatureMap {
+
+	/** The w. */
+	private final int w;
+
+	/** The h. */
+	private final int h;
+
+	/** The dimension. */
+	private final int dim;
+
+	/** The data. */
+	private final float[] data;
+
+	/**
+	 * Instantiates a new dense feature map.
+	 * 
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param dim
+	 *            the dimension
+	 */
+	public DenseFeatureMap(int w, int h, int dim) {
+		super();
+		if (!fits(w, h, dim)) {
+			throw new IllegalArgumentException("DenseFeatureMap : " + w + "x" + h + "x" + dim + " does not fit in an array");
+		}
+		this.w = w;
+		this.h = h;
+		this.dim = dim;
+		this.data = new float[w * h * dim];
+	}
+
+	/**
+	 * Checks if a map fits in a single array.
+	 * 
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param dim
+	 *            the dimension
+	 * @return true, if it fits
+	 */
+	public static boolean fits(int w, int h, int dim) {
+		return (w >= 0) && (h >= 0) && (dim >= 0) && ((long) w * h * dim <= Integer.MAX_VALUE - 8);
+	}
+
+	/**
+	 * Gets the offset of the features of a pixel in the data.
+	 * 
+	 * @param x
+	 *            the x
+	 * @param y
+	 *            the y
+	 * @return the offset
+	 */
+	public int getOffset(int x, int y) {
+		return (x + y * w) * dim;
+	}
+
+	/**
+	 * Gets a feature of a pixel.
+	 * 
+	 * @param x
+	 *            the x
+	 * @param y
+	 *            the y
+	 * @param d
+	 *            the feature
+	 * @return the value
+	 */
+	public float get(int x, int y, int d) {
+		return data[getOffset(x, y) + d];
+	}
+
+	/**
+	 * Sets a feature of a pixel.
+	 * 
+	 * @param x
+	 *            the x
+	 * @param y
+	 *            the y
+	 * @param d
+	 *            the feature
+	 * @param v
+	 *            the value
+	 */
+	public void set(int x, int y, int d, float v) {
+		data[getOffset(x, y) + d] = v;
+	}
+
+	/**
+	 * Builds the signature of a pixel.
+	 * 
+	 * @param x
+	 *            the x
+	 * @param y
+	 *            the y
+	 * @return the signature
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	public DefaultVectorSignature getSignature(int x, int y) throws SignatureException {
+		DenseVectorSignature sig = new DenseVectorSignature(dim);
+		int off = getOffset(x, y);
+		for (int d = 0; d < dim; d++) {
+			sig.set(d, data[off++]);
+		}
+		return sig;
+	}
+
+	/**
+	 * Builds the signatures of the pixels of a regular grid, one pixel every
+	 * step rows and columns, for the algorithms that need signatures, a
+	 * clustering for instance.
+	 * 
+	 * @param step
+	 *            the step, 1 for all the pixels
+	 * @return the signatures
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	public List<DefaultVectorSignature> getSignatures(int step) throws SignatureException {
+		if (step < 1) {
+			throw new SignatureException("DenseFeatureMap : invalid step " + step);
+		}
+		List<DefaultVectorSignature> sigs = new ArrayList<DefaultVectorSignature>(((w + step - 1) / step) * ((h + step - 1) / step));
+		for (int y = 0; y < h; y += step) {
+			for (int x = 0; x < w; x += step) {
+				sigs.add(getSignature(x, y));
+			}
+		}
+		return sigs;
+	}
+
+	/**
+	 * Builds the signatures of all the pixels of the rows [y1, y2[, pixel
+	 * after pixel.
+	 * 
+	 * @param y1
+	 *            the first row
+	 * @param y2
+	 *            the last row, excluded
+	 * @return the signatures
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	public DefaultVectorSignature[] getSignatures(int y1, int y2) throws SignatureException {
+		if ((y1 < 0) || (y2 > h) || (y1 > y2)) {
+			throw new SignatureException("DenseFeatureMap : invalid rows [" + y1 + ", " + y2 + "[");
+		}
+		DefaultVectorSignature[] sigs = new DefaultVectorSignature[(y2 - y1) * w];
+		int p = 0;
+		for (int y = y1; y < y2; y++) {
+			for (int x = 0; x < w; x++) {
+				sigs[p++] = getSignature(x, y);
+			}
+		}
+		return sigs;
+	}
+
+	/**
+	 * Gets the data.
+	 * 
+	 * @return the data
+	 */
+	public float[] getData() {
+		return data;
+	}
+
+	/**
+	 * Gets the width.
+	 * 
+	 * @return the width
+	 */
+	public int getWidth() {
+		return w;
+	}
+
+	/**
+	 * Gets the height.
+	 * 
+	 * @return the height
+	 */
+	public int getHeight() {
+		return h;
+	}
+
+	/**
+	 * Gets the dimension.
+	 * 
+	 * @return the dimension
+	 */
+	public int getDimension() {
+		return dim;
+	}
+}
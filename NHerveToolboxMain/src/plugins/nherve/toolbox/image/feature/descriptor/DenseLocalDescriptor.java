@@ -0,0 +1,65 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ *
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ *
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.feature.descriptor;
+
+import plugins.nherve.toolbox.image.feature.Segmentable;
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+
+/**
+ * A local descriptor able to describe all the pixels of an image at once, in
+ * a DenseFeatureMap, without creating a signature per pixel. The values
+ * written for a pixel (x, y) are the ones of the signature extracted by the
+ * descriptor on the support region IcyPixel(x, y), rounded to float as the
+ * map is in single precision. An implementation may also compute them in
+ * another order (sliding sums, single precision intermediates), the
+ * differences with the signature are then of the order of the float
+ * rounding : the values are not bit exact.
+ * 
+ * @param <T>
+ *            the generic type
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public interface DenseLocalDescriptor<T extends Segmentable> {
+
+	/**
+	 * Checks if the dense extraction is available with the current settings
+	 * of the descriptor.
+	 * 
+	 * @return true, if is dense extraction supported
+	 */
+	boolean isDenseExtractionSupported();
+
+	/**
+	 * Extracts the features of all the pixels of the rows [y1, y2[. The
+	 * preProcess of the image must have been launched. Distinct bands of rows
+	 * may be extracted concurrently.
+	 * 
+	 * @param img
+	 *            the img
+	 * @param y1
+	 *            the first row
+	 * @param y2
+	 *            the last row, excluded
+	 * @param map
+	 *            the map, of the image size and of the signature size
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	void extractDenseFeatures(T img, int y1, int y2, DenseFeatureMap map) throws SignatureException;
+}
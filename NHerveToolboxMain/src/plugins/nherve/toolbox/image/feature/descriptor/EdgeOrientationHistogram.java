@@ -38,7 +38,7 @@ import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
  * 
  * @author Nicolas HERVE - nicolas.herve@pasteur.fr
  */
-public class EdgeOrientationHistogram extends GlobalAndLocalDescriptor<SegmentableIcyBufferedImage, DefaultVectorSignature> {
+public class EdgeOrientationHistogram extends GlobalAndLocalDescriptor<SegmentableIcyBufferedImage, DefaultVectorSignature> implements DenseLocalDescriptor<SegmentableIcyBufferedImage> {
 	
 	/** The Constant DEFAULT_DIMENSION. */
 	public final static int DEFAULT_DIMENSION = 7;
@@ -65,10 +65,10 @@ public class EdgeOrientationHistogram extends GlobalAndLocalDescriptor<Segmentab
 	private Map<SegmentableIcyBufferedImage, boolean[]> cacheImageContour;
 	
 	/** The cache image gradient amplitude. */
-	private Map<SegmentableIcyBufferedImage, double[]> cacheImageGradientAmplitude;
+	private Map<SegmentableIcyBufferedImage, float[]> cacheImageGradientAmplitude;
 	
 	/** The cache image gradient orientation. */
-	private Map<SegmentableIcyBufferedImage, double[]> cacheImageGradientOrientation;
+	private Map<SegmentableIcyBufferedImage, float[]> cacheImageGradientOrientation;
 
 	/** The p dimension. */
 	private int pDimension;
@@ -93,8 +93,8 @@ public class EdgeOrientationHistogram extends GlobalAndLocalDescriptor<Segmentab
 	public EdgeOrientationHistogram(boolean doLinearSmoothing, boolean display) {
 		super(display);
 		cacheImageContour = new HashMap<SegmentableIcyBufferedImage, boolean[]>();
-		cacheImageGradientAmplitude = new HashMap<SegmentableIcyBufferedImage, double[]>();
-		cacheImageGradientOrientation = new HashMap<SegmentableIcyBufferedImage, double[]>();
+		cacheImageGradientAmplitude = new HashMap<SegmentableIcyBufferedImage, float[]>();
+		cacheImageGradientOrientation = new HashMap<SegmentableIcyBufferedImage, float[]>();
 		this.doLinearSmoothing = doLinearSmoothing;
 
 		setpDimension(DEFAULT_DIMENSION);
@@ -142,8 +142,8 @@ public class EdgeOrientationHistogram extends GlobalAndLocalDescriptor<Segmentab
 	@Override
 	public DefaultVectorSignature extractLocalSignature(SegmentableIcyBufferedImage img, SupportRegion<IcyPixel> reg) throws SignatureException {
 		boolean[] currentImageContour = null;
-		double[] currentImageGradientAmplitude = null;
-		double[] currentImageGradientOrientation = null;
+		float[] currentImageGradientAmplitude = null;
+		float[] currentImageGradientOrientation = null;
 
 		synchronized (cacheImageContour) {
 			currentImageContour = cacheImageContour.get(img);
@@ -219,6 +219,131 @@ public class EdgeOrientationHistogram extends GlobalAndLocalDescriptor<Segmentab
 		return sig;
 	}
 
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.feature.descriptor.DenseLocalDescriptor#isDenseExtractionSupported()
+	 */
+	@Override
+	public boolean isDenseExtractionSupported() {
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.feature.descriptor.DenseLocalDescriptor#extractDenseFeatures(plugins.nherve.toolbox.image.feature.Segmentable, int, int, plugins.nherve.toolbox.image.feature.descriptor.DenseFeatureMap)
+	 */
+	@Override
+	public void extractDenseFeatures(SegmentableIcyBufferedImage img, int y1, int y2, DenseFeatureMap map) throws SignatureException {
+		boolean[] currentImageContour = null;
+		float[] currentImageGradientAmplitude = null;
+		float[] currentImageGradientOrientation = null;
+
+		synchronized (cacheImageContour) {
+			currentImageContour = cacheImageContour.get(img);
+			currentImageGradientAmplitude = cacheImageGradientAmplitude.get(img);
+			currentImageGradientOrientation = cacheImageGradientOrientation.get(img);
+		}
+
+		if ((currentImageContour == null) || (currentImageGradientAmplitude == null) || (currentImageGradientOrientation == null)) {
+			throw new SignatureException("Canny operator not launched for current image (" + img.getName() + ")");
+		}
+
+		init();
+
+		// the region of a pixel is the pixel itself : at most two bins are
+		// filled, and only on the contours
+		int w = img.getWidth();
+		int dim = getSignatureSize();
+		float[] data = map.getData();
+		double[] hist = new double[dim];
+		float[] empty = null;
+		double angle = 0;
+		int adx = 0;
+		int adxNext = 0;
+		double adxCoef = 0;
+		int idx = 0;
+		int off = 0;
+
+		for (int y = y1; y < y2; y++) {
+			idx = y * w;
+			off = map.getOffset(0, y);
+			for (int x = 0; x < w; x++, idx++, off += dim) {
+				double sum = 0;
+				adx = -1;
+				adxNext = -1;
+				if (currentImageContour[idx]) {
+					angle = currentImageGradientOrientation[idx];
+					while (angle < 0.0) {
+						angle += 2.0 * Math.PI;
+					}
+					while (angle >= 2.0 * Math.PI) {
+						angle -= 2.0 * Math.PI;
+					}
+					if (angle >= Math.PI) {
+						angle -= Math.PI;
+					}
+					adx = (int) Math.floor(angle * dim / Math.PI);
+					if (doLinearSmoothing && (angle != binCenters[adx])) {
+						adxCoef = angle - binCenters[adx];
+						if (adxCoef > 0) {
+							adxNext = adx + 1;
+							if (adxNext >= dim) {
+								adxNext = 0;
+							}
+						} else {
+							adxNext = adx - 1;
+							if (adxNext < 0) {
+								adxNext = dim - 1;
+							}
+						}
+						adxCoef = 1.0 - Math.abs(adxCoef / binStep);
+						hist[adx] += adxCoef * currentImageGradientAmplitude[idx];
+						hist[adxNext] += (1.0 - adxCoef) * currentImageGradientAmplitude[idx];
+					} else {
+						hist[adx] += currentImageGradientAmplitude[idx];
+					}
+					for (int d = 0; d < dim; d++) {
+						sum += hist[d];
+					}
+				}
+
+				if (sum != 0) {
+					for (int d = 0; d < dim; d++) {
+						data[off + d] = (float) (hist[d] / sum);
+					}
+				} else {
+					if (empty == null) {
+						empty = getNormalizedEmptyHistogram();
+					}
+					System.arraycopy(empty, 0, data, off, dim);
+				}
+
+				if (adx >= 0) {
+					hist[adx] = 0;
+				}
+				if (adxNext >= 0) {
+					hist[adxNext] = 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the histogram of a region without contour, as normalized by the
+	 * signatures.
+	 * 
+	 * @return the normalized empty histogram
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private float[] getNormalizedEmptyHistogram() throws SignatureException {
+		DefaultVectorSignature sig = getEmptySignature();
+		sig.normalizeSumToOne(true);
+		float[] empty = new float[getSignatureSize()];
+		for (int d = 0; d < empty.length; d++) {
+			empty[d] = (float) sig.get(d);
+		}
+		return empty;
+	}
+
 	/* (non-Javadoc)
 	 * @see plugins.nherve.toolbox.image.feature.Descriptor#postProcess(plugins.nherve.toolbox.image.feature.Segmentable)
 	 */
@@ -246,12 +371,12 @@ public class EdgeOrientationHistogram extends GlobalAndLocalDescriptor<Segmentab
 		int size = w * h;
 
 		boolean[] currentImageContour = new boolean[size];
-		double[] currentImageGradientAmplitude = new double[size];
-		double[] currentImageGradientOrientation = new double[size];
+		float[] currentImageGradientAmplitude = new float[size];
+		float[] currentImageGradientOrientation = new float[size];
 
-		double[] data = ConvolutionKernel2D.getIntensity(bimg);
+		float[] data = ConvolutionKernel2D.getIntensity(bimg, null);
 
-		ConvolutionKernel2D.canny(data, w, h, getpSigma(), getpHystLow(), getpHystHigh(), currentImageContour, currentImageGradientAmplitude, currentImageGradientOrientation);
+		ConvolutionKernel2D.canny(data, w, h, getpSigma(), getpHystLow(), getpHystHigh(), currentImageContour, currentImageGradientAmplitude, currentImageGradientOrientation, null);
 
 		synchronized (cacheImageContour) {
 			cacheImageContour.put(img, currentImageContour);
@@ -36,7 +36,9 @@ import plugins.nherve.toolbox.image.feature.Signature;
 import plugins.nherve.toolbox.image.feature.SignatureExtractor;
 import plugins.nherve.toolbox.image.feature.IcySupportRegion;
 import plugins.nherve.toolbox.image.feature.region.IcyPixel;
+import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
 import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+import plugins.nherve.toolbox.image.toolboxes.ParallelBands;
 
 /**
  * The Class MultiThreadedSignatureExtractor.
@@ -50,6 +52,9 @@ public class MultiThreadedSignatureExtractor<T extends Segmentable> extends Sign
 		void notifyProgress(int nb, int total);
 	}
 	
+	/** The Constant MIN_BAND_HEIGHT. */
+	private final static int MIN_BAND_HEIGHT = 16;
+
 	private TaskManager tm;
 	private List<Listener> listeners;
 
@@ -120,6 +125,142 @@ public class MultiThreadedSignatureExtractor<T extends Segmentable> extends Sign
 		return extractSignatures(img, (IcySupportRegion[]) null);
 	}
 
+	/**
+	 * Extracts the features of all the pixels of an image in a single map,
+	 * instead of a signature per pixel. The descriptors implementing
+	 * DenseLocalDescriptor fill it natively, the other local descriptors are
+	 * called pixel by pixel and their signatures are copied in the map. The
+	 * postProcess is only launched once all the bands are stopped.
+	 * 
+	 * @param img
+	 *            the img
+	 * @param doPreprocess
+	 *            the do preprocess
+	 * @return the feature map, null if interrupted, the interrupted status of
+	 *         the thread being kept
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	public DenseFeatureMap extractFeatureMap(final T img, boolean doPreprocess) throws SignatureException {
+		if (!(getDescriptor() instanceof LocalDescriptor) && !(getDescriptor() instanceof DenseLocalDescriptor)) {
+			throw new SignatureException("Unable to extract a local signatures with this descriptor");
+		}
+		final int w = img.getWidth();
+		final int h = img.getHeight();
+		final int dim = getDescriptor().getSignatureSize();
+		if (!DenseFeatureMap.fits(w, h, dim)) {
+			throw new SignatureException("Feature map too large for this image (" + w + "x" + h + "x" + dim + ")");
+		}
+
+		info("MultiThreadedSignatureExtractor() - Launching features extraction for each pixel (" + h * w + ") in a feature map ...");
+
+		final DenseFeatureMap map = new DenseFeatureMap(w, h, dim);
+
+		if (doPreprocess) {
+			getDescriptor().preProcess(img);
+		}
+
+		final SignatureException[] error = new SignatureException[1];
+		boolean complete = false;
+		try {
+			complete = ParallelBands.run(tm, h, MIN_BAND_HEIGHT, new ParallelBands.Band() {
+				@Override
+				public void run(int y1, int y2) {
+					try {
+						fillFeatureMap(img, y1, y2, map);
+					} catch (SignatureException e) {
+						synchronized (error) {
+							if (error[0] == null) {
+								error[0] = e;
+							}
+						}
+					}
+				}
+			});
+		} finally {
+			if (doPreprocess) {
+				getDescriptor().postProcess(img);
+			}
+		}
+
+		if (!complete) {
+			info("MultiThreadedSignatureExtractor interrupted");
+			return null;
+		}
+
+		if (error[0] != null) {
+			throw error[0];
+		}
+
+		for (Listener l : listeners) {
+			l.notifyProgress(h * w, h * w);
+		}
+
+		return map;
+	}
+
+	/**
+	 * Extracts the features of all the pixels of an image in a single map.
+	 * 
+	 * @param img
+	 *            the img
+	 * @return the feature map, null if interrupted
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	public DenseFeatureMap extractFeatureMap(T img) throws SignatureException {
+		return extractFeatureMap(img, true);
+	}
+
+	/**
+	 * Fills a band of rows of a feature map.
+	 * 
+	 * @param img
+	 *            the img
+	 * @param y1
+	 *            the first row
+	 * @param y2
+	 *            the last row, excluded
+	 * @param map
+	 *            the map
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	@SuppressWarnings("unchecked")
+	private void fillFeatureMap(T img, int y1, int y2, DenseFeatureMap map) throws SignatureException {
+		if (getDescriptor() instanceof DenseLocalDescriptor) {
+			DenseLocalDescriptor<T> dld = (DenseLocalDescriptor<T>) getDescriptor();
+			if (dld.isDenseExtractionSupported()) {
+				dld.extractDenseFeatures(img, y1, y2, map);
+				return;
+			}
+		}
+		if (!(getDescriptor() instanceof LocalDescriptor)) {
+			throw new SignatureException("Dense extraction not supported with the current settings of " + getDescriptor());
+		}
+
+		LocalDescriptor<T, ? extends Signature, IcyPixel> ld = (LocalDescriptor<T, ? extends Signature, IcyPixel>) getDescriptor();
+		final int w = img.getWidth();
+		final int dim = map.getDimension();
+		final float[] data = map.getData();
+		for (int y = y1; y < y2; y++) {
+			for (int x = 0; x < w; x++) {
+				Signature sig = ld.extractLocalSignature(img, new IcyPixel(x, y));
+				if (!(sig instanceof DefaultVectorSignature)) {
+					throw new SignatureException("Only vector signatures can be stored in a feature map (" + getDescriptor() + ")");
+				}
+				DefaultVectorSignature vs = (DefaultVectorSignature) sig;
+				if (vs.getSize() != dim) {
+					throw new SignatureException("Signature of size " + vs.getSize() + " for a feature map of size " + dim);
+				}
+				int off = map.getOffset(x, y);
+				for (int d = 0; d < dim; d++) {
+					data[off++] = (float) vs.get(d);
+				}
+			}
+		}
+	}
+
 	public void setTm(TaskManager tm) {
 		this.tm = tm;
 	}
@@ -21,19 +21,36 @@ package plugins.nherve.toolbox.image.feature.fuzzy;
 import icy.image.IcyBufferedImage;
 import icy.type.TypeUtil;
 
-import java.util.Arrays;
-import java.util.LinkedList;
-
 import plugins.nherve.toolbox.Algorithm;
-import plugins.nherve.toolbox.image.feature.region.IcyPixel;
+import plugins.nherve.toolbox.image.toolboxes.ParallelBands;
+import plugins.nherve.toolbox.image.toolboxes.ScanlineFloodFill;
 
 
 /**
- * The Class HysteresisThresholder.
+ * The Class HysteresisThresholder. The pixels are first classified, by row
+ * bands in parallel, in a byte state buffer reused between calls. The
+ * regions are then grown from the strong pixels with a scanline flood fill
+ * on a primitive stack, and the output is written by a parallel pass. A
+ * thresholder must not be shared between threads.
  * 
  * @author Nicolas HERVE - nicolas.herve@pasteur.fr
  */
 public class HysteresisThresholder extends Algorithm {
+
+	/** The Constant BELOW, pixel below the low threshold. */
+	private final static byte BELOW = 0;
+
+	/** The Constant WEAK, pixel between the thresholds. */
+	private final static byte WEAK = 1;
+
+	/** The Constant STRONG, pixel above the high threshold. */
+	private final static byte STRONG = 2;
+
+	/** The Constant KEPT, pixel connected to a strong one. */
+	private final static byte KEPT = 3;
+
+	/** The Constant MIN_BAND_SIZE, in pixels. */
+	private final static int MIN_BAND_SIZE = 1 << 16;
 	
 	/** The high threshold. */
 	private double highThreshold;
@@ -46,9 +63,17 @@ public class HysteresisThresholder extends Algorithm {
 	
 	/** The low value. */
 	private double lowValue;
+
+	/** The pixel states, reused between calls. */
+	private byte[] state;
+
+	/** The rows holding strong pixels. */
+	private boolean[] rowHasSeed;
 	
 	/**
-	 * Instantiates a new hysteresis thresholder.
+	 * Instantiates a new hysteresis thresholder. The instance is stateful : it
+	 * keeps its state and seed buffers between calls, so each thread needs its
+	 * own thresholder.
 	 * 
 	 * @param highThreshold
 	 *            the high threshold
@@ -68,7 +93,7 @@ public class HysteresisThresholder extends Algorithm {
 	}
 	
 	/**
-	 * Instantiates a new hysteresis thresholder.
+	 * Instantiates a new hysteresis thresholder, stateful as well.
 	 * 
 	 * @param highThreshold
 	 *            the high threshold
@@ -116,66 +141,294 @@ public class HysteresisThresholder extends Algorithm {
 	}
 	
 	/**
-	 * Work.
+	 * Work. The result is a new TYPE_DOUBLE image : the pixels connected (8
+	 * connectivity) through pixels >= low threshold to a pixel >= high
+	 * threshold are set to the high value, the other pixels below the high
+	 * value to the low value.
 	 * 
 	 * @param gray
 	 *            the gray
 	 * @return the icy buffered image
 	 */
 	public IcyBufferedImage work(IcyBufferedImage gray) {
-		LinkedList<IcyPixel> wf = new LinkedList<IcyPixel>();
-		
 		int w = gray.getWidth();
 		int h = gray.getHeight();
 
 		IcyBufferedImage res = new IcyBufferedImage(w, h, 1, TypeUtil.TYPE_DOUBLE);
-		double[] table = gray.getDataXYAsDouble(0).clone();
-		res.setDataXYAsDouble(0, table);
-		table = res.getDataXYAsDouble(0);
-
-		boolean[] done = new boolean[table.length];
-		Arrays.fill(done, false);
-
-		for (int x = 0; x < w; x++) {
-			for (int y = 0; y < h; y++) {
-				int idx = x + w * y;
-				if ((done[idx] == false) && (table[idx] >= highThreshold)) {
-					table[idx] = highValue;
-					done[idx] = true;
-					wf.addFirst(new IcyPixel(x, y));
+		work(gray.getDataXYAsDouble(0), w, h, res.getDataXYAsDouble(0));
+
+		res.dataChanged();
+		
+		return res;
+	}
+
+	/**
+	 * Work on raw data.
+	 * 
+	 * @param data
+	 *            the data, w x h
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param out
+	 *            the out, w x h, may be data itself
+	 */
+	public void work(final double[] data, final int w, int h, final double[] out) {
+		final byte[] s = prepare(w, h);
+		final boolean[] seeds = rowHasSeed;
+		final double ht = highThreshold;
+		final double lt = lowThreshold;
+		ParallelBands.run(h, getMinBandHeight(w), new ParallelBands.Band() {
+			@Override
+			public void run(int from, int to) {
+				for (int y = from; y < to; y++) {
+					boolean seed = false;
+					for (int i = y * w, e = i + w; i < e; i++) {
+						final double v = data[i];
+						if (v >= ht) {
+							s[i] = STRONG;
+							seed = true;
+						} else if (v >= lt) {
+							s[i] = WEAK;
+						} else {
+							s[i] = BELOW;
+						}
+					}
+					seeds[y] = seed;
 				}
 			}
-		}
-		
-		while (!wf.isEmpty()) {
-			IcyPixel px = wf.removeLast();
-			int x = (int)px.x;
-			int y = (int)px.y;
-			for (int dx = -1; dx <= 1; dx++) {
-				for (int dy = -1; dy <= 1; dy++) {
-					int nx = x + dx;
-					int ny = y + dy;
-					if ((nx >= 0) && (ny >= 0) && (nx < w) && (ny < h)) {
-						int idx = nx + w * ny;
-						if ((!done[idx]) && (table[idx] >= lowThreshold)) {
-							table[idx] = highValue;
-							done[idx] = true;
-							wf.addFirst(new IcyPixel(nx, ny));
+		});
+		grow(w, h);
+		final double hv = highValue;
+		final double lv = lowValue;
+		ParallelBands.run(w * h, MIN_BAND_SIZE, new ParallelBands.Band() {
+			@Override
+			public void run(int from, int to) {
+				for (int i = from; i < to; i++) {
+					if (s[i] == KEPT) {
+						out[i] = hv;
+					} else {
+						final double v = data[i];
+						out[i] = (v < hv) ? lv : v;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Work on raw data.
+	 * 
+	 * @param data
+	 *            the data, w x h
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param out
+	 *            the out, w x h, may be data itself
+	 */
+	public void work(final float[] data, final int w, int h, final float[] out) {
+		final byte[] s = prepare(w, h);
+		final boolean[] seeds = rowHasSeed;
+		final double ht = highThreshold;
+		final double lt = lowThreshold;
+		ParallelBands.run(h, getMinBandHeight(w), new ParallelBands.Band() {
+			@Override
+			public void run(int from, int to) {
+				for (int y = from; y < to; y++) {
+					boolean seed = false;
+					for (int i = y * w, e = i + w; i < e; i++) {
+						final float v = data[i];
+						if (v >= ht) {
+							s[i] = STRONG;
+							seed = true;
+						} else if (v >= lt) {
+							s[i] = WEAK;
+						} else {
+							s[i] = BELOW;
+						}
+					}
+					seeds[y] = seed;
+				}
+			}
+		});
+		grow(w, h);
+		final float hv = (float) highValue;
+		final float lv = (float) lowValue;
+		final double hvd = highValue;
+		ParallelBands.run(w * h, MIN_BAND_SIZE, new ParallelBands.Band() {
+			@Override
+			public void run(int from, int to) {
+				for (int i = from; i < to; i++) {
+					if (s[i] == KEPT) {
+						out[i] = hv;
+					} else {
+						final float v = data[i];
+						out[i] = (v < hvd) ? lv : v;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Work on raw data.
+	 * 
+	 * @param data
+	 *            the data, w x h
+	 * @param signed
+	 *            the signed
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param out
+	 *            the out, w x h, may be data itself
+	 */
+	public void work(final byte[] data, boolean signed, final int w, int h, final byte[] out) {
+		final int mask = signed ? -1 : 0xFF;
+		final byte[] s = prepare(w, h);
+		final boolean[] seeds = rowHasSeed;
+		final double ht = highThreshold;
+		final double lt = lowThreshold;
+		ParallelBands.run(h, getMinBandHeight(w), new ParallelBands.Band() {
+			@Override
+			public void run(int from, int to) {
+				for (int y = from; y < to; y++) {
+					boolean seed = false;
+					for (int i = y * w, e = i + w; i < e; i++) {
+						final int v = data[i] & mask;
+						if (v >= ht) {
+							s[i] = STRONG;
+							seed = true;
+						} else if (v >= lt) {
+							s[i] = WEAK;
+						} else {
+							s[i] = BELOW;
 						}
 					}
+					seeds[y] = seed;
+				}
+			}
+		});
+		grow(w, h);
+		final byte hv = (byte) highValue;
+		final byte lv = (byte) lowValue;
+		final double hvd = highValue;
+		ParallelBands.run(w * h, MIN_BAND_SIZE, new ParallelBands.Band() {
+			@Override
+			public void run(int from, int to) {
+				for (int i = from; i < to; i++) {
+					if (s[i] == KEPT) {
+						out[i] = hv;
+					} else {
+						out[i] = ((data[i] & mask) < hvd) ? lv : data[i];
+					}
 				}
 			}
+		});
+	}
+
+	/**
+	 * Prepares the state buffers, grown if needed.
+	 * 
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @return the state
+	 */
+	private byte[] prepare(int w, int h) {
+		if ((state == null) || (state.length < w * h)) {
+			state = new byte[w * h];
 		}
-		
-		for (int i = 0; i < table.length; i++) {
-			if (table[i] < highValue) {
-				table[i] = lowValue;
+		if ((rowHasSeed == null) || (rowHasSeed.length < h)) {
+			rowHasSeed = new boolean[h];
+		}
+		return state;
+	}
+
+	/**
+	 * Gets the min band height for the row based passes.
+	 * 
+	 * @param w
+	 *            the w
+	 * @return the min band height
+	 */
+	private static int getMinBandHeight(int w) {
+		return Math.max(1, MIN_BAND_SIZE / Math.max(1, w));
+	}
+
+	/**
+	 * Grows the regions from the strong pixels of the rows holding some.
+	 * 
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 */
+	private void grow(int w, int h) {
+		ScanlineFloodFill ff = new ScanlineFloodFill(w, h, true);
+		StateRegion r = new StateRegion(state);
+		for (int y = 0; y < h; y++) {
+			if (!rowHasSeed[y]) {
+				continue;
+			}
+			for (int x = 0, i = y * w; x < w; x++, i++) {
+				if (state[i] == STRONG) {
+					ff.fill(r, x, y);
+				}
 			}
 		}
+	}
 
-		res.dataChanged();
-		
-		return res;
+	/**
+	 * The pixels to keep : the strong and weak ones connected to a strong one.
+	 * 
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	private static class StateRegion implements ScanlineFloodFill.Region {
+
+		/** The state. */
+		private final byte[] s;
+
+		/**
+		 * Instantiates a new state region.
+		 * 
+		 * @param s
+		 *            the state
+		 */
+		public StateRegion(byte[] s) {
+			super();
+			this.s = s;
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.image.toolboxes.ScanlineFloodFill.Region#isFillable(int)
+		 */
+		@Override
+		public boolean isFillable(int idx) {
+			final byte v = s[idx];
+			return (v == WEAK) || (v == STRONG);
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.image.toolboxes.ScanlineFloodFill.Region#fill(int)
+		 */
+		@Override
+		public void fill(int idx) {
+			s[idx] = KEPT;
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.image.toolboxes.ScanlineFloodFill.Region#isFilled(int)
+		 */
+		@Override
+		public boolean isFilled(int idx) {
+			return s[idx] == KEPT;
+		}
 	}
 
 }
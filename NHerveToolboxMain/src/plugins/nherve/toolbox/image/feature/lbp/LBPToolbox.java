@@ -27,10 +27,14 @@ import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
 import plugins.nherve.toolbox.image.mask.Mask;
 import plugins.nherve.toolbox.image.mask.MaskException;
 import plugins.nherve.toolbox.image.mask.MaskStack;
+import plugins.nherve.toolbox.image.toolboxes.BilinearSampler;
+import plugins.nherve.toolbox.image.toolboxes.ParallelBands;
 import plugins.nherve.toolbox.image.toolboxes.SomeImageTools;
 
 
 public class LBPToolbox extends Algorithm {
+	private final static int MIN_BAND_HEIGHT = 16;
+
 	public final static int FUZZY_FUNCTION_STANDARD = 1;
 	public final static int FUZZY_FUNCTION_TANH = 2;
 	public final static int FUZZY_FUNCTION_STEP = 3;
@@ -153,8 +157,8 @@ public class LBPToolbox extends Algorithm {
 		IcyBufferedImage lbp = new IcyBufferedImage(w, h, 1, TypeUtil.TYPE_INT);
 		int[] lbpdata = lbp.getDataXYAsInt(0);
 
-		final byte[] bin1 = m1.getBinaryData().getRawData();
-		final byte[] bin2 = m2.getBinaryData().getRawData();
+		final byte[] bin1 = m1.getRawDataView();
+		final byte[] bin2 = m2.getRawDataView();
 
 		int idx = 0;
 		for (int y = 0; y < h; y++) {
@@ -208,19 +212,40 @@ public class LBPToolbox extends Algorithm {
 	 */
 
 	public double[] computeFuzzyFullImage(IcyBufferedImage gray) {
-		return computeFuzzyFullImage(gray, gray);
+		BilinearSampler s = getSampler(gray);
+		return computeFuzzyFullImage(s, s);
 	}
 
 	public double[] computeFuzzyFullImage(IcyBufferedImage center, IcyBufferedImage neighbours) {
-		int w = center.getWidth();
-		int h = center.getHeight();
+		return computeFuzzyFullImage(getSampler(center), getSampler(neighbours));
+	}
+
+	/**
+	 * Gets the sampler of the neighbourhood of this toolbox, for a gray
+	 * image. It can be built once per image and shared by the fuzzy
+	 * computations, as the center and as the neighbours.
+	 * 
+	 * @param gray
+	 *            the gray
+	 * @return the sampler
+	 */
+	public BilinearSampler getSampler(IcyBufferedImage gray) {
+		return BilinearSampler.getSampler(gray, 0, nb);
+	}
+
+	public double[] computeFuzzyFullImage(BilinearSampler cs, BilinearSampler ns) {
+		int w = cs.getWidth();
+		int h = cs.getHeight();
 
 		double[] flbpsum = new double[(int) maxLBPIndex];
 		Arrays.fill(flbpsum, 0d);
 
+		double[] f = new double[P];
+		double[] data = new double[(int) maxLBPIndex];
+
 		for (int x = 0; x < w; x++) {
 			for (int y = 0; y < h; y++) {
-				double[] data = getFLBP(center, neighbours, x, y);
+				getFLBP(cs.getValue(x, y), ns, x, y, f, data);
 
 				for (int i = 0; i < maxLBPIndex; i++) {
 					flbpsum[i] += data[i];
@@ -232,13 +257,19 @@ public class LBPToolbox extends Algorithm {
 	}
 
 	public double[] computeFuzzyRegion(IcyBufferedImage center, IcyBufferedImage neighbours, SupportRegion<IcyPixel> reg) {
+		return computeFuzzyRegion(getSampler(center), getSampler(neighbours), reg);
+	}
+
+	public double[] computeFuzzyRegion(BilinearSampler cs, BilinearSampler ns, SupportRegion<IcyPixel> reg) {
 		double[] flbpsum = new double[(int) maxLBPIndex];
 		Arrays.fill(flbpsum, 0d);
+		double[] f = new double[P];
+		double[] data = new double[(int) maxLBPIndex];
 		Rectangle2D bb = reg.getBoundingBox();
 		for (int x = (int)Math.floor(bb.getMinX()); x < (int)Math.floor(bb.getMaxX()); x++) {
 			for (int y = (int)Math.floor(bb.getMinY()); y < (int)Math.floor(bb.getMaxY()); y++) {
 				if (reg.contains(x, y)) {
-					double[] data = getFLBP(center, neighbours, x, y);
+					getFLBP(cs.getValue(x, y), ns, x, y, f, data);
 					for (int i = 0; i < maxLBPIndex; i++) {
 						flbpsum[i] += data[i];
 					}
@@ -249,15 +280,65 @@ public class LBPToolbox extends Algorithm {
 		return flbpsum;
 	}
 	
-	private long varoff(IcyBufferedImage gray, int x, int y) {
+	public IcyBufferedImage[] compute(IcyBufferedImage gray) {
+		final int w = gray.getWidth();
+		int h = gray.getHeight();
+
+		IcyBufferedImage[] lbp = new IcyBufferedImage[encoding];
+		final int[][] id = new int[encoding][];
+		for (int i = 0; i < encoding; i++) {
+			lbp[i] = new IcyBufferedImage(w, h, 1, TypeUtil.TYPE_INT);
+			id[i] = lbp[i].getDataXYAsInt(0);
+		}
+
+		// the neighbours are sampled a row at a time, the center pixels are exact
+		final BilinearSampler sampler = BilinearSampler.getSampler(gray, 0, nb);
+		final double[] data = sampler.getData();
+
+		ParallelBands.run(h, MIN_BAND_HEIGHT, new ParallelBands.Band() {
+			@Override
+			public void run(int from, int to) {
+				double[][] rows = new double[P][w];
+				long[] ids = new long[2];
+				for (int y = from; y < to; y++) {
+					for (int p = 0; p < P; p++) {
+						sampler.getRow(p, y, rows[p]);
+					}
+					for (int x = 0, idx = y * w; x < w; x++, idx++) {
+						final double gc = data[idx];
+						long varoff = varoff(gc, rows, x);
+
+						switch (encoding) {
+						case LocalBinaryPattern.BINARY_ENCODING:
+							id[0][idx] = (int) (varoff + getLBP(gc, rows, x));
+							break;
+						case LocalBinaryPattern.TERNARY_ENCODING:
+							getLTP(gc, rows, x, ids);
+							for (int i = 0; i < encoding; i++) {
+								id[i][idx] = (int) (varoff + ids[i]);
+							}
+							break;
+						}
+					}
+				}
+			}
+		});
+
+		for (int i = 0; i < encoding; i++) {
+			lbp[i].dataChanged();
+		}
+
+		return lbp;
+	}
+
+	private long varoff(double gc, double[][] rows, int x) {
 		int ivar = 0;
 
 		if (v > 1) {
 			if (useIntensity) {
-				double intens = SomeImageTools.getBilinearInterpolatedValue(gray, 0, x, y);
-				ivar = (int) Math.floor(intens * v / 256.0);
+				ivar = (int) Math.floor(gc * v / 256.0);
 			} else {
-				double var = getVAR(gray, x, y);
+				double var = getVAR(rows, x);
 				ivar = (int) Math.floor(var * v / 16384.0);
 			}
 
@@ -269,42 +350,60 @@ public class LBPToolbox extends Algorithm {
 		return ivar * maxLBPIndex;
 	}
 
-	public IcyBufferedImage[] compute(IcyBufferedImage gray) {
-		int w = gray.getWidth();
-		int h = gray.getHeight();
+	private long getLBP(double gc, double[][] rows, int x) {
+		long lbp = 0;
+		long p2 = 1;
 
-		IcyBufferedImage[] lbp = new IcyBufferedImage[encoding];
-		int[][] id = new int[encoding][];
-		for (int i = 0; i < encoding; i++) {
-			lbp[i] = new IcyBufferedImage(w, h, 1, TypeUtil.TYPE_INT);
-			id[i] = lbp[i].getDataXYAsInt(0);
+		for (int p = 0; p < P; p++) {
+			if (rows[p][x] - gc >= 0) {
+				lbp += p2;
+			}
+			p2 = p2 << 1;
 		}
 
-		for (int x = 0; x < w; x++) {
-			for (int y = 0; y < h; y++) {
-				long varoff = varoff(gray, x, y);
+		if (ri) {
+			lbp = getRI(lbp);
+		}
 
-				switch (encoding) {
-				case LocalBinaryPattern.BINARY_ENCODING:
-					id[0][x + y * w] = (int) (varoff + getLBP(gray, x, y));
-					break;
-				case LocalBinaryPattern.TERNARY_ENCODING:
-					long[] ids = getLTP(gray, x, y);
-					for (int i = 0; i < encoding; i++) {
-						id[i][x + y * w] = (int) (varoff + ids[i]);
-					}
-					break;
-				}
-				// System.out.println("idx " + idx);
+		return lbp;
+	}
+
+	private void getLTP(double gc, double[][] rows, int x, long[] lbp) {
+		lbp[0] = 0;
+		lbp[1] = 0;
+		long p2 = 1;
 
+		for (int p = 0; p < P; p++) {
+			double diff = rows[p][x] - gc;
+			if (diff >= ternaryThreshold) {
+				lbp[0] += p2;
+			} else if (diff <= (-ternaryThreshold)) {
+				lbp[1] += p2;
 			}
+			p2 = p2 << 1;
 		}
 
-		for (int i = 0; i < encoding; i++) {
-			lbp[i].dataChanged();
+		if (ri) {
+			lbp[0] = getRI(lbp[0]);
+			lbp[1] = getRI(lbp[1]);
 		}
+	}
 
-		return lbp;
+	private double getVAR(double[][] rows, int x) {
+		double sum = 0;
+		double varsum = 0;
+
+		for (int p = 0; p < P; p++) {
+			sum += rows[p][x];
+		}
+
+		double mean = sum / (double) P;
+
+		for (int p = 0; p < P; p++) {
+			varsum += Math.pow((rows[p][x] - mean), 2d);
+		}
+
+		return varsum / (double) P;
 	}
 
 	public long getLBP(IcyBufferedImage gray, int x, int y) {
@@ -364,6 +463,29 @@ public class LBPToolbox extends Algorithm {
 		return getFLBP(gray, gray, x, y);
 	}
 
+	private void getFLBP(double gc, BilinearSampler neighbours, int x, int y, double[] f, double[] res) {
+		for (int p = 0; p < P; p++) {
+			f[p] = ff.apply(neighbours.getValue(p, x, y) - gc);
+		}
+
+		for (long i = 0; i < maxLBPIndex; i++) {
+			double v = 1;
+			long p2 = 1;
+			for (int p = 0; p < P; p++) {
+				if ((i & p2) == p2) {
+					v *= f[p];
+				} else {
+					v *= 1d - f[p];
+				}
+				if (v == 0) {
+					break;
+				}
+				p2 = p2 << 1;
+			}
+			res[(int) i] = v;
+		}
+	}
+
 	public double[] getFLBP(IcyBufferedImage center, IcyBufferedImage neighbours, int x, int y) {
 		// double check = 0;
 		double[] res = new double[(int) maxLBPIndex];
@@ -4,6 +4,7 @@ import icy.image.IcyBufferedImage;
 
 import java.awt.Shape;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -11,18 +12,22 @@ import java.util.Map;
 import plugins.nherve.toolbox.Pair;
 import plugins.nherve.toolbox.image.feature.SegmentableIcyBufferedImage;
 import plugins.nherve.toolbox.image.feature.SupportRegion;
+import plugins.nherve.toolbox.image.feature.descriptor.DenseFeatureMap;
+import plugins.nherve.toolbox.image.feature.descriptor.DenseLocalDescriptor;
 import plugins.nherve.toolbox.image.feature.descriptor.GlobalAndLocalDescriptor;
 import plugins.nherve.toolbox.image.feature.region.FullImageSupportRegion;
 import plugins.nherve.toolbox.image.feature.region.IcyPixel;
 import plugins.nherve.toolbox.image.feature.signature.SignatureException;
 import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
 import plugins.nherve.toolbox.image.feature.signature.VectorSignatureConcatenator;
+import plugins.nherve.toolbox.image.toolboxes.BilinearSampler;
 import plugins.nherve.toolbox.image.toolboxes.ColorSpaceTools;
 import plugins.nherve.toolbox.image.toolboxes.ImageTools;
+import plugins.nherve.toolbox.image.toolboxes.IntegralHistogram;
 import plugins.nherve.toolbox.image.toolboxes.SomeImageTools;
 
 
-public class LocalBinaryPattern extends GlobalAndLocalDescriptor<SegmentableIcyBufferedImage, DefaultVectorSignature> {
+public class LocalBinaryPattern extends GlobalAndLocalDescriptor<SegmentableIcyBufferedImage, DefaultVectorSignature> implements DenseLocalDescriptor<SegmentableIcyBufferedImage> {
 	public final static int BINARY_ENCODING = 1;
 	public final static int TERNARY_ENCODING = 2;
 
@@ -38,9 +43,10 @@ public class LocalBinaryPattern extends GlobalAndLocalDescriptor<SegmentableIcyB
 	private LBPToolbox pptbx;
 
 	private Map<SegmentableIcyBufferedImage, IcyBufferedImage[]> cachePrecomputedLBP;
+	private Map<SegmentableIcyBufferedImage, IntegralHistogram[]> cacheIntegral;
 	
 	private Map<SegmentableIcyBufferedImage, List<Pair<Integer, Integer>>> cachePairs;
-	private Map<SegmentableIcyBufferedImage, Map<Integer, IcyBufferedImage>> cacheGrays;
+	private Map<SegmentableIcyBufferedImage, Map<Integer, BilinearSampler>> cacheSamplers;
 
 	public LocalBinaryPattern(int p, double r, int w, boolean ri, boolean uniform, int v, int encoding, boolean in, boolean display) {
 		super(display);
@@ -55,7 +61,8 @@ public class LocalBinaryPattern extends GlobalAndLocalDescriptor<SegmentableIcyB
 
 		tbx = new LBPToolbox(p, r, ri, uniform, v, encoding, in, display);
 		cachePrecomputedLBP = new HashMap<SegmentableIcyBufferedImage, IcyBufferedImage[]>();
-		cacheGrays = new HashMap<SegmentableIcyBufferedImage, Map<Integer,IcyBufferedImage>>();
+		cacheIntegral = new HashMap<SegmentableIcyBufferedImage, IntegralHistogram[]>();
+		cacheSamplers = new HashMap<SegmentableIcyBufferedImage, Map<Integer,BilinearSampler>>();
 		cachePairs = new HashMap<SegmentableIcyBufferedImage, List<Pair<Integer,Integer>>>();
 	}
 
@@ -135,19 +142,58 @@ public class LocalBinaryPattern extends GlobalAndLocalDescriptor<SegmentableIcyB
 		return sig;
 	}
 
+	private DefaultVectorSignature extractLocalSignature(IntegralHistogram ih, SupportRegion<IcyPixel> reg) throws SignatureException {
+		DefaultVectorSignature sig = getEmptySignature(tbx.getTernarySingleSignatureSize());
+
+		int[] counts = null;
+		if (reg instanceof FullImageSupportRegion) {
+			counts = ih.getHistogram(0, 0, ih.getWidth(), ih.getHeight(), null);
+		} else {
+			IcyPixel px = reg.getCenter();
+			int cx = (int) px.x;
+			int cy = (int) px.y;
+			counts = ih.getHistogram(cx - w, cy - w, cx + w + 1, cy + w + 1, null);
+		}
+		for (int b = 0; b < counts.length; b++) {
+			if (counts[b] != 0) {
+				sig.addTo(b, counts[b]);
+			}
+		}
+
+		sig.normalizeSumToOne(true);
+
+		return sig;
+	}
+
+	private IntegralHistogram buildIntegralHistogram(IcyBufferedImage precomputedLBP) {
+		int imgW = precomputedLBP.getWidth();
+		int imgH = precomputedLBP.getHeight();
+		int nbBins = tbx.getTernarySingleSignatureSize();
+		if (!IntegralHistogram.fits(imgW, imgH, nbBins)) {
+			return null;
+		}
+		int[] loc = precomputedLBP.getDataXYAsInt(0);
+		for (int v : loc) {
+			if ((v < 0) || (v >= nbBins)) {
+				return null;
+			}
+		}
+		return new IntegralHistogram(loc, imgW, imgH, nbBins);
+	}
+
 	@Override
 	public DefaultVectorSignature extractLocalSignature(SegmentableIcyBufferedImage img, SupportRegion<IcyPixel> reg) throws SignatureException {
 		if (fuzzy) {
 			int off = 0;
 
 			List<Pair<Integer, Integer>> pairs = null;
-			Map<Integer, IcyBufferedImage> grays = null;
+			Map<Integer, BilinearSampler> samplers = null;
 			
-			synchronized (cacheGrays) {
-				grays = cacheGrays.get(img);
+			synchronized (cacheSamplers) {
+				samplers = cacheSamplers.get(img);
 			}
 
-			if (grays == null) {
+			if (samplers == null) {
 				throw new SignatureException("PreProcess not launched for current image (" + img.getName() + ")");
 			}
 			
@@ -169,8 +215,8 @@ public class LocalBinaryPattern extends GlobalAndLocalDescriptor<SegmentableIcyB
 			DefaultVectorSignature sigf = getEmptySignature(finalSigSize);
 
 			for (Pair<Integer, Integer> p : pairs) {
-				IcyBufferedImage center = grays.get(p.first);
-				IcyBufferedImage neighbours = grays.get(p.second);
+				BilinearSampler center = samplers.get(p.first);
+				BilinearSampler neighbours = samplers.get(p.second);
 				double[] precomputedLBP = null;
 				if (reg instanceof FullImageSupportRegion) {
 					precomputedLBP = tbx.computeFuzzyFullImage(center, neighbours);
@@ -214,18 +260,93 @@ public class LocalBinaryPattern extends GlobalAndLocalDescriptor<SegmentableIcyB
 				throw new SignatureException("PreProcess not launched for current image (" + img.getName() + ")");
 			}
 
+			IntegralHistogram[] integral = null;
+			synchronized (cacheIntegral) {
+				integral = cacheIntegral.get(img);
+			}
+
 			if (precomputedLBP.length > 1) {
 				VectorSignatureConcatenator concat = new VectorSignatureConcatenator(DefaultVectorSignature.DENSE_VECTOR_SIGNATURE, false);
-				for (IcyBufferedImage pre : precomputedLBP) {
-					concat.add(extractLocalSignature(pre, reg));
+				for (int i = 0; i < precomputedLBP.length; i++) {
+					if ((integral != null) && (integral[i] != null)) {
+						concat.add(extractLocalSignature(integral[i], reg));
+					} else {
+						concat.add(extractLocalSignature(precomputedLBP[i], reg));
+					}
 				}
 				return concat.concatenate()[0];
+			} else if ((integral != null) && (integral[0] != null)) {
+				return extractLocalSignature(integral[0], reg);
 			} else {
 				return extractLocalSignature(precomputedLBP[0], reg);
 			}
 		}
 	}
 
+	@Override
+	public boolean isDenseExtractionSupported() {
+		return !fuzzy;
+	}
+
+	@Override
+	public void extractDenseFeatures(SegmentableIcyBufferedImage img, int y1, int y2, DenseFeatureMap map) throws SignatureException {
+		if (fuzzy) {
+			throw new SignatureException("LocalBinaryPattern : no dense extraction for the fuzzy patterns");
+		}
+		IcyBufferedImage[] precomputedLBP = null;
+		synchronized (cachePrecomputedLBP) {
+			precomputedLBP = cachePrecomputedLBP.get(img);
+		}
+		if (precomputedLBP == null) {
+			throw new SignatureException("PreProcess not launched for current image (" + img.getName() + ")");
+		}
+
+		// square window histograms, normalized by their number of pixels,
+		// slid along the rows one column at a time
+		int imgW = img.getWidth();
+		int imgH = img.getHeight();
+		int nbBins = tbx.getTernarySingleSignatureSize();
+		int dim = map.getDimension();
+		float[] data = map.getData();
+		int[] hist = new int[nbBins];
+		for (int i = 0; i < precomputedLBP.length; i++) {
+			int[] loc = precomputedLBP[i].getDataXYAsInt(0);
+			for (int y = y1; y < y2; y++) {
+				int wy1 = Math.max(y - w, 0);
+				int wy2 = Math.min(y + w, imgH - 1);
+				int nbRows = wy2 - wy1 + 1;
+				Arrays.fill(hist, 0);
+				for (int x = 0; x < Math.min(w, imgW); x++) {
+					addColumn(loc, imgW, x, wy1, wy2, hist, 1);
+				}
+				int off = map.getOffset(0, y) + i * nbBins;
+				for (int x = 0; x < imgW; x++) {
+					if (x + w < imgW) {
+						addColumn(loc, imgW, x + w, wy1, wy2, hist, 1);
+					}
+					if (x - w - 1 >= 0) {
+						addColumn(loc, imgW, x - w - 1, wy1, wy2, hist, -1);
+					}
+					double area = nbRows * (Math.min(x + w, imgW - 1) - Math.max(x - w, 0) + 1);
+					for (int b = 0; b < nbBins; b++) {
+						data[off + b] = (float) (hist[b] / area);
+					}
+					off += dim;
+				}
+			}
+		}
+	}
+
+	private void addColumn(int[] loc, int imgW, int x, int y1, int y2, int[] hist, int inc) throws SignatureException {
+		for (int off = y1 * imgW + x; off <= y2 * imgW + x; off += imgW) {
+			int v = loc[off];
+			if ((v < 0) || (v >= hist.length)) {
+				throw new SignatureException("LocalBinaryPattern : pattern " + v + " out of the " + hist.length + " bins");
+			}
+			hist[v] += inc;
+		}
+	}
+
 	@Override
 	public DefaultVectorSignature extractLocalSignature(SegmentableIcyBufferedImage img, Shape shape) throws SignatureException {
 		throw new SignatureException("LocalBinaryPattern::extractLocalSignature not implemented for shape");
@@ -244,8 +365,11 @@ public class LocalBinaryPattern extends GlobalAndLocalDescriptor<SegmentableIcyB
 		synchronized (cachePrecomputedLBP) {
 			cachePrecomputedLBP.remove(img);
 		}
-		synchronized (cacheGrays) {
-			cacheGrays.remove(img);
+		synchronized (cacheIntegral) {
+			cacheIntegral.remove(img);
+		}
+		synchronized (cacheSamplers) {
+			cacheSamplers.remove(img);
 		}
 		synchronized (cachePairs) {
 			cachePairs.remove(img);
@@ -267,7 +391,9 @@ public class LocalBinaryPattern extends GlobalAndLocalDescriptor<SegmentableIcyB
 			}
 
 			List<Pair<Integer, Integer>> pairs = new ArrayList<Pair<Integer, Integer>>();
-			Map<Integer, IcyBufferedImage> grays = new HashMap<Integer, IcyBufferedImage>();
+			// the samplers are built once per gray channel, each one serves as
+			// center and as neighbours for all the regions of the image
+			Map<Integer, BilinearSampler> samplers = new HashMap<Integer, BilinearSampler>();
 
 			if (fuzzyCross) {
 				for (int c1 = minCanal; c1 <= maxCanal; c1++) {
@@ -284,11 +410,11 @@ public class LocalBinaryPattern extends GlobalAndLocalDescriptor<SegmentableIcyB
 			}
 
 			for (int canal = minCanal; canal <= maxCanal; canal++) {
-				grays.put(canal, SomeImageTools.computeGrayScale(img.getImage(), fuzzyColorSpace, canal, 1));
+				samplers.put(canal, tbx.getSampler(SomeImageTools.computeGrayScale(img.getImage(), fuzzyColorSpace, canal, 1)));
 			}
 			
-			synchronized (cacheGrays) {
-				cacheGrays.put(img, grays);
+			synchronized (cacheSamplers) {
+				cacheSamplers.put(img, samplers);
 			}
 			
 			synchronized (cachePairs) {
@@ -313,9 +439,16 @@ public class LocalBinaryPattern extends GlobalAndLocalDescriptor<SegmentableIcyB
 			// } else {
 			precomputedLBP = tbx.compute(gray);
 			// }
+			IntegralHistogram[] integral = new IntegralHistogram[precomputedLBP.length];
+			for (int i = 0; i < precomputedLBP.length; i++) {
+				integral[i] = buildIntegralHistogram(precomputedLBP[i]);
+			}
 			synchronized (cachePrecomputedLBP) {
 				cachePrecomputedLBP.put(img, precomputedLBP);
 			}
+			synchronized (cacheIntegral) {
+				cacheIntegral.put(img, integral);
+			}
 		}
 	}
 
@@ -266,7 +266,7 @@ public class GridFactory extends Algorithm implements IcySupportRegionFactory {
 	 * @return the mask as pixels
 	 */
 	public static List<IcyPixel> getMaskAsPixels(Mask m) {
-		byte[] b = m.getBinaryData().getRawData();
+		byte[] b = m.getRawDataView();
 		int w = m.getWidth();
 		int h = m.getHeight();
 
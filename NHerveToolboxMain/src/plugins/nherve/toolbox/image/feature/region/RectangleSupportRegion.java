@@ -131,4 +131,40 @@ public class RectangleSupportRegion extends AreaSupportRegion {
 	public IcyPixel getCenter() {
 		return new IcyPixel(centerX, centerY);
 	}
+
+	/**
+	 * Gets the x of the first column of the region.
+	 * 
+	 * @return the start x
+	 */
+	public int getStartX() {
+		return centerX - width / 2;
+	}
+
+	/**
+	 * Gets the y of the first row of the region.
+	 * 
+	 * @return the start y
+	 */
+	public int getStartY() {
+		return centerY - height / 2;
+	}
+
+	/**
+	 * Gets the width.
+	 * 
+	 * @return the width
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Gets the height.
+	 * 
+	 * @return the height
+	 */
+	public int getHeight() {
+		return height;
+	}
 }
@@ -0,0 +1,1039 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ *
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ *
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.mask;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
+
+import plugins.nherve.toolbox.PersistenceException;
+import plugins.nherve.toolbox.concurrent.TaskManager;
+import plugins.nherve.toolbox.image.BinaryIcyBufferedImage;
+import plugins.nherve.toolbox.image.TiledBinaryData;
+
+/**
+ * Incremental mask stack persistence. The main file is a regular .segz2 file.
+ * Once a stack has been loaded from or saved to a file, the following saves
+ * only append to a journal, next to the main file, the layout of the stack,
+ * the records of the masks and the tiles modified since the previous save
+ * (see Mask.setDirty()). The cost of a save is thus proportional to the
+ * edit, not to the stack size. When the journal grows too big, it is merged
+ * into the main file in the background.
+ *
+ * <pre>
+ * journal : int magic, version, height, width,
+ *           long length of the main file, long crc32 of the main file
+ * n x     entry : int payload length, int payload crc32, payload
+ * payload : int active index, int nb masks, n x mask record
+ *           int nb tiles, n x int mask id, tile x, tile y,
+ *                             int run stream length, var int runs
+ * </pre>
+ *
+ * A truncated or corrupted entry, at the end of the journal, is cut off on
+ * load and a journal whose header does not match the main file is dropped,
+ * so that the next entries are never appended after them. A stack is only
+ * journaled while its main file is the one it has been loaded from or saved
+ * to, it is fully saved again otherwise. The merged
+ * file is written aside, the current journal is stamped with its identity
+ * and it then replaces the main file by a rename, so that an interrupted
+ * compaction is either completed or dropped on the next load.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class JournaledMaskPersistenceImpl extends OptimizedMaskPersistenceImpl {
+
+	/** The Constant JOURNAL_EXTENSION. */
+	public final static String JOURNAL_EXTENSION = ".journal";
+
+	/** The Constant COMPACTING_EXTENSION, for the journal being merged. */
+	private final static String COMPACTING_EXTENSION = ".compacting";
+
+	/** The Constant TMP_EXTENSION. */
+	private final static String TMP_EXTENSION = ".tmp";
+
+	/** The Constant BACKUP_EXTENSION, for the platforms where a rename does not replace a file. */
+	private final static String BACKUP_EXTENSION = ".bak";
+
+	/** The Constant MAGIC. */
+	private final static int MAGIC = 0x534A4E4C;
+
+	/** The Constant CURRENT_JOURNAL_VERSION. Version 1 : the main file is identified by its length, version 2 : by its length and crc32. */
+	private final static int CURRENT_JOURNAL_VERSION = 2;
+
+	/** The Constant HEADER_SIZE_V1. */
+	private final static int HEADER_SIZE_V1 = 4 * 4 + 8;
+
+	/** The Constant HEADER_SIZE. */
+	private final static int HEADER_SIZE = 4 * 4 + 8 + 8;
+
+	/** The Constant BASE_LENGTH_POSITION. */
+	private final static int BASE_LENGTH_POSITION = 4 * 4;
+
+	/** The Constant CRC_BUFFER_SIZE. */
+	private final static int CRC_BUFFER_SIZE = 1 << 20;
+
+	/** The Constant DEFAULT_COMPACTION_RATIO. */
+	public final static double DEFAULT_COMPACTION_RATIO = 0.5;
+
+	/** The stacks known to be in sync with a file, main file and journals. */
+	private final Map<MaskStack, File> synchronizedStacks;
+
+	/** The journal size, relative to the main file, triggering a compaction. */
+	private double compactionRatio;
+
+	/** Incremented on each full save, to abort a concurrent compaction. */
+	private long generation;
+
+	/** The files being compacted. */
+	private final List<File> compacting;
+
+	/** The identities of the main files : length, crc32 and last modification date. */
+	private final Map<File, long[]> baseIdentities;
+
+	/** The task manager used for the compaction, null to compact on the saving thread. */
+	private TaskManager tm;
+
+	/**
+	 * Instantiates a new journaled mask persistence impl.
+	 */
+	public JournaledMaskPersistenceImpl() {
+		super();
+		synchronizedStacks = new WeakHashMap<MaskStack, File>();
+		compactionRatio = DEFAULT_COMPACTION_RATIO;
+		generation = 0;
+		compacting = new ArrayList<File>();
+		baseIdentities = new HashMap<File, long[]>();
+		tm = TaskManager.getSecondLevelInstance();
+	}
+
+	/**
+	 * Gets the journal file.
+	 *
+	 * @param f
+	 *            the main file
+	 * @return the journal file
+	 */
+	public File getJournalFile(File f) {
+		return new File(f.getAbsolutePath() + JOURNAL_EXTENSION);
+	}
+
+	/**
+	 * Gets the journal being compacted.
+	 *
+	 * @param f
+	 *            the main file
+	 * @return the file
+	 */
+	private File getCompactingJournalFile(File f) {
+		return new File(f.getAbsolutePath() + JOURNAL_EXTENSION + COMPACTING_EXTENSION);
+	}
+
+	/**
+	 * Gets the merged file, before it replaces the main file.
+	 *
+	 * @param f
+	 *            the main file
+	 * @return the file
+	 */
+	private File getTmpFile(File f) {
+		return new File(f.getAbsolutePath() + TMP_EXTENSION);
+	}
+
+	/**
+	 * Gets the backup of the main file, used while it is replaced.
+	 *
+	 * @param f
+	 *            the main file
+	 * @return the file
+	 */
+	private File getBackupFile(File f) {
+		return new File(f.getAbsolutePath() + BACKUP_EXTENSION);
+	}
+
+	/**
+	 * Computes the identity of a file : its length and crc32.
+	 *
+	 * @param f
+	 *            the f
+	 * @return the identity
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static long[] computeIdentity(File f) throws IOException {
+		CRC32 crc = new CRC32();
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			ByteBuffer bb = ByteBuffer.allocate(CRC_BUFFER_SIZE);
+			while (fc.read(bb) >= 0) {
+				crc.update(bb.array(), 0, bb.position());
+				bb.clear();
+			}
+			return new long[] { f.length(), crc.getValue(), f.lastModified() };
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Gets the identity of a main file, computed once as long as the file is
+	 * not modified.
+	 *
+	 * @param f
+	 *            the main file
+	 * @return the identity
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private long[] getBaseIdentity(File f) throws IOException {
+		File af = f.getAbsoluteFile();
+		long[] id = baseIdentities.get(af);
+		if ((id == null) || (id[0] != af.length()) || (id[2] != af.lastModified())) {
+			id = computeIdentity(af);
+			baseIdentities.put(af, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Checks if the stack synchronized with a main file can be journaled : the
+	 * main file has not been rewritten since it was last seen and no journal
+	 * extends another main file.
+	 *
+	 * @param f
+	 *            the main file
+	 * @return true, if the modifications can be appended to the journal
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private boolean canAppend(File f) throws IOException {
+		File af = f.getAbsoluteFile();
+		long[] id = baseIdentities.get(af);
+		if ((id == null) || (id[0] != af.length()) || (id[2] != af.lastModified())) {
+			return false;
+		}
+		for (File journal : new File[] { getJournalFile(f), getCompactingJournalFile(f) }) {
+			if ((readHeader(journal) != null) && !matches(journal, f)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the header of a journal.
+	 *
+	 * @param journal
+	 *            the journal
+	 * @return the version and the identity of its main file, null if there is
+	 *         no complete header
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static long[] readHeader(File journal) throws IOException {
+		if (!journal.exists()) {
+			return null;
+		}
+		RandomAccessFile raf = new RandomAccessFile(journal, "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			if (fc.size() < HEADER_SIZE_V1) {
+				return null;
+			}
+			ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE);
+			while (bb.hasRemaining() && (fc.read(bb) >= 0)) {
+				// read the header
+			}
+			bb.flip();
+			if (bb.getInt() != MAGIC) {
+				throw new IOException("Not a mask journal : " + journal);
+			}
+			int v = bb.getInt();
+			bb.position(BASE_LENGTH_POSITION);
+			long length = bb.getLong();
+			if (v < 2) {
+				return new long[] { v, length, -1 };
+			}
+			if (bb.remaining() < 8) {
+				return null;
+			}
+			return new long[] { v, length, bb.getLong() };
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Checks if a journal extends a main file.
+	 *
+	 * @param journal
+	 *            the journal
+	 * @param f
+	 *            the main file
+	 * @return true, if the journal header matches the file
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private boolean matches(File journal, File f) throws IOException {
+		long[] header = readHeader(journal);
+		if ((header == null) || (header[1] != f.length())) {
+			return false;
+		}
+		if (header[0] < 2) {
+			return true;
+		}
+		return header[2] == getBaseIdentity(f)[1];
+	}
+
+	/**
+	 * Stamps a journal with the identity of a new main file.
+	 *
+	 * @param journal
+	 *            the journal
+	 * @param id
+	 *            the identity
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void stamp(File journal, long[] id) throws IOException {
+		long[] header = readHeader(journal);
+		if ((header == null) || (header[0] < 2)) {
+			throw new IOException("Unable to stamp " + journal);
+		}
+		RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+		try {
+			FileChannel fc = raf.getChannel();
+			ByteBuffer bb = ByteBuffer.allocate(16);
+			bb.putLong(id[0]);
+			bb.putLong(id[1]);
+			bb.flip();
+			while (bb.hasRemaining()) {
+				fc.write(bb, BASE_LENGTH_POSITION + bb.position());
+			}
+			fc.force(false);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Forces a file to the disk.
+	 *
+	 * @param f
+	 *            the f
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void force(File f) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.getChannel().force(true);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Truncates a file.
+	 *
+	 * @param f
+	 *            the f
+	 * @param length
+	 *            the new length
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void truncate(File f, long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			FileChannel fc = raf.getChannel();
+			fc.truncate(length);
+			fc.force(false);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Replaces a file by another one. The rename replaces the target
+	 * atomically where the platform allows it. Otherwise the target is first
+	 * moved to a backup, restored by recover() if the rename is interrupted.
+	 *
+	 * @param src
+	 *            the new file
+	 * @param f
+	 *            the replaced file
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void replace(File src, File f) throws IOException {
+		if (src.renameTo(f)) {
+			return;
+		}
+		File backup = getBackupFile(f);
+		backup.delete();
+		if (!f.renameTo(backup) || !src.renameTo(f)) {
+			throw new IOException("Unable to replace " + f);
+		}
+		backup.delete();
+	}
+
+	/**
+	 * Completes or drops a compaction interrupted by a crash. The merged file
+	 * is kept only if the current journal was already stamped with its
+	 * identity.
+	 *
+	 * @param f
+	 *            the main file
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void recover(File f) throws IOException {
+		if (compacting.contains(f.getAbsoluteFile())) {
+			return;
+		}
+		File tmp = getTmpFile(f);
+		File backup = getBackupFile(f);
+		if (tmp.exists()) {
+			if (!f.exists() || matches(getJournalFile(f), tmp)) {
+				info("Completing the interrupted compaction of " + f);
+				if (f.exists()) {
+					replace(tmp, f);
+				} else if (!tmp.renameTo(f)) {
+					throw new IOException("Unable to restore " + f);
+				}
+				getCompactingJournalFile(f).delete();
+			} else {
+				tmp.delete();
+			}
+		}
+		if (backup.exists()) {
+			if (f.exists()) {
+				backup.delete();
+			} else if (!backup.renameTo(f)) {
+				throw new IOException("Unable to restore " + f);
+			}
+		}
+	}
+
+	/**
+	 * Gets the compaction ratio.
+	 *
+	 * @return the compaction ratio
+	 */
+	public double getCompactionRatio() {
+		return compactionRatio;
+	}
+
+	/**
+	 * Sets the compaction ratio : the journal is merged into the main file
+	 * when its size exceeds this ratio of the main file size.
+	 *
+	 * @param compactionRatio
+	 *            the new compaction ratio
+	 */
+	public void setCompactionRatio(double compactionRatio) {
+		this.compactionRatio = compactionRatio;
+	}
+
+	/**
+	 * Sets the task manager.
+	 *
+	 * @param tm
+	 *            the new task manager, null to compact on the saving thread
+	 */
+	public void setTm(TaskManager tm) {
+		this.tm = tm;
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.mask.MaskPersistenceImpl#loadMaskStack(java.io.File)
+	 */
+	@Override
+	public MaskStack loadMaskStack(File f) throws PersistenceException {
+		synchronized (this) {
+			MaskStack stack = loadMaskStack(f, true);
+			try {
+				getBaseIdentity(f);
+			} catch (IOException e) {
+				throw new PersistenceException(e);
+			}
+			synchronizedStacks.put(stack, f.getAbsoluteFile());
+			return stack;
+		}
+	}
+
+	/**
+	 * Loads the main file and replays the journals.
+	 *
+	 * @param f
+	 *            the main file
+	 * @param withCurrentJournal
+	 *            replay the current journal, and not only the one being
+	 *            compacted
+	 * @return the mask stack
+	 * @throws PersistenceException
+	 *             the persistence exception
+	 */
+	private MaskStack loadMaskStack(File f, boolean withCurrentJournal) throws PersistenceException {
+		try {
+			recover(f);
+		} catch (IOException e) {
+			throw new PersistenceException(e);
+		}
+		MaskStack stack = super.loadMaskStack(f);
+		try {
+			replay(getCompactingJournalFile(f), stack, f);
+			if (withCurrentJournal) {
+				replay(getJournalFile(f), stack, f);
+			}
+		} catch (IOException e) {
+			throw new PersistenceException(e);
+		}
+		for (Mask m : stack) {
+			m.clearDirty();
+		}
+		return stack;
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.mask.MaskPersistenceImpl#save(plugins.nherve.toolbox.image.mask.MaskStack, java.io.File)
+	 */
+	@Override
+	public void save(MaskStack stack, File f) throws PersistenceException {
+		boolean compact = false;
+		synchronized (this) {
+			boolean journaled;
+			try {
+				journaled = f.getAbsoluteFile().equals(synchronizedStacks.get(stack)) && f.exists() && canAppend(f);
+			} catch (IOException e) {
+				throw new PersistenceException(e);
+			}
+			if (journaled) {
+				try {
+					long journalLength = append(stack, f);
+					compact = journalLength > compactionRatio * f.length();
+				} catch (IOException e) {
+					// the end of the journal is unknown, the next save is a full one
+					synchronizedStacks.remove(stack);
+					throw new PersistenceException(e);
+				}
+			} else {
+				fullSave(stack, f);
+			}
+			for (Mask m : stack) {
+				m.clearDirty();
+			}
+		}
+
+		if (compact) {
+			compact(f);
+		}
+	}
+
+	/**
+	 * Saves the whole stack in the main file and drops the journals.
+	 *
+	 * @param stack
+	 *            the stack
+	 * @param f
+	 *            the f
+	 * @throws PersistenceException
+	 *             the persistence exception
+	 */
+	private void fullSave(MaskStack stack, File f) throws PersistenceException {
+		generation++;
+		super.save(stack, f);
+		getJournalFile(f).delete();
+		getCompactingJournalFile(f).delete();
+		getTmpFile(f).delete();
+		try {
+			baseIdentities.put(f.getAbsoluteFile(), computeIdentity(f.getAbsoluteFile()));
+		} catch (IOException e) {
+			baseIdentities.remove(f.getAbsoluteFile());
+			throw new PersistenceException(e);
+		}
+		synchronizedStacks.put(stack, f.getAbsoluteFile());
+	}
+
+	/**
+	 * Appends the modifications of the stack to the journal.
+	 *
+	 * @param stack
+	 *            the stack
+	 * @param f
+	 *            the main file
+	 * @return the journal length
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private long append(MaskStack stack, File f) throws IOException {
+		List<ByteBuffer> parts = new ArrayList<ByteBuffer>();
+
+		ByteBuffer layout = ByteBuffer.allocate(8);
+		layout.putInt(stack.getActiveIndex());
+		layout.putInt(stack.size());
+		layout.flip();
+		parts.add(layout);
+
+		List<ByteBuffer> tiles = new ArrayList<ByteBuffer>();
+		for (Mask m : stack) {
+			parts.add(MappedMaskPersistenceImpl.encodeRecord(m));
+			if (m.isDirty()) {
+				encodeDirtyTiles(m, tiles);
+			}
+		}
+
+		ByteBuffer nbTiles = ByteBuffer.allocate(4);
+		nbTiles.putInt(tiles.size());
+		nbTiles.flip();
+		parts.add(nbTiles);
+		parts.addAll(tiles);
+
+		int length = 0;
+		CRC32 crc = new CRC32();
+		for (ByteBuffer bb : parts) {
+			length += bb.remaining();
+			crc.update(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+		}
+		ByteBuffer entry = ByteBuffer.allocate(8);
+		entry.putInt(length);
+		entry.putInt((int) crc.getValue());
+		entry.flip();
+		parts.add(0, entry);
+
+		File journal = getJournalFile(f);
+		RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+		try {
+			FileChannel fc = raf.getChannel();
+			if (fc.size() < HEADER_SIZE) {
+				fc.truncate(0);
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC);
+				header.putInt(CURRENT_JOURNAL_VERSION);
+				header.putInt(stack.getHeight());
+				header.putInt(stack.getWidth());
+				long[] id = getBaseIdentity(f);
+				header.putLong(id[0]);
+				header.putLong(id[1]);
+				header.flip();
+				parts.add(0, header);
+			}
+			fc.position(fc.size());
+			ByteBuffer[] all = parts.toArray(new ByteBuffer[parts.size()]);
+			long remaining = 0;
+			for (ByteBuffer bb : all) {
+				remaining += bb.remaining();
+			}
+			while (remaining > 0) {
+				remaining -= fc.write(all);
+			}
+			fc.force(false);
+			return fc.size();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Encodes the dirty tiles of a mask.
+	 *
+	 * @param m
+	 *            the m
+	 * @param tiles
+	 *            the encoded tiles
+	 */
+	private void encodeDirtyTiles(Mask m, List<ByteBuffer> tiles) {
+		final int w = m.getWidth();
+		final int h = m.getHeight();
+		final byte[] raw = (m.getStorage() == Mask.STORAGE_BYTE) ? m.getRawDataView() : null;
+
+		for (int ty = 0; ty < m.getNbDirtyTilesY(); ty++) {
+			for (int tx = 0; tx < m.getNbDirtyTilesX(); tx++) {
+				if (!m.isDirty(tx, ty)) {
+					continue;
+				}
+				final int x0 = tx << TiledBinaryData.TILE_SHIFT;
+				final int y0 = ty << TiledBinaryData.TILE_SHIFT;
+				final int tw = Math.min(TiledBinaryData.TILE_SIZE, w - x0);
+				final int th = Math.min(TiledBinaryData.TILE_SIZE, h - y0);
+				byte[] tile = new byte[tw * th];
+				for (int y = 0; y < th; y++) {
+					if (raw != null) {
+						System.arraycopy(raw, (y0 + y) * w + x0, tile, y * tw, tw);
+					} else {
+						for (int x = 0; x < tw; x++) {
+							if (m.contains(x0 + x, y0 + y)) {
+								tile[y * tw + x] = BinaryIcyBufferedImage.TRUE;
+							}
+						}
+					}
+				}
+				ByteBuffer runs = RunLengthCodec.encode(tile);
+				ByteBuffer bb = ByteBuffer.allocate(4 * 4 + runs.remaining());
+				bb.putInt(m.getId());
+				bb.putInt(tx);
+				bb.putInt(ty);
+				bb.putInt(runs.remaining());
+				bb.put(runs);
+				bb.flip();
+				tiles.add(bb);
+			}
+		}
+	}
+
+	/**
+	 * Replays a journal on a stack. A journal that does not match the main
+	 * file is deleted, a truncated or corrupted end is cut off.
+	 *
+	 * @param journal
+	 *            the journal
+	 * @param stack
+	 *            the stack
+	 * @param f
+	 *            the main file
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void replay(File journal, MaskStack stack, File f) throws IOException {
+		if (!journal.exists()) {
+			return;
+		}
+
+		long size;
+		long validEnd = 0;
+		RandomAccessFile raf = new RandomAccessFile(journal, "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			size = fc.size();
+			if (size >= HEADER_SIZE_V1) {
+				// read in memory rather than mapped, the file may be truncated afterwards
+				ByteBuffer bb = ByteBuffer.allocate((int) size);
+				while (bb.hasRemaining() && (fc.read(bb) >= 0)) {
+					// read the journal
+				}
+				bb.flip();
+				if (bb.getInt() != MAGIC) {
+					throw new IOException("Not a mask journal : " + journal);
+				}
+				int v = bb.getInt();
+				if (v > CURRENT_JOURNAL_VERSION) {
+					throw new IOException("Unsupported mask journal version : " + v);
+				}
+				int h = bb.getInt();
+				int w = bb.getInt();
+				int headerSize = (v < 2) ? HEADER_SIZE_V1 : HEADER_SIZE;
+				if ((size < headerSize) || (h != stack.getHeight()) || (w != stack.getWidth()) || !matches(journal, f)) {
+					error("Dropping " + journal + ", it does not match its main file");
+				} else {
+					bb.position(headerSize);
+					replayEntries(bb, stack, journal);
+					validEnd = bb.position();
+				}
+			}
+		} finally {
+			raf.close();
+		}
+
+		if (validEnd == 0) {
+			if (!journal.delete()) {
+				throw new IOException("Unable to drop " + journal);
+			}
+		} else if (validEnd < size) {
+			truncate(journal, validEnd);
+		}
+	}
+
+	/**
+	 * Applies the entries of a journal, up to its end or to the first
+	 * truncated or corrupted one.
+	 *
+	 * @param bb
+	 *            the journal, positioned on the first entry and left after
+	 *            the last valid one
+	 * @param stack
+	 *            the stack
+	 * @param journal
+	 *            the journal file
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void replayEntries(ByteBuffer bb, MaskStack stack, File journal) throws IOException {
+		Map<Mask, Integer> changed = new HashMap<Mask, Integer>();
+		CRC32 crc = new CRC32();
+		while (bb.hasRemaining()) {
+			int start = bb.position();
+			if (bb.remaining() < 8) {
+				error("Cutting off the truncated end of " + journal);
+				bb.position(start);
+				break;
+			}
+			int length = bb.getInt();
+			int expected = bb.getInt();
+			if ((length < 0) || (length > bb.remaining())) {
+				error("Cutting off the truncated end of " + journal);
+				bb.position(start);
+				break;
+			}
+			crc.reset();
+			crc.update(bb.array(), bb.arrayOffset() + bb.position(), length);
+			if ((int) crc.getValue() != expected) {
+				error("Cutting off the corrupted end of " + journal);
+				bb.position(start);
+				break;
+			}
+			ByteBuffer payload = bb.slice();
+			payload.limit(length);
+			applyEntry(payload, stack, changed);
+			bb.position(bb.position() + length);
+		}
+
+		// the tiles are written in the byte storage, the masks are then given back their own one
+		for (Map.Entry<Mask, Integer> e : changed.entrySet()) {
+			Mask m = e.getKey();
+			m.getBinaryData().dataChanged();
+			if (e.getValue() == Mask.STORAGE_PACKED) {
+				m.pack();
+			} else if (e.getValue() == Mask.STORAGE_TILED) {
+				m.tile();
+			}
+		}
+	}
+
+	/**
+	 * Applies a journal entry.
+	 *
+	 * @param payload
+	 *            the payload
+	 * @param stack
+	 *            the stack
+	 * @param changed
+	 *            the masks whose pixels have been modified, with their
+	 *            storage before the replay
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void applyEntry(ByteBuffer payload, MaskStack stack, Map<Mask, Integer> changed) throws IOException {
+		final int w = stack.getWidth();
+		final int h = stack.getHeight();
+
+		Map<Integer, Mask> previous = new HashMap<Integer, Mask>();
+		for (Mask m : stack) {
+			previous.put(m.getId(), m);
+		}
+
+		int active = payload.getInt();
+		int n = payload.getInt();
+		List<Mask> masks = new ArrayList<Mask>(n);
+		Map<Integer, Mask> byId = new HashMap<Integer, Mask>();
+		for (int i = 0; i < n; i++) {
+			int id = payload.getInt(payload.position());
+			Mask m = previous.get(id);
+			if (m == null) {
+				m = new Mask(w, h);
+			}
+			MappedMaskPersistenceImpl.decodeRecord(payload, m);
+			masks.add(m);
+			byId.put(id, m);
+		}
+
+		stack.clear();
+		for (Mask m : masks) {
+			stack.add(m);
+		}
+		stack.setActiveIndex(active);
+
+		int nbTiles = payload.getInt();
+		for (int t = 0; t < nbTiles; t++) {
+			Mask m = byId.get(payload.getInt());
+			int tx = payload.getInt();
+			int ty = payload.getInt();
+			int length = payload.getInt();
+			ByteBuffer runs = payload.slice();
+			runs.limit(length);
+			payload.position(payload.position() + length);
+			if (m == null) {
+				throw new IOException("Mask journal references an unknown mask");
+			}
+			if (!changed.containsKey(m)) {
+				changed.put(m, m.getStorage());
+			}
+			applyTile(runs, m.getBinaryData().getRawData(), w, h, tx, ty);
+		}
+	}
+
+	/**
+	 * Writes the runs of a tile in the raw data of a mask.
+	 *
+	 * @param runs
+	 *            the runs
+	 * @param raw
+	 *            the raw
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param tx
+	 *            the tile x
+	 * @param ty
+	 *            the tile y
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void applyTile(ByteBuffer runs, byte[] raw, int w, int h, int tx, int ty) throws IOException {
+		final int x0 = tx << TiledBinaryData.TILE_SHIFT;
+		final int y0 = ty << TiledBinaryData.TILE_SHIFT;
+		final int tw = Math.min(TiledBinaryData.TILE_SIZE, w - x0);
+		final int th = Math.min(TiledBinaryData.TILE_SIZE, h - y0);
+		if ((tw <= 0) || (th <= 0)) {
+			throw new IOException("Mask journal tile out of bounds : " + tx + "x" + ty);
+		}
+		final int sz = tw * th;
+
+		int idx = 0;
+		boolean current = false;
+		while (runs.hasRemaining()) {
+			int count = RunLengthCodec.getVarInt(runs);
+			if ((count < 0) || (idx + count > sz)) {
+				throw new IOException("Corrupted mask journal tile (run of " + count + " at " + idx + " / " + sz + ")");
+			}
+			final byte value = current ? BinaryIcyBufferedImage.TRUE : BinaryIcyBufferedImage.FALSE;
+			final int end = idx + count;
+			while (idx < end) {
+				int y = idx / tw;
+				int x = idx - y * tw;
+				int len = Math.min(tw - x, end - idx);
+				int offset = (y0 + y) * w + x0 + x;
+				Arrays.fill(raw, offset, offset + len, value);
+				idx += len;
+			}
+			current = !current;
+		}
+		if (idx != sz) {
+			throw new IOException("Corrupted mask journal tile (" + idx + " pixels / " + sz + ")");
+		}
+	}
+
+	/**
+	 * Merges the journal into the main file, in the background if a task
+	 * manager is available. New saves go to a fresh journal while the
+	 * compaction is running.
+	 *
+	 * @param f
+	 *            the main file
+	 */
+	public void compact(final File f) {
+		final long startGeneration;
+		synchronized (this) {
+			if (compacting.contains(f.getAbsoluteFile())) {
+				return;
+			}
+			File journal = getJournalFile(f);
+			File old = getCompactingJournalFile(f);
+			if (!old.exists()) {
+				if (!journal.exists() || !journal.renameTo(old)) {
+					return;
+				}
+			}
+			compacting.add(f.getAbsoluteFile());
+			startGeneration = generation;
+		}
+
+		Callable<Integer> worker = new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				try {
+					compactNow(f, startGeneration);
+				} catch (Exception e) {
+					error("Unable to compact " + getJournalFile(f) + " : " + e.getMessage());
+				} finally {
+					synchronized (JournaledMaskPersistenceImpl.this) {
+						compacting.remove(f.getAbsoluteFile());
+					}
+				}
+				return 0;
+			}
+		};
+
+		if (tm == null) {
+			try {
+				worker.call();
+			} catch (Exception e) {
+				// already reported
+			}
+		} else {
+			tm.submit(worker);
+		}
+	}
+
+	/**
+	 * Merges the journal being compacted into the main file.
+	 *
+	 * @param f
+	 *            the main file
+	 * @param startGeneration
+	 *            the generation when the compaction started
+	 * @throws PersistenceException
+	 *             the persistence exception
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void compactNow(File f, long startGeneration) throws PersistenceException, IOException {
+		MaskStack merged;
+		synchronized (this) {
+			if (generation != startGeneration) {
+				return;
+			}
+			merged = loadMaskStack(f, false);
+		}
+
+		// the codecs are per thread, the merge can run outside of the lock
+		File tmp = getTmpFile(f);
+		tmp.delete();
+		super.save(merged, tmp);
+		force(tmp);
+		long[] id = computeIdentity(tmp);
+
+		synchronized (this) {
+			if (generation != startGeneration) {
+				tmp.delete();
+				return;
+			}
+			// the current journal extends the merged file : it is stamped
+			// before the swap, so that recover() completes an interrupted one
+			File journal = getJournalFile(f);
+			if (readHeader(journal) != null) {
+				stamp(journal, id);
+			}
+			replace(tmp, f);
+			getCompactingJournalFile(f).delete();
+			baseIdentities.put(f.getAbsoluteFile(), new long[] { id[0], id[1], f.lastModified() });
+		}
+	}
+}
@@ -0,0 +1,761 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * 
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ * 
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.mask;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import plugins.nherve.toolbox.concurrent.TaskManager;
+import plugins.nherve.toolbox.image.BinaryIcyBufferedImage;
+import plugins.nherve.toolbox.image.BitPackedBinaryData;
+import plugins.nherve.toolbox.image.TiledBinaryData;
+
+/**
+ * Random access mask stack persistence. The file starts with a header and a
+ * table giving, for each mask, the offset of its record and of its pixel
+ * data. It is opened through memory mappings, one per mask, so that the
+ * file is not limited to the 2 GB of a single mapping : only the headers are
+ * read when the stack is loaded, the pixels of each mask are decoded on first
+ * access. With lazy loading disabled, all the masks are decoded at once, in
+ * parallel. The masks are always encoded in parallel and written with a
+ * single gathering write.
+ * 
+ * <pre>
+ * int     magic, version
+ * int     height, width, active index, number of masks
+ * n x     long record offset, long data offset, int data length
+ * n x     record : int id, float opacity, byte need automatic label, 
+ *                  byte visible, string label, int red, green, blue, 
+ *                  int nb tags, n x string tag
+ *         data   : version 1 : int nb runs, n x int run length
+ *                  version 2 : byte codec, int run stream length, 
+ *                              var int runs, deflated or not
+ * </pre>
+ * 
+ * In both versions, the first run is FALSE.
+ * 
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class MappedMaskPersistenceImpl extends MaskPersistenceImpl {
+	
+	/** The Constant MASK_FILE_EXTENSION. */
+	private final static String MASK_FILE_EXTENSION = ".segz3";
+	
+	/** The Constant MAGIC. */
+	private final static int MAGIC = 0x53454733;
+	
+	/** The Constant CURRENT_FILE_VERSION. */
+	private final static int CURRENT_FILE_VERSION = 2;
+	
+	/** The Constant CODEC_RLE : var int run lengths. */
+	public final static int CODEC_RLE = 0;
+	
+	/** The Constant CODEC_DEFLATE : var int run lengths, compressed with deflate. */
+	public final static int CODEC_DEFLATE = 1;
+	
+	/** The Constant HEADER_SIZE. */
+	private final static int HEADER_SIZE = 6 * 4;
+	
+	/** The Constant TABLE_ENTRY_SIZE. */
+	private final static int TABLE_ENTRY_SIZE = 8 + 8 + 4;
+	
+	/** The Constant CHARSET. */
+	private final static Charset CHARSET = Charset.forName("UTF-8");
+	
+	/**
+	 * Lazily decodes the pixels of a mask from the mapped file.
+	 * 
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	private static class MappedMaskDataLoader implements MaskDataLoader {
+		
+		/** The data. */
+		private final ByteBuffer data;
+		
+		/** The file version. */
+		private final int version;
+		
+		/** The storage. */
+		private final int storage;
+
+		/**
+		 * Instantiates a new mapped mask data loader.
+		 * 
+		 * @param data
+		 *            the data
+		 * @param version
+		 *            the file version
+		 * @param storage
+		 *            the storage
+		 */
+		public MappedMaskDataLoader(ByteBuffer data, int version, int storage) {
+			super();
+			this.data = data;
+			this.version = version;
+			this.storage = storage;
+		}
+		
+		/**
+		 * Gets the run lengths stream.
+		 * 
+		 * @return the runs
+		 * @throws MaskException
+		 *             the mask exception
+		 */
+		private ByteBuffer getRuns() throws MaskException {
+			ByteBuffer bb = data.duplicate();
+			if (version < 2) {
+				int nbRuns = bb.getInt();
+				bb.limit(bb.position() + 4 * nbRuns);
+				return bb.slice();
+			}
+			
+			int codec = bb.get();
+			int length = bb.getInt();
+			switch (codec) {
+			case CODEC_RLE:
+				bb.limit(bb.position() + length);
+				return bb.slice();
+			case CODEC_DEFLATE:
+				byte[] compressed = new byte[bb.remaining()];
+				bb.get(compressed);
+				byte[] runs = new byte[length];
+				Inflater inflater = new Inflater();
+				try {
+					inflater.setInput(compressed);
+					int done = 0;
+					while ((done < length) && !inflater.finished()) {
+						int n = inflater.inflate(runs, done, length - done);
+						if ((n == 0) && inflater.needsInput()) {
+							break;
+						}
+						done += n;
+					}
+					if (done != length) {
+						throw new MaskException("Corrupted mask data (" + done + " bytes inflated / " + length + ")");
+					}
+				} catch (DataFormatException e) {
+					throw new MaskException(e);
+				} finally {
+					inflater.end();
+				}
+				return ByteBuffer.wrap(runs);
+			default:
+				throw new MaskException("Unknown mask data codec : " + codec);
+			}
+		}
+		
+		/**
+		 * Next run.
+		 * 
+		 * @param bb
+		 *            the bb
+		 * @return the run length
+		 * @throws MaskException
+		 *             the mask exception
+		 */
+		private int nextRun(ByteBuffer bb) throws MaskException {
+			if (version < 2) {
+				return bb.getInt();
+			}
+			try {
+				return RunLengthCodec.getVarInt(bb);
+			} catch (IOException e) {
+				throw new MaskException(e);
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.image.mask.MaskDataLoader#load(plugins.nherve.toolbox.image.mask.Mask)
+		 */
+		@Override
+		public void load(Mask m) throws MaskException {
+			ByteBuffer bb = getRuns();
+			final int w = m.getWidth();
+			final int h = m.getHeight();
+			
+			switch (storage) {
+			case Mask.STORAGE_PACKED:
+				BitPackedBinaryData packed = new BitPackedBinaryData(w, h);
+				decodeRuns(bb, w, h, packed, null);
+				m.setPackedData(packed);
+				break;
+			case Mask.STORAGE_TILED:
+				TiledBinaryData tiled = new TiledBinaryData(w, h);
+				decodeRuns(bb, w, h, null, tiled);
+				tiled.compact();
+				m.setTiledData(tiled);
+				break;
+			default:
+				BinaryIcyBufferedImage bin = new BinaryIcyBufferedImage(w, h);
+				byte[] raw = bin.getRawData();
+				final int sz = w * h;
+				int idx = 0;
+				boolean current = false;
+				while (bb.hasRemaining()) {
+					int count = nextRun(bb);
+					checkRun(idx, count, sz);
+					if (current) {
+						Arrays.fill(raw, idx, idx + count, BinaryIcyBufferedImage.TRUE);
+					}
+					idx += count;
+					current = !current;
+				}
+				m.setBinaryData(bin);
+				break;
+			}
+		}
+
+		/**
+		 * Decodes the runs in a packed or tiled storage.
+		 * 
+		 * @param bb
+		 *            the bb
+		 * @param w
+		 *            the w
+		 * @param h
+		 *            the h
+		 * @param packed
+		 *            the packed
+		 * @param tiled
+		 *            the tiled
+		 * @throws MaskException
+		 *             the mask exception
+		 */
+		private void decodeRuns(ByteBuffer bb, int w, int h, BitPackedBinaryData packed, TiledBinaryData tiled) throws MaskException {
+			final int sz = w * h;
+			int idx = 0;
+			boolean current = false;
+			while (bb.hasRemaining()) {
+				int count = nextRun(bb);
+				checkRun(idx, count, sz);
+				if (current) {
+					int end = idx + count;
+					int y = idx / w;
+					int x = idx - y * w;
+					while (idx < end) {
+						int x2 = Math.min(w, x + end - idx);
+						if (packed != null) {
+							packed.setRow(y, x, x2, true);
+						} else {
+							tiled.setRow(y, x, x2, true);
+						}
+						idx += x2 - x;
+						x = 0;
+						y++;
+					}
+				} else {
+					idx += count;
+				}
+				current = !current;
+			}
+		}
+
+		/**
+		 * Check run.
+		 * 
+		 * @param idx
+		 *            the idx
+		 * @param count
+		 *            the count
+		 * @param sz
+		 *            the sz
+		 * @throws MaskException
+		 *             the mask exception
+		 */
+		private void checkRun(int idx, int count, int sz) throws MaskException {
+			if ((count < 0) || (idx + count > sz)) {
+				throw new MaskException("Corrupted mask data (run of " + count + " at " + idx + " / " + sz + ")");
+			}
+		}
+	}
+	
+	/**
+	 * Encodes one mask.
+	 * 
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	private class EncodingWorker implements Callable<Integer> {
+		
+		/** The mask. */
+		private final Mask mask;
+		
+		/** The blocks. */
+		private final ByteBuffer[] blocks;
+		
+		/** The index of the record block, the data block follows. */
+		private final int idx;
+
+		/**
+		 * Instantiates a new encoding worker.
+		 * 
+		 * @param mask
+		 *            the mask
+		 * @param blocks
+		 *            the blocks
+		 * @param idx
+		 *            the idx
+		 */
+		public EncodingWorker(Mask mask, ByteBuffer[] blocks, int idx) {
+			super();
+			this.mask = mask;
+			this.blocks = blocks;
+			this.idx = idx;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.Callable#call()
+		 */
+		@Override
+		public Integer call() throws Exception {
+			blocks[idx] = encodeRecord(mask);
+			blocks[idx + 1] = encodeData(mask);
+			return 0;
+		}
+	}
+	
+	/**
+	 * Decodes one mask.
+	 * 
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	private static class DecodingWorker implements Callable<Integer> {
+		
+		/** The mask. */
+		private final Mask mask;
+		
+		/** The loader. */
+		private final MaskDataLoader loader;
+
+		/**
+		 * Instantiates a new decoding worker.
+		 * 
+		 * @param mask
+		 *            the mask
+		 * @param loader
+		 *            the loader
+		 */
+		public DecodingWorker(Mask mask, MaskDataLoader loader) {
+			super();
+			this.mask = mask;
+			this.loader = loader;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.Callable#call()
+		 */
+		@Override
+		public Integer call() throws Exception {
+			loader.load(mask);
+			mask.clearDirty();
+			return 0;
+		}
+	}
+	
+	/** The storage used for the decoded masks. */
+	private int decodingStorage;
+	
+	/** The codec used for the mask data. */
+	private int blockCodec;
+	
+	/** The lazy loading. */
+	private boolean lazyLoading;
+	
+	/** The task manager, null to encode and decode on the calling thread. */
+	private TaskManager tm;
+
+	/**
+	 * Instantiates a new mapped mask persistence impl.
+	 */
+	public MappedMaskPersistenceImpl() {
+		super();
+		decodingStorage = Mask.STORAGE_BYTE;
+		blockCodec = CODEC_RLE;
+		lazyLoading = true;
+		tm = TaskManager.getSecondLevelInstance();
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.mask.MaskPersistenceImpl#getMaskFileExtension()
+	 */
+	@Override
+	public String getMaskFileExtension() {
+		return MASK_FILE_EXTENSION;
+	}
+
+	/**
+	 * Gets the storage used for the decoded masks.
+	 * 
+	 * @return the decoding storage
+	 */
+	public int getDecodingStorage() {
+		return decodingStorage;
+	}
+
+	/**
+	 * Sets the storage used for the decoded masks (Mask.STORAGE_BYTE,
+	 * Mask.STORAGE_PACKED or Mask.STORAGE_TILED).
+	 * 
+	 * @param decodingStorage
+	 *            the new decoding storage
+	 */
+	public void setDecodingStorage(int decodingStorage) {
+		this.decodingStorage = decodingStorage;
+	}
+
+	/**
+	 * Gets the codec used for the mask data.
+	 * 
+	 * @return the block codec
+	 */
+	public int getBlockCodec() {
+		return blockCodec;
+	}
+
+	/**
+	 * Sets the codec used for the mask data (CODEC_RLE or CODEC_DEFLATE).
+	 * 
+	 * @param blockCodec
+	 *            the new block codec
+	 */
+	public void setBlockCodec(int blockCodec) {
+		this.blockCodec = blockCodec;
+	}
+
+	/**
+	 * Checks if the masks are decoded on first access.
+	 * 
+	 * @return true, if is lazy loading
+	 */
+	public boolean isLazyLoading() {
+		return lazyLoading;
+	}
+
+	/**
+	 * Sets the lazy loading. When disabled, all the masks are decoded in
+	 * parallel as soon as the stack is loaded.
+	 * 
+	 * @param lazyLoading
+	 *            the new lazy loading
+	 */
+	public void setLazyLoading(boolean lazyLoading) {
+		this.lazyLoading = lazyLoading;
+	}
+
+	/**
+	 * Sets the task manager.
+	 * 
+	 * @param tm
+	 *            the new task manager, null to work on the calling thread
+	 */
+	public void setTm(TaskManager tm) {
+		this.tm = tm;
+	}
+	
+	/**
+	 * Encodes the pixels of a mask.
+	 * 
+	 * @param m
+	 *            the m
+	 * @return the byte buffer, ready to be written
+	 */
+	private ByteBuffer encodeData(Mask m) {
+		ByteBuffer runs = RunLengthCodec.encode(m.getRawDataView());
+		final int length = runs.remaining();
+		
+		if (blockCodec == CODEC_DEFLATE) {
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try {
+				deflater.setInput(runs.array(), 0, length);
+				deflater.finish();
+				byte[] out = new byte[Math.max(64, length / 2)];
+				int done = 0;
+				while (!deflater.finished()) {
+					if (done == out.length) {
+						out = Arrays.copyOf(out, out.length * 2);
+					}
+					done += deflater.deflate(out, done, out.length - done);
+				}
+				ByteBuffer bb = ByteBuffer.allocate(1 + 4 + done);
+				bb.put((byte) CODEC_DEFLATE);
+				bb.putInt(length);
+				bb.put(out, 0, done);
+				bb.flip();
+				return bb;
+			} finally {
+				deflater.end();
+			}
+		}
+		
+		ByteBuffer bb = ByteBuffer.allocate(1 + 4 + length);
+		bb.put((byte) CODEC_RLE);
+		bb.putInt(length);
+		bb.put(runs);
+		bb.flip();
+		return bb;
+	}
+	
+	/**
+	 * Encodes the record (everything but the pixels) of a mask.
+	 * 
+	 * @param m
+	 *            the m
+	 * @return the byte buffer, ready to be written
+	 */
+	static ByteBuffer encodeRecord(Mask m) {
+		List<byte[]> strings = new ArrayList<byte[]>();
+		strings.add(m.getLabel() == null ? new byte[0] : m.getLabel().getBytes(CHARSET));
+		for (String tag : m) {
+			strings.add(tag.getBytes(CHARSET));
+		}
+		int sz = 4 + 4 + 1 + 1 + 3 * 4 + 4;
+		for (byte[] str : strings) {
+			sz += 4 + str.length;
+		}
+		
+		ByteBuffer bb = ByteBuffer.allocate(sz);
+		bb.putInt(m.getId());
+		bb.putFloat(m.getOpacity());
+		bb.put((byte) (m.isNeedAutomaticLabel() ? 1 : 0));
+		bb.put((byte) (m.isVisibleLayer() ? 1 : 0));
+		putString(bb, strings.get(0));
+		bb.putInt(m.getColor().getRed());
+		bb.putInt(m.getColor().getGreen());
+		bb.putInt(m.getColor().getBlue());
+		bb.putInt(strings.size() - 1);
+		for (int i = 1; i < strings.size(); i++) {
+			putString(bb, strings.get(i));
+		}
+		bb.flip();
+		return bb;
+	}
+	
+	/**
+	 * Put string.
+	 * 
+	 * @param bb
+	 *            the bb
+	 * @param str
+	 *            the str
+	 */
+	private static void putString(ByteBuffer bb, byte[] str) {
+		bb.putInt(str.length);
+		bb.put(str);
+	}
+	
+	/**
+	 * Gets the string.
+	 * 
+	 * @param bb
+	 *            the bb
+	 * @return the string
+	 */
+	private static String getString(ByteBuffer bb) {
+		byte[] str = new byte[bb.getInt()];
+		bb.get(str);
+		return new String(str, CHARSET);
+	}
+	
+	/**
+	 * Decodes the record (everything but the pixels) of a mask. The tags of
+	 * the mask are replaced.
+	 * 
+	 * @param record
+	 *            the record
+	 * @param m
+	 *            the m
+	 */
+	static void decodeRecord(ByteBuffer record, Mask m) {
+		m.setId(record.getInt());
+		m.setOpacity(record.getFloat());
+		m.setNeedAutomaticLabel(record.get() != 0);
+		m.setVisibleLayer(record.get() != 0);
+		m.setLabel(getString(record));
+		m.setColor(new Color(record.getInt(), record.getInt(), record.getInt()));
+		m.clearTags();
+		int nbTags = record.getInt();
+		for (int t = 0; t < nbTags; t++) {
+			m.addTag(getString(record));
+		}
+	}
+	
+	/**
+	 * Write fully.
+	 * 
+	 * @param fc
+	 *            the fc
+	 * @param bb
+	 *            the bb
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void writeFully(FileChannel fc, ByteBuffer[] bb) throws IOException {
+		long remaining = 0;
+		for (ByteBuffer b : bb) {
+			remaining += b.remaining();
+		}
+		while (remaining > 0) {
+			remaining -= fc.write(bb);
+		}
+	}
+	
+	/**
+	 * Runs the workers, on the task manager if available.
+	 * 
+	 * @param workers
+	 *            the workers
+	 * @param message
+	 *            the message
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void runAll(List<Callable<Integer>> workers, String message) throws IOException {
+		try {
+			if (tm == null) {
+				for (Callable<Integer> w : workers) {
+					w.call();
+				}
+			} else {
+				List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+				for (Callable<Integer> w : workers) {
+					results.add(tm.submit(w));
+				}
+				tm.waitResults(results, message, 0);
+			}
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.mask.MaskPersistenceImpl#dumpMaskStack(java.nio.channels.FileChannel, plugins.nherve.toolbox.image.mask.MaskStack)
+	 */
+	@Override
+	protected void dumpMaskStack(FileChannel fc, MaskStack stack) throws IOException {
+		final int n = stack.size();
+		
+		// block 0 is the header, then record and data blocks for each mask
+		ByteBuffer[] blocks = new ByteBuffer[1 + 2 * n];
+		List<Callable<Integer>> workers = new ArrayList<Callable<Integer>>();
+		int i = 0;
+		for (Mask m : stack) {
+			workers.add(new EncodingWorker(m, blocks, 1 + 2 * i));
+			i++;
+		}
+		runAll(workers, "Masks encoding");
+		
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + n * TABLE_ENTRY_SIZE);
+		header.putInt(MAGIC);
+		header.putInt(CURRENT_FILE_VERSION);
+		header.putInt(stack.getHeight());
+		header.putInt(stack.getWidth());
+		header.putInt(stack.getActiveIndex());
+		header.putInt(n);
+		long offset = header.capacity();
+		for (i = 0; i < n; i++) {
+			ByteBuffer record = blocks[1 + 2 * i];
+			ByteBuffer data = blocks[2 + 2 * i];
+			header.putLong(offset);
+			offset += record.remaining();
+			header.putLong(offset);
+			header.putInt(data.remaining());
+			offset += data.remaining();
+		}
+		header.flip();
+		blocks[0] = header;
+		
+		fc.truncate(0);
+		writeFully(fc, blocks);
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.mask.MaskPersistenceImpl#loadMaskStack(java.nio.channels.FileChannel)
+	 */
+	@Override
+	protected MaskStack loadMaskStack(FileChannel fc) throws IOException {
+		final long size = fc.size();
+		if (size < HEADER_SIZE) {
+			throw new IOException("Not a " + MASK_FILE_EXTENSION + " file");
+		}
+		MappedByteBuffer map = fc.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+		
+		if (map.getInt() != MAGIC) {
+			throw new IOException("Not a " + MASK_FILE_EXTENSION + " file");
+		}
+		int v = map.getInt();
+		if (v > CURRENT_FILE_VERSION) {
+			throw new IOException("Unsupported " + MASK_FILE_EXTENSION + " file version : " + v);
+		}
+		int h = map.getInt();
+		int w = map.getInt();
+		MaskStack res = new MaskStack(w, h);
+		int active = map.getInt();
+		int n = map.getInt();
+		if ((n < 0) || (HEADER_SIZE + (long) n * TABLE_ENTRY_SIZE > size)) {
+			throw new IOException("Corrupted " + MASK_FILE_EXTENSION + " file (" + n + " masks)");
+		}
+		MappedByteBuffer table = fc.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, (long) n * TABLE_ENTRY_SIZE);
+		
+		List<Callable<Integer>> workers = new ArrayList<Callable<Integer>>();
+		for (int i = 0; i < n; i++) {
+			long recordOffset = table.getLong();
+			long dataOffset = table.getLong();
+			int dataLength = table.getInt();
+			if ((recordOffset < HEADER_SIZE) || (dataOffset < recordOffset) || (dataLength < 0) || (dataOffset - recordOffset > Integer.MAX_VALUE - dataLength) || (dataOffset + dataLength > size)) {
+				throw new IOException("Corrupted " + MASK_FILE_EXTENSION + " file (mask " + i + ")");
+			}
+			
+			MappedByteBuffer window = fc.map(FileChannel.MapMode.READ_ONLY, recordOffset, dataOffset - recordOffset + dataLength);
+			ByteBuffer record = window.duplicate();
+			record.limit((int) (dataOffset - recordOffset));
+			
+			ByteBuffer pixels = window.duplicate();
+			pixels.position((int) (dataOffset - recordOffset));
+			
+			MaskDataLoader loader = new MappedMaskDataLoader(pixels.slice(), v, decodingStorage);
+			Mask m = new Mask(w, h, loader);
+			if (!lazyLoading) {
+				workers.add(new DecodingWorker(m, loader));
+			}
+			decodeRecord(record, m);
+			res.add(m);
+		}
+		res.setActiveIndex(active);
+		
+		if (!workers.isEmpty()) {
+			runAll(workers, "Masks decoding");
+		}
+		
+		return res;
+	}
+}
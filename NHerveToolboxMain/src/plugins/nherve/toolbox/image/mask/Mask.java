@@ -21,6 +21,7 @@ package plugins.nherve.toolbox.image.mask;
 import icy.image.IcyBufferedImage;
 import icy.roi.ROI2D;
 import icy.roi.ROI2DArea;
+import icy.roi.ROI2DShape;
 import icy.sequence.Sequence;
 
 import java.awt.AlphaComposite;
@@ -34,15 +35,23 @@ import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
 
-import plugins.nherve.toolbox.Algorithm;
 import plugins.nherve.toolbox.image.BinaryIcyBufferedImage;
+import plugins.nherve.toolbox.image.BitPackedBinaryData;
+import plugins.nherve.toolbox.image.TiledBinaryData;
 import plugins.nherve.toolbox.image.feature.region.IcyPixel;
+import plugins.nherve.toolbox.image.toolboxes.BinaryMorphology;
+import plugins.nherve.toolbox.image.toolboxes.ColorChannelCache;
 import plugins.nherve.toolbox.image.toolboxes.ColorSpaceTools;
+import plugins.nherve.toolbox.image.toolboxes.DistanceTransform;
+import plugins.nherve.toolbox.image.toolboxes.IntegralImage;
 import plugins.nherve.toolbox.image.toolboxes.MorphologyToolbox;
+import plugins.nherve.toolbox.image.toolboxes.ShapeRasterizer;
+import plugins.nherve.toolbox.image.toolboxes.StructuringElement;
 
 
 
@@ -57,6 +66,15 @@ public class Mask implements Serializable, Iterable<String> {
 	/** The Constant serialVersionUID. */
 	private static final long serialVersionUID = -8351680455776644549L;
 	
+	/** The Constant STORAGE_BYTE : one byte per pixel, in a BinaryIcyBufferedImage. */
+	public final static int STORAGE_BYTE = 0;
+	
+	/** The Constant STORAGE_PACKED : one bit per pixel. */
+	public final static int STORAGE_PACKED = 1;
+	
+	/** The Constant STORAGE_TILED : sparse tiles, empty and full tiles are not allocated. */
+	public final static int STORAGE_TILED = 2;
+	
 	/**
 	 * Gets the surface.
 	 * 
@@ -90,6 +108,24 @@ public class Mask implements Serializable, Iterable<String> {
 	/** The binary data. */
 	private BinaryIcyBufferedImage binaryData;
 	
+	/** The bit packed binary data, used instead of binaryData when the mask is packed. */
+	private BitPackedBinaryData packedData;
+	
+	/** The tiled binary data, used instead of binaryData when the mask is tiled. */
+	private TiledBinaryData tiledData;
+	
+	/** The loader, used to lazily load the binary data on first access, null once loaded. */
+	private transient volatile MaskDataLoader loader;
+	
+	/** The loader is running, on the thread holding the lock of the mask. */
+	private transient boolean loading;
+	
+	/** The tiles modified since the last call to clearDirty(). */
+	private transient BitSet dirtyTiles;
+	
+	/** The whole mask has been modified since the last call to clearDirty(). */
+	private transient boolean allDirty;
+	
 	/** The color. */
 	private Color color;
 	
@@ -127,6 +163,7 @@ public class Mask implements Serializable, Iterable<String> {
 		setOpacity(1.0f);
 		setNeedAutomaticLabel(false);
 		tags = new HashSet<String>();
+		allDirty = true;
 		forceRedraw();
 	}
 
@@ -176,10 +213,61 @@ public class Mask implements Serializable, Iterable<String> {
 		this.label = label;
 	}
 	
+	/**
+	 * Instantiates a new bit packed mask.
+	 * 
+	 * @param data
+	 *            the bit packed binary data
+	 */
+	public Mask(BitPackedBinaryData data) {
+		this();
+		this.width = data.getWidth();
+		this.height = data.getHeight();
+		setPackedData(data);
+	}
+	
+	/**
+	 * Instantiates a new tiled mask.
+	 * 
+	 * @param data
+	 *            the tiled binary data
+	 */
+	public Mask(TiledBinaryData data) {
+		this();
+		this.width = data.getWidth();
+		this.height = data.getHeight();
+		setTiledData(data);
+	}
+	
+	/**
+	 * Instantiates a new mask whose binary data will be loaded on first
+	 * access.
+	 * 
+	 * @param width
+	 *            the width
+	 * @param height
+	 *            the height
+	 * @param loader
+	 *            the loader
+	 */
+	public Mask(int width, int height, MaskDataLoader loader) {
+		this();
+		this.width = width;
+		this.height = height;
+		this.loader = loader;
+		this.allDirty = false;
+	}
+	
 	public static Mask copy(Mask m) throws MaskException {
+		if (m.isPacked()) {
+			return new Mask(m.getPackedData().getCopy());
+		}
+		if (m.isTiled()) {
+			return new Mask(m.getTiledData().getCopy());
+		}
 		Mask r = new Mask(m.getWidth(), m.getHeight());
 		if (m.hasBinaryData()) {
-			r.setBinaryData(m.getBinaryData().getCopy());
+			r.setBinaryData(m.getBinaryDataView().getCopy());
 		} else {
 			throw new MaskException("No internal mask representation available for " + m);
 		}
@@ -196,7 +284,8 @@ public class Mask implements Serializable, Iterable<String> {
 	 */
 	public void add(Area rhs) throws MaskException {
 		if (hasBinaryData()) {
-			manageArea(rhs, BinaryIcyBufferedImage.TRUE);
+			manageArea(rhs, true);
+			setDirty(rhs.getBounds());
 		} else {
 			throw new MaskException("No internal mask representation available");
 		}
@@ -213,7 +302,22 @@ public class Mask implements Serializable, Iterable<String> {
 	 */
 	public void add(Mask m) throws MaskException {
 		if (hasBinaryData() && m.hasBinaryData()) {
-			binaryData.add(m.getBinaryData());
+			if (isPacked() && m.isPacked()) {
+				packedData.add(m.packedData);
+			} else if (isTiled() && m.isTiled()) {
+				tiledData.add(m.tiledData);
+			} else if (isPacked()) {
+				packedData.add(m.getRawDataView());
+			} else if (isTiled()) {
+				tiledData.add(m.getRawDataView());
+			} else if (m.isPacked()) {
+				m.packedData.addInto(rawBinaryData);
+			} else if (m.isTiled()) {
+				m.tiledData.addInto(rawBinaryData);
+			} else {
+				binaryData.add(m.getBinaryDataView());
+			}
+			setDirty();
 		} else {
 			throw new MaskException("No internal mask representation available");
 		}
@@ -222,7 +326,8 @@ public class Mask implements Serializable, Iterable<String> {
 
 	public void add(ROI2D roi) throws MaskException {
 		if (hasBinaryData()) {
-			manageROI(roi, BinaryIcyBufferedImage.TRUE);
+			manageROI(roi, true);
+			setDirty(roi.getBounds());
 		} else {
 			throw new MaskException("No internal mask representation available");
 		}
@@ -248,7 +353,7 @@ public class Mask implements Serializable, Iterable<String> {
 	 * @return the rO i2 d area
 	 */
 	public ROI2DArea asROI2DArea(Sequence seq) {
-		return binaryData.asROI2DArea(seq);
+		return getBinaryDataView().asROI2DArea(seq);
 	}
 
 	/**
@@ -268,6 +373,12 @@ public class Mask implements Serializable, Iterable<String> {
 	 * @return true, if successful
 	 */
 	public boolean contains(int x, int y) {
+		if (isPacked()) {
+			return packedData.contains(x, y);
+		}
+		if (isTiled()) {
+			return tiledData.contains(x, y);
+		}
 		return binaryData.contains(x, y);
 	}
 
@@ -279,7 +390,7 @@ public class Mask implements Serializable, Iterable<String> {
 	 * @return true, if successful
 	 */
 	public boolean contains(IcyPixel px) {
-		return binaryData.contains(px);
+		return contains((int) px.x, (int) px.y);
 	}
 
 	/**
@@ -335,27 +446,162 @@ public class Mask implements Serializable, Iterable<String> {
 	 *             the mask exception
 	 */
 	public void dilate() throws MaskException {
-		if (hasBinaryData()) {
-			binaryData.dilate();
-			forceRedraw();
-		} else {
+		dilate(StructuringElement.STD_ELEM);
+	}
+	
+	/**
+	 * Dilate with a structuring element. The storage of the mask is kept.
+	 * 
+	 * @param se
+	 *            the structuring element
+	 * @throws MaskException
+	 *             the mask exception
+	 */
+	public void dilate(StructuringElement se) throws MaskException {
+		replaceData(BinaryMorphology.dilate(getPackedView(), se));
+	}
+	
+	/**
+	 * Erode with a structuring element. The storage of the mask is kept.
+	 * 
+	 * @param se
+	 *            the structuring element
+	 * @throws MaskException
+	 *             the mask exception
+	 */
+	public void erode(StructuringElement se) throws MaskException {
+		replaceData(BinaryMorphology.erode(getPackedView(), se));
+	}
+	
+	/**
+	 * Opening with a structuring element. The storage of the mask is kept.
+	 * 
+	 * @param se
+	 *            the structuring element
+	 * @throws MaskException
+	 *             the mask exception
+	 */
+	public void open(StructuringElement se) throws MaskException {
+		replaceData(BinaryMorphology.open(getPackedView(), se));
+	}
+	
+	/**
+	 * Closing with a structuring element. The storage of the mask is kept.
+	 * 
+	 * @param se
+	 *            the structuring element
+	 * @throws MaskException
+	 *             the mask exception
+	 */
+	public void close(StructuringElement se) throws MaskException {
+		replaceData(BinaryMorphology.close(getPackedView(), se));
+	}
+	
+	/**
+	 * Dilate by a disk, with a cost independent of the radius (see
+	 * DistanceTransform). The storage of the mask is kept.
+	 * 
+	 * @param radius
+	 *            the radius
+	 * @throws MaskException
+	 *             the mask exception
+	 */
+	public void dilate(double radius) throws MaskException {
+		if (!hasBinaryData()) {
 			throw new MaskException("No internal mask representation available");
 		}
+		byte[] raw = getRawDataView();
+		DistanceTransform.dilate(raw, width, height, radius, raw);
+		replaceData(raw);
 	}
 	
 	/**
-	 * Erode.
+	 * Erode by a disk, with a cost independent of the radius (see
+	 * DistanceTransform). The storage of the mask is kept.
 	 * 
+	 * @param radius
+	 *            the radius
 	 * @throws MaskException
 	 *             the mask exception
 	 */
-	public void erode() throws MaskException {
+	public void erode(double radius) throws MaskException {
+		if (!hasBinaryData()) {
+			throw new MaskException("No internal mask representation available");
+		}
+		byte[] raw = getRawDataView();
+		DistanceTransform.erode(raw, width, height, radius, raw);
+		replaceData(raw);
+	}
+	
+	/**
+	 * Gets the binary data as bit packed data, without changing the storage.
+	 * 
+	 * @return the packed view
+	 * @throws MaskException
+	 *             the mask exception
+	 */
+	private BitPackedBinaryData getPackedView() throws MaskException {
+		if (isPacked()) {
+			return packedData;
+		}
+		if (isTiled()) {
+			return BitPackedBinaryData.pack(tiledData.unpack());
+		}
 		if (hasBinaryData()) {
-			binaryData.erode();
-			forceRedraw();
+			return BitPackedBinaryData.pack(binaryData);
+		}
+		throw new MaskException("No internal mask representation available");
+	}
+	
+	/**
+	 * Replaces the binary data with the result of a packed operation,
+	 * keeping the current storage.
+	 * 
+	 * @param result
+	 *            the result
+	 */
+	private void replaceData(BitPackedBinaryData result) {
+		if (isPacked()) {
+			storePackedData(result);
+		} else if (isTiled()) {
+			storeTiledData(TiledBinaryData.pack(result.unpack()));
 		} else {
-			throw new MaskException("No internal mask representation available");
+			result.unpackInto(rawBinaryData);
+			binaryData.dataChanged();
 		}
+		setDirty();
+		forceRedraw();
+	}
+	
+	/**
+	 * Replaces the binary data with raw data computed from getRawDataView(),
+	 * keeping the current storage.
+	 * 
+	 * @param raw
+	 *            the raw
+	 */
+	private void replaceData(byte[] raw) {
+		if (isPacked()) {
+			storePackedData(BitPackedBinaryData.pack(raw, width, height));
+		} else if (isTiled()) {
+			TiledBinaryData tiled = new TiledBinaryData(width, height);
+			tiled.add(raw);
+			storeTiledData(tiled);
+		} else {
+			binaryData.dataChanged();
+		}
+		setDirty();
+		forceRedraw();
+	}
+	
+	/**
+	 * Erode.
+	 * 
+	 * @throws MaskException
+	 *             the mask exception
+	 */
+	public void erode() throws MaskException {
+		erode(StructuringElement.STD_ELEM);
 	}
 
 	private void fillCache(Color c, BufferedImage localCache) {
@@ -366,11 +612,10 @@ public class Mask implements Serializable, Iterable<String> {
 		int[] localCacheData = ((DataBufferInt) localCache.getRaster().getDataBuffer()).getData();
 		Arrays.fill(localCacheData, 0);
 		
-		if (hasBinaryData()) {
-			BinaryIcyBufferedImage bin = binaryData;
-			if (drawOnlyContours) {
-				bin = MorphologyToolbox.computeBorder(binaryData);
-			}
+		if (!drawOnlyContours) {
+			paintInto(localCacheData, rgb);
+		} else if (hasBinaryData()) {
+			BinaryIcyBufferedImage bin = MorphologyToolbox.computeBorder(getBinaryDataView());
 
 			final int limit = localCacheData.length;
 			final byte[] data = bin.getRawData();
@@ -393,12 +638,25 @@ public class Mask implements Serializable, Iterable<String> {
 	 *             the mask exception
 	 */
 	public void fillHole(int x, int y) throws MaskException {
+		fillHole(x, y, false);
+	}
+
+	/**
+	 * Fill hole.
+	 * 
+	 * @param x
+	 *            the x
+	 * @param y
+	 *            the y
+	 * @param eightConnected
+	 *            the connectivity
+	 * @throws MaskException
+	 *             the mask exception
+	 */
+	public void fillHole(int x, int y, boolean eightConnected) throws MaskException {
 		if (hasBinaryData()) {
-			try {
-				binaryData.fillHole(x, y);
-			} catch (StackOverflowError e1) {
-				Algorithm.err(e1.getClass().getName() + " : hole is too big for me !");
-			}
+			getBinaryData().fillHole(x, y, eightConnected);
+			setDirty();
 			forceRedraw();
 		} else {
 			throw new MaskException("Operation only available");
@@ -412,8 +670,21 @@ public class Mask implements Serializable, Iterable<String> {
 	 *             the mask exception
 	 */
 	public void fillHoles() throws MaskException {
+		fillHoles(false);
+	}
+
+	/**
+	 * Fill holes.
+	 * 
+	 * @param eightConnected
+	 *            the connectivity of the background
+	 * @throws MaskException
+	 *             the mask exception
+	 */
+	public void fillHoles(boolean eightConnected) throws MaskException {
 		if (hasBinaryData()) {
-			binaryData.fillHoles();
+			getBinaryData().fillHoles(eightConnected);
+			setDirty();
 			forceRedraw();
 		} else {
 			throw new MaskException("No internal mask representation available");
@@ -421,6 +692,17 @@ public class Mask implements Serializable, Iterable<String> {
 	}
 	
 	public void fill(boolean value) {
+		setDirty();
+		if (isPacked()) {
+			packedData.fill(value);
+			forceRedraw();
+			return;
+		}
+		if (isTiled()) {
+			tiledData.fill(value);
+			forceRedraw();
+			return;
+		}
 		Arrays.fill(binaryData.getRawData(), value ? BinaryIcyBufferedImage.TRUE : BinaryIcyBufferedImage.FALSE);
 	}
 
@@ -434,7 +716,8 @@ public class Mask implements Serializable, Iterable<String> {
 	 */
 	public void filterSize(int size) throws MaskException {
 		if (hasBinaryData()) {
-			binaryData.filterSize(size);
+			getBinaryData().filterSize(size);
+			setDirty();
 			forceRedraw();
 		} else {
 			throw new MaskException("Operation only available");
@@ -466,7 +749,9 @@ public class Mask implements Serializable, Iterable<String> {
 	}
 
 	/**
-	 * Gets the average color.
+	 * Gets the average color. The color components are read from the
+	 * ColorChannelCache if a descriptor currently pins the image, otherwise
+	 * only the rows holding some pixels of the mask are converted.
 	 * 
 	 * @param img
 	 *            the img
@@ -474,41 +759,264 @@ public class Mask implements Serializable, Iterable<String> {
 	 *            the color space
 	 * @return the average color
 	 */
-	public double[] getAverageColor(IcyBufferedImage img, int colorSpace) {
-		double[] c = new double[ColorSpaceTools.NB_COLOR_CHANNELS];
+	public double[] getAverageColor(final IcyBufferedImage img, int colorSpace) {
+		final double[] c = new double[ColorSpaceTools.NB_COLOR_CHANNELS];
 		Arrays.fill(c, 0);
-		int i = 0;
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				if (rawBinaryData[i] == BinaryIcyBufferedImage.TRUE) {
-					double[] l = ColorSpaceTools.getColorComponentsD_0_255(img, colorSpace, x, y);
+		final ColorChannelCache.Entry cached = ColorChannelCache.getInstance().get(img, colorSpace);
+		final ColorSpaceTools.RowConverter rc = (cached == null) ? new ColorSpaceTools.RowConverter(colorSpace) : null;
+		final double[][] row = (cached == null) ? new double[ColorSpaceTools.NB_COLOR_CHANNELS][width] : null;
+		final long[] n = new long[1];
+		visitRuns(0, height, new ShapeRasterizer.SpanVisitor() {
+			private int converted = -1;
+
+			@Override
+			public void span(int y, int x1, int x2) {
+				if (cached != null) {
+					for (int x = x1; x < x2; x++) {
+						for (int d = 0; d < ColorSpaceTools.NB_COLOR_CHANNELS; d++) {
+							c[d] += cached.get(x, y, d);
+						}
+					}
+				} else {
+					if (converted != y) {
+						rc.convert(img, y, row);
+						converted = y;
+					}
 					for (int d = 0; d < ColorSpaceTools.NB_COLOR_CHANNELS; d++) {
-						c[d] += l[d];
+						final double[] rd = row[d];
+						for (int x = x1; x < x2; x++) {
+							c[d] += rd[x];
+						}
 					}
 				}
-				i++;
+				n[0] += x2 - x1;
 			}
-		}
-		double nrm = getSurface();
-		if (nrm == 0) {
+		});
+		if (n[0] == 0) {
 			// System.out.println("Empty mask : " + getLabel());
 		} else {
 			for (int d = 0; d < ColorSpaceTools.NB_COLOR_CHANNELS; d++) {
-				c[d] /= nrm;
+				c[d] /= n[0];
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * Gets the average color from an integral image of the color components
+	 * (see IntegralImage.getColorIntegralImage), computed once for all the
+	 * masks of an image. Only the runs of the mask are visited, their sums
+	 * are read from the integral image.
+	 * 
+	 * @param colors
+	 *            the integral image of the color components
+	 * @return the average color
+	 */
+	public double[] getAverageColor(final IntegralImage colors) {
+		final int nbc = colors.getNbChannels();
+		final double[] c = new double[nbc];
+		Arrays.fill(c, 0);
+		final long[] n = new long[1];
+		visitRuns(0, height, new ShapeRasterizer.SpanVisitor() {
+			@Override
+			public void span(int y, int x1, int x2) {
+				for (int d = 0; d < nbc; d++) {
+					c[d] += colors.getRowSum(d, y, x1, x2);
+				}
+				n[0] += x2 - x1;
+			}
+		});
+		if (n[0] != 0) {
+			for (int d = 0; d < nbc; d++) {
+				c[d] /= n[0];
 			}
 		}
 		return c;
 	}
 
 	/**
-	 * Gets the binary data.
+	 * Visits the runs of pixels of the mask on the rows [y1, y2[, row after
+	 * row and from left to right, whatever the storage. The packed and tiled
+	 * storages are read word by word and are not unpacked.
+	 * 
+	 * @param y1
+	 *            the first row
+	 * @param y2
+	 *            the last row, excluded
+	 * @param v
+	 *            the visitor
+	 */
+	public void visitRuns(int y1, int y2, ShapeRasterizer.SpanVisitor v) {
+		y1 = Math.max(y1, 0);
+		y2 = Math.min(y2, height);
+		if (isPacked()) {
+			final long[] words = packedData.getWords();
+			final int wpr = packedData.getWordsPerRow();
+			for (int y = y1; y < y2; y++) {
+				visitRowRuns(words, y * wpr, wpr, width, y, v);
+			}
+		} else if (isTiled()) {
+			final long[] row = new long[tiledData.getWordsPerRow()];
+			for (int y = y1; y < y2; y++) {
+				tiledData.getRow(y, row);
+				visitRowRuns(row, 0, row.length, width, y, v);
+			}
+		} else if (hasBinaryData()) {
+			for (int y = y1; y < y2; y++) {
+				final int i = y * width;
+				int x = 0;
+				while (x < width) {
+					if (rawBinaryData[i + x] != BinaryIcyBufferedImage.TRUE) {
+						x++;
+						continue;
+					}
+					int x1 = x;
+					while ((x < width) && (rawBinaryData[i + x] == BinaryIcyBufferedImage.TRUE)) {
+						x++;
+					}
+					v.span(y, x1, x);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Visits the runs of set bits of a row of packed words, the bits beyond
+	 * the width being ignored.
+	 * 
+	 * @param words
+	 *            the words
+	 * @param offset
+	 *            the offset of the row
+	 * @param nbWords
+	 *            the nb words of the row
+	 * @param width
+	 *            the width
+	 * @param y
+	 *            the row
+	 * @param v
+	 *            the visitor
+	 */
+	private static void visitRowRuns(long[] words, int offset, int nbWords, int width, int y, ShapeRasterizer.SpanVisitor v) {
+		int start = -1;
+		for (int k = 0; k < nbWords; k++) {
+			final int base = k << BitPackedBinaryData.WORD_SHIFT;
+			if (base >= width) {
+				break;
+			}
+			// looks for the next bit switching between outside and inside
+			long cur = (start < 0) ? words[offset + k] : ~words[offset + k];
+			int b = 0;
+			while (true) {
+				final long masked = cur & (-1L << b);
+				if (masked == 0) {
+					break;
+				}
+				b = Long.numberOfTrailingZeros(masked);
+				if (start < 0) {
+					if (base + b >= width) {
+						return;
+					}
+					start = base + b;
+				} else {
+					v.span(y, start, Math.min(base + b, width));
+					start = -1;
+				}
+				cur = ~cur;
+			}
+		}
+		if (start >= 0) {
+			v.span(y, start, width);
+		}
+	}
+
+	/**
+	 * Gets the binary data. If the mask is bit packed, it is first unpacked
+	 * and stays unpacked until the next call to pack(). As the returned data
+	 * may be modified directly, the whole mask is marked as modified : the
+	 * callers that only read it use getBinaryDataView().
 	 * 
 	 * @return the binary data
 	 */
 	public BinaryIcyBufferedImage getBinaryData() {
+		unpack();
+		setDirty();
 		return binaryData;
 	}
 
+	/**
+	 * Gets the binary data for reading, without changing the storage of the
+	 * mask nor marking it as modified. For packed or tiled masks, a temporary
+	 * image is returned and its modifications are not reflected in the mask.
+	 * 
+	 * @return the binary data
+	 */
+	public BinaryIcyBufferedImage getBinaryDataView() {
+		if (isPacked()) {
+			return packedData.unpack();
+		}
+		if (isTiled()) {
+			return tiledData.unpack();
+		}
+		return binaryData;
+	}
+	
+	/**
+	 * Gets the bit packed binary data.
+	 * 
+	 * @return the bit packed binary data, null if the mask is not packed
+	 */
+	public BitPackedBinaryData getPackedData() {
+		load();
+		return packedData;
+	}
+	
+	/**
+	 * Gets the tiled binary data.
+	 * 
+	 * @return the tiled binary data, null if the mask is not tiled
+	 */
+	public TiledBinaryData getTiledData() {
+		load();
+		return tiledData;
+	}
+	
+	/**
+	 * Gets the raw data without changing the storage of the mask. For packed
+	 * or tiled masks, a temporary byte buffer is returned and its
+	 * modifications are not reflected in the mask.
+	 * 
+	 * @return the raw data
+	 */
+	public byte[] getRawDataView() {
+		if (isPacked()) {
+			byte[] raw = new byte[width * height];
+			packedData.unpackInto(raw);
+			return raw;
+		}
+		if (isTiled()) {
+			byte[] raw = new byte[width * height];
+			tiledData.unpackInto(raw);
+			return raw;
+		}
+		return rawBinaryData;
+	}
+	
+	/**
+	 * Gets the storage.
+	 * 
+	 * @return the storage (STORAGE_BYTE, STORAGE_PACKED or STORAGE_TILED)
+	 */
+	public int getStorage() {
+		if (isPacked()) {
+			return STORAGE_PACKED;
+		}
+		if (isTiled()) {
+			return STORAGE_TILED;
+		}
+		return STORAGE_BYTE;
+	}
+
 	/**
 	 * Gets the color.
 	 * 
@@ -569,7 +1077,13 @@ public class Mask implements Serializable, Iterable<String> {
 	 * @return the surface
 	 */
 	public int getSurface() {
-		return getSurface(getBinaryData());
+		if (isPacked()) {
+			return packedData.getSurface();
+		}
+		if (isTiled()) {
+			return tiledData.getSurface();
+		}
+		return getSurface(getBinaryDataView());
 	}
 
 	/**
@@ -587,7 +1101,126 @@ public class Mask implements Serializable, Iterable<String> {
 	 * @return true, if successful
 	 */
 	public boolean hasBinaryData() {
-		return (binaryData != null) && (rawBinaryData != null);
+		load();
+		return isPacked() || isTiled() || ((binaryData != null) && (rawBinaryData != null));
+	}
+	
+	/**
+	 * Checks if the mask uses the bit packed storage.
+	 * 
+	 * @return true, if is packed
+	 */
+	public boolean isPacked() {
+		load();
+		return packedData != null;
+	}
+	
+	/**
+	 * Checks if the binary data is available. It is not the case for masks
+	 * that are lazily loaded and have not been accessed yet.
+	 * 
+	 * @return true, if is loaded
+	 */
+	public boolean isLoaded() {
+		return loader == null;
+	}
+	
+	/**
+	 * Loads the binary data if needed.
+	 */
+	private void load() {
+		if (loader != null) {
+			loadNow();
+		}
+	}
+	
+	/**
+	 * Load now. The loader is released only once it has succeeded : the
+	 * other threads wait for it on the lock of the mask, and after a failure
+	 * the next access tries again and reports the error.
+	 */
+	private synchronized void loadNow() {
+		MaskDataLoader l = loader;
+		if ((l == null) || loading) {
+			return;
+		}
+		loading = true;
+		try {
+			l.load(this);
+			clearDirty();
+			loader = null;
+		} catch (MaskException e) {
+			throw new RuntimeException("Unable to load the binary data of " + this, e);
+		} finally {
+			loading = false;
+		}
+	}
+	
+	/**
+	 * Switches to the bit packed storage (one bit per pixel). The byte
+	 * representation is released.
+	 */
+	public void pack() {
+		if (isTiled()) {
+			unpack();
+		}
+		if (!isPacked() && (binaryData != null)) {
+			storePackedData(BitPackedBinaryData.pack(binaryData));
+		}
+	}
+	
+	/**
+	 * Checks if the mask uses the tiled storage.
+	 * 
+	 * @return true, if is tiled
+	 */
+	public boolean isTiled() {
+		load();
+		return tiledData != null;
+	}
+	
+	/**
+	 * Switches to the tiled storage. The byte representation is released.
+	 */
+	public void tile() {
+		if (isPacked()) {
+			unpack();
+		}
+		if (!isTiled() && (binaryData != null)) {
+			storeTiledData(TiledBinaryData.pack(binaryData));
+		}
+	}
+	
+	/**
+	 * Switches back to the byte storage (one byte per pixel).
+	 */
+	public void unpack() {
+		if (isPacked()) {
+			storeBinaryData(packedData.unpack());
+		} else if (isTiled()) {
+			storeBinaryData(tiledData.unpack());
+		}
+	}
+	
+	/**
+	 * Sets the storage.
+	 * 
+	 * @param storage
+	 *            the new storage (STORAGE_BYTE, STORAGE_PACKED or
+	 *            STORAGE_TILED)
+	 */
+	public void setStorage(int storage) {
+		switch (storage) {
+		case STORAGE_PACKED:
+			pack();
+			break;
+		case STORAGE_TILED:
+			tile();
+			break;
+		default:
+			unpack();
+			break;
+		}
 	}
 
 	/**
@@ -609,6 +1242,15 @@ public class Mask implements Serializable, Iterable<String> {
 	 */
 	public void invert() throws MaskException {
 		if (hasBinaryData()) {
+			setDirty();
+		}
+		if (isPacked()) {
+			packedData.invert();
+			forceRedraw();
+		} else if (isTiled()) {
+			tiledData.invert();
+			forceRedraw();
+		} else if (hasBinaryData()) {
 			binaryData.invert();
 			forceRedraw();
 		} else {
@@ -656,34 +1298,135 @@ public class Mask implements Serializable, Iterable<String> {
 	 * 
 	 * @param rhs
 	 *            the rhs
-	 * @param val
-	 *            the val
+	 * @param value
+	 *            the value
 	 */
-	private void manageArea(Area rhs, byte val) {
-		Rectangle r = rhs.getBounds();
-		int x1 = (int) Math.max(Math.floor(r.getMinX()), 0);
-		int x2 = (int) Math.min(x1 + Math.ceil(r.getWidth()), width);
-		int y1 = (int) Math.max(Math.floor(r.getMinY()), 0);
-		int y2 = (int) Math.min(y1 + Math.ceil(r.getHeight()), height);
-		for (int x = x1; x < x2; x++) {
-			for (int y = y1; y < y2; y++) {
-				if (rhs.contains(x, y)) {
-					rawBinaryData[x + width * y] = val;
-				}
+	private void manageArea(Area rhs, boolean value) {
+		manageShape(rhs, value);
+	}
+	
+	/**
+	 * Sets the pixels of a shape, rasterized by scanline straight into the
+	 * current storage. The byte storage is filled by parallel bands, the
+	 * packed and tiled ones span by span.
+	 * 
+	 * @param shp
+	 *            the shape
+	 * @param value
+	 *            the value
+	 */
+	private void manageShape(Shape shp, boolean value) {
+		ShapeRasterizer rasterizer = new ShapeRasterizer(shp);
+		if (isPacked() || isTiled()) {
+			rasterizer.visit(width, 0, height, getSpanWriter(value));
+			if (isTiled()) {
+				tiledData.compact();
 			}
+		} else {
+			rasterizer.fill(rawBinaryData, width, height, value ? BinaryIcyBufferedImage.TRUE : BinaryIcyBufferedImage.FALSE);
 		}
 	}
 	
-	private void manageROI(ROI2D roi, byte val) {
+	/**
+	 * Manage roi. Shape based ROIs are rasterized by scanline, the other ones
+	 * are tested pixel by pixel over their bounds. In both cases, the spans
+	 * are written in the current storage, which is never unpacked.
+	 * 
+	 * @param roi
+	 *            the roi
+	 * @param value
+	 *            the value
+	 */
+	private void manageROI(ROI2D roi, boolean value) {
+		if (roi instanceof ROI2DShape) {
+			manageShape(((ROI2DShape) roi).getShape(), value);
+			return;
+		}
+		ShapeRasterizer.SpanVisitor writer = getSpanWriter(value);
 		Rectangle r = roi.getBounds();
 		int x1 = (int) Math.max(Math.floor(r.getMinX()), 0);
 		int x2 = (int) Math.min(x1 + Math.ceil(r.getWidth()), width);
 		int y1 = (int) Math.max(Math.floor(r.getMinY()), 0);
 		int y2 = (int) Math.min(y1 + Math.ceil(r.getHeight()), height);
-		for (int x = x1; x < x2; x++) {
-			for (int y = y1; y < y2; y++) {
+		for (int y = y1; y < y2; y++) {
+			int start = -1;
+			for (int x = x1; x < x2; x++) {
 				if (roi.contains(x, y)) {
-					rawBinaryData[x + width * y] = val;
+					if (start < 0) {
+						start = x;
+					}
+				} else if (start >= 0) {
+					writer.span(y, start, x);
+					start = -1;
+				}
+			}
+			if (start >= 0) {
+				writer.span(y, start, x2);
+			}
+		}
+		if (isTiled()) {
+			tiledData.compact();
+		}
+	}
+	
+	/**
+	 * Gets a span visitor setting the pixels of the spans in the current
+	 * storage. With the tiled storage, compact() has to be called once all
+	 * the spans have been written.
+	 * 
+	 * @param value
+	 *            the value
+	 * @return the span writer
+	 */
+	private ShapeRasterizer.SpanVisitor getSpanWriter(final boolean value) {
+		if (isPacked()) {
+			final BitPackedBinaryData data = packedData;
+			return new ShapeRasterizer.SpanVisitor() {
+				@Override
+				public void span(int y, int x1, int x2) {
+					data.setRow(y, x1, x2, value);
+				}
+			};
+		}
+		if (isTiled()) {
+			final TiledBinaryData data = tiledData;
+			return new ShapeRasterizer.SpanVisitor() {
+				@Override
+				public void span(int y, int x1, int x2) {
+					data.setRow(y, x1, x2, value);
+				}
+			};
+		}
+		final byte[] raw = rawBinaryData;
+		final byte val = value ? BinaryIcyBufferedImage.TRUE : BinaryIcyBufferedImage.FALSE;
+		final int w = width;
+		return new ShapeRasterizer.SpanVisitor() {
+			@Override
+			public void span(int y, int x1, int x2) {
+				Arrays.fill(raw, y * w + x1, y * w + x2, val);
+			}
+		};
+	}
+	
+	/**
+	 * Sets a value, in an int buffer of the image size, for all the pixels of
+	 * this mask.
+	 * 
+	 * @param data
+	 *            the data
+	 * @param value
+	 *            the value
+	 */
+	public void paintInto(int[] data, int value) {
+		if (isPacked()) {
+			packedData.paintInto(data, value);
+		} else if (isTiled()) {
+			tiledData.paintInto(data, value);
+		} else if (hasBinaryData()) {
+			final int limit = data.length;
+			for (int i = 0; i < limit; i++) {
+				if (rawBinaryData[i] == BinaryIcyBufferedImage.TRUE) {
+					data[i] = value;
 				}
 			}
 		}
@@ -720,7 +1463,8 @@ public class Mask implements Serializable, Iterable<String> {
 	 */
 	public void remove(Area rhs) throws MaskException {
 		if (hasBinaryData()) {
-			manageArea(rhs, BinaryIcyBufferedImage.FALSE);
+			manageArea(rhs, false);
+			setDirty(rhs.getBounds());
 		} else {
 			throw new MaskException("No internal mask representation available");
 		}
@@ -737,7 +1481,22 @@ public class Mask implements Serializable, Iterable<String> {
 	 */
 	public void remove(Mask m) throws MaskException {
 		if (hasBinaryData() && m.hasBinaryData()) {
-			binaryData.remove(m.getBinaryData());
+			if (isPacked() && m.isPacked()) {
+				packedData.remove(m.packedData);
+			} else if (isTiled() && m.isTiled()) {
+				tiledData.remove(m.tiledData);
+			} else if (isPacked()) {
+				packedData.remove(m.getRawDataView());
+			} else if (isTiled()) {
+				tiledData.remove(m.getRawDataView());
+			} else if (m.isPacked()) {
+				m.packedData.removeFrom(rawBinaryData);
+			} else if (m.isTiled()) {
+				m.tiledData.removeFrom(rawBinaryData);
+			} else {
+				binaryData.remove(m.getBinaryDataView());
+			}
+			setDirty();
 		} else {
 			throw new MaskException("No internal mask representation available");
 		}
@@ -746,7 +1505,8 @@ public class Mask implements Serializable, Iterable<String> {
 
 	public void remove(ROI2D roi) throws MaskException {
 		if (hasBinaryData()) {
-			manageROI(roi, BinaryIcyBufferedImage.FALSE);
+			manageROI(roi, false);
+			setDirty(roi.getBounds());
 		} else {
 			throw new MaskException("No internal mask representation available");
 		}
@@ -771,10 +1531,170 @@ public class Mask implements Serializable, Iterable<String> {
 	 *            the new binary data
 	 */
 	public void setBinaryData(BinaryIcyBufferedImage data) {
+		storeBinaryData(data);
+		setDirty();
+	}
+	
+	/**
+	 * Replaces the storage with the byte binary data, without changing the
+	 * dirty state.
+	 * 
+	 * @param data
+	 *            the data
+	 */
+	private void storeBinaryData(BinaryIcyBufferedImage data) {
+		if (!loading) {
+			this.loader = null;
+		}
+		this.packedData = null;
+		this.tiledData = null;
 		this.binaryData = data;
 		this.rawBinaryData = data.getRawData();
 		forceRedraw();
 	}
+	
+	/**
+	 * Sets the bit packed binary data.
+	 * 
+	 * @param data
+	 *            the new bit packed binary data
+	 */
+	public void setPackedData(BitPackedBinaryData data) {
+		storePackedData(data);
+		setDirty();
+	}
+	
+	/**
+	 * Replaces the storage with the bit packed binary data, without changing
+	 * the dirty state.
+	 * 
+	 * @param data
+	 *            the data
+	 */
+	private void storePackedData(BitPackedBinaryData data) {
+		if (!loading) {
+			this.loader = null;
+		}
+		this.packedData = data;
+		this.tiledData = null;
+		this.binaryData = null;
+		this.rawBinaryData = null;
+		forceRedraw();
+	}
+	
+	/**
+	 * Sets the tiled binary data.
+	 * 
+	 * @param data
+	 *            the new tiled binary data
+	 */
+	public void setTiledData(TiledBinaryData data) {
+		storeTiledData(data);
+		setDirty();
+	}
+	
+	/**
+	 * Replaces the storage with the tiled binary data, without changing the
+	 * dirty state.
+	 * 
+	 * @param data
+	 *            the data
+	 */
+	private void storeTiledData(TiledBinaryData data) {
+		if (!loading) {
+			this.loader = null;
+		}
+		this.tiledData = data;
+		this.packedData = null;
+		this.binaryData = null;
+		this.rawBinaryData = null;
+		forceRedraw();
+	}
+
+	/**
+	 * Marks the whole mask as modified. getBinaryData() calls it, as the
+	 * caller may write in the raw buffer.
+	 */
+	public void setDirty() {
+		allDirty = true;
+		dirtyTiles = null;
+	}
+	
+	/**
+	 * Marks the tiles intersecting a rectangle as modified.
+	 * 
+	 * @param r
+	 *            the modified area
+	 */
+	public void setDirty(Rectangle r) {
+		if (allDirty) {
+			return;
+		}
+		int x1 = Math.max(r.x, 0);
+		int y1 = Math.max(r.y, 0);
+		int x2 = Math.min(r.x + r.width, width) - 1;
+		int y2 = Math.min(r.y + r.height, height) - 1;
+		if ((x2 < x1) || (y2 < y1)) {
+			return;
+		}
+		if (dirtyTiles == null) {
+			dirtyTiles = new BitSet();
+		}
+		final int ntx = getNbDirtyTilesX();
+		for (int ty = y1 >> TiledBinaryData.TILE_SHIFT; ty <= y2 >> TiledBinaryData.TILE_SHIFT; ty++) {
+			dirtyTiles.set(ty * ntx + (x1 >> TiledBinaryData.TILE_SHIFT), ty * ntx + (x2 >> TiledBinaryData.TILE_SHIFT) + 1);
+		}
+	}
+	
+	/**
+	 * Checks if the mask has been modified since the last call to
+	 * clearDirty().
+	 * 
+	 * @return true, if is dirty
+	 */
+	public boolean isDirty() {
+		return allDirty || ((dirtyTiles != null) && !dirtyTiles.isEmpty());
+	}
+	
+	/**
+	 * Checks if a tile has been modified since the last call to clearDirty().
+	 * Tiles are TiledBinaryData.TILE_SIZE pixels wide and high.
+	 * 
+	 * @param tx
+	 *            the tile x
+	 * @param ty
+	 *            the tile y
+	 * @return true, if is dirty
+	 */
+	public boolean isDirty(int tx, int ty) {
+		return allDirty || ((dirtyTiles != null) && dirtyTiles.get(ty * getNbDirtyTilesX() + tx));
+	}
+	
+	/**
+	 * Gets the number of dirty tracking tiles on a row.
+	 * 
+	 * @return the number of tiles
+	 */
+	public int getNbDirtyTilesX() {
+		return (width + TiledBinaryData.TILE_MASK) >> TiledBinaryData.TILE_SHIFT;
+	}
+	
+	/**
+	 * Gets the number of dirty tracking tiles on a column.
+	 * 
+	 * @return the number of tiles
+	 */
+	public int getNbDirtyTilesY() {
+		return (height + TiledBinaryData.TILE_MASK) >> TiledBinaryData.TILE_SHIFT;
+	}
+	
+	/**
+	 * Marks the mask as saved.
+	 */
+	public void clearDirty() {
+		allDirty = false;
+		dirtyTiles = null;
+	}
 
 	/**
 	 * Sets the color.
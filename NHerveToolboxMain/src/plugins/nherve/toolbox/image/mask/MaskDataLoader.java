@@ -0,0 +1,39 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * 
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ * 
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.mask;
+
+/**
+ * Provides the binary data of a mask on demand. Used by the persistence
+ * implementations that decode the masks lazily.
+ * 
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public interface MaskDataLoader {
+	
+	/**
+	 * Loads the binary data of the mask. Implementations set it with
+	 * setBinaryData(), setPackedData() or setTiledData().
+	 * 
+	 * @param m
+	 *            the mask
+	 * @throws MaskException
+	 *             the mask exception
+	 */
+	void load(Mask m) throws MaskException;
+}
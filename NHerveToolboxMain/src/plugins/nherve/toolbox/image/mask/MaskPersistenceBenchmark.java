@@ -0,0 +1,165 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * 
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ * 
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.mask;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import plugins.nherve.toolbox.Algorithm;
+import plugins.nherve.toolbox.PersistenceException;
+import plugins.nherve.toolbox.image.BinaryIcyBufferedImage;
+
+/**
+ * Compares the save / load throughput of the .segz2 file versions on
+ * fragmented (noisy) and smooth masks.
+ * 
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class MaskPersistenceBenchmark {
+	
+	/** The Constant SIZE. */
+	private final static int SIZE = 2048;
+	
+	/** The Constant NB_MASKS. */
+	private final static int NB_MASKS = 8;
+	
+	/** The Constant NB_ITERATIONS. */
+	private final static int NB_ITERATIONS = 3;
+
+	/**
+	 * Creates a stack of noisy masks.
+	 * 
+	 * @param rand
+	 *            the rand
+	 * @return the mask stack
+	 * @throws MaskException
+	 *             the mask exception
+	 */
+	private static MaskStack createFragmentedStack(Random rand) throws MaskException {
+		MaskStack stack = new MaskStack(SIZE, SIZE);
+		for (int i = 0; i < NB_MASKS; i++) {
+			Mask m = stack.createNewMask("Fragmented " + i, false, Color.RED, 1.0f);
+			byte[] raw = m.getBinaryData().getRawData();
+			for (int d = 0; d < raw.length; d++) {
+				raw[d] = rand.nextBoolean() ? BinaryIcyBufferedImage.TRUE : BinaryIcyBufferedImage.FALSE;
+			}
+		}
+		return stack;
+	}
+
+	/**
+	 * Creates a stack of disks.
+	 * 
+	 * @param rand
+	 *            the rand
+	 * @return the mask stack
+	 * @throws MaskException
+	 *             the mask exception
+	 */
+	private static MaskStack createSmoothStack(Random rand) throws MaskException {
+		MaskStack stack = new MaskStack(SIZE, SIZE);
+		for (int i = 0; i < NB_MASKS; i++) {
+			Mask m = stack.createNewMask("Smooth " + i, false, Color.RED, 1.0f);
+			byte[] raw = m.getBinaryData().getRawData();
+			int cx = rand.nextInt(SIZE);
+			int cy = rand.nextInt(SIZE);
+			int r2 = (SIZE / 4) * (SIZE / 4);
+			int idx = 0;
+			for (int y = 0; y < SIZE; y++) {
+				for (int x = 0; x < SIZE; x++) {
+					if ((x - cx) * (x - cx) + (y - cy) * (y - cy) < r2) {
+						raw[idx] = BinaryIcyBufferedImage.TRUE;
+					}
+					idx++;
+				}
+			}
+		}
+		return stack;
+	}
+
+	/**
+	 * Runs the benchmark for one stack and one file version.
+	 * 
+	 * @param name
+	 *            the name
+	 * @param stack
+	 *            the stack
+	 * @param version
+	 *            the version
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws PersistenceException
+	 *             the persistence exception
+	 */
+	private static void run(String name, MaskStack stack, int version) throws IOException, PersistenceException {
+		OptimizedMaskPersistenceImpl persistence = new OptimizedMaskPersistenceImpl();
+		persistence.setFileVersion(version);
+		File f = File.createTempFile("benchmark", persistence.getMaskFileExtension());
+		f.deleteOnExit();
+
+		long save = 0;
+		long load = 0;
+		for (int it = 0; it < NB_ITERATIONS; it++) {
+			long t0 = System.nanoTime();
+			persistence.save(stack, f);
+			long t1 = System.nanoTime();
+			MaskStack loaded = persistence.loadMaskStack(f);
+			long t2 = System.nanoTime();
+			save += t1 - t0;
+			load += t2 - t1;
+
+			for (int i = 0; i < stack.size(); i++) {
+				if (!Arrays.equals(loaded.getByIndex(i).getRawDataView(), stack.getByIndex(i).getRawDataView())) {
+					throw new IOException("Mask " + i + " not restored identically");
+				}
+			}
+		}
+
+		double mpix = (double) NB_MASKS * SIZE * SIZE * NB_ITERATIONS / 1e6;
+		Algorithm.out(name + " - version " + version + " : " + (f.length() / 1024) + " KB, save " + mpix / (save / 1e9) + " Mpix/s, load " + mpix / (load / 1e9) + " Mpix/s");
+		f.delete();
+	}
+
+	/**
+	 * The main method.
+	 * 
+	 * @param args
+	 *            the arguments
+	 */
+	public static void main(String[] args) {
+		try {
+			Random rand = new Random(42);
+			MaskStack fragmented = createFragmentedStack(rand);
+			MaskStack smooth = createSmoothStack(rand);
+			for (int version = 1; version <= 2; version++) {
+				run("Fragmented", fragmented, version);
+				run("Smooth", smooth, version);
+			}
+		} catch (MaskException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (PersistenceException e) {
+			e.printStackTrace();
+		}
+	}
+}
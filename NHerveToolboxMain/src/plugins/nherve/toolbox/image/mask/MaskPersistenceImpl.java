@@ -119,7 +119,21 @@ public class MaskPersistenceImpl extends Algorithm implements MaskPersistence {
 		PersistenceToolbox.dumpInt(fc, mask.getColor().getRed());
 		PersistenceToolbox.dumpInt(fc, mask.getColor().getGreen());
 		PersistenceToolbox.dumpInt(fc, mask.getColor().getBlue());
-		dumpBinaryIcyBufferedImage(fc, mask.getBinaryData());
+		dumpMaskData(fc, mask);
+	}
+
+	/**
+	 * Dump the binary data of a mask.
+	 * 
+	 * @param fc
+	 *            the fc
+	 * @param mask
+	 *            the mask
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	protected void dumpMaskData(FileChannel fc, Mask mask) throws IOException {
+		dumpBinaryIcyBufferedImage(fc, mask.getBinaryDataView());
 	}
 
 	/**
@@ -29,8 +29,12 @@ import java.util.Iterator;
 import java.util.Map;
 
 import plugins.nherve.toolbox.image.BinaryIcyBufferedImage;
+import plugins.nherve.toolbox.image.BitPackedBinaryData;
 import plugins.nherve.toolbox.image.DifferentColorsMap;
+import plugins.nherve.toolbox.image.TiledBinaryData;
 import plugins.nherve.toolbox.image.segmentation.Segmentation;
+import plugins.nherve.toolbox.image.toolboxes.ColorSpaceTools;
+import plugins.nherve.toolbox.image.toolboxes.ShapeRasterizer;
 
 /**
  * The Class MaskStack.
@@ -45,6 +49,9 @@ public class MaskStack implements Iterable<Mask>, Serializable {
 	/** The Constant MASK_DEFAULT_LABEL. */
 	public final static String MASK_DEFAULT_LABEL = "Default mask label";
 
+	/** The Constant COLOR_BAND_HEIGHT, number of rows whose color sums are kept at once by reInitColors. */
+	private final static int COLOR_BAND_HEIGHT = 16;
+
 	/** The height. */
 	private int height;
 
@@ -64,6 +71,9 @@ public class MaskStack implements Iterable<Mask>, Serializable {
 
 	private boolean updating;
 
+	/** The storage used for the new masks. */
+	private int defaultStorage;
+
 	/**
 	 * Instantiates a new mask stack.
 	 */
@@ -168,7 +178,7 @@ public class MaskStack implements Iterable<Mask>, Serializable {
 
 		for (Mask m : this) {
 			Mask sm = seg.createNewMask(m.getLabel(), m.isNeedAutomaticLabel(), m.getColor(), m.getOpacity());
-			sm.setBinaryData(m.getBinaryData().getCopy());
+			sm.setBinaryData(m.getBinaryDataView().getCopy());
 		}
 
 		seg.createBackgroundMask("Background", Color.BLACK);
@@ -239,7 +249,7 @@ public class MaskStack implements Iterable<Mask>, Serializable {
 	public Mask copyMask(Mask m) throws MaskException {
 		Mask m2 = createNewMask("Copy of (" + m.getId() + ") " + m.getLabel(), m.isNeedAutomaticLabel(), m.getColor(), m.getOpacity());
 		if (m.hasBinaryData()) {
-			m2.setBinaryData(m.getBinaryData().getCopy());
+			m2.setBinaryData(m.getBinaryDataView().getCopy());
 		} else {
 			throw new MaskException("No internal mask representation available for current mask");
 		}
@@ -250,7 +260,7 @@ public class MaskStack implements Iterable<Mask>, Serializable {
 	public Mask copyMask(Mask m, DifferentColorsMap colorMap) throws MaskException {
 		Mask m2 = createNewMask("Copy of (" + m.getId() + ") " + m.getLabel(), m.isNeedAutomaticLabel(), colorMap, m.getOpacity());
 		if (m.hasBinaryData()) {
-			m2.setBinaryData(m.getBinaryData().getCopy());
+			m2.setBinaryData(m.getBinaryDataView().getCopy());
 		} else {
 			throw new MaskException("No internal mask representation available for current mask");
 		}
@@ -270,12 +280,16 @@ public class MaskStack implements Iterable<Mask>, Serializable {
 	 *             the mask exception
 	 */
 	public Mask createBackgroundMask(String label, Color clr) throws MaskException {
+		if ((size() > 0) && (masks.get(0).getStorage() != Mask.STORAGE_BYTE)) {
+			return createBackgroundMask(label, clr, masks.get(0).getStorage());
+		}
+		
 		BinaryIcyBufferedImage sum = null;
 		for (Mask o : this) {
 			if (sum == null) {
-				sum = o.getBinaryData().getCopy();
+				sum = o.getBinaryDataView().getCopy();
 			} else {
-				sum.add(o.getBinaryData());
+				sum.add(o.getBinaryDataView());
 			}
 		}
 		sum.invert();
@@ -288,6 +302,60 @@ public class MaskStack implements Iterable<Mask>, Serializable {
 		return m;
 	}
 
+	/**
+	 * Creates the background mask directly in a packed or tiled storage.
+	 * 
+	 * @param label
+	 *            the label
+	 * @param clr
+	 *            the clr
+	 * @param storage
+	 *            the storage
+	 * @return the mask
+	 * @throws MaskException
+	 *             the mask exception
+	 */
+	private Mask createBackgroundMask(String label, Color clr, int storage) throws MaskException {
+		Mask m = createMask(label, storage);
+		for (Mask o : this) {
+			m.add(o);
+		}
+		m.invert();
+		m.setColor(clr);
+		m.setOpacity(1.0f);
+		m.setNeedAutomaticLabel(false);
+		addExternalMask(m);
+
+		return m;
+	}
+
+	/**
+	 * Creates an empty mask, not yet added to the stack.
+	 * 
+	 * @param label
+	 *            the label
+	 * @param storage
+	 *            the storage
+	 * @return the mask
+	 */
+	private Mask createMask(String label, int storage) {
+		Mask m = null;
+		switch (storage) {
+		case Mask.STORAGE_PACKED:
+			m = new Mask(new BitPackedBinaryData(width, height));
+			m.setLabel(label);
+			break;
+		case Mask.STORAGE_TILED:
+			m = new Mask(new TiledBinaryData(width, height));
+			m.setLabel(label);
+			break;
+		default:
+			m = new Mask(width, height, label, false);
+			break;
+		}
+		return m;
+	}
+
 	/**
 	 * Creates the new mask.
 	 * 
@@ -304,7 +372,7 @@ public class MaskStack implements Iterable<Mask>, Serializable {
 	 *             the mask exception
 	 */
 	public Mask createNewMask(String label, boolean needAutomaticLabel, Color c, float opacity) throws MaskException {
-		Mask m = new Mask(width, height, label, false);
+		Mask m = createMask(label, defaultStorage);
 		m.setColor(c);
 		m.setOpacity(opacity);
 		m.setNeedAutomaticLabel(needAutomaticLabel);
@@ -312,8 +380,23 @@ public class MaskStack implements Iterable<Mask>, Serializable {
 		return m;
 	}
 
+	/**
+	 * Creates the new mask.
+	 * 
+	 * @param label
+	 *            the label
+	 * @param needAutomaticLabel
+	 *            the need automatic label
+	 * @param colorMap
+	 *            the color map
+	 * @param opacity
+	 *            the opacity
+	 * @return the mask
+	 * @throws MaskException
+	 *             the mask exception
+	 */
 	public Mask createNewMask(String label, boolean needAutomaticLabel, DifferentColorsMap colorMap, float opacity) throws MaskException {
-		Mask m = new Mask(width, height, label, false);
+		Mask m = createMask(label, defaultStorage);
 		m.setOpacity(opacity);
 		m.setNeedAutomaticLabel(needAutomaticLabel);
 		addExternalMask(m, colorMap);
@@ -333,6 +416,15 @@ public class MaskStack implements Iterable<Mask>, Serializable {
 		}
 	}
 
+	/**
+	 * Gets the storage used for the new masks.
+	 * 
+	 * @return the default storage
+	 */
+	public int getDefaultStorage() {
+		return defaultStorage;
+	}
+
 	/**
 	 * Gets the active id.
 	 * 
@@ -467,6 +559,23 @@ public class MaskStack implements Iterable<Mask>, Serializable {
 		return width;
 	}
 
+	/**
+	 * Checks if all the masks use the bit packed storage.
+	 * 
+	 * @return true, if is packed
+	 */
+	public boolean isPacked() {
+		if (masks.isEmpty()) {
+			return false;
+		}
+		for (Mask m : masks) {
+			if (!m.isPacked()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	public int indexOf(Mask o) {
 		return masks.indexOf(o);
 	}
@@ -561,6 +670,24 @@ public class MaskStack implements Iterable<Mask>, Serializable {
 		fireChangeEvent();
 	}
 
+	/**
+	 * Switches all the masks to the bit packed storage.
+	 */
+	public void pack() {
+		for (Mask m : masks) {
+			m.pack();
+		}
+	}
+
+	/**
+	 * Switches all the masks back to the byte storage.
+	 */
+	public void unpack() {
+		for (Mask m : masks) {
+			m.unpack();
+		}
+	}
+
 	public void reInitColors(DifferentColorsMap colorMap) {
 		for (Mask m : masks) {
 			m.setColor(colorMap.get(m.getId()));
@@ -569,14 +696,70 @@ public class MaskStack implements Iterable<Mask>, Serializable {
 	}
 
 	/**
-	 * Re init colors.
+	 * Re init colors, with the average color of each mask. The image is
+	 * converted once, by bands of rows, each row being turned into prefix
+	 * sums : the sum of a run of a mask is then a difference of two values.
+	 * Only the prefix sums of a band are kept in memory.
 	 * 
 	 * @param img
 	 *            the img
 	 */
 	public void reInitColors(IcyBufferedImage img) {
-		for (Mask m : masks) {
-			m.setColor(m.getAverageColor(img));
+		final int w = img.getWidth();
+		final int h = img.getHeight();
+		final int nbc = ColorSpaceTools.NB_COLOR_CHANNELS;
+		final int nbMasks = masks.size();
+		final double[][] sums = new double[nbMasks][nbc];
+		final long[] counts = new long[nbMasks];
+		final double[][] prefix = new double[nbc][COLOR_BAND_HEIGHT * (w + 1)];
+		final int[] bandStart = new int[1];
+
+		ShapeRasterizer.SpanVisitor[] visitors = new ShapeRasterizer.SpanVisitor[nbMasks];
+		for (int m = 0; m < nbMasks; m++) {
+			final double[] sum = sums[m];
+			final int idx = m;
+			visitors[m] = new ShapeRasterizer.SpanVisitor() {
+				@Override
+				public void span(int y, int x1, int x2) {
+					final int o = (y - bandStart[0]) * (w + 1);
+					for (int d = 0; d < nbc; d++) {
+						sum[d] += prefix[d][o + x2] - prefix[d][o + x1];
+					}
+					counts[idx] += x2 - x1;
+				}
+			};
+		}
+
+		ColorSpaceTools.RowConverter rc = new ColorSpaceTools.RowConverter(ColorSpaceTools.RGB);
+		double[][] row = new double[nbc][w];
+		for (int y1 = 0; y1 < h; y1 += COLOR_BAND_HEIGHT) {
+			final int y2 = Math.min(h, y1 + COLOR_BAND_HEIGHT);
+			for (int y = y1; y < y2; y++) {
+				rc.convert(img, y, row);
+				final int o = (y - y1) * (w + 1);
+				for (int d = 0; d < nbc; d++) {
+					final double[] p = prefix[d];
+					final double[] r = row[d];
+					p[o] = 0;
+					for (int x = 0; x < w; x++) {
+						p[o + x + 1] = p[o + x] + r[x];
+					}
+				}
+			}
+			bandStart[0] = y1;
+			for (int m = 0; m < nbMasks; m++) {
+				masks.get(m).visitRuns(y1, y2, visitors[m]);
+			}
+		}
+
+		for (int m = 0; m < nbMasks; m++) {
+			double[] col = sums[m];
+			if (counts[m] != 0) {
+				for (int d = 0; d < nbc; d++) {
+					col[d] /= counts[m];
+				}
+			}
+			masks.get(m).setColor(new Color((float) (col[0] / 255d), (float) (col[1] / 255d), (float) (col[2] / 255d)));
 		}
 		fireChangeEvent();
 	}
@@ -621,6 +804,19 @@ public class MaskStack implements Iterable<Mask>, Serializable {
 		}
 	}
 
+	/**
+	 * Sets the storage used for the new masks (Mask.STORAGE_BYTE,
+	 * Mask.STORAGE_PACKED or Mask.STORAGE_TILED). With the tiled storage, the
+	 * memory used by a new mask grows with its occupied area instead of the
+	 * image size.
+	 * 
+	 * @param defaultStorage
+	 *            the new default storage
+	 */
+	public void setDefaultStorage(int defaultStorage) {
+		this.defaultStorage = defaultStorage;
+	}
+
 	/**
 	 * Sets the active id.
 	 * 
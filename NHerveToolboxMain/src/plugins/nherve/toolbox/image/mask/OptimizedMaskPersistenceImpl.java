@@ -34,13 +34,26 @@ public class OptimizedMaskPersistenceImpl extends MaskPersistenceImpl {
 	/** The Constant MASK_FILE_EXTENSION. */
 	private final static String MASK_FILE_EXTENSION = ".segz2";
 	
-	private final static int CURRENT_FILE_VERSION = 1;
+	/** The Constant CURRENT_FILE_VERSION. Version 1 : one int per run, version 2 : buffered var int runs. */
+	private final static int CURRENT_FILE_VERSION = 2;
+	
+	/** The file version used when saving. */
+	private int fileVersion;
+	
+	/** The codecs, one per thread as their buffer is reused between calls. */
+	private final static ThreadLocal<RunLengthCodec> codecs = new ThreadLocal<RunLengthCodec>() {
+		@Override
+		protected RunLengthCodec initialValue() {
+			return new RunLengthCodec();
+		}
+	};
 
 	/**
 	 * Instantiates a new optimized mask persistence impl.
 	 */
 	public OptimizedMaskPersistenceImpl() {
 		super();
+		fileVersion = CURRENT_FILE_VERSION;
 	}
 
 	/* (non-Javadoc)
@@ -50,18 +63,78 @@ public class OptimizedMaskPersistenceImpl extends MaskPersistenceImpl {
 	public String getMaskFileExtension() {
 		return MASK_FILE_EXTENSION;
 	}
+	
+	/**
+	 * Gets the file version used when saving.
+	 * 
+	 * @return the file version
+	 */
+	public int getFileVersion() {
+		return fileVersion;
+	}
+
+	/**
+	 * Sets the file version used when saving. Version 1 files can be read by
+	 * older versions of the toolbox.
+	 * 
+	 * @param fileVersion
+	 *            the new file version
+	 */
+	public void setFileVersion(int fileVersion) {
+		this.fileVersion = fileVersion;
+	}
+	
+	/**
+	 * Gets the codec of the current thread, so that concurrent saves and
+	 * loads never share a buffer.
+	 * 
+	 * @return the codec
+	 */
+	private static RunLengthCodec getCodec() {
+		return codecs.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see plugins.nherve.toolbox.image.mask.MaskPersistenceImpl#dumpMaskData(java.nio.channels.FileChannel, plugins.nherve.toolbox.image.mask.Mask)
+	 */
+	@Override
+	protected void dumpMaskData(FileChannel fc, Mask mask) throws IOException {
+		dumpRawData(fc, mask.getWidth(), mask.getHeight(), mask.getRawDataView());
+	}
 
 	/* (non-Javadoc)
 	 * @see plugins.nherve.toolbox.image.mask.MaskPersistenceImpl#dumpBinaryIcyBufferedImage(java.nio.channels.FileChannel, plugins.nherve.toolbox.image.BinaryIcyBufferedImage)
 	 */
 	@Override
 	protected void dumpBinaryIcyBufferedImage(FileChannel fc, BinaryIcyBufferedImage bin) throws IOException {
-		PersistenceToolbox.dumpInt(fc, bin.getHeight());
-		PersistenceToolbox.dumpInt(fc, bin.getWidth());
-		byte[] raw = bin.getRawData();
+		dumpRawData(fc, bin.getWidth(), bin.getHeight(), bin.getRawData());
+	}
+	
+	/**
+	 * Dump raw data.
+	 * 
+	 * @param fc
+	 *            the fc
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param raw
+	 *            the raw
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void dumpRawData(FileChannel fc, int w, int h, byte[] raw) throws IOException {
+		PersistenceToolbox.dumpInt(fc, h);
+		PersistenceToolbox.dumpInt(fc, w);
 		final int size = raw.length;
 		PersistenceToolbox.dumpInt(fc, size);
 		
+		if (fileVersion >= 2) {
+			getCodec().encode(fc, raw);
+			return;
+		}
+		
 		int idx = 0;
 		byte previous = BinaryIcyBufferedImage.FALSE;
 		int count = 0;
@@ -90,22 +163,17 @@ public class OptimizedMaskPersistenceImpl extends MaskPersistenceImpl {
 		int h = PersistenceToolbox.loadInt(fc);
 		int w = PersistenceToolbox.loadInt(fc);
 		int sz = PersistenceToolbox.loadInt(fc);
-		byte[] data = new byte[sz];
-		
-		int idx = 0;
-		byte current = BinaryIcyBufferedImage.FALSE;
-		while (idx < sz) {
-			int count = PersistenceToolbox.loadInt(fc);
-			int limit = idx + count;
-			while (idx < limit) {
-				data[idx] = current;
-				idx++;
-			}
-			current = (current == BinaryIcyBufferedImage.FALSE) ? BinaryIcyBufferedImage.TRUE : BinaryIcyBufferedImage.FALSE;
+		if (sz != w * h) {
+			throw new IOException("Inconsistent mask size : " + sz + " for " + w + "x" + h);
 		}
 		
 		BinaryIcyBufferedImage bin = new BinaryIcyBufferedImage(w, h);
-		bin.setDataXYAsByte(0, data);
+		if (v >= 2) {
+			getCodec().decode(fc, bin.getRawData());
+		} else {
+			getCodec().decodeIntRuns(fc, bin.getRawData());
+		}
+		bin.dataChanged();
 		return bin;
 	}
 
@@ -140,7 +208,7 @@ public class OptimizedMaskPersistenceImpl extends MaskPersistenceImpl {
 
 	@Override
 	protected void dumpMaskStack(FileChannel fc, MaskStack stack) throws IOException {
-		PersistenceToolbox.dumpInt(fc, CURRENT_FILE_VERSION);
+		PersistenceToolbox.dumpInt(fc, fileVersion);
 		super.dumpMaskStack(fc, stack);
 	}
 
@@ -0,0 +1,360 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ * 
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ * 
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.mask;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import plugins.nherve.toolbox.image.BinaryIcyBufferedImage;
+
+/**
+ * Buffered run length encoder / decoder for binary masks. Runs alternate
+ * between FALSE and TRUE, starting with FALSE. They are written with a
+ * variable length encoding (7 bits per byte, the high bit tells that another
+ * byte follows) through a large direct buffer, preceded by the length in
+ * bytes of the encoded stream. The legacy format, one int per run, can also
+ * be read through the same buffer.
+ * 
+ * This class is not thread safe, the buffer is reused between calls.
+ * 
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class RunLengthCodec {
+	
+	/** The Constant DEFAULT_BUFFER_SIZE. */
+	public final static int DEFAULT_BUFFER_SIZE = 1 << 20;
+	
+	/** The Constant MAX_VARINT_SIZE. */
+	private final static int MAX_VARINT_SIZE = 5;
+	
+	/** The buffer. */
+	private final ByteBuffer buffer;
+
+	/**
+	 * Instantiates a new run length codec.
+	 */
+	public RunLengthCodec() {
+		this(DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Instantiates a new run length codec.
+	 * 
+	 * @param bufferSize
+	 *            the buffer size
+	 */
+	public RunLengthCodec(int bufferSize) {
+		super();
+		buffer = ByteBuffer.allocateDirect(Math.max(bufferSize, 64));
+	}
+	
+	/**
+	 * Put var int.
+	 * 
+	 * @param bb
+	 *            the bb
+	 * @param v
+	 *            the v
+	 */
+	private static void putVarInt(ByteBuffer bb, int v) {
+		while ((v & ~0x7F) != 0) {
+			bb.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		bb.put((byte) v);
+	}
+	
+	/**
+	 * Gets the var int.
+	 * 
+	 * @param bb
+	 *            the bb
+	 * @return the var int
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static int getVarInt(ByteBuffer bb) throws IOException {
+		int v = 0;
+		int shift = 0;
+		byte b;
+		do {
+			if (shift > 28) {
+				throw new IOException("Corrupted run length stream (bad var int)");
+			}
+			b = bb.get();
+			v |= (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return v;
+	}
+	
+	/**
+	 * Gets the var int size.
+	 * 
+	 * @param v
+	 *            the v
+	 * @return the number of bytes needed to encode v
+	 */
+	private static int getVarIntSize(int v) {
+		int n = 1;
+		while ((v & ~0x7F) != 0) {
+			n++;
+			v >>>= 7;
+		}
+		return n;
+	}
+	
+	/**
+	 * Encodes the raw data in memory, without the length header.
+	 * 
+	 * @param raw
+	 *            the raw byte data (one byte per pixel)
+	 * @return the byte buffer, ready to be read
+	 */
+	public static ByteBuffer encode(byte[] raw) {
+		final int size = raw.length;
+		
+		int length = 0;
+		int idx = 0;
+		byte previous = BinaryIcyBufferedImage.FALSE;
+		int count = 0;
+		while (idx < size) {
+			if (raw[idx] == previous) {
+				count++;
+			} else {
+				length += getVarIntSize(count);
+				count = 1;
+				previous = raw[idx];
+			}
+			idx++;
+		}
+		if (count > 0) {
+			length += getVarIntSize(count);
+		}
+		
+		ByteBuffer bb = ByteBuffer.allocate(length);
+		idx = 0;
+		previous = BinaryIcyBufferedImage.FALSE;
+		count = 0;
+		while (idx < size) {
+			if (raw[idx] == previous) {
+				count++;
+			} else {
+				putVarInt(bb, count);
+				count = 1;
+				previous = raw[idx];
+			}
+			idx++;
+		}
+		if (count > 0) {
+			putVarInt(bb, count);
+		}
+		bb.flip();
+		return bb;
+	}
+	
+	/**
+	 * Flush.
+	 * 
+	 * @param fc
+	 *            the fc
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void flush(FileChannel fc) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			fc.write(buffer);
+		}
+		buffer.clear();
+	}
+	
+	/**
+	 * Read fully.
+	 * 
+	 * @param fc
+	 *            the fc
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void readFully(FileChannel fc) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (fc.read(buffer) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	/**
+	 * Encodes the raw data at the current position of the channel.
+	 * 
+	 * @param fc
+	 *            the fc
+	 * @param raw
+	 *            the raw byte data (one byte per pixel)
+	 * @return the number of bytes written
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public long encode(FileChannel fc, byte[] raw) throws IOException {
+		final long start = fc.position();
+		final int size = raw.length;
+		final int flushLimit = buffer.capacity() - MAX_VARINT_SIZE;
+		
+		buffer.clear();
+		buffer.putLong(0);
+		
+		int idx = 0;
+		byte previous = BinaryIcyBufferedImage.FALSE;
+		int count = 0;
+		
+		while (idx < size) {
+			if (raw[idx] == previous) {
+				count++;
+			} else {
+				if (buffer.position() > flushLimit) {
+					flush(fc);
+				}
+				putVarInt(buffer, count);
+				count = 1;
+				previous = raw[idx];
+			}
+			idx++;
+		}
+		
+		if (count > 0) {
+			if (buffer.position() > flushLimit) {
+				flush(fc);
+			}
+			putVarInt(buffer, count);
+		}
+		flush(fc);
+		
+		final long end = fc.position();
+		ByteBuffer length = ByteBuffer.allocate(8);
+		length.putLong(end - start - 8);
+		length.flip();
+		while (length.hasRemaining()) {
+			fc.write(length, start + length.position());
+		}
+		
+		return end - start;
+	}
+
+	/**
+	 * Decodes, at the current position of the channel, a stream written by
+	 * encode().
+	 * 
+	 * @param fc
+	 *            the fc
+	 * @param raw
+	 *            the raw byte data, must be filled with FALSE
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void decode(FileChannel fc, byte[] raw) throws IOException {
+		final int size = raw.length;
+		
+		buffer.clear();
+		buffer.limit(8);
+		readFully(fc);
+		buffer.flip();
+		long toRead = buffer.getLong();
+		
+		int idx = 0;
+		boolean current = false;
+		buffer.clear();
+		while (true) {
+			int n = (int) Math.min(buffer.remaining(), toRead);
+			if (n > 0) {
+				buffer.limit(buffer.position() + n);
+				readFully(fc);
+				toRead -= n;
+			}
+			buffer.flip();
+			while ((buffer.remaining() >= MAX_VARINT_SIZE) || ((toRead == 0) && buffer.hasRemaining())) {
+				int count = getVarInt(buffer);
+				if ((count < 0) || (count > size - idx)) {
+					throw new IOException("Corrupted run length stream (run of " + count + " at " + idx + " / " + size + ")");
+				}
+				if (current) {
+					Arrays.fill(raw, idx, idx + count, BinaryIcyBufferedImage.TRUE);
+				}
+				idx += count;
+				current = !current;
+			}
+			if ((toRead == 0) && !buffer.hasRemaining()) {
+				break;
+			}
+			buffer.compact();
+		}
+		
+		if (idx != size) {
+			throw new IOException("Corrupted run length stream (" + idx + " pixels decoded / " + size + ")");
+		}
+	}
+
+	/**
+	 * Decodes, at the current position of the channel, runs written with one
+	 * int per run (legacy format). The channel is left positioned just after
+	 * the last run.
+	 * 
+	 * @param fc
+	 *            the fc
+	 * @param raw
+	 *            the raw byte data, must be filled with FALSE
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void decodeIntRuns(FileChannel fc, byte[] raw) throws IOException {
+		final int size = raw.length;
+		final long start = fc.position();
+		long consumed = 0;
+		
+		int idx = 0;
+		boolean current = false;
+		buffer.clear();
+		buffer.flip();
+		while (idx < size) {
+			if (buffer.remaining() < 4) {
+				buffer.compact();
+				if (fc.read(buffer) < 0) {
+					throw new EOFException();
+				}
+				buffer.flip();
+				continue;
+			}
+			int count = buffer.getInt();
+			consumed += 4;
+			if ((count < 0) || (count > size - idx)) {
+				throw new IOException("Corrupted run length stream (run of " + count + " at " + idx + " / " + size + ")");
+			}
+			if (current) {
+				Arrays.fill(raw, idx, idx + count, BinaryIcyBufferedImage.TRUE);
+			}
+			idx += count;
+			current = !current;
+		}
+		
+		fc.position(start + consumed);
+	}
+}
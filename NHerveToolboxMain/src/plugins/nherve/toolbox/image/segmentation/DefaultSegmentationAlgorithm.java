@@ -22,6 +22,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
+import plugins.nherve.toolbox.image.BinaryIcyBufferedImage;
 import plugins.nherve.toolbox.image.DifferentColorsMap;
 import plugins.nherve.toolbox.image.feature.DefaultClusteringAlgorithmImpl;
 import plugins.nherve.toolbox.image.feature.Segmentable;
@@ -31,13 +32,13 @@ import plugins.nherve.toolbox.image.feature.IcySupportRegion;
 import plugins.nherve.toolbox.image.feature.IcySupportRegionFactory;
 import plugins.nherve.toolbox.image.feature.clustering.ClusteringException;
 import plugins.nherve.toolbox.image.feature.descriptor.DefaultDescriptorImpl;
+import plugins.nherve.toolbox.image.feature.descriptor.DenseFeatureMap;
 import plugins.nherve.toolbox.image.feature.descriptor.MultiThreadedSignatureExtractor;
 import plugins.nherve.toolbox.image.feature.region.IcyPixel;
 import plugins.nherve.toolbox.image.feature.region.SupportRegionException;
 import plugins.nherve.toolbox.image.feature.signature.BagOfSignatures;
 import plugins.nherve.toolbox.image.feature.signature.SignatureException;
 import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
-import plugins.nherve.toolbox.image.mask.Mask;
 import plugins.nherve.toolbox.image.mask.MaskException;
 
 
@@ -49,6 +50,9 @@ import plugins.nherve.toolbox.image.mask.MaskException;
  * @author Nicolas HERVE - nicolas.herve@pasteur.fr
  */
 public class DefaultSegmentationAlgorithm<T extends Segmentable> extends SegmentationAlgorithm<T> {
+
+	/** The Constant AFFECTATION_BAND_SIZE, number of pixels whose signatures are built at once for the affectation. */
+	private final static int AFFECTATION_BAND_SIZE = 1 << 16;
 	
 	/** The clustering. */
 	private DefaultClusteringAlgorithmImpl<DefaultVectorSignature> clustering;
@@ -119,21 +123,78 @@ public class DefaultSegmentationAlgorithm<T extends Segmentable> extends Segment
 		Segmentation seg = new Segmentation(w, h);
 		DifferentColorsMap colorMap = new DifferentColorsMap(c, 1);
 
+		BinaryIcyBufferedImage[] bins = new BinaryIcyBufferedImage[c];
 		for (int m = 0; m < c; m++) {
-			seg.createNewMask("Segment " + m, true, colorMap.get(m), 1.0f);
+			bins[m] = seg.createNewMask("Segment " + m, true, colorMap.get(m), 1.0f).getBinaryData();
 		}
 
 		int p = 0;
 		for (IcySupportRegion sr : regions) {
-			Mask mask = seg.getByIndex(affectation[p]);
 			IcyPixel px = sr.getCenter();
-			mask.getBinaryData().set((int)px.x, (int)px.y, true);
+			bins[affectation[p]].set((int)px.x, (int)px.y, true);
 			p++;
 		}
 
 		return seg;
 	}
 
+	/**
+	 * Creates the segmentation of all the pixels.
+	 * 
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param c
+	 *            the c
+	 * @param affectation
+	 *            the affectation of each pixel, x + y * w
+	 * @return the segmentation
+	 * @throws MaskException
+	 *             the mask exception
+	 */
+	private Segmentation createSegmentation(int w, int h, int c, int[] affectation) throws MaskException {
+		Segmentation seg = new Segmentation(w, h);
+		DifferentColorsMap colorMap = new DifferentColorsMap(c, 1);
+
+		byte[][] raws = new byte[c][];
+		for (int m = 0; m < c; m++) {
+			raws[m] = seg.createNewMask("Segment " + m, true, colorMap.get(m), 1.0f).getBinaryData().getRawData();
+		}
+
+		for (int p = 0; p < w * h; p++) {
+			raws[affectation[p]][p] = BinaryIcyBufferedImage.TRUE;
+		}
+
+		return seg;
+	}
+
+	/**
+	 * Gets the affectation of all the pixels of a feature map, with the
+	 * affectation rule of the clustering. The signatures are built by bands
+	 * of rows, so that they are never all in memory at the same time.
+	 * 
+	 * @param map
+	 *            the map
+	 * @return the affectation of each pixel, x + y * w
+	 * @throws ClusteringException
+	 *             the clustering exception
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private int[] getAffectations(DenseFeatureMap map) throws ClusteringException, SignatureException {
+		final int w = map.getWidth();
+		final int h = map.getHeight();
+		final int rows = Math.max(1, AFFECTATION_BAND_SIZE / Math.max(1, w));
+		int[] affectation = new int[w * h];
+		for (int y1 = 0; y1 < h; y1 += rows) {
+			final int y2 = Math.min(h, y1 + rows);
+			int[] band = clustering.getAffectations(map.getSignatures(y1, y2));
+			System.arraycopy(band, 0, affectation, y1 * w, band.length);
+		}
+		return affectation;
+	}
+
 	/* (non-Javadoc)
 	 * @see plugins.nherve.toolbox.image.feature.SegmentationAlgorithm#segment(plugins.nherve.toolbox.image.feature.Segmentable)
 	 */
@@ -233,6 +294,106 @@ public class DefaultSegmentationAlgorithm<T extends Segmentable> extends Segment
 		}
 	}
 	
+	/**
+	 * Segments all the pixels of an image from a feature map. The clustering
+	 * is computed on the pixels of a regular grid, one every step rows and
+	 * columns, and each pixel is then affected by the clustering itself, the
+	 * signatures being built from the map band by band.
+	 * 
+	 * @param img
+	 *            the img
+	 * @param map
+	 *            the map
+	 * @param step
+	 *            the step of the clustering grid, 1 for all the pixels
+	 * @return the segmentation
+	 * @throws SegmentationException
+	 *             the segmentation exception
+	 */
+	public Segmentation segment(T img, DenseFeatureMap map, int step) throws SegmentationException {
+		if (clustering == null) {
+			throw new SegmentationException("DefaultSegmentationAlgorithm : ClusteringAlgorithm not initialized");
+		}
+		try {
+			clustering.setLogEnabled(isLogEnabled());
+			clustering.compute(map.getSignatures(step));
+
+			List<DefaultVectorSignature> centroids = clustering.getCentroids();
+			int[] affectation = getAffectations(map);
+
+			return createSegmentation(map.getWidth(), map.getHeight(), centroids.size(), affectation);
+		} catch (ClusteringException e) {
+			throw new SegmentationException(e);
+		} catch (SignatureException e) {
+			throw new SegmentationException(e);
+		} catch (MaskException e) {
+			throw new SegmentationException(e);
+		}
+	}
+
+	/**
+	 * Segments all the pixels of an image, the features are extracted in a
+	 * feature map instead of a signature per pixel.
+	 * 
+	 * @param img
+	 *            the img
+	 * @param step
+	 *            the step of the clustering grid, 1 for all the pixels
+	 * @return the segmentation, null if interrupted
+	 * @throws SegmentationException
+	 *             the segmentation exception
+	 */
+	public Segmentation segmentAllPixels(T img, int step) throws SegmentationException {
+		if (descriptor == null) {
+			throw new SegmentationException("DefaultSegmentationAlgorithm : Descriptor not initialized");
+		}
+		try {
+			descriptor.setLogEnabled(isLogEnabled());
+
+			MultiThreadedSignatureExtractor<T> mex = new MultiThreadedSignatureExtractor<T>(descriptor);
+			mex.setLogEnabled(isLogEnabled());
+
+			DenseFeatureMap map = mex.extractFeatureMap(img);
+			if (map == null) {
+				return null;
+			}
+
+			return segment(img, map, step);
+		} catch (SignatureException e) {
+			throw new SegmentationException(e);
+		}
+	}
+
+	/**
+	 * Segments all the pixels of an image from a feature map, with the
+	 * centroids of the previous clustering.
+	 * 
+	 * @param img
+	 *            the img
+	 * @param map
+	 *            the map
+	 * @return the segmentation
+	 * @throws SegmentationException
+	 *             the segmentation exception
+	 */
+	public Segmentation segmentUsingPreviousQuantization(T img, DenseFeatureMap map) throws SegmentationException {
+		if (clustering == null) {
+			throw new SegmentationException("DefaultSegmentationAlgorithm : ClusteringAlgorithm not initialized");
+		}
+		try {
+			List<DefaultVectorSignature> centroids = clustering.getCentroids();
+			int[] affectation = getAffectations(map);
+
+			return createSegmentation(map.getWidth(), map.getHeight(), centroids.size(), affectation);
+		} catch (ClusteringException e) {
+			throw new SegmentationException(e);
+		} catch (SignatureException e) {
+			throw new SegmentationException(e);
+		} catch (MaskException e) {
+			throw new SegmentationException(e);
+		}
+	}
+
 	/**
 	 * Segment using previous quantization.
 	 * 
@@ -295,8 +456,9 @@ public class DefaultSegmentationAlgorithm<T extends Segmentable> extends Segment
 			Segmentation seg = new Segmentation(img.getWidth(), img.getHeight());
 			DifferentColorsMap colorMap = new DifferentColorsMap(centroids.size(), 1);
 
+			BinaryIcyBufferedImage[] bins = new BinaryIcyBufferedImage[centroids.size()];
 			for (int m = 0; m < centroids.size(); m++) {
-				seg.createNewMask("Segment " + m, true, colorMap.get(m), 1.0f);
+				bins[m] = seg.createNewMask("Segment " + m, true, colorMap.get(m), 1.0f).getBinaryData();
 			}
 
 			int a = 0;
@@ -318,9 +480,8 @@ public class DefaultSegmentationAlgorithm<T extends Segmentable> extends Segment
 						max = count.get(c);
 					}
 				}
-				Mask mask = seg.getByIndex(affect);
 				IcyPixel px = regions[r].getCenter();
-				mask.getBinaryData().set((int)px.x, (int)px.y, true);
+				bins[affect].set((int)px.x, (int)px.y, true);
 			}
 
 			return seg;
@@ -22,11 +22,8 @@ import icy.image.IcyBufferedImage;
 import icy.type.TypeUtil;
 
 import java.awt.Color;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.util.Arrays;
 
-import plugins.nherve.toolbox.image.BinaryIcyBufferedImage;
 import plugins.nherve.toolbox.image.feature.Segmentable;
 import plugins.nherve.toolbox.image.mask.Mask;
 import plugins.nherve.toolbox.image.mask.MaskException;
@@ -70,7 +67,7 @@ public class Segmentation extends MaskStack implements Segmentable {
 			for (int y = 0; y < getHeight(); y++) {
 				count = 0;
 				for (Mask o : this) {
-					if (o.getBinaryData().get(x, y)) {
+					if (o.contains(x, y)) {
 						count++;
 					}
 				}
@@ -130,28 +127,17 @@ public class Segmentation extends MaskStack implements Segmentable {
 		index = new IcyBufferedImage(getWidth(), getHeight(), 1, TypeUtil.TYPE_INT);
 		int[] indexData = index.getDataXYAsInt(0);
 		
-		List<byte[]> mbin = new ArrayList<byte[]>();
-		List<Integer> mid = new ArrayList<Integer>();
-		for (Mask m : this) {
-			mbin.add(m.getBinaryData().getRawData());
-			mid.add(m.getId());
-		}
-
-		int maskId = -1;
-		int idx = 0;
-		for (int y = 0; y < getHeight(); y++) {
-			for (int x = 0; x < getWidth(); x++) {
-				maskId = -1;
-				Iterator<Integer> itid = mid.iterator();
-				for (byte[] m : mbin) {
-					maskId = itid.next();
-					if (m[idx] == BinaryIcyBufferedImage.TRUE) {
-						break;
-					}
-				}
-				indexData[idx] = maskId;
-				idx++;
+		// The masks are painted from the last one to the first one, so that
+		// a pixel gets the id of the first mask that contains it. Pixels not
+		// covered by any mask get the id of the last mask.
+		if (size() > 0) {
+			Arrays.fill(indexData, getByIndex(size() - 1).getId());
+			for (int i = size() - 1; i >= 0; i--) {
+				Mask m = getByIndex(i);
+				m.paintInto(indexData, m.getId());
 			}
+		} else {
+			Arrays.fill(indexData, -1);
 		}
 	}
 
@@ -165,7 +151,7 @@ public class Segmentation extends MaskStack implements Segmentable {
 		for (Mask m : this) {
 			try {
 				Mask mc = clone.createNewMask(m.getLabel(), m.isNeedAutomaticLabel(), new Color(m.getColor().getRGB()), m.getOpacity());
-				mc.setBinaryData(m.getBinaryData().getCopy());
+				mc.setBinaryData(m.getBinaryDataView().getCopy());
 			} catch (MaskException e) {
 				throw new CloneNotSupportedException(e.getMessage());
 			}
@@ -24,7 +24,9 @@ import java.util.Arrays;
 import java.util.List;
 
 import plugins.nherve.toolbox.image.BinaryIcyBufferedImage;
+import plugins.nherve.toolbox.image.BitPackedBinaryData;
 import plugins.nherve.toolbox.image.My2DConnectedComponent;
+import plugins.nherve.toolbox.image.TiledBinaryData;
 import plugins.nherve.toolbox.image.mask.Mask;
 import plugins.nherve.toolbox.image.mask.MaskException;
 import plugins.nherve.toolbox.image.toolboxes.SomeImageTools;
@@ -46,7 +48,13 @@ public class SegmentationComparison {
 	 * @return the double
 	 */
 	public static double intersection(Mask m1, Mask m2) {
-		return BinaryIcyBufferedImage.intersection(m1.getBinaryData(), m2.getBinaryData());
+		if (m1.isPacked() && m2.isPacked()) {
+			return BitPackedBinaryData.intersection(m1.getPackedData(), m2.getPackedData());
+		}
+		if (m1.isTiled() && m2.isTiled()) {
+			return TiledBinaryData.intersection(m1.getTiledData(), m2.getTiledData());
+		}
+		return BinaryIcyBufferedImage.intersection(m1.getBinaryDataView(), m2.getBinaryDataView());
 	}
 
 	/**
@@ -90,22 +98,22 @@ public class SegmentationComparison {
 
 		BinaryIcyBufferedImage rt = new BinaryIcyBufferedImage(seg1.getWidth(), seg1.getHeight());
 		for (Mask m : seg1) {
-			rt.add(m.getBinaryData());
+			rt.add(m.getBinaryDataView());
 		}
 		for (Mask m : seg2) {
-			rt.add(m.getBinaryData());
+			rt.add(m.getBinaryDataView());
 		}
 
 		BinaryIcyBufferedImage rt1 = rt.getCopy();
 		for (Mask m : seg1) {
-			rt1.remove(m.getBinaryData());
+			rt1.remove(m.getBinaryDataView());
 		}
 		Mask rt1m = seg1.createNewMask("RestrictTo background", false, Color.WHITE, 0);
 		rt1m.setBinaryData(rt1);
 
 		BinaryIcyBufferedImage rt2 = rt.getCopy();
 		for (Mask m : seg2) {
-			rt2.remove(m.getBinaryData());
+			rt2.remove(m.getBinaryDataView());
 		}
 		Mask rt2m = seg2.createNewMask("RestrictTo background", false, Color.WHITE, 0);
 		rt2m.setBinaryData(rt2);
@@ -488,9 +496,15 @@ public class SegmentationComparison {
 	 * @return the double
 	 */
 	public static double lre(Mask cc1, Mask cc2) {
-		BinaryIcyBufferedImage b1 = cc1.getBinaryData().getCopy();
+		if (cc1.isPacked() && cc2.isPacked()) {
+			return BitPackedBinaryData.difference(cc1.getPackedData(), cc2.getPackedData()) / cc1.getSurface();
+		}
+		if (cc1.isTiled() && cc2.isTiled()) {
+			return TiledBinaryData.difference(cc1.getTiledData(), cc2.getTiledData()) / cc1.getSurface();
+		}
+		BinaryIcyBufferedImage b1 = cc1.getBinaryDataView().getCopy();
 		double b1Card = b1.getSurface();
-		BinaryIcyBufferedImage b2 = cc2.getBinaryData();
+		BinaryIcyBufferedImage b2 = cc2.getBinaryDataView();
 		b1.remove(b2);
 		double b1minb2Card = b1.getSurface();
 		double lre = b1minb2Card / b1Card;
@@ -521,7 +535,7 @@ public class SegmentationComparison {
 	 * @return the double
 	 */
 	public static double nhd(Mask gt, Mask attempt) {
-		return nhd(gt.getBinaryData(), attempt.getBinaryData());
+		return nhd(gt.getBinaryDataView(), attempt.getBinaryDataView());
 	}
 
 	/**
@@ -534,7 +548,7 @@ public class SegmentationComparison {
 	 * @return the double
 	 */
 	public static double ncc(Mask gt, Mask attempt) {
-		return ncc(gt.getBinaryData(), attempt.getBinaryData());
+		return ncc(gt.getBinaryDataView(), attempt.getBinaryDataView());
 	}
 
 	/**
@@ -592,7 +606,7 @@ public class SegmentationComparison {
 	 * @return the double
 	 */
 	public static double score(int type, Mask gt, Mask attempt) {
-		return score(type, gt.getBinaryData(), attempt.getBinaryData());
+		return score(type, gt.getBinaryDataView(), attempt.getBinaryDataView());
 	}
 
 	/**
@@ -618,7 +632,7 @@ public class SegmentationComparison {
 	 * @return the double
 	 */
 	public static double score1(Mask gt, Mask attempt) {
-		return score1(gt.getBinaryData(), attempt.getBinaryData());
+		return score1(gt.getBinaryDataView(), attempt.getBinaryDataView());
 	}
 
 	/**
@@ -646,7 +660,7 @@ public class SegmentationComparison {
 	 * @return the double
 	 */
 	public static double score2(Mask gt, Mask attempt) {
-		return score2(gt.getBinaryData(), attempt.getBinaryData());
+		return score2(gt.getBinaryDataView(), attempt.getBinaryDataView());
 	}
 
 	/**
@@ -672,7 +686,7 @@ public class SegmentationComparison {
 	 * @return the double
 	 */
 	public static double score3(Mask gt, Mask attempt) {
-		return score3(gt.getBinaryData(), attempt.getBinaryData());
+		return score3(gt.getBinaryDataView(), attempt.getBinaryDataView());
 	}
 
 	/**
@@ -698,7 +712,7 @@ public class SegmentationComparison {
 	 * @return the double
 	 */
 	public static double score4(Mask gt, Mask attempt) {
-		return score4(gt.getBinaryData(), attempt.getBinaryData());
+		return score4(gt.getBinaryDataView(), attempt.getBinaryDataView());
 	}
 
 	/**
@@ -724,7 +738,7 @@ public class SegmentationComparison {
 	 * @return the double
 	 */
 	public static double score5(Mask gt, Mask attempt) {
-		return score5(gt.getBinaryData(), attempt.getBinaryData());
+		return score5(gt.getBinaryDataView(), attempt.getBinaryDataView());
 	}
 
 	/**
@@ -737,7 +751,13 @@ public class SegmentationComparison {
 	 * @return the double
 	 */
 	public static double union(Mask m1, Mask m2) {
-		return BinaryIcyBufferedImage.union(m1.getBinaryData(), m2.getBinaryData());
+		if (m1.isPacked() && m2.isPacked()) {
+			return BitPackedBinaryData.union(m1.getPackedData(), m2.getPackedData());
+		}
+		if (m1.isTiled() && m2.isTiled()) {
+			return TiledBinaryData.union(m1.getTiledData(), m2.getTiledData());
+		}
+		return BinaryIcyBufferedImage.union(m1.getBinaryDataView(), m2.getBinaryDataView());
 	}
 
 }
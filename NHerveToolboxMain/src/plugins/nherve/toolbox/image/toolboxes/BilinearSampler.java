@@ -0,0 +1,275 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ *
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ *
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.toolboxes;
+
+import icy.image.IcyBufferedImage;
+
+import java.util.Arrays;
+
+/**
+ * Bilinear sampling of a channel at fixed offsets from the pixels, as done
+ * for the circular neighbourhoods of the local binary patterns. The channel
+ * data is bound once and, for each offset, the horizontal part of the
+ * interpolation (columns and fractional weight) is precomputed for every
+ * column, the vertical part being computed once per row.
+ *
+ * The values are exactly the ones of
+ * SomeImageTools.getBilinearInterpolatedValue(data, w, h, x + ox, y + oy),
+ * including the 0 outside of the image.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class BilinearSampler {
+
+	/** The data. */
+	private final double[] data;
+
+	/** The w. */
+	private final int w;
+
+	/** The h. */
+	private final int h;
+
+	/** The offsets. */
+	private final double[] ox, oy;
+
+	/** The left column, for each offset and column. */
+	private final int[][] colX1;
+
+	/** The right column, equal to the left one on an exact column. */
+	private final int[][] colX2;
+
+	/** The horizontal weight (x2 - x). */
+	private final double[][] colDx;
+
+	/** The columns for which the sample is inside the image. */
+	private final boolean[][] colIn;
+
+	/**
+	 * Instantiates a new bilinear sampler, without offsets.
+	 *
+	 * @param data
+	 *            the data
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 */
+	public BilinearSampler(double[] data, int w, int h) {
+		this(data, w, h, new double[0][]);
+	}
+
+	/**
+	 * Instantiates a new bilinear sampler.
+	 *
+	 * @param data
+	 *            the data
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param offsets
+	 *            the offsets, {ox, oy} for each neighbour
+	 */
+	public BilinearSampler(double[] data, int w, int h, double[][] offsets) {
+		super();
+		this.data = data;
+		this.w = w;
+		this.h = h;
+
+		final int nb = offsets.length;
+		ox = new double[nb];
+		oy = new double[nb];
+		colX1 = new int[nb][w];
+		colX2 = new int[nb][w];
+		colDx = new double[nb][w];
+		colIn = new boolean[nb][w];
+		for (int p = 0; p < nb; p++) {
+			ox[p] = offsets[p][0];
+			oy[p] = offsets[p][1];
+			for (int x = 0; x < w; x++) {
+				final double xr = x + ox[p];
+				if ((xr < 0) || (xr > w - 1)) {
+					continue;
+				}
+				final int x1 = (int) Math.floor(xr);
+				final int x2 = (xr == x1) ? x1 : x1 + 1;
+				colX1[p][x] = x1;
+				colX2[p][x] = x2;
+				colDx[p][x] = x2 - xr;
+				colIn[p][x] = true;
+			}
+		}
+	}
+
+	/**
+	 * Gets a sampler for a channel of an image.
+	 *
+	 * @param img
+	 *            the img
+	 * @param canal
+	 *            the canal
+	 * @param offsets
+	 *            the offsets
+	 * @return the sampler
+	 */
+	public static BilinearSampler getSampler(IcyBufferedImage img, int canal, double[][] offsets) {
+		return new BilinearSampler(img.getDataXYAsDouble(canal), img.getWidth(), img.getHeight(), offsets);
+	}
+
+	/**
+	 * Gets the value at any position.
+	 *
+	 * @param x
+	 *            the x
+	 * @param y
+	 *            the y
+	 * @return the value
+	 */
+	public double getValue(double x, double y) {
+		return SomeImageTools.getBilinearInterpolatedValue(data, w, h, x, y);
+	}
+
+	/**
+	 * Gets the value at an offset of a pixel.
+	 *
+	 * @param p
+	 *            the offset
+	 * @param x
+	 *            the x
+	 * @param y
+	 *            the y
+	 * @return the value at (x + ox, y + oy)
+	 */
+	public double getValue(int p, int x, int y) {
+		if ((x < 0) || (x >= w)) {
+			return getValue(x + ox[p], y + oy[p]);
+		}
+		if (!colIn[p][x]) {
+			return 0;
+		}
+		final double yr = y + oy[p];
+		if ((yr < 0) || (yr > h - 1)) {
+			return 0;
+		}
+		final int y1 = (int) Math.floor(yr);
+		final boolean yExact = (yr == y1);
+		final int y2 = yExact ? y1 : y1 + 1;
+		return interpolate(colX1[p][x], colX2[p][x], colDx[p][x], y1 * w, y2 * w, y2 - yr, yExact);
+	}
+
+	/**
+	 * Gets the values at an offset of all the pixels of a row.
+	 *
+	 * @param p
+	 *            the offset
+	 * @param y
+	 *            the y
+	 * @param row
+	 *            the values, w long
+	 */
+	public void getRow(int p, int y, double[] row) {
+		final double yr = y + oy[p];
+		if ((yr < 0) || (yr > h - 1)) {
+			Arrays.fill(row, 0, w, 0);
+			return;
+		}
+		final int y1 = (int) Math.floor(yr);
+		final boolean yExact = (yr == y1);
+		final int y2 = yExact ? y1 : y1 + 1;
+		final int o1 = y1 * w;
+		final int o2 = y2 * w;
+		final double dy = y2 - yr;
+		final int[] x1s = colX1[p];
+		final int[] x2s = colX2[p];
+		final double[] dxs = colDx[p];
+		final boolean[] in = colIn[p];
+		for (int x = 0; x < w; x++) {
+			row[x] = in[x] ? interpolate(x1s[x], x2s[x], dxs[x], o1, o2, dy, yExact) : 0;
+		}
+	}
+
+	/**
+	 * Interpolation, with the operations of
+	 * SomeImageTools.getBilinearInterpolatedValue.
+	 *
+	 * @param x1
+	 *            the x1
+	 * @param x2
+	 *            the x2
+	 * @param dx
+	 *            the dx
+	 * @param o1
+	 *            the offset of the row y1
+	 * @param o2
+	 *            the offset of the row y2
+	 * @param dy
+	 *            the dy
+	 * @param yExact
+	 *            the y is an exact row
+	 * @return the value
+	 */
+	private double interpolate(int x1, int x2, double dx, int o1, int o2, double dy, boolean yExact) {
+		if (yExact && (x1 == x2)) {
+			return data[x1 + o1];
+		}
+		final double dxdy = dx * dy;
+		final double a1 = dx - dxdy;
+		final double a2 = 1 + dxdy - dx - dy;
+		final double a3 = dy - dxdy;
+		final double a4 = dxdy;
+		return a1 * data[x1 + o2] + a2 * data[x2 + o2] + a3 * data[x2 + o1] + a4 * data[x1 + o1];
+	}
+
+	/**
+	 * Gets the data.
+	 *
+	 * @return the data
+	 */
+	public double[] getData() {
+		return data;
+	}
+
+	/**
+	 * Gets the width.
+	 *
+	 * @return the width
+	 */
+	public int getWidth() {
+		return w;
+	}
+
+	/**
+	 * Gets the height.
+	 *
+	 * @return the height
+	 */
+	public int getHeight() {
+		return h;
+	}
+
+	/**
+	 * Gets the nb offsets.
+	 *
+	 * @return the nb offsets
+	 */
+	public int getNbOffsets() {
+		return ox.length;
+	}
+}
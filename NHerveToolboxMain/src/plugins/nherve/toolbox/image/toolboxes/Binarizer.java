@@ -0,0 +1,320 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ *
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ *
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.toolboxes;
+
+import icy.image.IcyBufferedImage;
+import icy.type.TypeUtil;
+
+/**
+ * Bulk thresholding of an image channel into a byte buffer. The comparisons
+ * work on the raw channel array, in its own type, without the conversion to
+ * double, and the buffer is split in bands processed in parallel. The values
+ * compared are the ones getDataXYAsDouble would give.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class Binarizer {
+
+	/** The Constant GREATER : value > threshold. */
+	public final static int GREATER = 1;
+
+	/** The Constant EQUAL : value == threshold. */
+	public final static int EQUAL = 2;
+
+	/** The Constant MIN_BAND_SIZE, in pixels. */
+	private final static int MIN_BAND_SIZE = 1 << 16;
+
+	/**
+	 * Out[i] = (data[i] > thresh) ? yes : no.
+	 *
+	 * @param img
+	 *            the img
+	 * @param c
+	 *            the channel
+	 * @param thresh
+	 *            the thresh
+	 * @param out
+	 *            the out, w * h
+	 * @param yes
+	 *            the yes
+	 * @param no
+	 *            the no
+	 */
+	public static void threshold(IcyBufferedImage img, int c, double thresh, byte[] out, byte yes, byte no) {
+		compare(img, c, GREATER, thresh, out, yes, no);
+	}
+
+	/**
+	 * Out[i] = (data[i] == v) ? yes : no.
+	 *
+	 * @param img
+	 *            the img
+	 * @param c
+	 *            the channel
+	 * @param v
+	 *            the v
+	 * @param out
+	 *            the out, w * h
+	 * @param yes
+	 *            the yes
+	 * @param no
+	 *            the no
+	 */
+	public static void equal(IcyBufferedImage img, int c, double v, byte[] out, byte yes, byte no) {
+		compare(img, c, EQUAL, v, out, yes, no);
+	}
+
+	/**
+	 * Compares a channel to a value.
+	 *
+	 * @param img
+	 *            the img
+	 * @param c
+	 *            the channel
+	 * @param op
+	 *            GREATER or EQUAL
+	 * @param v
+	 *            the value
+	 * @param out
+	 *            the out, w * h
+	 * @param yes
+	 *            the yes
+	 * @param no
+	 *            the no
+	 */
+	public static void compare(IcyBufferedImage img, int c, final int op, final double v, final byte[] out, final byte yes, final byte no) {
+		final int sz = img.getWidth() * img.getHeight();
+		final boolean signed = img.isSignedDataType();
+		final Object data;
+		switch (img.getDataType()) {
+		case TypeUtil.TYPE_BYTE:
+			data = img.getDataXYAsByte(c);
+			break;
+		case TypeUtil.TYPE_SHORT:
+			data = img.getDataXYAsShort(c);
+			break;
+		case TypeUtil.TYPE_INT:
+			data = img.getDataXYAsInt(c);
+			break;
+		case TypeUtil.TYPE_FLOAT:
+			data = img.getDataXYAsFloat(c);
+			break;
+		default:
+			data = img.getDataXYAsDouble(c);
+			break;
+		}
+
+		ParallelBands.run(sz, MIN_BAND_SIZE, new ParallelBands.Band() {
+			@Override
+			public void run(int from, int to) {
+				if (data instanceof byte[]) {
+					compare((byte[]) data, signed, from, to, op, v, out, yes, no);
+				} else if (data instanceof short[]) {
+					compare((short[]) data, signed, from, to, op, v, out, yes, no);
+				} else if (data instanceof int[]) {
+					compare((int[]) data, signed, from, to, op, v, out, yes, no);
+				} else if (data instanceof float[]) {
+					compare((float[]) data, from, to, op, v, out, yes, no);
+				} else {
+					compare((double[]) data, from, to, op, v, out, yes, no);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Compare.
+	 *
+	 * @param data
+	 *            the data
+	 * @param from
+	 *            the from
+	 * @param to
+	 *            the to
+	 * @param op
+	 *            the op
+	 * @param v
+	 *            the v
+	 * @param out
+	 *            the out
+	 * @param yes
+	 *            the yes
+	 * @param no
+	 *            the no
+	 */
+	public static void compare(double[] data, int from, int to, int op, double v, byte[] out, byte yes, byte no) {
+		if (op == EQUAL) {
+			for (int i = from; i < to; i++) {
+				out[i] = (data[i] == v) ? yes : no;
+			}
+		} else {
+			for (int i = from; i < to; i++) {
+				out[i] = (data[i] > v) ? yes : no;
+			}
+		}
+	}
+
+	/**
+	 * Compare.
+	 *
+	 * @param data
+	 *            the data
+	 * @param from
+	 *            the from
+	 * @param to
+	 *            the to
+	 * @param op
+	 *            the op
+	 * @param v
+	 *            the v
+	 * @param out
+	 *            the out
+	 * @param yes
+	 *            the yes
+	 * @param no
+	 *            the no
+	 */
+	public static void compare(float[] data, int from, int to, int op, double v, byte[] out, byte yes, byte no) {
+		if (op == EQUAL) {
+			for (int i = from; i < to; i++) {
+				out[i] = (data[i] == v) ? yes : no;
+			}
+		} else {
+			for (int i = from; i < to; i++) {
+				out[i] = (data[i] > v) ? yes : no;
+			}
+		}
+	}
+
+	/**
+	 * Compare.
+	 *
+	 * @param data
+	 *            the data
+	 * @param signed
+	 *            the signed
+	 * @param from
+	 *            the from
+	 * @param to
+	 *            the to
+	 * @param op
+	 *            the op
+	 * @param v
+	 *            the v
+	 * @param out
+	 *            the out
+	 * @param yes
+	 *            the yes
+	 * @param no
+	 *            the no
+	 */
+	public static void compare(int[] data, boolean signed, int from, int to, int op, double v, byte[] out, byte yes, byte no) {
+		if (signed) {
+			if (op == EQUAL) {
+				for (int i = from; i < to; i++) {
+					out[i] = (data[i] == v) ? yes : no;
+				}
+			} else {
+				for (int i = from; i < to; i++) {
+					out[i] = (data[i] > v) ? yes : no;
+				}
+			}
+		} else {
+			if (op == EQUAL) {
+				for (int i = from; i < to; i++) {
+					out[i] = ((data[i] & 0xFFFFFFFFL) == v) ? yes : no;
+				}
+			} else {
+				for (int i = from; i < to; i++) {
+					out[i] = ((data[i] & 0xFFFFFFFFL) > v) ? yes : no;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compare.
+	 *
+	 * @param data
+	 *            the data
+	 * @param signed
+	 *            the signed
+	 * @param from
+	 *            the from
+	 * @param to
+	 *            the to
+	 * @param op
+	 *            the op
+	 * @param v
+	 *            the v
+	 * @param out
+	 *            the out
+	 * @param yes
+	 *            the yes
+	 * @param no
+	 *            the no
+	 */
+	public static void compare(short[] data, boolean signed, int from, int to, int op, double v, byte[] out, byte yes, byte no) {
+		final int mask = signed ? -1 : 0xFFFF;
+		if (op == EQUAL) {
+			for (int i = from; i < to; i++) {
+				out[i] = ((data[i] & mask) == v) ? yes : no;
+			}
+		} else {
+			for (int i = from; i < to; i++) {
+				out[i] = ((data[i] & mask) > v) ? yes : no;
+			}
+		}
+	}
+
+	/**
+	 * Compare.
+	 *
+	 * @param data
+	 *            the data
+	 * @param signed
+	 *            the signed
+	 * @param from
+	 *            the from
+	 * @param to
+	 *            the to
+	 * @param op
+	 *            the op
+	 * @param v
+	 *            the v
+	 * @param out
+	 *            the out
+	 * @param yes
+	 *            the yes
+	 * @param no
+	 *            the no
+	 */
+	public static void compare(byte[] data, boolean signed, int from, int to, int op, double v, byte[] out, byte yes, byte no) {
+		final int mask = signed ? -1 : 0xFF;
+		if (op == EQUAL) {
+			for (int i = from; i < to; i++) {
+				out[i] = ((data[i] & mask) == v) ? yes : no;
+			}
+		} else {
+			for (int i = from; i < to; i++) {
+				out[i] = ((data[i] & mask) > v) ? yes : no;
+			}
+		}
+	}
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ *
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ *
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.toolboxes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import plugins.nherve.toolbox.image.BitPackedBinaryData;
+
+/**
+ * Binary morphology working directly on the words of BitPackedBinaryData.
+ * The structuring element is decomposed in rectangles. Each rectangle is
+ * applied separably : horizontally with log(width) word shifts per row and
+ * vertically with the van Herk / Gil-Werman algorithm, whose cost does not
+ * depend on the height of the rectangle. A disk of radius r gives about r
+ * rectangles : the disks built by StructuringElement.disk() from a radius of
+ * MIN_DISTANCE_TRANSFORM_RADIUS are applied through the distance transform
+ * (see DistanceTransform.dilate() and erode()), whose cost does not depend
+ * on the radius and which gives exactly the same pixels.
+ *
+ * Pixels outside of the image are ignored : they are FALSE for the dilation
+ * and TRUE for the erosion, so that the borders of the image are not eroded.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class BinaryMorphology {
+
+	/** The Constant MIN_DISTANCE_TRANSFORM_RADIUS, the smallest disk radius applied through the distance transform. */
+	public final static int MIN_DISTANCE_TRANSFORM_RADIUS = 128;
+
+	/**
+	 * Dilation : out(p) = OR over b in se of in(p - b).
+	 *
+	 * @param in
+	 *            the in
+	 * @param se
+	 *            the structuring element
+	 * @return the dilated data
+	 */
+	public static BitPackedBinaryData dilate(BitPackedBinaryData in, StructuringElement se) {
+		if (se.getDiskRadius() >= MIN_DISTANCE_TRANSFORM_RADIUS) {
+			return applyDisk(in, se.getDiskRadius(), true);
+		}
+
+		final int w = in.getWidth();
+		final int h = in.getHeight();
+		final int wpr = in.getWordsPerRow();
+		final long[] src = in.getWords();
+
+		BitPackedBinaryData out = new BitPackedBinaryData(w, h);
+		final long[] dst = out.getWords();
+
+		List<int[]> rectangles = new ArrayList<int[]>(se.getRectangles());
+		long[] horizontal = new long[src.length];
+		long[] prefix = null;
+		long[] suffix = null;
+
+		while (!rectangles.isEmpty()) {
+			int[] first = rectangles.get(0);
+			final int dx1 = first[0];
+			final int dx2 = first[1];
+			horizontalDilate(src, horizontal, h, wpr, dx1, dx2);
+
+			for (int i = rectangles.size() - 1; i >= 0; i--) {
+				int[] r = rectangles.get(i);
+				if ((r[0] != dx1) || (r[1] != dx2)) {
+					continue;
+				}
+				rectangles.remove(i);
+				if (r[2] == r[3]) {
+					orShiftedRows(horizontal, dst, h, wpr, r[3]);
+				} else {
+					if (prefix == null) {
+						prefix = new long[src.length];
+						suffix = new long[src.length];
+					}
+					verticalDilate(horizontal, dst, prefix, suffix, h, wpr, r[2], r[3]);
+				}
+			}
+		}
+
+		out.clearTails();
+		return out;
+	}
+
+	/**
+	 * Erosion : out(p) = AND over b in se of in(p + b). Computed as the
+	 * complement of the dilation of the complement by the reflected element.
+	 *
+	 * @param in
+	 *            the in
+	 * @param se
+	 *            the structuring element
+	 * @return the eroded data
+	 */
+	public static BitPackedBinaryData erode(BitPackedBinaryData in, StructuringElement se) {
+		if (se.getDiskRadius() >= MIN_DISTANCE_TRANSFORM_RADIUS) {
+			return applyDisk(in, se.getDiskRadius(), false);
+		}
+
+		BitPackedBinaryData inv = in.getCopy();
+		inv.invert();
+		BitPackedBinaryData out = dilate(inv, se.getReflection());
+		out.invert();
+		return out;
+	}
+
+	/**
+	 * Dilation or erosion by a disk, through the distance transform.
+	 *
+	 * @param in
+	 *            the in
+	 * @param radius
+	 *            the radius
+	 * @param dilation
+	 *            true for a dilation, false for an erosion
+	 * @return the result
+	 */
+	private static BitPackedBinaryData applyDisk(BitPackedBinaryData in, int radius, boolean dilation) {
+		final int w = in.getWidth();
+		final int h = in.getHeight();
+		byte[] raw = new byte[w * h];
+		in.unpackInto(raw);
+		if (dilation) {
+			DistanceTransform.dilate(raw, w, h, radius, raw);
+		} else {
+			DistanceTransform.erode(raw, w, h, radius, raw);
+		}
+		return BitPackedBinaryData.pack(raw, w, h);
+	}
+
+	/**
+	 * Opening : erosion followed by a dilation.
+	 *
+	 * @param in
+	 *            the in
+	 * @param se
+	 *            the structuring element
+	 * @return the opened data
+	 */
+	public static BitPackedBinaryData open(BitPackedBinaryData in, StructuringElement se) {
+		return dilate(erode(in, se), se);
+	}
+
+	/**
+	 * Closing : dilation followed by an erosion.
+	 *
+	 * @param in
+	 *            the in
+	 * @param se
+	 *            the structuring element
+	 * @return the closed data
+	 */
+	public static BitPackedBinaryData close(BitPackedBinaryData in, StructuringElement se) {
+		return erode(dilate(in, se), se);
+	}
+
+	/**
+	 * White top-hat : the pixels removed by the opening.
+	 *
+	 * @param in
+	 *            the in
+	 * @param se
+	 *            the structuring element
+	 * @return the top-hat
+	 */
+	public static BitPackedBinaryData topHat(BitPackedBinaryData in, StructuringElement se) {
+		BitPackedBinaryData out = in.getCopy();
+		out.remove(open(in, se));
+		return out;
+	}
+
+	/**
+	 * Black top-hat : the pixels added by the closing.
+	 *
+	 * @param in
+	 *            the in
+	 * @param se
+	 *            the structuring element
+	 * @return the black top-hat
+	 */
+	public static BitPackedBinaryData blackTopHat(BitPackedBinaryData in, StructuringElement se) {
+		BitPackedBinaryData out = close(in, se);
+		out.remove(in);
+		return out;
+	}
+
+	/**
+	 * Horizontal dilation of all the rows by the run [dx1, dx2] : out(x) = OR
+	 * over d in [dx1, dx2] of in(x - d). The OR over the window of length L
+	 * is built by doubling, with log(L) shifts, in a row buffer padded on the
+	 * left so that the windows starting before x = 0 are not lost.
+	 *
+	 * @param src
+	 *            the src
+	 * @param dst
+	 *            the dst
+	 * @param h
+	 *            the h
+	 * @param wpr
+	 *            the words per row
+	 * @param dx1
+	 *            the dx1
+	 * @param dx2
+	 *            the dx2
+	 */
+	private static void horizontalDilate(long[] src, long[] dst, int h, int wpr, int dx1, int dx2) {
+		final int length = dx2 - dx1 + 1;
+		final int pad = (length >>> BitPackedBinaryData.WORD_SHIFT) + 1;
+		final int padBits = pad << BitPackedBinaryData.WORD_SHIFT;
+		final long[] tmp = new long[pad + wpr];
+		for (int y = 0, o = 0; y < h; y++, o += wpr) {
+			Arrays.fill(tmp, 0, pad, 0L);
+			System.arraycopy(src, o, tmp, pad, wpr);
+			// tmp(q) = OR of in(q - padBits + k), k in [0, length[
+			int covered = 1;
+			while (covered < length) {
+				int step = Math.min(covered, length - covered);
+				orShiftedDown(tmp, step);
+				covered += step;
+			}
+			// dst(x) = tmp(x - dx2 + padBits)
+			extractRow(tmp, padBits - dx2, dst, o, wpr);
+		}
+	}
+
+	/**
+	 * Row |= row >>> k (bit x receives bit x + k), in place.
+	 *
+	 * @param row
+	 *            the row
+	 * @param k
+	 *            the k
+	 */
+	private static void orShiftedDown(long[] row, int k) {
+		final int len = row.length;
+		final int ws = k >>> BitPackedBinaryData.WORD_SHIFT;
+		final int bs = k & BitPackedBinaryData.WORD_MASK;
+		for (int i = 0; i + ws < len; i++) {
+			final int j = i + ws;
+			long v = row[j] >>> bs;
+			if ((bs != 0) && (j + 1 < len)) {
+				v |= row[j + 1] << (BitPackedBinaryData.WORD_SIZE - bs);
+			}
+			row[i] |= v;
+		}
+	}
+
+	/**
+	 * Copies a row of bits starting at an arbitrary bit offset : dst(x) =
+	 * src(x + offset), 0 outside of src.
+	 *
+	 * @param src
+	 *            the src
+	 * @param offset
+	 *            the offset in bits, may be negative
+	 * @param dst
+	 *            the dst
+	 * @param dOff
+	 *            the dst offset
+	 * @param wpr
+	 *            the words per row
+	 */
+	private static void extractRow(long[] src, int offset, long[] dst, int dOff, int wpr) {
+		final int ws = offset >> BitPackedBinaryData.WORD_SHIFT;
+		final int bs = offset & BitPackedBinaryData.WORD_MASK;
+		for (int i = 0; i < wpr; i++) {
+			final int j = i + ws;
+			long v = 0;
+			if ((j >= 0) && (j < src.length)) {
+				v = src[j] >>> bs;
+			}
+			if ((bs != 0) && (j + 1 >= 0) && (j + 1 < src.length)) {
+				v |= src[j + 1] << (BitPackedBinaryData.WORD_SIZE - bs);
+			}
+			dst[dOff + i] = v;
+		}
+	}
+
+	/**
+	 * dst(y) |= src(y - dy).
+	 *
+	 * @param src
+	 *            the src
+	 * @param dst
+	 *            the dst
+	 * @param h
+	 *            the h
+	 * @param wpr
+	 *            the words per row
+	 * @param dy
+	 *            the dy
+	 */
+	private static void orShiftedRows(long[] src, long[] dst, int h, int wpr, int dy) {
+		final int y1 = Math.max(0, dy);
+		final int y2 = Math.min(h, h + dy);
+		for (int y = y1; y < y2; y++) {
+			final int so = (y - dy) * wpr;
+			final int dOff = y * wpr;
+			for (int i = 0; i < wpr; i++) {
+				dst[dOff + i] |= src[so + i];
+			}
+		}
+	}
+
+	/**
+	 * Vertical dilation by [dy1, dy2], OR-ed in dst : dst(y) |= OR over d in
+	 * [dy1, dy2] of src(y - d). Van Herk / Gil-Werman : with blocks of L
+	 * rows, the OR over the window [y, y + L[ is suffix(y) | prefix(y + L -
+	 * 1), whatever L.
+	 *
+	 * @param src
+	 *            the src
+	 * @param dst
+	 *            the dst
+	 * @param prefix
+	 *            the prefix buffer
+	 * @param suffix
+	 *            the suffix buffer
+	 * @param h
+	 *            the h
+	 * @param wpr
+	 *            the words per row
+	 * @param dy1
+	 *            the dy1
+	 * @param dy2
+	 *            the dy2
+	 */
+	private static void verticalDilate(long[] src, long[] dst, long[] prefix, long[] suffix, int h, int wpr, int dy1, int dy2) {
+		final int length = dy2 - dy1 + 1;
+
+		for (int y = 0; y < h; y++) {
+			final int o = y * wpr;
+			if (y % length == 0) {
+				System.arraycopy(src, o, prefix, o, wpr);
+			} else {
+				for (int i = 0; i < wpr; i++) {
+					prefix[o + i] = prefix[o - wpr + i] | src[o + i];
+				}
+			}
+		}
+		for (int y = h - 1; y >= 0; y--) {
+			final int o = y * wpr;
+			if ((y % length == length - 1) || (y == h - 1)) {
+				System.arraycopy(src, o, suffix, o, wpr);
+			} else {
+				for (int i = 0; i < wpr; i++) {
+					suffix[o + i] = suffix[o + wpr + i] | src[o + i];
+				}
+			}
+		}
+
+		// dst(y) |= G(y - dy2), G(z) = OR of src rows [z, z + length[
+		final int yMin = Math.max(0, dy2 - length + 1);
+		final int yMax = Math.min(h, h + dy2);
+		for (int y = yMin; y < yMax; y++) {
+			final int z = y - dy2;
+			final int dOff = y * wpr;
+			final int last = Math.min(z + length - 1, h - 1);
+			if (z < 0) {
+				final int po = last * wpr;
+				for (int i = 0; i < wpr; i++) {
+					dst[dOff + i] |= prefix[po + i];
+				}
+			} else if (z / length == last / length) {
+				final int so = z * wpr;
+				for (int i = 0; i < wpr; i++) {
+					dst[dOff + i] |= suffix[so + i];
+				}
+			} else {
+				final int so = z * wpr;
+				final int po = last * wpr;
+				for (int i = 0; i < wpr; i++) {
+					dst[dOff + i] |= suffix[so + i] | prefix[po + i];
+				}
+			}
+		}
+	}
+}
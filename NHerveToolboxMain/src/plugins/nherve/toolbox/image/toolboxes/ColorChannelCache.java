@@ -0,0 +1,371 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ *
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ *
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.toolboxes;
+
+import icy.image.IcyBufferedImage;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cache of the color components of whole images, as given by
+ * ColorSpaceTools.getColorComponentsD_0_255, keyed by image and color space.
+ * It is shared by all the descriptors, so that each pixel of an image is
+ * converted once whatever the number of descriptors and regions.
+ *
+ * An entry is pinned between acquire and release and is dropped at its last
+ * release, so that the cache neither keeps the images alive nor returns
+ * colors of an image modified since. The memory used by the pinned entries
+ * is bounded : an image that does not fit is not cached, acquire then
+ * returns null. The images are assumed not to be modified while they are
+ * pinned.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class ColorChannelCache {
+
+	/**
+	 * The color components of an image.
+	 *
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	public static class Entry {
+
+		/** The image. */
+		private final IcyBufferedImage image;
+
+		/** The color space. */
+		private final int colorSpace;
+
+		/** The w. */
+		private final int w;
+
+		/** The h. */
+		private final int h;
+
+		/** The color components, planar, NB_COLOR_CHANNELS x (w x h), null until loaded. */
+		private volatile double[][] channels;
+
+		/** The number of users that pinned the entry. */
+		private int nbUsers;
+
+		/**
+		 * Instantiates a new entry.
+		 *
+		 * @param image
+		 *            the image
+		 * @param colorSpace
+		 *            the color space
+		 */
+		private Entry(IcyBufferedImage image, int colorSpace) {
+			super();
+			this.image = image;
+			this.colorSpace = colorSpace;
+			this.w = image.getWidth();
+			this.h = image.getHeight();
+			this.channels = null;
+			this.nbUsers = 0;
+		}
+
+		/**
+		 * Converts the image, once.
+		 */
+		private synchronized void load() {
+			if (channels == null) {
+				double[][] c = new double[ColorSpaceTools.NB_COLOR_CHANNELS][w * h];
+				ColorSpaceTools.convert(image, colorSpace, 0, h, c);
+				channels = c;
+			}
+		}
+
+		/**
+		 * Gets the image.
+		 *
+		 * @return the image
+		 */
+		public IcyBufferedImage getImage() {
+			return image;
+		}
+
+		/**
+		 * Gets the color space.
+		 *
+		 * @return the color space
+		 */
+		public int getColorSpace() {
+			return colorSpace;
+		}
+
+		/**
+		 * Gets the width.
+		 *
+		 * @return the width
+		 */
+		public int getWidth() {
+			return w;
+		}
+
+		/**
+		 * Gets the height.
+		 *
+		 * @return the height
+		 */
+		public int getHeight() {
+			return h;
+		}
+
+		/**
+		 * Gets the color components.
+		 *
+		 * @return the color components, planar, NB_COLOR_CHANNELS x (w x h)
+		 */
+		public double[][] getChannels() {
+			return channels;
+		}
+
+		/**
+		 * Gets a color component of a pixel.
+		 *
+		 * @param x
+		 *            the x
+		 * @param y
+		 *            the y
+		 * @param c
+		 *            the channel
+		 * @return the value
+		 */
+		public double get(int x, int y, int c) {
+			return channels[c][x + y * w];
+		}
+
+		/**
+		 * Gets the memory used by the color components.
+		 *
+		 * @return the size in bytes
+		 */
+		private long getBytes() {
+			return getBytes(w, h);
+		}
+
+		/**
+		 * Gets the memory used by the color components of an image.
+		 *
+		 * @param w
+		 *            the w
+		 * @param h
+		 *            the h
+		 * @return the size in bytes
+		 */
+		private static long getBytes(int w, int h) {
+			return 8L * ColorSpaceTools.NB_COLOR_CHANNELS * w * h;
+		}
+	}
+
+	/**
+	 * The key of an entry, the image is compared by identity.
+	 *
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	private static class Key {
+
+		/** The image. */
+		private final IcyBufferedImage image;
+
+		/** The color space. */
+		private final int colorSpace;
+
+		/**
+		 * Instantiates a new key.
+		 *
+		 * @param image
+		 *            the image
+		 * @param colorSpace
+		 *            the color space
+		 */
+		Key(IcyBufferedImage image, int colorSpace) {
+			super();
+			this.image = image;
+			this.colorSpace = colorSpace;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#hashCode()
+		 */
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(image) + colorSpace;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#equals(java.lang.Object)
+		 */
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return (image == other.image) && (colorSpace == other.colorSpace);
+		}
+	}
+
+	/** The Constant DEFAULT_MAX_BYTES. */
+	public final static long DEFAULT_MAX_BYTES = 1L << 28;
+
+	/** The shared instance. */
+	private final static ColorChannelCache instance = new ColorChannelCache(DEFAULT_MAX_BYTES);
+
+	/** The pinned entries. */
+	private final Map<Key, Entry> entries;
+
+	/** The max bytes. */
+	private long maxBytes;
+
+	/** The used bytes. */
+	private long usedBytes;
+
+	/**
+	 * Instantiates a new color channel cache.
+	 *
+	 * @param maxBytes
+	 *            the max bytes
+	 */
+	public ColorChannelCache(long maxBytes) {
+		super();
+		this.maxBytes = maxBytes;
+		this.usedBytes = 0;
+		this.entries = new HashMap<Key, Entry>();
+	}
+
+	/**
+	 * Gets the shared instance.
+	 *
+	 * @return the shared instance
+	 */
+	public static ColorChannelCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Acquires the color components of an image, converting it if needed.
+	 * The entry stays pinned until release is called. If the conversion
+	 * fails, the entry is released before the error is thrown.
+	 *
+	 * @param image
+	 *            the image
+	 * @param colorSpace
+	 *            the color space
+	 * @return the entry, null if the image does not fit in the cache
+	 */
+	public Entry acquire(IcyBufferedImage image, int colorSpace) {
+		Entry e = null;
+		synchronized (this) {
+			Key k = new Key(image, colorSpace);
+			e = entries.get(k);
+			if (e == null) {
+				final long bytes = Entry.getBytes(image.getWidth(), image.getHeight());
+				if (usedBytes + bytes > maxBytes) {
+					return null;
+				}
+				e = new Entry(image, colorSpace);
+				entries.put(k, e);
+				usedBytes += bytes;
+			}
+			e.nbUsers++;
+		}
+		boolean loaded = false;
+		try {
+			e.load();
+			loaded = true;
+		} finally {
+			if (!loaded) {
+				release(e);
+			}
+		}
+		return e;
+	}
+
+	/**
+	 * Releases an entry obtained by acquire, it is dropped at its last
+	 * release.
+	 *
+	 * @param e
+	 *            the entry, may be null
+	 */
+	public synchronized void release(Entry e) {
+		if ((e == null) || (e.nbUsers <= 0)) {
+			return;
+		}
+		e.nbUsers--;
+		if (e.nbUsers == 0) {
+			Key k = new Key(e.getImage(), e.getColorSpace());
+			if (entries.get(k) == e) {
+				entries.remove(k);
+				usedBytes -= e.getBytes();
+			}
+		}
+	}
+
+	/**
+	 * Gets the color components of an image if they are pinned by another
+	 * user, without pinning them.
+	 *
+	 * @param image
+	 *            the image
+	 * @param colorSpace
+	 *            the color space
+	 * @return the entry, null if not available
+	 */
+	public synchronized Entry get(IcyBufferedImage image, int colorSpace) {
+		Entry e = entries.get(new Key(image, colorSpace));
+		if ((e == null) || (e.getChannels() == null)) {
+			return null;
+		}
+		return e;
+	}
+
+
+	/**
+	 * Gets the max bytes.
+	 *
+	 * @return the max bytes
+	 */
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Sets the max bytes, for the next images to acquire.
+	 *
+	 * @param maxBytes
+	 *            the new max bytes
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Gets the used bytes.
+	 *
+	 * @return the used bytes
+	 */
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+}
@@ -0,0 +1,601 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ *
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ *
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.toolboxes;
+
+import icy.image.IcyBufferedImage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import plugins.nherve.matrix.EigenvalueDecomposition;
+import plugins.nherve.matrix.Matrix;
+import plugins.nherve.toolbox.Algorithm;
+import plugins.nherve.toolbox.concurrent.TaskException;
+import plugins.nherve.toolbox.concurrent.TaskManager;
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+
+/**
+ * Streaming fit of a SpecificColorSpace, the PCA of the RGB components of
+ * pixels, as done by ColorSpaceTools.createColorSpace from a list of
+ * signatures.
+ *
+ * The pixels are packed RGB ints. The sums of the components and of their
+ * products are accumulated exactly in longs, so that partial fitters built
+ * on different threads are merged without loss and the result does not
+ * depend on the split. With quantization, the sums are kept per color bin
+ * and the PCA is done on the bin means, all with the same weight. With a
+ * reservoir, only a uniform sample of the pixels is kept and accumulated
+ * when the color space is built.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class ColorSpaceFitter {
+
+	/**
+	 * Accumulates a chunk of pixels in its own fitter.
+	 *
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	private static class Chunk implements Callable<ColorSpaceFitter> {
+
+		/** The image, null for a pixel array. */
+		private final IcyBufferedImage img;
+
+		/** The pixel array. */
+		private final int[] rgb;
+
+		/** The from, a row for an image. */
+		private final int from;
+
+		/** The to, excluded. */
+		private final int to;
+
+		/** The model of the fitter. */
+		private final ColorSpaceFitter model;
+
+		/** The seed. */
+		private final long seed;
+
+		/**
+		 * Instantiates a new chunk.
+		 *
+		 * @param img
+		 *            the img
+		 * @param rgb
+		 *            the rgb
+		 * @param from
+		 *            the from
+		 * @param to
+		 *            the to
+		 * @param model
+		 *            the model
+		 * @param seed
+		 *            the seed
+		 */
+		public Chunk(IcyBufferedImage img, int[] rgb, int from, int to, ColorSpaceFitter model, long seed) {
+			super();
+			this.img = img;
+			this.rgb = rgb;
+			this.from = from;
+			this.to = to;
+			this.model = model;
+			this.seed = seed;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.Callable#call()
+		 */
+		@Override
+		public ColorSpaceFitter call() {
+			ColorSpaceFitter f = new ColorSpaceFitter(model.quantization, model.reservoirSize, seed);
+			if (img != null) {
+				f.add(img, from, to);
+			} else {
+				f.add(rgb, from, to);
+			}
+			return f;
+		}
+	}
+
+	/** The Constant MIN_CHUNK_PIXELS. */
+	private final static int MIN_CHUNK_PIXELS = 1 << 16;
+
+	/** The Constant CHUNKS_PER_PROCESSOR. */
+	private final static int CHUNKS_PER_PROCESSOR = 4;
+
+	/** The number of quantization steps per channel, 0 for none. */
+	private final int quantization;
+
+	/** The bin of each 8 bit value. */
+	private final int[] binOf;
+
+	/** The nb bins per channel. */
+	private final int nbBinsPerChannel;
+
+	/** The nb pixels accumulated. */
+	private long n;
+
+	/** The sums of the components. */
+	private final long[] sum;
+
+	/** The sums of the products of the components : rr, rg, rb, gg, gb, bb. */
+	private final long[] sumProd;
+
+	/** The nb pixels per bin. */
+	private long[] binCount;
+
+	/** The sums of the components per bin. */
+	private long[] binSum;
+
+	/** The reservoir size, 0 for none. */
+	private final int reservoirSize;
+
+	/** The reservoir. */
+	private int[] reservoir;
+
+	/** The nb pixels in the reservoir. */
+	private int reservoirFill;
+
+	/** The nb pixels seen by the reservoir. */
+	private long seen;
+
+	/** The random generator of the reservoir. */
+	private final Random rnd;
+
+	/**
+	 * Instantiates a new color space fitter, without quantization nor
+	 * reservoir.
+	 */
+	public ColorSpaceFitter() {
+		this(0, 0, 0);
+	}
+
+	/**
+	 * Instantiates a new color space fitter.
+	 *
+	 * @param quantization
+	 *            the number of quantization steps per channel, as the sz of
+	 *            ColorSpaceTools.createColorSpace, 0 for none
+	 * @param reservoirSize
+	 *            the reservoir size, 0 to accumulate all the pixels
+	 * @param seed
+	 *            the seed of the reservoir sampling
+	 */
+	public ColorSpaceFitter(int quantization, int reservoirSize, long seed) {
+		super();
+		this.quantization = quantization;
+		this.reservoirSize = reservoirSize;
+
+		n = 0;
+		sum = new long[ColorSpaceTools.NB_COLOR_CHANNELS];
+		sumProd = new long[6];
+
+		if (quantization > 0) {
+			final double step = 255d / (double) quantization;
+			binOf = new int[256];
+			int maxBin = 0;
+			for (int v = 0; v < 256; v++) {
+				binOf[v] = (int) Math.floor(v / step);
+				maxBin = Math.max(maxBin, binOf[v]);
+			}
+			nbBinsPerChannel = maxBin + 1;
+			final int nbBins = nbBinsPerChannel * nbBinsPerChannel * nbBinsPerChannel;
+			binCount = new long[nbBins];
+			binSum = new long[ColorSpaceTools.NB_COLOR_CHANNELS * nbBins];
+		} else {
+			binOf = null;
+			nbBinsPerChannel = 0;
+		}
+
+		if (reservoirSize > 0) {
+			reservoir = new int[reservoirSize];
+			reservoirFill = 0;
+			seen = 0;
+			rnd = new Random(seed);
+		} else {
+			rnd = null;
+		}
+	}
+
+	/**
+	 * Accumulates a pixel.
+	 *
+	 * @param r
+	 *            the r
+	 * @param g
+	 *            the g
+	 * @param b
+	 *            the b
+	 */
+	private void accumulate(int r, int g, int b) {
+		if (binOf != null) {
+			final int bin = binOf[r] + nbBinsPerChannel * (binOf[g] + nbBinsPerChannel * binOf[b]);
+			binCount[bin]++;
+			final int o = ColorSpaceTools.NB_COLOR_CHANNELS * bin;
+			binSum[o] += r;
+			binSum[o + 1] += g;
+			binSum[o + 2] += b;
+		} else {
+			sum[0] += r;
+			sum[1] += g;
+			sum[2] += b;
+			sumProd[0] += r * r;
+			sumProd[1] += r * g;
+			sumProd[2] += r * b;
+			sumProd[3] += g * g;
+			sumProd[4] += g * b;
+			sumProd[5] += b * b;
+		}
+		n++;
+	}
+
+	/**
+	 * Adds a pixel.
+	 *
+	 * @param rgb
+	 *            the packed RGB pixel
+	 */
+	public void add(int rgb) {
+		if (reservoir != null) {
+			seen++;
+			if (reservoirFill < reservoirSize) {
+				reservoir[reservoirFill++] = rgb;
+			} else {
+				final long j = (long) (rnd.nextDouble() * seen);
+				if (j < reservoirSize) {
+					reservoir[(int) j] = rgb;
+				}
+			}
+		} else {
+			accumulate((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+		}
+	}
+
+	/**
+	 * Adds pixels.
+	 *
+	 * @param rgb
+	 *            the packed RGB pixels
+	 * @param from
+	 *            the from
+	 * @param to
+	 *            the to, excluded
+	 */
+	public void add(int[] rgb, int from, int to) {
+		for (int i = from; i < to; i++) {
+			add(rgb[i]);
+		}
+	}
+
+	/**
+	 * Adds the pixels of some rows of an image.
+	 *
+	 * @param img
+	 *            the img
+	 * @param y1
+	 *            the y1
+	 * @param y2
+	 *            the y2, excluded
+	 */
+	public void add(IcyBufferedImage img, int y1, int y2) {
+		final int w = img.getWidth();
+		final int[] row = new int[w];
+		for (int y = y1; y < y2; y++) {
+			img.getRGB(0, y, w, 1, row, 0, w);
+			add(row, 0, w);
+		}
+	}
+
+	/**
+	 * Merges the pixels of another fitter, built with the same quantization
+	 * and reservoir size.
+	 *
+	 * @param other
+	 *            the other
+	 */
+	public void merge(ColorSpaceFitter other) {
+		if ((other.quantization != quantization) || (other.reservoirSize != reservoirSize)) {
+			throw new IllegalArgumentException("Unable to merge fitters with different quantization or reservoir size");
+		}
+
+		n += other.n;
+		for (int i = 0; i < sum.length; i++) {
+			sum[i] += other.sum[i];
+		}
+		for (int i = 0; i < sumProd.length; i++) {
+			sumProd[i] += other.sumProd[i];
+		}
+		if (binCount != null) {
+			for (int i = 0; i < binCount.length; i++) {
+				binCount[i] += other.binCount[i];
+			}
+			for (int i = 0; i < binSum.length; i++) {
+				binSum[i] += other.binSum[i];
+			}
+		}
+
+		if (reservoir != null) {
+			mergeReservoir(other);
+		}
+	}
+
+	/**
+	 * Merges the reservoir of another fitter. The merged reservoir is drawn
+	 * without replacement from both, each draw coming from one side with the
+	 * probability given by the numbers of pixels seen and not yet drawn, so
+	 * that it stays a uniform sample of all the pixels seen.
+	 *
+	 * @param other
+	 *            the other
+	 */
+	private void mergeReservoir(ColorSpaceFitter other) {
+		int[] poolA = reservoir;
+		int sizeA = reservoirFill;
+		int[] poolB = other.reservoir.clone();
+		int sizeB = other.reservoirFill;
+		long remA = seen;
+		long remB = other.seen;
+
+		final int nb = Math.min(reservoirSize, sizeA + sizeB);
+		int[] merged = new int[reservoirSize];
+		for (int i = 0; i < nb; i++) {
+			final boolean fromA = (sizeB == 0) || ((sizeA > 0) && (rnd.nextDouble() * (remA + remB) < remA));
+			if (fromA) {
+				final int j = rnd.nextInt(sizeA);
+				merged[i] = poolA[j];
+				poolA[j] = poolA[--sizeA];
+				remA--;
+			} else {
+				final int j = rnd.nextInt(sizeB);
+				merged[i] = poolB[j];
+				poolB[j] = poolB[--sizeB];
+				remB--;
+			}
+		}
+
+		reservoir = merged;
+		reservoirFill = nb;
+		seen += other.seen;
+	}
+
+	/**
+	 * Builds the color space from the accumulated pixels.
+	 *
+	 * @return the specific color space
+	 * @throws SignatureException
+	 *             if there are not enough pixels
+	 */
+	public SpecificColorSpace createColorSpace() throws SignatureException {
+		if (reservoir != null) {
+			ColorSpaceFitter sample = new ColorSpaceFitter(quantization, 0, 0);
+			sample.add(reservoir, 0, reservoirFill);
+			return sample.createColorSpace();
+		}
+
+		final int nbc = ColorSpaceTools.NB_COLOR_CHANNELS;
+		double[] mean = new double[nbc];
+		double[][] cov = new double[nbc][nbc];
+
+		if (binCount != null) {
+			List<double[]> means = new ArrayList<double[]>();
+			for (int bin = 0; bin < binCount.length; bin++) {
+				if (binCount[bin] > 0) {
+					final double inv = 1d / (double) binCount[bin];
+					double[] m = new double[nbc];
+					for (int c = 0; c < nbc; c++) {
+						m[c] = binSum[nbc * bin + c] * inv;
+						mean[c] += m[c];
+					}
+					means.add(m);
+				}
+			}
+			Algorithm.out("Quantizing before PCA - moving from " + n + " to " + means.size() + "(" + (int) Math.pow(quantization, nbc) + ") sigs");
+			checkSize(means.size());
+			for (int c = 0; c < nbc; c++) {
+				mean[c] /= means.size();
+			}
+			for (double[] m : means) {
+				for (int i = 0; i < nbc; i++) {
+					for (int j = 0; j < nbc; j++) {
+						cov[i][j] += (m[i] - mean[i]) * (m[j] - mean[j]);
+					}
+				}
+			}
+			for (int i = 0; i < nbc; i++) {
+				for (int j = 0; j < nbc; j++) {
+					cov[i][j] /= means.size();
+				}
+			}
+		} else {
+			checkSize(n);
+			for (int c = 0; c < nbc; c++) {
+				mean[c] = sum[c] / (double) n;
+			}
+			for (int i = 0, k = 0; i < nbc; i++) {
+				for (int j = i; j < nbc; j++, k++) {
+					cov[i][j] = (sumProd[k] - sum[i] * (double) sum[j] / n) / n;
+					cov[j][i] = cov[i][j];
+				}
+			}
+		}
+
+		Matrix varcov = new Matrix(nbc, nbc);
+		for (int i = 0; i < nbc; i++) {
+			for (int j = 0; j < nbc; j++) {
+				varcov.set(i, j, cov[i][j]);
+			}
+		}
+		EigenvalueDecomposition evd = varcov.eig();
+		Matrix proj = evd.getV();
+
+		return new SpecificColorSpace(mean[0], mean[1], mean[2], proj.get(0, 0), proj.get(0, 1), proj.get(0, 2), proj.get(1, 0), proj.get(1, 1), proj.get(1, 2), proj.get(2, 0), proj.get(2, 1), proj.get(2, 2));
+	}
+
+	/**
+	 * Checks that there are enough points for the PCA.
+	 *
+	 * @param nb
+	 *            the nb points
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private static void checkSize(long nb) throws SignatureException {
+		if (nb < 2) {
+			throw new SignatureException("Not enough signatures (" + nb + ") to run PCA");
+		}
+	}
+
+	/**
+	 * Accumulates images in parallel, each image being split in bands of
+	 * rows.
+	 *
+	 * @param images
+	 *            the images
+	 * @param quantization
+	 *            the quantization, 0 for none
+	 * @param reservoirSize
+	 *            the reservoir size, 0 for none
+	 * @param seed
+	 *            the seed
+	 * @return the fitter
+	 * @throws SignatureException
+	 *             if the accumulation fails or is interrupted
+	 */
+	public static ColorSpaceFitter accumulate(IcyBufferedImage[] images, int quantization, int reservoirSize, long seed) throws SignatureException {
+		ColorSpaceFitter model = new ColorSpaceFitter(quantization, reservoirSize, seed);
+		long total = 0;
+		for (IcyBufferedImage img : images) {
+			total += (long) img.getWidth() * img.getHeight();
+		}
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		for (IcyBufferedImage img : images) {
+			final int h = img.getHeight();
+			final int nb = getNbChunks((long) img.getWidth() * h, total, h);
+			for (int c = 0; c < nb; c++) {
+				chunks.add(new Chunk(img, null, (int) ((long) h * c / nb), (int) ((long) h * (c + 1) / nb), model, seed + chunks.size() + 1));
+			}
+		}
+		return run(model, chunks);
+	}
+
+	/**
+	 * Accumulates arrays of packed RGB pixels in parallel.
+	 *
+	 * @param rgbs
+	 *            the pixel arrays
+	 * @param quantization
+	 *            the quantization, 0 for none
+	 * @param reservoirSize
+	 *            the reservoir size, 0 for none
+	 * @param seed
+	 *            the seed
+	 * @return the fitter
+	 * @throws SignatureException
+	 *             if the accumulation fails or is interrupted
+	 */
+	public static ColorSpaceFitter accumulate(int[][] rgbs, int quantization, int reservoirSize, long seed) throws SignatureException {
+		ColorSpaceFitter model = new ColorSpaceFitter(quantization, reservoirSize, seed);
+		long total = 0;
+		for (int[] rgb : rgbs) {
+			total += rgb.length;
+		}
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		for (int[] rgb : rgbs) {
+			final int nb = getNbChunks(rgb.length, total, rgb.length);
+			for (int c = 0; c < nb; c++) {
+				chunks.add(new Chunk(null, rgb, (int) ((long) rgb.length * c / nb), (int) ((long) rgb.length * (c + 1) / nb), model, seed + chunks.size() + 1));
+			}
+		}
+		return run(model, chunks);
+	}
+
+	/**
+	 * Gets the number of chunks of a source, in proportion of its share of
+	 * the pixels.
+	 *
+	 * @param nbPixels
+	 *            the nb pixels of the source
+	 * @param total
+	 *            the total nb pixels
+	 * @param maxChunks
+	 *            the max chunks
+	 * @return the nb chunks
+	 */
+	private static int getNbChunks(long nbPixels, long total, int maxChunks) {
+		final int target = CHUNKS_PER_PROCESSOR * Runtime.getRuntime().availableProcessors();
+		long nb = Math.max(1, Math.round((double) target * nbPixels / Math.max(1, total)));
+		nb = Math.min(nb, Math.max(1, nbPixels / MIN_CHUNK_PIXELS));
+		return (int) Math.max(1, Math.min(nb, maxChunks));
+	}
+
+	/**
+	 * Runs the chunks on the second level task manager, or in the calling
+	 * thread if the task manager fails, and merges them in order into the
+	 * model. An interruption or a failing chunk stops the accumulation.
+	 *
+	 * @param model
+	 *            the model
+	 * @param chunks
+	 *            the chunks
+	 * @return the model
+	 * @throws SignatureException
+	 *             if a chunk fails or the accumulation is interrupted
+	 */
+	private static ColorSpaceFitter run(ColorSpaceFitter model, List<Chunk> chunks) throws SignatureException {
+		TaskManager tm = (chunks.size() > 1) ? TaskManager.getSecondLevelInstance() : null;
+		if (tm != null) {
+			try {
+				List<Future<ColorSpaceFitter>> results = new ArrayList<Future<ColorSpaceFitter>>();
+				for (Chunk c : chunks) {
+					results.add(tm.submit(c));
+				}
+				tm.waitResults(results, "ColorSpaceFitter", 0);
+				for (Future<ColorSpaceFitter> f : results) {
+					model.merge(f.get());
+				}
+				return model;
+			} catch (TaskException e) {
+				Algorithm.err(e);
+			} catch (ExecutionException e) {
+				throw new SignatureException(e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SignatureException(e);
+			}
+			model = new ColorSpaceFitter(model.quantization, model.reservoirSize, model.rnd != null ? model.rnd.nextLong() : 0);
+		}
+		for (Chunk c : chunks) {
+			model.merge(c.call());
+		}
+		return model;
+	}
+
+	/**
+	 * Gets the nb pixels accumulated, or seen by the reservoir.
+	 *
+	 * @return the nb pixels
+	 */
+	public long getNbPixels() {
+		return (reservoir != null) ? seen : n;
+	}
+}
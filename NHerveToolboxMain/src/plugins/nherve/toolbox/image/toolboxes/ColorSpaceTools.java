@@ -19,9 +19,11 @@
 package plugins.nherve.toolbox.image.toolboxes;
 
 import icy.image.IcyBufferedImage;
+import icy.type.TypeUtil;
 
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
@@ -96,6 +98,21 @@ public class ColorSpaceTools {
 	/** The Constant NB_COLOR_CHANNELS. */
 	public final static int NB_COLOR_CHANNELS = 3;
 
+	/** The Constant LAB_CACHE_BITS, 2^bits colors are kept by the Lab row converters. */
+	private final static int LAB_CACHE_BITS = 14;
+
+	/** The Constant MIN_BAND_HEIGHT. */
+	private final static int MIN_BAND_HEIGHT = 16;
+
+	/** The linear values of the 8 bit sRGB components, for the Lab conversion. */
+	private final static double[] LINEAR_8BIT = new double[256];
+
+	static {
+		for (int i = 0; i < LINEAR_8BIT.length; i++) {
+			LINEAR_8BIT[i] = linearize(i / 255d);
+		}
+	}
+
 	/**
 	 * Gets the color components i_0_255.
 	 * 
@@ -209,10 +226,38 @@ public class ColorSpaceTools {
 	 * @return the double[]
 	 */
 	public static double[] rvbToLab(double r255, double g255, double b255) {
-		double r = r255 / 255d;
-		double g = g255 / 255d;
-		double b = b255 / 255d;
 		double[] lab = new double[3];
+		linearToLab(linearize(r255 / 255d), linearize(g255 / 255d), linearize(b255 / 255d), lab);
+		return lab;
+	}
+
+	/**
+	 * Linearizes an sRGB component.
+	 * 
+	 * @param c
+	 *            the component, in [0, 1]
+	 * @return the linear component
+	 */
+	private static double linearize(double c) {
+		if (c <= 0.04045d)
+			return c / 12d;
+		else
+			return Math.pow((c + 0.055d) / 1.055d, 2.4d);
+	}
+
+	/**
+	 * Linear RGB to Lab.
+	 * 
+	 * @param r
+	 *            the linear r
+	 * @param g
+	 *            the linear g
+	 * @param b
+	 *            the linear b
+	 * @param lab
+	 *            the lab
+	 */
+	private static void linearToLab(double r, double g, double b, double[] lab) {
 		double X, Y, Z, fx, fy, fz, xr, yr, zr;
 		double Ls, as, bs;
 		double eps = 216d / 24389d;
@@ -222,21 +267,6 @@ public class ColorSpaceTools {
 		double Yr = 1d;
 		double Zr = 0.825211d;
 
-		if (r <= 0.04045d)
-			r = r / 12d;
-		else
-			r = Math.pow((r + 0.055d) / 1.055d, 2.4d);
-
-		if (g <= 0.04045d)
-			g = g / 12d;
-		else
-			g = Math.pow((g + 0.055d) / 1.055d, 2.4d);
-
-		if (b <= 0.04045d)
-			b = b / 12d;
-		else
-			b = Math.pow((b + 0.055d) / 1.055d, 2.4d);
-
 		X = 0.436052025d * r + 0.385081593d * g + 0.143087414d * b;
 		Y = 0.222491598d * r + 0.71688606d * g + 0.060621486d * b;
 		Z = 0.013929122d * r + 0.097097002d * g + 0.71418547d * b;
@@ -267,8 +297,6 @@ public class ColorSpaceTools {
 		lab[0] = 2.55d * Ls;
 		lab[1] = as;
 		lab[2] = bs;
-
-		return lab;
 	}
 
 	/**
@@ -286,7 +314,25 @@ public class ColorSpaceTools {
 	 */
 	public static double[] getColorComponentsD_0_255(int colorSpace, double r, double v, double b) {
 		double[] res = new double[NB_COLOR_CHANNELS];
+		getColorComponentsD_0_255(colorSpace, r, v, b, res);
+		return res;
+	}
 
+	/**
+	 * Gets the color components d_0_255, without allocation.
+	 * 
+	 * @param colorSpace
+	 *            the color space
+	 * @param r
+	 *            the r
+	 * @param v
+	 *            the v
+	 * @param b
+	 *            the b
+	 * @param res
+	 *            the color components
+	 */
+	public static void getColorComponentsD_0_255(int colorSpace, double r, double v, double b, double[] res) {
 		switch (colorSpace) {
 		case RGB:
 		case NONE:
@@ -346,16 +392,24 @@ public class ColorSpaceTools {
 			res[2] = r - 2d * b / 3d;
 			break;
 		case RGB_TO_LAB:
-			res = rvbToLab(r, v, b);
+			linearToLab(linearize(r / 255d), linearize(v / 255d), linearize(b / 255d), res);
 			break;
 		case RGB_TO_LOCAL:
-			if (LOCAL_COLORSPACE != null) {
-				res = LOCAL_COLORSPACE.getColorComponents(r, v, b);
+			SpecificColorSpace local = LOCAL_COLORSPACE;
+			if (local != null) {
+				local.getColorComponents(r, v, b, res);
+			} else {
+				res[0] = 0;
+				res[1] = 0;
+				res[2] = 0;
 			}
 			break;
+		default:
+			res[0] = 0;
+			res[1] = 0;
+			res[2] = 0;
+			break;
 		}
-
-		return res;
 	}
 
 	/**
@@ -494,6 +548,311 @@ public class ColorSpaceTools {
 		return getBoundedColorComponentsD_0_1(colorSpace, rvb[0], rvb[1], rvb[2]);
 	}
 
+	/**
+	 * Converts the rows of an image to a color space. The color space is
+	 * chosen once for all the pixels and nothing is allocated per pixel. The
+	 * I1H2H3 space goes through the integer row conversion of Conversion. For
+	 * the Lab space, the sRGB linearization of the 8 bit components is read
+	 * from a table and the last converted colors are kept in a small cache
+	 * indexed by the packed RGB value. The values are exactly the ones of
+	 * getColorComponentsD_0_255(icyb, colorSpace, x, y). A converter must not
+	 * be shared between threads.
+	 * 
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	public static class RowConverter {
+
+		/** The color space. */
+		private final int colorSpace;
+
+		/** The color components buffer. */
+		private final double[] col;
+
+		/** The packed RGB values of the Lab cache, -1 for an empty slot. */
+		private int[] labKeys;
+
+		/** The Lab values of the cache. */
+		private double[] labValues;
+
+		/** The packed RGB values of a row. */
+		private int[] rgbRow;
+
+		/** The values of the channels of a row, for the spaces read from the data. */
+		private double[][] dataRow;
+
+		/** The interleaved I1H2H3 values of a row. */
+		private int[] i1h2h3Row;
+
+		/**
+		 * Instantiates a new row converter.
+		 * 
+		 * @param colorSpace
+		 *            the color space
+		 */
+		public RowConverter(int colorSpace) {
+			super();
+			this.colorSpace = colorSpace;
+			this.col = new double[NB_COLOR_CHANNELS];
+			if (colorSpace == RGB_TO_LAB) {
+				labKeys = new int[1 << LAB_CACHE_BITS];
+				Arrays.fill(labKeys, -1);
+				labValues = new double[NB_COLOR_CHANNELS << LAB_CACHE_BITS];
+			}
+		}
+
+		/**
+		 * Converts a row.
+		 * 
+		 * @param icyb
+		 *            the icyb
+		 * @param y
+		 *            the y
+		 * @param row
+		 *            the color components, NB_COLOR_CHANNELS x w
+		 */
+		public void convert(IcyBufferedImage icyb, int y, double[][] row) {
+			final int w = icyb.getWidth();
+			final double[] r0 = row[0];
+			final double[] r1 = row[1];
+			final double[] r2 = row[2];
+
+			switch (colorSpace) {
+			case NONE:
+				for (int c = 0; c < NB_COLOR_CHANNELS; c++) {
+					getDataRow(icyb, c, y, row[c]);
+				}
+				break;
+			case I1H2H3_TO_RGB:
+				if ((dataRow == null) || (dataRow[0].length < w)) {
+					dataRow = new double[NB_COLOR_CHANNELS][w];
+				}
+				for (int c = 0; c < NB_COLOR_CHANNELS; c++) {
+					getDataRow(icyb, c, y, dataRow[c]);
+				}
+				for (int x = 0; x < w; x++) {
+					getColorComponentsD_0_255(colorSpace, dataRow[0][x], dataRow[1][x], dataRow[2][x], col);
+					r0[x] = col[0];
+					r1[x] = col[1];
+					r2[x] = col[2];
+				}
+				break;
+			case RGB: {
+				final int[] rgbs = getRGBRow(icyb, y);
+				for (int x = 0; x < w; x++) {
+					final int rgb = rgbs[x];
+					r0[x] = (rgb >> 16) & 0xFF;
+					r1[x] = (rgb >> 8) & 0xFF;
+					r2[x] = rgb & 0xFF;
+				}
+				break;
+			}
+			case RGB_TO_I1H2H3: {
+				final int[] rgbs = getRGBRow(icyb, y);
+				if ((i1h2h3Row == null) || (i1h2h3Row.length < NB_COLOR_CHANNELS * w)) {
+					i1h2h3Row = new int[NB_COLOR_CHANNELS * w];
+				}
+				Conversion.RGB_to_I1H2H3(rgbs, 0, w, i1h2h3Row);
+				for (int x = 0, o = 0; x < w; x++, o += NB_COLOR_CHANNELS) {
+					r0[x] = i1h2h3Row[o];
+					r1[x] = i1h2h3Row[o + 1];
+					r2[x] = i1h2h3Row[o + 2];
+				}
+				break;
+			}
+			case RGB_TO_LAB: {
+				final int[] rgbs = getRGBRow(icyb, y);
+				for (int x = 0; x < w; x++) {
+					final int rgb = rgbs[x] & 0xFFFFFF;
+					final int slot = (rgb * 0x9E3779B1) >>> (32 - LAB_CACHE_BITS);
+					final int o = NB_COLOR_CHANNELS * slot;
+					if (labKeys[slot] != rgb) {
+						linearToLab(LINEAR_8BIT[(rgb >> 16) & 0xFF], LINEAR_8BIT[(rgb >> 8) & 0xFF], LINEAR_8BIT[rgb & 0xFF], col);
+						labKeys[slot] = rgb;
+						labValues[o] = col[0];
+						labValues[o + 1] = col[1];
+						labValues[o + 2] = col[2];
+					}
+					r0[x] = labValues[o];
+					r1[x] = labValues[o + 1];
+					r2[x] = labValues[o + 2];
+				}
+				break;
+			}
+			default: {
+				final int[] rgbs = getRGBRow(icyb, y);
+				for (int x = 0; x < w; x++) {
+					final int rgb = rgbs[x];
+					getColorComponentsD_0_255(colorSpace, (rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF, col);
+					r0[x] = col[0];
+					r1[x] = col[1];
+					r2[x] = col[2];
+				}
+				break;
+			}
+			}
+		}
+
+		/**
+		 * Gets the packed RGB values of a row, fetched at once.
+		 * 
+		 * @param icyb
+		 *            the icyb
+		 * @param y
+		 *            the y
+		 * @return the RGB values, in a buffer of at least w values
+		 */
+		private int[] getRGBRow(IcyBufferedImage icyb, int y) {
+			final int w = icyb.getWidth();
+			if ((rgbRow == null) || (rgbRow.length < w)) {
+				rgbRow = new int[w];
+			}
+			icyb.getRGB(0, y, w, 1, rgbRow, 0, w);
+			return rgbRow;
+		}
+
+		/**
+		 * Gets the values of a row of a channel, read from the data array of
+		 * the image as getDataAsDouble does, but without a call per pixel.
+		 * 
+		 * @param icyb
+		 *            the icyb
+		 * @param c
+		 *            the channel
+		 * @param y
+		 *            the y
+		 * @param out
+		 *            the values, w
+		 */
+		private static void getDataRow(IcyBufferedImage icyb, int c, int y, double[] out) {
+			final int w = icyb.getWidth();
+			final int o = y * w;
+			final boolean signed = icyb.isSignedDataType();
+			switch (icyb.getDataType()) {
+			case TypeUtil.TYPE_BYTE: {
+				final byte[] d = icyb.getDataXYAsByte(c);
+				final int mask = signed ? -1 : 0xFF;
+				for (int x = 0; x < w; x++) {
+					out[x] = d[o + x] & mask;
+				}
+				break;
+			}
+			case TypeUtil.TYPE_SHORT: {
+				final short[] d = icyb.getDataXYAsShort(c);
+				final int mask = signed ? -1 : 0xFFFF;
+				for (int x = 0; x < w; x++) {
+					out[x] = d[o + x] & mask;
+				}
+				break;
+			}
+			case TypeUtil.TYPE_INT: {
+				final int[] d = icyb.getDataXYAsInt(c);
+				for (int x = 0; x < w; x++) {
+					out[x] = signed ? d[o + x] : (d[o + x] & 0xFFFFFFFFL);
+				}
+				break;
+			}
+			case TypeUtil.TYPE_FLOAT: {
+				final float[] d = icyb.getDataXYAsFloat(c);
+				for (int x = 0; x < w; x++) {
+					out[x] = d[o + x];
+				}
+				break;
+			}
+			default: {
+				final double[] d = icyb.getDataXYAsDouble(c);
+				System.arraycopy(d, o, out, 0, w);
+				break;
+			}
+			}
+		}
+	}
+
+	/**
+	 * Converts a whole image to a color space, by row bands in parallel.
+	 * 
+	 * @param icyb
+	 *            the icyb
+	 * @param colorSpace
+	 *            the color space
+	 * @return the color components, planar, NB_COLOR_CHANNELS x (w x h)
+	 */
+	public static float[][] convert(IcyBufferedImage icyb, int colorSpace) {
+		float[][] out = new float[NB_COLOR_CHANNELS][icyb.getWidth() * icyb.getHeight()];
+		convert(icyb, colorSpace, 0, icyb.getHeight(), out);
+		return out;
+	}
+
+	/**
+	 * Converts a band of rows of an image to a color space, by sub-bands in
+	 * parallel.
+	 * 
+	 * @param icyb
+	 *            the icyb
+	 * @param colorSpace
+	 *            the color space
+	 * @param y1
+	 *            the y1
+	 * @param y2
+	 *            the y2, excluded
+	 * @param out
+	 *            the color components, planar, NB_COLOR_CHANNELS x (w x h),
+	 *            only the rows of the band are written
+	 */
+	public static void convert(final IcyBufferedImage icyb, final int colorSpace, final int y1, int y2, final float[][] out) {
+		final int w = icyb.getWidth();
+		ParallelBands.run(y2 - y1, MIN_BAND_HEIGHT, new ParallelBands.Band() {
+			@Override
+			public void run(int from, int to) {
+				RowConverter rc = new RowConverter(colorSpace);
+				double[][] row = new double[NB_COLOR_CHANNELS][w];
+				for (int y = y1 + from; y < y1 + to; y++) {
+					rc.convert(icyb, y, row);
+					final int o = y * w;
+					for (int c = 0; c < NB_COLOR_CHANNELS; c++) {
+						final double[] src = row[c];
+						final float[] oc = out[c];
+						for (int x = 0; x < w; x++) {
+							oc[o + x] = (float) src[x];
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Converts a band of rows of an image to a color space, by sub-bands in
+	 * parallel, keeping the double precision values.
+	 * 
+	 * @param icyb
+	 *            the icyb
+	 * @param colorSpace
+	 *            the color space
+	 * @param y1
+	 *            the y1
+	 * @param y2
+	 *            the y2, excluded
+	 * @param out
+	 *            the color components, planar, NB_COLOR_CHANNELS x (w x h),
+	 *            only the rows of the band are written
+	 */
+	public static void convert(final IcyBufferedImage icyb, final int colorSpace, final int y1, int y2, final double[][] out) {
+		final int w = icyb.getWidth();
+		ParallelBands.run(y2 - y1, MIN_BAND_HEIGHT, new ParallelBands.Band() {
+			@Override
+			public void run(int from, int to) {
+				RowConverter rc = new RowConverter(colorSpace);
+				double[][] row = new double[NB_COLOR_CHANNELS][w];
+				for (int y = y1 + from; y < y1 + to; y++) {
+					rc.convert(icyb, y, row);
+					for (int c = 0; c < NB_COLOR_CHANNELS; c++) {
+						System.arraycopy(row[c], 0, out[c], y * w, w);
+					}
+				}
+			}
+		});
+	}
+
 	/**
 	 * Creates the color space.
 	 * 
@@ -546,6 +905,48 @@ public class ColorSpaceTools {
 		return new SpecificColorSpace(mean.get(0), mean.get(1), mean.get(2), proj.get(0, 0), proj.get(0, 1), proj.get(0, 2), proj.get(1, 0), proj.get(1, 1), proj.get(1, 2), proj.get(2, 0), proj.get(2, 1), proj.get(2, 2));
 	}
 
+	/**
+	 * Creates the color space from the pixels of images, accumulated in
+	 * parallel without building any signature (see ColorSpaceFitter).
+	 * 
+	 * @param images
+	 *            the images
+	 * @param quantizeFirst
+	 *            the quantize first
+	 * @param sz
+	 *            the sz
+	 * @param reservoirSize
+	 *            the number of pixels sampled uniformly for the PCA, 0 to use
+	 *            them all
+	 * @return the specific color space
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	public static SpecificColorSpace createColorSpace(IcyBufferedImage[] images, boolean quantizeFirst, int sz, int reservoirSize) throws SignatureException {
+		return ColorSpaceFitter.accumulate(images, quantizeFirst ? sz : 0, reservoirSize, 0).createColorSpace();
+	}
+
+	/**
+	 * Creates the color space from arrays of packed RGB pixels, accumulated in
+	 * parallel.
+	 * 
+	 * @param rgbs
+	 *            the packed RGB pixels
+	 * @param quantizeFirst
+	 *            the quantize first
+	 * @param sz
+	 *            the sz
+	 * @param reservoirSize
+	 *            the number of pixels sampled uniformly for the PCA, 0 to use
+	 *            them all
+	 * @return the specific color space
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	public static SpecificColorSpace createColorSpace(int[][] rgbs, boolean quantizeFirst, int sz, int reservoirSize) throws SignatureException {
+		return ColorSpaceFitter.accumulate(rgbs, quantizeFirst ? sz : 0, reservoirSize, 0).createColorSpace();
+	}
+
 	/**
 	 * Sets the local color space.
 	 * 
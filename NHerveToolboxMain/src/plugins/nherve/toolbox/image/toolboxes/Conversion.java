@@ -27,6 +27,15 @@ public class Conversion {
 	
 	/** The Constant UNDEFINED. */
 	public static final int UNDEFINED = -1;
+	
+	/** The Constant MIN_BAND_HEIGHT. */
+	private static final int MIN_BAND_HEIGHT = 16;
+	
+	/** The Constant ONE_THIRD, as used by the H1H2H3 to RGB conversions. */
+	private static final float ONE_THIRD = 1.f / 3.f;
+	
+	/** The Constant TWO_THIRDS, as used by the H1H2H3 to RGB conversions. */
+	private static final float TWO_THIRDS = 2.0f / 3.0f;
 
 	/**
 	 * Instantiates a new conversion.
@@ -167,6 +176,216 @@ public class Conversion {
 		return (retour);
 	}
 
+	// Bulk RGB <-> I1H2H3, the pixels being packed RGB ints as given by getRGB
+
+	/**
+	 * Converts packed RGB pixels to I1H2H3, planar. Each pixel is decoded
+	 * once and converted with integer operations only, the values being the
+	 * ones of private_RGB_to_I1, private_RGB_to_H2 and private_RGB_to_H3 (the
+	 * rounded third of R + G + B and the rounded half of R + G - 2 * B).
+	 * 
+	 * @param rgb
+	 *            the packed RGB pixels
+	 * @param from
+	 *            the from
+	 * @param to
+	 *            the to, excluded
+	 * @param i1
+	 *            the i1
+	 * @param h2
+	 *            the h2
+	 * @param h3
+	 *            the h3
+	 */
+	public static void RGB_to_I1H2H3(int[] rgb, int from, int to, int[] i1, int[] h2, int[] h3) {
+		for (int i = from; i < to; i++) {
+			final int p = rgb[i];
+			final int r = (p >> 16) & 0xFF;
+			final int g = (p >> 8) & 0xFF;
+			final int b = p & 0xFF;
+			i1[i] = (r + g + b + 1) / 3;
+			h2[i] = r - g;
+			h3[i] = (r + g - 2 * b + 1) >> 1;
+		}
+	}
+
+	/**
+	 * Converts packed RGB pixels to I1H2H3, interleaved.
+	 * 
+	 * @param rgb
+	 *            the packed RGB pixels
+	 * @param from
+	 *            the from
+	 * @param to
+	 *            the to, excluded
+	 * @param i1h2h3
+	 *            the I1, H2 and H3 of the pixel i at 3 * i, 3 * i + 1 and 3 *
+	 *            i + 2
+	 */
+	public static void RGB_to_I1H2H3(int[] rgb, int from, int to, int[] i1h2h3) {
+		for (int i = from, o = 3 * from; i < to; i++, o += 3) {
+			final int p = rgb[i];
+			final int r = (p >> 16) & 0xFF;
+			final int g = (p >> 8) & 0xFF;
+			final int b = p & 0xFF;
+			i1h2h3[o] = (r + g + b + 1) / 3;
+			i1h2h3[o + 1] = r - g;
+			i1h2h3[o + 2] = (r + g - 2 * b + 1) >> 1;
+		}
+	}
+
+	/**
+	 * Converts H1H2H3 pixels, planar, to packed RGB, with the operations of
+	 * private_H1H2H3_to_R, private_H1H2H3_to_G and private_H1H2H3_to_B.
+	 * 
+	 * @param h1
+	 *            the h1
+	 * @param h2
+	 *            the h2
+	 * @param h3
+	 *            the h3
+	 * @param from
+	 *            the from
+	 * @param to
+	 *            the to, excluded
+	 * @param rgb
+	 *            the packed RGB pixels, opaque
+	 */
+	public static void H1H2H3_to_RGB(int[] h1, int[] h2, int[] h3, int from, int to, int[] rgb) {
+		for (int i = from; i < to; i++) {
+			rgb[i] = H1H2H3_to_RGB(h1[i], h2[i], h3[i]);
+		}
+	}
+
+	/**
+	 * Converts H1H2H3 pixels, interleaved, to packed RGB.
+	 * 
+	 * @param h1h2h3
+	 *            the H1, H2 and H3 of the pixel i at 3 * i, 3 * i + 1 and 3 *
+	 *            i + 2
+	 * @param from
+	 *            the from
+	 * @param to
+	 *            the to, excluded
+	 * @param rgb
+	 *            the packed RGB pixels, opaque
+	 */
+	public static void H1H2H3_to_RGB(int[] h1h2h3, int from, int to, int[] rgb) {
+		for (int i = from, o = 3 * from; i < to; i++, o += 3) {
+			rgb[i] = H1H2H3_to_RGB(h1h2h3[o], h1h2h3[o + 1], h1h2h3[o + 2]);
+		}
+	}
+
+	/**
+	 * Converts a H1H2H3 pixel to packed RGB.
+	 * 
+	 * @param H1
+	 *            the h1
+	 * @param H2
+	 *            the h2
+	 * @param H3
+	 *            the h3
+	 * @return the packed RGB pixel, opaque
+	 */
+	private static int H1H2H3_to_RGB(int H1, int H2, int H3) {
+		final float t = ONE_THIRD * H3;
+		final float R = (float) (H1 + 0.5 * H2 + t + 0.5);
+		final float G = (H1 - 0.5f * H2 + t + 0.5f);
+		final float B = (float) (H1 - TWO_THIRDS * H3 + 0.5);
+		final int r = Math.min((int) Math.max(R, 0), 255);
+		final int g = Math.min((int) Math.max(G, 0), 255);
+		final int b = Math.min((int) Math.max(B, 0), 255);
+		return 0xFF000000 | (r << 16) | (g << 8) | b;
+	}
+
+	/**
+	 * Converts a w x h image of packed RGB pixels to I1H2H3, planar, by row
+	 * bands in parallel.
+	 * 
+	 * @param rgb
+	 *            the packed RGB pixels
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param i1h2h3
+	 *            the I1, H2 and H3 planes, w x h each
+	 */
+	public static void image_RGB_to_I1H2H3(final int[] rgb, final int w, int h, final int[][] i1h2h3) {
+		ParallelBands.run(h, MIN_BAND_HEIGHT, new ParallelBands.Band() {
+			@Override
+			public void run(int from, int to) {
+				RGB_to_I1H2H3(rgb, from * w, to * w, i1h2h3[0], i1h2h3[1], i1h2h3[2]);
+			}
+		});
+	}
+
+	/**
+	 * Converts a w x h image of packed RGB pixels to I1H2H3, interleaved, by
+	 * row bands in parallel.
+	 * 
+	 * @param rgb
+	 *            the packed RGB pixels
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param i1h2h3
+	 *            the interleaved I1H2H3 pixels, 3 x w x h
+	 */
+	public static void image_RGB_to_I1H2H3(final int[] rgb, final int w, int h, final int[] i1h2h3) {
+		ParallelBands.run(h, MIN_BAND_HEIGHT, new ParallelBands.Band() {
+			@Override
+			public void run(int from, int to) {
+				RGB_to_I1H2H3(rgb, from * w, to * w, i1h2h3);
+			}
+		});
+	}
+
+	/**
+	 * Converts a w x h image of H1H2H3 pixels, planar, to packed RGB, by row
+	 * bands in parallel.
+	 * 
+	 * @param h1h2h3
+	 *            the H1, H2 and H3 planes, w x h each
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param rgb
+	 *            the packed RGB pixels
+	 */
+	public static void image_H1H2H3_to_RGB(final int[][] h1h2h3, final int w, int h, final int[] rgb) {
+		ParallelBands.run(h, MIN_BAND_HEIGHT, new ParallelBands.Band() {
+			@Override
+			public void run(int from, int to) {
+				H1H2H3_to_RGB(h1h2h3[0], h1h2h3[1], h1h2h3[2], from * w, to * w, rgb);
+			}
+		});
+	}
+
+	/**
+	 * Converts a w x h image of H1H2H3 pixels, interleaved, to packed RGB, by
+	 * row bands in parallel.
+	 * 
+	 * @param h1h2h3
+	 *            the interleaved H1H2H3 pixels, 3 x w x h
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param rgb
+	 *            the packed RGB pixels
+	 */
+	public static void image_H1H2H3_to_RGB(final int[] h1h2h3, final int w, int h, final int[] rgb) {
+		ParallelBands.run(h, MIN_BAND_HEIGHT, new ParallelBands.Band() {
+			@Override
+			public void run(int from, int to) {
+				H1H2H3_to_RGB(h1h2h3, from * w, to * w, rgb);
+			}
+		});
+	}
+
 	// RGB to I1I2I3
 
 	/**
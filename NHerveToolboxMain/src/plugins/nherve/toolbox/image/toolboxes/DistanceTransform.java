@@ -0,0 +1,330 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ *
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ *
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.toolboxes;
+
+import plugins.nherve.toolbox.image.BinaryIcyBufferedImage;
+
+/**
+ * Exact Euclidean distance transform (Meijster, Roerdink and Hesselink), in
+ * linear time : a vertical pass computes, for each pixel, the distance to
+ * the nearest target pixel of its column, then a horizontal pass computes
+ * the lower envelope of the parabolas of each row. The distance based
+ * operations below thus cost the same whatever the radius.
+ *
+ * Squared distances are returned as ints and saturate to Integer.MAX_VALUE
+ * when there is no target pixel.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class DistanceTransform {
+
+	/**
+	 * Squared distance from each pixel to the nearest pixel having the target
+	 * value.
+	 *
+	 * @param raw
+	 *            the raw binary data
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param target
+	 *            the target value (BinaryIcyBufferedImage.TRUE or FALSE)
+	 * @return the squared distances
+	 */
+	public static int[] squaredDistance(byte[] raw, int w, int h, byte target) {
+		final int sz = w * h;
+		final int inf = w + h;
+		int[] g = new int[sz];
+
+		// vertical pass, row by row to stay cache friendly
+		for (int x = 0; x < w; x++) {
+			g[x] = (raw[x] == target) ? 0 : inf;
+		}
+		for (int y = 1, o = w; y < h; y++, o += w) {
+			for (int x = 0; x < w; x++) {
+				g[o + x] = (raw[o + x] == target) ? 0 : Math.min(inf, g[o - w + x] + 1);
+			}
+		}
+		for (int y = h - 2, o = (h - 2) * w; y >= 0; y--, o -= w) {
+			for (int x = 0; x < w; x++) {
+				final int below = g[o + w + x] + 1;
+				if (below < g[o + x]) {
+					g[o + x] = below;
+				}
+			}
+		}
+
+		// horizontal pass, lower envelope of the parabolas (x - i)^2 + g(i)^2
+		int[] dt = new int[sz];
+		int[] s = new int[w];
+		int[] t = new int[w];
+		long[] g2 = new long[w];
+		for (int y = 0, o = 0; y < h; y++, o += w) {
+			for (int x = 0; x < w; x++) {
+				long gi = g[o + x];
+				g2[x] = gi * gi;
+			}
+
+			int q = 0;
+			s[0] = 0;
+			t[0] = 0;
+			for (int u = 1; u < w; u++) {
+				while ((q >= 0) && (f(t[q], s[q], g2) > f(t[q], u, g2))) {
+					q--;
+				}
+				if (q < 0) {
+					q = 0;
+					s[0] = u;
+				} else {
+					long num = (long) u * u - (long) s[q] * s[q] + g2[u] - g2[s[q]];
+					long den = 2L * (u - s[q]);
+					long sep = (num >= 0) ? num / den : -((-num + den - 1) / den);
+					long wv = 1 + sep;
+					if (wv < w) {
+						q++;
+						s[q] = u;
+						t[q] = (int) wv;
+					}
+				}
+			}
+
+			for (int u = w - 1; u >= 0; u--) {
+				final int i = s[q];
+				if (g[o + i] >= inf) {
+					dt[o + u] = Integer.MAX_VALUE;
+				} else {
+					dt[o + u] = (int) Math.min(Integer.MAX_VALUE, f(u, i, g2));
+				}
+				if (u == t[q]) {
+					q--;
+				}
+			}
+		}
+
+		return dt;
+	}
+
+	/**
+	 * F.
+	 *
+	 * @param x
+	 *            the x
+	 * @param i
+	 *            the i
+	 * @param g2
+	 *            the squared column distances
+	 * @return the squared distance from x to the nearest target of column i
+	 */
+	private static long f(int x, int i, long[] g2) {
+		long d = x - i;
+		return d * d + g2[i];
+	}
+
+	/**
+	 * Squared distance from each pixel to the nearest TRUE pixel (0 for the
+	 * TRUE pixels).
+	 *
+	 * @param in
+	 *            the in
+	 * @return the squared distances
+	 */
+	public static int[] squaredDistanceMap(BinaryIcyBufferedImage in) {
+		return squaredDistance(in.getRawData(), in.getWidth(), in.getHeight(), BinaryIcyBufferedImage.TRUE);
+	}
+
+	/**
+	 * Distance from each pixel to the nearest TRUE pixel (0 for the TRUE
+	 * pixels).
+	 *
+	 * @param in
+	 *            the in
+	 * @return the distances
+	 */
+	public static float[] distanceMap(BinaryIcyBufferedImage in) {
+		int[] d2 = squaredDistanceMap(in);
+		float[] d = new float[d2.length];
+		for (int i = 0; i < d2.length; i++) {
+			d[i] = (d2[i] == Integer.MAX_VALUE) ? Float.POSITIVE_INFINITY : (float) Math.sqrt(d2[i]);
+		}
+		return d;
+	}
+
+	/**
+	 * Signed distance map : the distance to the nearest TRUE pixel outside of
+	 * the mask, minus the distance to the nearest FALSE pixel inside.
+	 *
+	 * @param in
+	 *            the in
+	 * @return the signed distances
+	 */
+	public static float[] signedDistanceMap(BinaryIcyBufferedImage in) {
+		final byte[] raw = in.getRawData();
+		final int w = in.getWidth();
+		final int h = in.getHeight();
+		int[] out = squaredDistance(raw, w, h, BinaryIcyBufferedImage.TRUE);
+		int[] inside = squaredDistance(raw, w, h, BinaryIcyBufferedImage.FALSE);
+		float[] d = new float[raw.length];
+		for (int i = 0; i < raw.length; i++) {
+			if (raw[i] == BinaryIcyBufferedImage.TRUE) {
+				d[i] = (inside[i] == Integer.MAX_VALUE) ? Float.NEGATIVE_INFINITY : -(float) Math.sqrt(inside[i]);
+			} else {
+				d[i] = (out[i] == Integer.MAX_VALUE) ? Float.POSITIVE_INFINITY : (float) Math.sqrt(out[i]);
+			}
+		}
+		return d;
+	}
+
+	/**
+	 * Dilation by a disk : all the pixels at a distance lower or equal to
+	 * the radius of a TRUE pixel become TRUE.
+	 *
+	 * @param raw
+	 *            the raw binary data
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param radius
+	 *            the radius
+	 * @param out
+	 *            the result, may be raw
+	 */
+	public static void dilate(byte[] raw, int w, int h, double radius, byte[] out) {
+		threshold(squaredDistance(raw, w, h, BinaryIcyBufferedImage.TRUE), radius * radius, true, out);
+	}
+
+	/**
+	 * Erosion by a disk : only the TRUE pixels farther than the radius from
+	 * any FALSE pixel stay TRUE. Pixels outside of the image are ignored.
+	 *
+	 * @param raw
+	 *            the raw binary data
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param radius
+	 *            the radius
+	 * @param out
+	 *            the result, may be raw
+	 */
+	public static void erode(byte[] raw, int w, int h, double radius, byte[] out) {
+		threshold(squaredDistance(raw, w, h, BinaryIcyBufferedImage.FALSE), radius * radius, false, out);
+	}
+
+	/**
+	 * Threshold.
+	 *
+	 * @param d2
+	 *            the squared distances
+	 * @param r2
+	 *            the squared radius
+	 * @param within
+	 *            TRUE for the pixels within the radius, FALSE for the others
+	 * @param out
+	 *            the out
+	 */
+	private static void threshold(int[] d2, double r2, boolean within, byte[] out) {
+		final byte in = within ? BinaryIcyBufferedImage.TRUE : BinaryIcyBufferedImage.FALSE;
+		final byte beyond = within ? BinaryIcyBufferedImage.FALSE : BinaryIcyBufferedImage.TRUE;
+		for (int i = 0; i < d2.length; i++) {
+			out[i] = (d2[i] <= r2) ? in : beyond;
+		}
+	}
+
+	/**
+	 * Dilate in place by a disk.
+	 *
+	 * @param in
+	 *            the in
+	 * @param radius
+	 *            the radius
+	 */
+	public static void dilateInPlace(BinaryIcyBufferedImage in, double radius) {
+		byte[] raw = in.getRawData();
+		dilate(raw, in.getWidth(), in.getHeight(), radius, raw);
+		in.dataChanged();
+	}
+
+	/**
+	 * Erode in place by a disk.
+	 *
+	 * @param in
+	 *            the in
+	 * @param radius
+	 *            the radius
+	 */
+	public static void erodeInPlace(BinaryIcyBufferedImage in, double radius) {
+		byte[] raw = in.getRawData();
+		erode(raw, in.getWidth(), in.getHeight(), radius, raw);
+		in.dataChanged();
+	}
+
+	/**
+	 * Medial axis : the TRUE pixels that are centers of locally maximal
+	 * disks, i.e. whose inscribed disk is not contained in the inscribed disk
+	 * of one of their 8 neighbours.
+	 *
+	 * @param in
+	 *            the in
+	 * @return the medial axis
+	 */
+	public static BinaryIcyBufferedImage medialAxis(BinaryIcyBufferedImage in) {
+		final byte[] raw = in.getRawData();
+		final int w = in.getWidth();
+		final int h = in.getHeight();
+		int[] d2 = squaredDistance(raw, w, h, BinaryIcyBufferedImage.FALSE);
+
+		BinaryIcyBufferedImage res = new BinaryIcyBufferedImage(w, h);
+		byte[] out = res.getRawData();
+		final double diag = Math.sqrt(2);
+		for (int y = 0, o = 0; y < h; y++) {
+			for (int x = 0; x < w; x++, o++) {
+				if (raw[o] != BinaryIcyBufferedImage.TRUE) {
+					continue;
+				}
+				final double r = Math.sqrt(d2[o]);
+				boolean maximal = true;
+				for (int dy = -1; maximal && (dy <= 1); dy++) {
+					final int yy = y + dy;
+					if ((yy < 0) || (yy >= h)) {
+						continue;
+					}
+					for (int dx = -1; dx <= 1; dx++) {
+						final int xx = x + dx;
+						if (((dx == 0) && (dy == 0)) || (xx < 0) || (xx >= w)) {
+							continue;
+						}
+						final double step = ((dx != 0) && (dy != 0)) ? diag : 1;
+						if (Math.sqrt(d2[yy * w + xx]) >= r + step) {
+							maximal = false;
+							break;
+						}
+					}
+				}
+				if (maximal) {
+					out[o] = BinaryIcyBufferedImage.TRUE;
+				}
+			}
+		}
+		res.dataChanged();
+		return res;
+	}
+}
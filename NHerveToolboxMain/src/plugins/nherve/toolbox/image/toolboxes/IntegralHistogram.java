@@ -0,0 +1,182 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ *
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ *
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.toolboxes;
+
+import java.util.Arrays;
+
+/**
+ * Integral histogram : one integral image of counts per bin, built from an
+ * image of bin indices. The histogram of any rectangle is obtained in
+ * O(bins), whatever its size, from 4 contiguous runs of the table.
+ *
+ * The table holds (w + 1) x (h + 1) x bins ints, bins innermost. Use
+ * fits() before building one on a large image.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class IntegralHistogram {
+
+	/** The Constant DEFAULT_MAX_CELLS, 128 MB of table. */
+	public final static long DEFAULT_MAX_CELLS = 1L << 25;
+
+	/** The w. */
+	private final int w;
+
+	/** The h. */
+	private final int h;
+
+	/** The nb bins. */
+	private final int nbBins;
+
+	/** The table. */
+	private final int[] table;
+
+	/**
+	 * Instantiates a new integral histogram.
+	 *
+	 * @param bins
+	 *            the bin index of each pixel, in [0, nbBins[
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param nbBins
+	 *            the nb bins
+	 * @throws ArrayIndexOutOfBoundsException
+	 *             if a bin index is out of range
+	 */
+	public IntegralHistogram(int[] bins, int w, int h, int nbBins) {
+		super();
+		this.w = w;
+		this.h = h;
+		this.nbBins = nbBins;
+
+		final int stride = (w + 1) * nbBins;
+		table = new int[(int) getNbCells(w, h, nbBins)];
+		int[] row = new int[nbBins];
+		for (int y = 0; y < h; y++) {
+			Arrays.fill(row, 0);
+			int up = y * stride + nbBins;
+			int dst = up + stride;
+			for (int x = 0, i = y * w; x < w; x++, i++) {
+				row[bins[i]]++;
+				for (int b = 0; b < nbBins; b++) {
+					table[dst + b] = table[up + b] + row[b];
+				}
+				up += nbBins;
+				dst += nbBins;
+			}
+		}
+	}
+
+	/**
+	 * Gets the nb cells of the table.
+	 *
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param nbBins
+	 *            the nb bins
+	 * @return the nb cells
+	 */
+	public static long getNbCells(int w, int h, int nbBins) {
+		return (w + 1L) * (h + 1L) * nbBins;
+	}
+
+	/**
+	 * Checks if an integral histogram stays below DEFAULT_MAX_CELLS.
+	 *
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param nbBins
+	 *            the nb bins
+	 * @return true, if it fits
+	 */
+	public static boolean fits(int w, int h, int nbBins) {
+		return getNbCells(w, h, nbBins) <= DEFAULT_MAX_CELLS;
+	}
+
+	/**
+	 * Gets the histogram of a rectangle, clipped to the image.
+	 *
+	 * @param x1
+	 *            the x1
+	 * @param y1
+	 *            the y1
+	 * @param x2
+	 *            the x2, excluded
+	 * @param y2
+	 *            the y2, excluded
+	 * @param result
+	 *            the counts, nbBins long, may be null
+	 * @return the counts
+	 */
+	public int[] getHistogram(int x1, int y1, int x2, int y2, int[] result) {
+		if (result == null) {
+			result = new int[nbBins];
+		}
+		x1 = Math.max(x1, 0);
+		y1 = Math.max(y1, 0);
+		x2 = Math.min(x2, w);
+		y2 = Math.min(y2, h);
+		if ((x1 >= x2) || (y1 >= y2)) {
+			Arrays.fill(result, 0, nbBins, 0);
+			return result;
+		}
+		final int stride = (w + 1) * nbBins;
+		final int a = y1 * stride + x1 * nbBins;
+		final int b = y1 * stride + x2 * nbBins;
+		final int c = y2 * stride + x1 * nbBins;
+		final int d = y2 * stride + x2 * nbBins;
+		for (int i = 0; i < nbBins; i++) {
+			result[i] = table[d + i] - table[b + i] - table[c + i] + table[a + i];
+		}
+		return result;
+	}
+
+	/**
+	 * Gets the nb bins.
+	 *
+	 * @return the nb bins
+	 */
+	public int getNbBins() {
+		return nbBins;
+	}
+
+	/**
+	 * Gets the width.
+	 *
+	 * @return the width
+	 */
+	public int getWidth() {
+		return w;
+	}
+
+	/**
+	 * Gets the height.
+	 *
+	 * @return the height
+	 */
+	public int getHeight() {
+		return h;
+	}
+}
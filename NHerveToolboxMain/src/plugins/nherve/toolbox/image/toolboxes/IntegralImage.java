@@ -0,0 +1,290 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ *
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ *
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.toolboxes;
+
+import icy.image.IcyBufferedImage;
+
+import java.util.Arrays;
+
+/**
+ * Multi channel integral image (summed area table). The sum, mean and
+ * variance of any rectangle are obtained with 4 lookups per channel, whatever
+ * its size.
+ *
+ * Rectangles are given as [x1, x2[ x [y1, y2[ and are clipped to the image.
+ * The tables are (w + 1) x (h + 1), channels innermost.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class IntegralImage {
+
+	/** The w. */
+	private final int w;
+
+	/** The h. */
+	private final int h;
+
+	/** The nb channels. */
+	private final int nbChannels;
+
+	/** The sums. */
+	private final double[] sums;
+
+	/** The sums of the squares, null if not computed. */
+	private final double[] squares;
+
+	/**
+	 * Instantiates a new integral image.
+	 *
+	 * @param data
+	 *            the data, w x h pixels, channels innermost
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param nbChannels
+	 *            the nb channels
+	 * @param withSquares
+	 *            also compute the sums of the squares, needed for the
+	 *            variance
+	 */
+	public IntegralImage(double[] data, int w, int h, int nbChannels, boolean withSquares) {
+		super();
+		this.w = w;
+		this.h = h;
+		this.nbChannels = nbChannels;
+
+		final int stride = (w + 1) * nbChannels;
+		sums = new double[stride * (h + 1)];
+		squares = withSquares ? new double[sums.length] : null;
+
+		double[] row = new double[nbChannels];
+		double[] row2 = new double[nbChannels];
+		for (int y = 0; y < h; y++) {
+			Arrays.fill(row, 0);
+			Arrays.fill(row2, 0);
+			int src = y * w * nbChannels;
+			int up = y * stride + nbChannels;
+			int dst = up + stride;
+			for (int x = 0; x < w; x++) {
+				for (int c = 0; c < nbChannels; c++) {
+					final double v = data[src++];
+					row[c] += v;
+					sums[dst + c] = sums[up + c] + row[c];
+					if (withSquares) {
+						row2[c] += v * v;
+						squares[dst + c] = squares[up + c] + row2[c];
+					}
+				}
+				up += nbChannels;
+				dst += nbChannels;
+			}
+		}
+	}
+
+	/**
+	 * Integral image of the color components of an image, in [0, 255].
+	 *
+	 * @param img
+	 *            the img
+	 * @param colorSpace
+	 *            the color space
+	 * @param withSquares
+	 *            the with squares
+	 * @return the integral image
+	 */
+	public static IntegralImage getColorIntegralImage(IcyBufferedImage img, int colorSpace, boolean withSquares) {
+		final int w = img.getWidth();
+		final int h = img.getHeight();
+		final int nbc = ColorSpaceTools.NB_COLOR_CHANNELS;
+		double[] data = new double[w * h * nbc];
+		ColorSpaceTools.RowConverter rc = new ColorSpaceTools.RowConverter(colorSpace);
+		double[][] row = new double[nbc][w];
+		int i = 0;
+		for (int y = 0; y < h; y++) {
+			rc.convert(img, y, row);
+			for (int x = 0; x < w; x++) {
+				for (int c = 0; c < nbc; c++) {
+					data[i++] = row[c][x];
+				}
+			}
+		}
+		return new IntegralImage(data, w, h, nbc, withSquares);
+	}
+
+	/**
+	 * Corner value.
+	 *
+	 * @param t
+	 *            the table
+	 * @param c
+	 *            the channel
+	 * @param x1
+	 *            the x1
+	 * @param y1
+	 *            the y1
+	 * @param x2
+	 *            the x2
+	 * @param y2
+	 *            the y2
+	 * @return the sum over the already clipped rectangle
+	 */
+	private double rect(double[] t, int c, int x1, int y1, int x2, int y2) {
+		final int stride = (w + 1) * nbChannels;
+		final int a = y1 * stride + c;
+		final int b = y2 * stride + c;
+		return t[b + x2 * nbChannels] - t[a + x2 * nbChannels] - t[b + x1 * nbChannels] + t[a + x1 * nbChannels];
+	}
+
+	/**
+	 * Gets the number of pixels of a rectangle, once clipped.
+	 *
+	 * @param x1
+	 *            the x1
+	 * @param y1
+	 *            the y1
+	 * @param x2
+	 *            the x2, excluded
+	 * @param y2
+	 *            the y2, excluded
+	 * @return the area
+	 */
+	public int getArea(int x1, int y1, int x2, int y2) {
+		final int dx = Math.min(x2, w) - Math.max(x1, 0);
+		final int dy = Math.min(y2, h) - Math.max(y1, 0);
+		return ((dx <= 0) || (dy <= 0)) ? 0 : dx * dy;
+	}
+
+	/**
+	 * Gets the sum of a channel over a rectangle.
+	 *
+	 * @param c
+	 *            the channel
+	 * @param x1
+	 *            the x1
+	 * @param y1
+	 *            the y1
+	 * @param x2
+	 *            the x2, excluded
+	 * @param y2
+	 *            the y2, excluded
+	 * @return the sum
+	 */
+	public double getSum(int c, int x1, int y1, int x2, int y2) {
+		if (getArea(x1, y1, x2, y2) == 0) {
+			return 0;
+		}
+		return rect(sums, c, Math.max(x1, 0), Math.max(y1, 0), Math.min(x2, w), Math.min(y2, h));
+	}
+
+	/**
+	 * Gets the sum of a channel over a run of a row.
+	 *
+	 * @param c
+	 *            the channel
+	 * @param y
+	 *            the y
+	 * @param x1
+	 *            the x1
+	 * @param x2
+	 *            the x2, excluded
+	 * @return the sum
+	 */
+	public double getRowSum(int c, int y, int x1, int x2) {
+		return getSum(c, x1, y, x2, y + 1);
+	}
+
+	/**
+	 * Gets the mean of a channel over a rectangle.
+	 *
+	 * @param c
+	 *            the channel
+	 * @param x1
+	 *            the x1
+	 * @param y1
+	 *            the y1
+	 * @param x2
+	 *            the x2, excluded
+	 * @param y2
+	 *            the y2, excluded
+	 * @return the mean, 0 for an empty rectangle
+	 */
+	public double getMean(int c, int x1, int y1, int x2, int y2) {
+		final int n = getArea(x1, y1, x2, y2);
+		return (n == 0) ? 0 : getSum(c, x1, y1, x2, y2) / n;
+	}
+
+	/**
+	 * Gets the variance of a channel over a rectangle.
+	 *
+	 * @param c
+	 *            the channel
+	 * @param x1
+	 *            the x1
+	 * @param y1
+	 *            the y1
+	 * @param x2
+	 *            the x2, excluded
+	 * @param y2
+	 *            the y2, excluded
+	 * @return the variance, 0 for an empty rectangle
+	 */
+	public double getVariance(int c, int x1, int y1, int x2, int y2) {
+		if (squares == null) {
+			throw new IllegalStateException("IntegralImage built without the sums of the squares");
+		}
+		final int n = getArea(x1, y1, x2, y2);
+		if (n == 0) {
+			return 0;
+		}
+		final int cx1 = Math.max(x1, 0);
+		final int cy1 = Math.max(y1, 0);
+		final int cx2 = Math.min(x2, w);
+		final int cy2 = Math.min(y2, h);
+		final double m = rect(sums, c, cx1, cy1, cx2, cy2) / n;
+		return Math.max(0, rect(squares, c, cx1, cy1, cx2, cy2) / n - m * m);
+	}
+
+	/**
+	 * Gets the width.
+	 *
+	 * @return the width
+	 */
+	public int getWidth() {
+		return w;
+	}
+
+	/**
+	 * Gets the height.
+	 *
+	 * @return the height
+	 */
+	public int getHeight() {
+		return h;
+	}
+
+	/**
+	 * Gets the nb channels.
+	 *
+	 * @return the nb channels
+	 */
+	public int getNbChannels() {
+		return nbChannels;
+	}
+}
@@ -0,0 +1,644 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ *
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ *
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.toolboxes;
+
+import java.util.Arrays;
+
+/**
+ * Median filter with the window of ConvolutionKernel2D.getMedianFilter : for
+ * the pixel of linear index p, the window is made of the 2 * hh + 1 runs [p +
+ * ky * w - hw, p + ky * w + hw] of linear indices, clipped to the image. Runs
+ * may thus wrap around the rows. The result is the element of rank n / 2 of
+ * the n values of the window.
+ *
+ * The window only depends on p, so all the algorithms slide along the linear
+ * index :
+ * <ul>
+ * <li>8 bits data : column histograms, updated in O(1) from the column one
+ * row above (Perreault and Hebert), with a coarse kernel histogram updated at
+ * each step and its fine buckets refreshed lazily</li>
+ * <li>16 bits data : sliding two levels kernel histogram (Huang)</li>
+ * <li>other data : sliding sorted window</li>
+ * </ul>
+ * All of them give exactly the same values as sorting the whole window.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class MedianFilter {
+
+	/** The Constant DEPTH_8. */
+	private final static int DEPTH_8 = 8;
+
+	/** The Constant DEPTH_16. */
+	private final static int DEPTH_16 = 16;
+
+	/** The Constant DEPTH_NONE, values that are not small integers. */
+	private final static int DEPTH_NONE = 0;
+
+	/** The Constant NEGATIVE_ZERO. */
+	private final static long NEGATIVE_ZERO = Double.doubleToRawLongBits(-0.0);
+
+	/** The data, one of them is null. */
+	private final double[] data;
+
+	/** The fdata. */
+	private final float[] fdata;
+
+	/** The w. */
+	private final int w;
+
+	/** The image size. */
+	private final int mx;
+
+	/** The half width. */
+	private final int hw;
+
+	/** The half height. */
+	private final int hh;
+
+	/** The result, one of them is null. */
+	private final double[] result;
+
+	/** The fresult. */
+	private final float[] fresult;
+
+	/**
+	 * Instantiates a new median filter.
+	 *
+	 * @param data
+	 *            the data
+	 * @param fdata
+	 *            the fdata
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param hw
+	 *            the hw
+	 * @param hh
+	 *            the hh
+	 * @param result
+	 *            the result
+	 * @param fresult
+	 *            the fresult
+	 */
+	private MedianFilter(double[] data, float[] fdata, int w, int h, int hw, int hh, double[] result, float[] fresult) {
+		super();
+		this.data = data;
+		this.fdata = fdata;
+		this.w = w;
+		this.mx = w * h;
+		this.hw = hw;
+		this.hh = hh;
+		this.result = result;
+		this.fresult = fresult;
+	}
+
+	/**
+	 * Median of the rows [y1, y2[.
+	 *
+	 * @param data
+	 *            the data
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param hw
+	 *            the half width
+	 * @param hh
+	 *            the half height
+	 * @param result
+	 *            the result
+	 * @param y1
+	 *            the first row
+	 * @param y2
+	 *            the last row, excluded
+	 */
+	public static void median(double[] data, int w, int h, int hw, int hh, double[] result, int y1, int y2) {
+		new MedianFilter(data, null, w, h, hw, hh, result, null).run(y1 * w, y2 * w);
+	}
+
+	/**
+	 * Median of the rows [y1, y2[, in single precision.
+	 *
+	 * @param data
+	 *            the data
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param hw
+	 *            the half width
+	 * @param hh
+	 *            the half height
+	 * @param result
+	 *            the result
+	 * @param y1
+	 *            the first row
+	 * @param y2
+	 *            the last row, excluded
+	 */
+	public static void median(float[] data, int w, int h, int hw, int hh, float[] result, int y1, int y2) {
+		new MedianFilter(null, data, w, h, hw, hh, null, result).run(y1 * w, y2 * w);
+	}
+
+	/**
+	 * Gets a value.
+	 *
+	 * @param i
+	 *            the i
+	 * @return the value
+	 */
+	private double get(int i) {
+		return (data != null) ? data[i] : fdata[i];
+	}
+
+	/**
+	 * Sets a result.
+	 *
+	 * @param p
+	 *            the p
+	 * @param v
+	 *            the v
+	 */
+	private void set(int p, double v) {
+		if (result != null) {
+			result[p] = v;
+		} else {
+			fresult[p] = (float) v;
+		}
+	}
+
+	/**
+	 * Runs the filter on [p1, p2[.
+	 *
+	 * @param p1
+	 *            the p1
+	 * @param p2
+	 *            the p2
+	 */
+	private void run(int p1, int p2) {
+		if (p1 >= p2) {
+			return;
+		}
+		final int lo = Math.max(0, p1 - hh * w - hw);
+		final int hi = (int) Math.min(mx, (long) p2 + (long) hh * w + hw);
+		final int depth = getDepth(lo, hi);
+
+		if (depth == DEPTH_NONE) {
+			runSorted(p1, p2);
+			return;
+		}
+
+		char[] q = new char[hi - lo];
+		for (int i = lo; i < hi; i++) {
+			q[i - lo] = (char) get(i);
+		}
+		if ((depth == DEPTH_8) && (w > 2 * hw + 1)) {
+			runColumns(q, lo, p1, p2);
+		} else {
+			runHistogram(q, lo, p1, p2);
+		}
+	}
+
+	/**
+	 * Gets the depth of the values of [lo, hi[.
+	 *
+	 * @param lo
+	 *            the lo
+	 * @param hi
+	 *            the hi
+	 * @return the depth
+	 */
+	private int getDepth(int lo, int hi) {
+		int depth = DEPTH_8;
+		for (int i = lo; i < hi; i++) {
+			final double v = get(i);
+			if (!(v >= 0) || (v > 65535) || (v != Math.rint(v)) || (Double.doubleToRawLongBits(v) == NEGATIVE_ZERO)) {
+				return DEPTH_NONE;
+			}
+			if (v > 255) {
+				depth = DEPTH_16;
+			}
+		}
+		return depth;
+	}
+
+	/**
+	 * Sliding sorted window.
+	 *
+	 * @param p1
+	 *            the p1
+	 * @param p2
+	 *            the p2
+	 */
+	private void runSorted(int p1, int p2) {
+		double[] win = new double[(2 * hw + 1) * (2 * hh + 1)];
+		int n = 0;
+		for (int ky = -hh; ky <= hh; ky++) {
+			final int s = Math.max(0, p1 + ky * w - hw);
+			final int e = Math.min(mx - 1, p1 + ky * w + hw);
+			for (int i = s; i <= e; i++) {
+				win[n++] = get(i);
+			}
+		}
+		Arrays.sort(win, 0, n);
+		set(p1, win[n / 2]);
+
+		for (int p = p1 + 1; p < p2; p++) {
+			for (int ky = -hh; ky <= hh; ky++) {
+				final int out = p - 1 + ky * w - hw;
+				final int in = p + ky * w + hw;
+				final boolean hasOut = (out >= 0) && (out < mx);
+				final boolean hasIn = (in >= 0) && (in < mx);
+				if (hasOut && hasIn) {
+					// only the values between the leaving and the entering ones move
+					final int po = search(win, n, get(out));
+					final double v = get(in);
+					int pi = search(win, n, v);
+					if (pi < 0) {
+						pi = -pi - 1;
+					}
+					if (pi > po) {
+						System.arraycopy(win, po + 1, win, po, pi - po - 1);
+						win[pi - 1] = v;
+					} else {
+						System.arraycopy(win, pi, win, pi + 1, po - pi);
+						win[pi] = v;
+					}
+				} else if (hasOut) {
+					final int pos = search(win, n, get(out));
+					System.arraycopy(win, pos + 1, win, pos, n - pos - 1);
+					n--;
+				} else if (hasIn) {
+					final double v = get(in);
+					int pos = search(win, n, v);
+					if (pos < 0) {
+						pos = -pos - 1;
+					}
+					System.arraycopy(win, pos, win, pos + 1, n - pos);
+					win[pos] = v;
+					n++;
+				}
+			}
+			set(p, win[n / 2]);
+		}
+	}
+
+	/**
+	 * Binary search with the total order of Double.compare, like
+	 * Arrays.sort.
+	 *
+	 * @param win
+	 *            the win
+	 * @param n
+	 *            the n
+	 * @param v
+	 *            the v
+	 * @return the index, or -(insertion point) - 1
+	 */
+	private static int search(double[] win, int n, double v) {
+		int l = 0;
+		int r = n - 1;
+		while (l <= r) {
+			final int m = (l + r) >>> 1;
+			final int c = Double.compare(win[m], v);
+			if (c < 0) {
+				l = m + 1;
+			} else if (c > 0) {
+				r = m - 1;
+			} else {
+				return m;
+			}
+		}
+		return -(l + 1);
+	}
+
+	/**
+	 * Sliding two levels histogram, for values up to 16 bits.
+	 *
+	 * @param q
+	 *            the quantized values, from lo
+	 * @param lo
+	 *            the lo
+	 * @param p1
+	 *            the p1
+	 * @param p2
+	 *            the p2
+	 */
+	private void runHistogram(char[] q, int lo, int p1, int p2) {
+		int[] coarse = new int[256];
+		int[] fine = new int[65536];
+		int n = 0;
+		for (int ky = -hh; ky <= hh; ky++) {
+			final int s = Math.max(0, p1 + ky * w - hw);
+			final int e = Math.min(mx - 1, p1 + ky * w + hw);
+			for (int i = s; i <= e; i++) {
+				final int v = q[i - lo];
+				coarse[v >> 8]++;
+				fine[v]++;
+				n++;
+			}
+		}
+		set(p1, rank(coarse, fine, n / 2));
+
+		for (int p = p1 + 1; p < p2; p++) {
+			for (int ky = -hh; ky <= hh; ky++) {
+				final int out = p - 1 + ky * w - hw;
+				final int in = p + ky * w + hw;
+				if ((out >= 0) && (out < mx)) {
+					final int v = q[out - lo];
+					coarse[v >> 8]--;
+					fine[v]--;
+					n--;
+				}
+				if ((in >= 0) && (in < mx)) {
+					final int v = q[in - lo];
+					coarse[v >> 8]++;
+					fine[v]++;
+					n++;
+				}
+			}
+			set(p, rank(coarse, fine, n / 2));
+		}
+	}
+
+	/**
+	 * Value of rank k in a two levels histogram of 256 x 256 bins.
+	 *
+	 * @param coarse
+	 *            the coarse
+	 * @param fine
+	 *            the fine
+	 * @param k
+	 *            the k
+	 * @return the value
+	 */
+	private static int rank(int[] coarse, int[] fine, int k) {
+		int c = 0;
+		while (k >= coarse[c]) {
+			k -= coarse[c];
+			c++;
+		}
+		int v = c << 8;
+		while (k >= fine[v]) {
+			k -= fine[v];
+			v++;
+		}
+		return v;
+	}
+
+	/**
+	 * Perreault and Hebert, for 8 bits values. The column histogram of the
+	 * linear index c holds the values c + ky * w, it is stored in the slot c
+	 * mod w and computed from the column c - w with one removal and one
+	 * insertion. The kernel coarse histogram (16 buckets) is updated with the
+	 * entering and leaving columns at each step, its fine buckets (16 values
+	 * each) only when the median search needs them.
+	 *
+	 * @param q
+	 *            the quantized values, from lo
+	 * @param lo
+	 *            the lo
+	 * @param p1
+	 *            the p1
+	 * @param p2
+	 *            the p2
+	 */
+	private void runColumns(char[] q, int lo, int p1, int p2) {
+		final int kw = 2 * hw + 1;
+		final int first = p1 - hw;
+		char[] colFine = new char[w * 256];
+		char[] colCoarse = new char[w * 16];
+
+		int[] kCoarse = new int[16];
+		int[] kFine = new int[256];
+		long[] stamp = new long[16];
+
+		// columns of the first window
+		for (int c = first; c < first + kw; c++) {
+			buildColumn(q, lo, c, colFine, colCoarse);
+			final int so = slot(c) * 16;
+			for (int b = 0; b < 16; b++) {
+				kCoarse[b] += colCoarse[so + b];
+			}
+		}
+		Arrays.fill(stamp, Long.MIN_VALUE);
+		set(p1, columnsRank(colFine, colCoarse, kCoarse, kFine, stamp, p1, first));
+
+		// the fine buckets can be updated incrementally while the columns they were computed with are still there
+		final int maxGap = Math.min(kw, w - 2 * hw);
+		for (int p = p1 + 1; p < p2; p++) {
+			final int leaving = p - 1 - hw;
+			final int entering = p + hw;
+
+			int so = slot(leaving) * 16;
+			for (int b = 0; b < 16; b++) {
+				kCoarse[b] -= colCoarse[so + b];
+			}
+
+			if (entering - w >= first) {
+				updateColumn(q, lo, entering, colFine, colCoarse);
+			} else {
+				buildColumn(q, lo, entering, colFine, colCoarse);
+			}
+
+			so = slot(entering) * 16;
+			for (int b = 0; b < 16; b++) {
+				kCoarse[b] += colCoarse[so + b];
+			}
+
+			// rank n / 2
+			int n = 0;
+			for (int b = 0; b < 16; b++) {
+				n += kCoarse[b];
+			}
+			int k = n / 2;
+			int c = 0;
+			while (k >= kCoarse[c]) {
+				k -= kCoarse[c];
+				c++;
+			}
+
+			// refresh the fine bucket c
+			final long gap = p - stamp[c];
+			final int fo = c * 16;
+			if (gap >= maxGap) {
+				Arrays.fill(kFine, fo, fo + 16, 0);
+				for (int col = p - hw; col <= p + hw; col++) {
+					final int cf = slot(col) * 256 + fo;
+					for (int b = 0; b < 16; b++) {
+						kFine[fo + b] += colFine[cf + b];
+					}
+				}
+			} else if (gap > 0) {
+				final int from = (int) stamp[c];
+				for (int col = from - hw; col < p - hw; col++) {
+					final int cf = slot(col) * 256 + fo;
+					for (int b = 0; b < 16; b++) {
+						kFine[fo + b] -= colFine[cf + b];
+					}
+				}
+				for (int col = from + hw + 1; col <= p + hw; col++) {
+					final int cf = slot(col) * 256 + fo;
+					for (int b = 0; b < 16; b++) {
+						kFine[fo + b] += colFine[cf + b];
+					}
+				}
+			}
+			stamp[c] = p;
+
+			int v = fo;
+			while (k >= kFine[v]) {
+				k -= kFine[v];
+				v++;
+			}
+			set(p, v);
+		}
+	}
+
+	/**
+	 * Rank n / 2 of the first window, all the fine buckets are computed.
+	 *
+	 * @param colFine
+	 *            the col fine
+	 * @param colCoarse
+	 *            the col coarse
+	 * @param kCoarse
+	 *            the k coarse
+	 * @param kFine
+	 *            the k fine
+	 * @param stamp
+	 *            the stamp
+	 * @param p
+	 *            the p
+	 * @param first
+	 *            the first column
+	 * @return the value
+	 */
+	private int columnsRank(char[] colFine, char[] colCoarse, int[] kCoarse, int[] kFine, long[] stamp, int p, int first) {
+		for (int col = first; col < first + 2 * hw + 1; col++) {
+			final int cf = slot(col) * 256;
+			for (int b = 0; b < 256; b++) {
+				kFine[b] += colFine[cf + b];
+			}
+		}
+		Arrays.fill(stamp, p);
+		int n = 0;
+		for (int b = 0; b < 16; b++) {
+			n += kCoarse[b];
+		}
+		return rank16(kCoarse, kFine, n / 2);
+	}
+
+	/**
+	 * Value of rank k in a two levels histogram of 16 x 16 bins.
+	 *
+	 * @param coarse
+	 *            the coarse
+	 * @param fine
+	 *            the fine
+	 * @param k
+	 *            the k
+	 * @return the value
+	 */
+	private static int rank16(int[] coarse, int[] fine, int k) {
+		int c = 0;
+		while (k >= coarse[c]) {
+			k -= coarse[c];
+			c++;
+		}
+		int v = c << 4;
+		while (k >= fine[v]) {
+			k -= fine[v];
+			v++;
+		}
+		return v;
+	}
+
+	/**
+	 * Slot of a column.
+	 *
+	 * @param c
+	 *            the column linear index, may be negative
+	 * @return the slot
+	 */
+	private int slot(int c) {
+		final int s = c % w;
+		return (s < 0) ? s + w : s;
+	}
+
+	/**
+	 * Builds a column histogram from scratch.
+	 *
+	 * @param q
+	 *            the q
+	 * @param lo
+	 *            the lo
+	 * @param c
+	 *            the column
+	 * @param colFine
+	 *            the col fine
+	 * @param colCoarse
+	 *            the col coarse
+	 */
+	private void buildColumn(char[] q, int lo, int c, char[] colFine, char[] colCoarse) {
+		final int s = slot(c);
+		Arrays.fill(colFine, s * 256, s * 256 + 256, (char) 0);
+		Arrays.fill(colCoarse, s * 16, s * 16 + 16, (char) 0);
+		for (int ky = -hh; ky <= hh; ky++) {
+			final long i = (long) c + (long) ky * w;
+			if ((i >= 0) && (i < mx)) {
+				final int v = q[(int) i - lo];
+				colFine[s * 256 + v]++;
+				colCoarse[s * 16 + (v >> 4)]++;
+			}
+		}
+	}
+
+	/**
+	 * Turns the column c - w, stored in the same slot, into the column c.
+	 *
+	 * @param q
+	 *            the q
+	 * @param lo
+	 *            the lo
+	 * @param c
+	 *            the column
+	 * @param colFine
+	 *            the col fine
+	 * @param colCoarse
+	 *            the col coarse
+	 */
+	private void updateColumn(char[] q, int lo, int c, char[] colFine, char[] colCoarse) {
+		final int s = slot(c);
+		final long out = (long) c - (long) (hh + 1) * w;
+		final long in = (long) c + (long) hh * w;
+		if ((out >= 0) && (out < mx)) {
+			final int v = q[(int) out - lo];
+			colFine[s * 256 + v]--;
+			colCoarse[s * 16 + (v >> 4)]--;
+		}
+		if ((in >= 0) && (in < mx)) {
+			final int v = q[(int) in - lo];
+			colFine[s * 256 + v]++;
+			colCoarse[s * 16 + (v >> 4)]++;
+		}
+	}
+}
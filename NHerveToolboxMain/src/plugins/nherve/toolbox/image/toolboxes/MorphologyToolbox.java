@@ -18,14 +18,11 @@
  */
 package plugins.nherve.toolbox.image.toolboxes;
 
-import icy.sequence.Sequence;
-
 import java.util.Arrays;
-import java.util.Stack;
 
 import plugins.nherve.toolbox.Algorithm;
 import plugins.nherve.toolbox.image.BinaryIcyBufferedImage;
-import plugins.vannary.morphomaths.MorphOp;
+import plugins.nherve.toolbox.image.BitPackedBinaryData;
 
 /**
  * The Class MorphologyToolbox.
@@ -34,15 +31,6 @@ import plugins.vannary.morphomaths.MorphOp;
  */
 public class MorphologyToolbox {
 	
-	/** The Constant STD_ELEM. */
-	private final static double[][] STD_ELEM = new double[][] { { 1.0, 1.0, 1.0 }, { 1.0, 1.0, 1.0 }, { 1.0, 1.0, 1.0 } };
-	
-	/** The Constant STD_ELEM_CX. */
-	private final static int STD_ELEM_CX = 1;
-	
-	/** The Constant STD_ELEM_CY. */
-	private final static int STD_ELEM_CY = 1;
-
 	/**
 	 * Dilate.
 	 * 
@@ -63,9 +51,19 @@ public class MorphologyToolbox {
 	 *            the in
 	 */
 	public static void dilateInPlace(BinaryIcyBufferedImage in) {
-		Sequence sin = new Sequence(in);
-		MorphOp op = new MorphOp();
-		op.dilateGreyScale(sin, 0, STD_ELEM, STD_ELEM_CX, STD_ELEM_CY);
+		dilateInPlace(in, StructuringElement.STD_ELEM);
+	}
+
+	/**
+	 * Dilate in place.
+	 * 
+	 * @param in
+	 *            the in
+	 * @param se
+	 *            the structuring element
+	 */
+	public static void dilateInPlace(BinaryIcyBufferedImage in, StructuringElement se) {
+		replace(in, BinaryMorphology.dilate(BitPackedBinaryData.pack(in), se));
 	}
 
 	/**
@@ -88,9 +86,82 @@ public class MorphologyToolbox {
 	 *            the in
 	 */
 	public static void erodeInPlace(BinaryIcyBufferedImage in) {
-		Sequence sin = new Sequence(in);
-		MorphOp op = new MorphOp();
-		op.erodeGreyScale(sin, 0, STD_ELEM, STD_ELEM_CX, STD_ELEM_CY);
+		erodeInPlace(in, StructuringElement.STD_ELEM);
+	}
+
+	/**
+	 * Erode in place.
+	 * 
+	 * @param in
+	 *            the in
+	 * @param se
+	 *            the structuring element
+	 */
+	public static void erodeInPlace(BinaryIcyBufferedImage in, StructuringElement se) {
+		replace(in, BinaryMorphology.erode(BitPackedBinaryData.pack(in), se));
+	}
+
+	/**
+	 * Opening in place.
+	 * 
+	 * @param in
+	 *            the in
+	 * @param se
+	 *            the structuring element
+	 */
+	public static void openInPlace(BinaryIcyBufferedImage in, StructuringElement se) {
+		replace(in, BinaryMorphology.open(BitPackedBinaryData.pack(in), se));
+	}
+
+	/**
+	 * Closing in place.
+	 * 
+	 * @param in
+	 *            the in
+	 * @param se
+	 *            the structuring element
+	 */
+	public static void closeInPlace(BinaryIcyBufferedImage in, StructuringElement se) {
+		replace(in, BinaryMorphology.close(BitPackedBinaryData.pack(in), se));
+	}
+
+	/**
+	 * White top-hat : the pixels removed by the opening.
+	 * 
+	 * @param in
+	 *            the in
+	 * @param se
+	 *            the structuring element
+	 * @return the binary icy buffered image
+	 */
+	public static BinaryIcyBufferedImage topHat(BinaryIcyBufferedImage in, StructuringElement se) {
+		return BinaryMorphology.topHat(BitPackedBinaryData.pack(in), se).unpack();
+	}
+
+	/**
+	 * Black top-hat : the pixels added by the closing.
+	 * 
+	 * @param in
+	 *            the in
+	 * @param se
+	 *            the structuring element
+	 * @return the binary icy buffered image
+	 */
+	public static BinaryIcyBufferedImage blackTopHat(BinaryIcyBufferedImage in, StructuringElement se) {
+		return BinaryMorphology.blackTopHat(BitPackedBinaryData.pack(in), se).unpack();
+	}
+
+	/**
+	 * Replaces the pixels of an image with the result of a packed operation.
+	 * 
+	 * @param in
+	 *            the in
+	 * @param result
+	 *            the result
+	 */
+	private static void replace(BinaryIcyBufferedImage in, BitPackedBinaryData result) {
+		result.unpackInto(in.getRawData());
+		in.dataChanged();
 	}
 
 	/**
@@ -152,68 +223,52 @@ public class MorphologyToolbox {
 	}
 
 	/**
-	 * Fill holes in place.
+	 * Fill holes in place : the background is flooded, 4-connected, from the
+	 * border of the image and all the pixels it does not reach become TRUE.
 	 * 
 	 * @param in
 	 *            the in
 	 */
 	public static void fillHolesInPlace(BinaryIcyBufferedImage in) {
+		fillHolesInPlace(in, false);
+	}
+
+	/**
+	 * Fill holes in place. The flooded background is marked in place with a
+	 * temporary value, no other buffer is needed.
+	 * 
+	 * @param in
+	 *            the in
+	 * @param eightConnected
+	 *            the connectivity of the background
+	 */
+	public static void fillHolesInPlace(BinaryIcyBufferedImage in, boolean eightConnected) {
 		byte[] rawBinaryData = in.getRawData();
 		int w = in.getWidth();
 		int h = in.getHeight();
 		int sz = w * h;
-		Stack<Integer> pixelsToVisit = new Stack<Integer>();
-		pixelsToVisit.ensureCapacity(sz);
-
-		byte[] temp = new byte[sz];
-		Arrays.fill(temp, BinaryIcyBufferedImage.FALSE);
 
-		for (int i = 0; i < w; i++)
-			if (rawBinaryData[i] == BinaryIcyBufferedImage.FALSE)
-				pixelsToVisit.add(i);
-
-		for (int left = 1, right = w - 1; left < sz; left += w, right += w) {
-			if (rawBinaryData[left] == BinaryIcyBufferedImage.FALSE)
-				pixelsToVisit.add(left);
-			if (rawBinaryData[right] == BinaryIcyBufferedImage.FALSE)
-				pixelsToVisit.add(right);
+		ScanlineFloodFill ff = new ScanlineFloodFill(w, h, eightConnected);
+		ScanlineFloodFill.ByteRegion background = new ScanlineFloodFill.ByteRegion(rawBinaryData, BinaryIcyBufferedImage.FALSE, BinaryIcyBufferedImage.FILLING);
+		for (int i = 0; i < w; i++) {
+			ff.fill(background, i, 0);
+			ff.fill(background, i, h - 1);
+		}
+		for (int j = 1; j < h - 1; j++) {
+			ff.fill(background, 0, j);
+			ff.fill(background, w - 1, j);
 		}
 
-		for (int i = sz - w; i < sz; i++)
-			if (rawBinaryData[i] == BinaryIcyBufferedImage.FALSE)
-				pixelsToVisit.add(i);
-
-		if (pixelsToVisit.isEmpty())
+		if (ff.getNbFilled() == 0)
 			Algorithm.err("fillHoles_2D was unable to find a background pixel for flooding");
 
-		while (!pixelsToVisit.isEmpty()) {
-			int index = pixelsToVisit.pop();
-			temp[index] = BinaryIcyBufferedImage.TRUE;
-
-			int inOff = index;
-			int i = index % w;
-			int j = index / w;
-
-			if (i > 0 && (temp[index - 1] == BinaryIcyBufferedImage.FALSE) && (rawBinaryData[inOff - 1] == BinaryIcyBufferedImage.FALSE)) {
-				pixelsToVisit.push(index - 1);
-			}
-			if (i < w - 1 && (temp[index + 1] == BinaryIcyBufferedImage.FALSE) && (rawBinaryData[inOff + 1] == BinaryIcyBufferedImage.FALSE)) {
-				pixelsToVisit.push(index + 1);
-			}
-			if (j > 0 && (temp[index - w] == BinaryIcyBufferedImage.FALSE) && (rawBinaryData[inOff - w] == BinaryIcyBufferedImage.FALSE)) {
-				pixelsToVisit.push(index - w);
-			}
-			if (j < h - 1 && (temp[index + w] == BinaryIcyBufferedImage.FALSE) && (rawBinaryData[inOff + w] == BinaryIcyBufferedImage.FALSE)) {
-				pixelsToVisit.push(index + w);
-			}
-		}
-
 		for (int i = 0; i < sz; i++) {
-			if (temp[i] == BinaryIcyBufferedImage.FALSE) {
-				rawBinaryData[i] = BinaryIcyBufferedImage.TRUE;
-			} else {
+			if (rawBinaryData[i] == BinaryIcyBufferedImage.FILLING) {
 				rawBinaryData[i] = BinaryIcyBufferedImage.FALSE;
+			} else {
+				rawBinaryData[i] = BinaryIcyBufferedImage.TRUE;
 			}
 		}
+		in.dataChanged();
 	}
 }
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ *
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ *
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.toolboxes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import plugins.nherve.toolbox.Algorithm;
+import plugins.nherve.toolbox.concurrent.TaskException;
+import plugins.nherve.toolbox.concurrent.TaskManager;
+
+/**
+ * Splits a range (pixels or rows) in bands processed in parallel on the
+ * second level task manager. The bands must be independent and may be run
+ * twice : if the task manager fails, the whole range is processed again in
+ * the calling thread. If the calling thread is interrupted, the bands not
+ * started yet are dropped and the range is left incomplete. In both cases,
+ * the bands already started are finished before returning, so that the
+ * buffers are never written behind the caller's back.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class ParallelBands {
+
+	/**
+	 * The work on a band.
+	 *
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	public interface Band {
+
+		/**
+		 * Processes [from, to[.
+		 *
+		 * @param from
+		 *            the from
+		 * @param to
+		 *            the to, excluded
+		 */
+		void run(int from, int to);
+	}
+
+	/** The Constant BANDS_PER_PROCESSOR. */
+	private final static int BANDS_PER_PROCESSOR = 4;
+
+	/**
+	 * The Class Worker.
+	 *
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	private static class Worker implements Callable<Integer> {
+
+		/** The band. */
+		private final Band band;
+
+		/** The from. */
+		private final int from;
+
+		/** The to. */
+		private final int to;
+
+		/** Set once the band is started or dropped. */
+		private final AtomicBoolean claimed;
+
+		/** Released when a started band is finished. */
+		private final CountDownLatch done;
+
+		/**
+		 * Instantiates a new worker.
+		 *
+		 * @param band
+		 *            the band
+		 * @param from
+		 *            the from
+		 * @param to
+		 *            the to
+		 */
+		public Worker(Band band, int from, int to) {
+			super();
+			this.band = band;
+			this.from = from;
+			this.to = to;
+			this.claimed = new AtomicBoolean(false);
+			this.done = new CountDownLatch(1);
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.Callable#call()
+		 */
+		@Override
+		public Integer call() throws Exception {
+			if (claimed.compareAndSet(false, true)) {
+				try {
+					band.run(from, to);
+				} finally {
+					done.countDown();
+				}
+			}
+			return 0;
+		}
+
+		/**
+		 * Drops the band if not started yet, waits for its end otherwise. The
+		 * interruptions received while waiting are kept for the caller.
+		 */
+		public void abort() {
+			if (claimed.compareAndSet(false, true)) {
+				return;
+			}
+			boolean interrupted = false;
+			while (true) {
+				try {
+					done.await();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Runs a band job over [0, n[ on the second level task manager.
+	 *
+	 * @param n
+	 *            the size of the range
+	 * @param minBandSize
+	 *            the min band size, below which the range is processed in
+	 *            the calling thread
+	 * @param band
+	 *            the band job
+	 * @return false if the calling thread has been interrupted and the range
+	 *         has not been fully processed
+	 */
+	public static boolean run(int n, int minBandSize, Band band) {
+		final int nbBands = getNbBands(n, minBandSize);
+		return runBands((nbBands > 1) ? TaskManager.getSecondLevelInstance() : null, nbBands, n, band);
+	}
+
+	/**
+	 * Runs a band job over [0, n[ on a given task manager.
+	 *
+	 * @param tm
+	 *            the task manager, the range is processed in the calling
+	 *            thread if null
+	 * @param n
+	 *            the size of the range
+	 * @param minBandSize
+	 *            the min band size, below which the range is processed in
+	 *            the calling thread
+	 * @param band
+	 *            the band job
+	 * @return false if the calling thread has been interrupted and the range
+	 *         has not been fully processed
+	 */
+	public static boolean run(TaskManager tm, int n, int minBandSize, Band band) {
+		return runBands(tm, getNbBands(n, minBandSize), n, band);
+	}
+
+	/**
+	 * Gets the number of bands.
+	 *
+	 * @param n
+	 *            the size of the range
+	 * @param minBandSize
+	 *            the min band size
+	 * @return the nb bands
+	 */
+	private static int getNbBands(int n, int minBandSize) {
+		return Math.min(n / Math.max(1, minBandSize), BANDS_PER_PROCESSOR * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Runs a band job over [0, n[ split in nbBands bands.
+	 *
+	 * @param tm
+	 *            the task manager
+	 * @param nbBands
+	 *            the nb bands
+	 * @param n
+	 *            the size of the range
+	 * @param band
+	 *            the band job
+	 * @return false if interrupted
+	 */
+	private static boolean runBands(TaskManager tm, int nbBands, int n, Band band) {
+		if ((tm == null) || (nbBands < 2)) {
+			band.run(0, n);
+			return true;
+		}
+
+		List<Worker> workers = new ArrayList<Worker>();
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		try {
+			for (int b = 0; b < nbBands; b++) {
+				final int from = (int) ((long) n * b / nbBands);
+				final int to = (int) ((long) n * (b + 1) / nbBands);
+				Worker w = new Worker(band, from, to);
+				workers.add(w);
+				results.add(tm.submit(w));
+			}
+			tm.waitResults(results, "Bands", 0);
+			return true;
+		} catch (TaskException e) {
+			Algorithm.err(e);
+		} catch (InterruptedException e) {
+			for (Future<Integer> f : results) {
+				f.cancel(false);
+			}
+			abort(workers);
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		abort(workers);
+		band.run(0, n);
+		return true;
+	}
+
+	/**
+	 * Drops the pending workers and waits for the running ones.
+	 *
+	 * @param workers
+	 *            the workers
+	 */
+	private static void abort(List<Worker> workers) {
+		for (Worker w : workers) {
+			w.abort();
+		}
+	}
+}
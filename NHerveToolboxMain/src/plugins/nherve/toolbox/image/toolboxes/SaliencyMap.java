@@ -0,0 +1,448 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ *
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ *
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.toolboxes;
+
+import java.util.Arrays;
+
+import plugins.nherve.toolbox.image.BinaryIcyBufferedImage;
+import plugins.nherve.toolbox.image.feature.ConvolutionKernel2D;
+import edu.emory.mathcs.jtransforms.fft.DoubleFFT_2D;
+
+/**
+ * Saliency map of a detection map : each detected pixel (value > 0) spreads
+ * a Gaussian of height max / (sigma * sqrt(2 * PI)), truncated to a
+ * (6 * sigma + 1)^2 square, weighted by its value.
+ *
+ * Sparse maps are splatted directly. Otherwise, as the Gaussian is
+ * separable, the map is computed as a horizontal pass, which only visits the
+ * detected pixels, followed by a vertical pass over the rows reached by some
+ * detections, or through the FFT for large sigmas. The work is split in row
+ * bands processed in parallel. The pixels outside the image are zero.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class SaliencyMap {
+
+	/** The Constant MIN_BAND_HEIGHT. */
+	private final static int MIN_BAND_HEIGHT = 16;
+
+	/** The Constant FFT_MIN_KERNEL_WIDTH, kernels at least this wide (sigma >= 20) go through the FFT. */
+	private final static int FFT_MIN_KERNEL_WIDTH = 121;
+
+	/** The Constant IN_ROW_SUPPORT, pixel close to a detection on its row. */
+	private final static byte IN_ROW_SUPPORT = 1;
+
+	/** The Constant IN_SUPPORT, pixel reached by the kernel of a detection. */
+	private final static byte IN_SUPPORT = 2;
+
+	/**
+	 * Computes the saliency map.
+	 *
+	 * @param dtct
+	 *            the detection map, w x h
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param max
+	 *            the max
+	 * @param sigma
+	 *            the sigma
+	 * @param mask
+	 *            if not null, only the pixels where the mask is
+	 *            BinaryIcyBufferedImage.TRUE are computed, the others are set
+	 *            to 0
+	 * @param result
+	 *            the result, w x h
+	 */
+	public static void compute(double[] dtct, int w, int h, double max, double sigma, byte[] mask, double[] result) {
+		final int sz = (int) Math.ceil(3 * sigma);
+		final double[] k = new double[2 * sz + 1];
+		for (int j = -sz; j <= sz; j++) {
+			final double d = j / sigma;
+			k[j + sz] = Math.exp(-0.5 * d * d);
+		}
+		final double cst = max / (sigma * Math.sqrt(2 * Math.PI));
+
+		Arrays.fill(result, 0, w * h, 0.0);
+
+		// sparse maps are cheaper to splat, the kernel being applied row by row
+		final boolean[] rowHasData = new boolean[h];
+		long nbDetected = 0;
+		for (int y = 0, i = 0; y < h; y++) {
+			for (int x = 0; x < w; x++, i++) {
+				if (dtct[i] > 0) {
+					nbDetected++;
+					rowHasData[y] = true;
+				}
+			}
+		}
+		if (nbDetected == 0) {
+			return;
+		}
+		long nbRowsReached = 0;
+		for (int y = 0, last = -1; y < h; y++) {
+			if (rowHasData[y]) {
+				nbRowsReached += Math.min(y + sz, h - 1) - Math.max(y - sz, last + 1) + 1;
+				last = Math.min(y + sz, h - 1);
+			}
+		}
+		final long splatCost = nbDetected * k.length * k.length;
+		final long separableCost = nbDetected * k.length + nbRowsReached * w * k.length;
+
+		if (splatCost <= separableCost) {
+			computeSplat(dtct, w, h, k, cst, rowHasData, result);
+			applyMask(mask, 0, w * h, result);
+		} else if ((mask == null) && (k.length >= FFT_MIN_KERNEL_WIDTH)) {
+			computeFFT(dtct, w, h, k, cst, result);
+		} else {
+			computeSeparable(dtct, w, h, k, cst, rowHasData, mask, result);
+		}
+	}
+
+	/**
+	 * Sets to 0 the pixels outside the mask.
+	 *
+	 * @param mask
+	 *            the mask, may be null
+	 * @param from
+	 *            the from
+	 * @param to
+	 *            the to
+	 * @param result
+	 *            the result
+	 */
+	private static void applyMask(byte[] mask, int from, int to, double[] result) {
+		if (mask != null) {
+			for (int i = from; i < to; i++) {
+				if (mask[i] != BinaryIcyBufferedImage.TRUE) {
+					result[i] = 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Direct computation : each band of output rows gathers the Gaussians of
+	 * the detected pixels that reach it.
+	 *
+	 * @param dtct
+	 *            the dtct
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param k
+	 *            the 1-D kernel
+	 * @param cst
+	 *            the cst
+	 * @param rowHasData
+	 *            the rows holding detected pixels
+	 * @param result
+	 *            the result, already at 0
+	 */
+	private static void computeSplat(final double[] dtct, final int w, final int h, final double[] k, final double cst, final boolean[] rowHasData, final double[] result) {
+		final int sz = k.length / 2;
+		ParallelBands.run(h, MIN_BAND_HEIGHT, new ParallelBands.Band() {
+			@Override
+			public void run(int from, int to) {
+				final int sy1 = Math.max(0, from - sz);
+				final int sy2 = Math.min(h, to + sz);
+				for (int y = sy1; y < sy2; y++) {
+					if (!rowHasData[y]) {
+						continue;
+					}
+					final int ty1 = Math.max(from, y - sz);
+					final int ty2 = Math.min(to, y + sz + 1);
+					for (int x = 0, i = y * w; x < w; x++, i++) {
+						final double v = dtct[i];
+						if (v > 0) {
+							final int x1 = Math.max(0, x - sz);
+							final int x2 = Math.min(w - 1, x + sz);
+							for (int ty = ty1; ty < ty2; ty++) {
+								final double c = cst * k[ty - y + sz] * v;
+								final int o = ty * w;
+								for (int xx = x1, ki = x1 - x + sz; xx <= x2; xx++, ki++) {
+									result[o + xx] += c * k[ki];
+								}
+							}
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Separable computation.
+	 *
+	 * @param dtct
+	 *            the dtct
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param k
+	 *            the 1-D kernel
+	 * @param cst
+	 *            the cst
+	 * @param rowHasData
+	 *            the rows holding detected pixels
+	 * @param mask
+	 *            the mask, may be null
+	 * @param result
+	 *            the result, already at 0
+	 */
+	private static void computeSeparable(final double[] dtct, final int w, final int h, final double[] k, final double cst, final boolean[] rowHasData, final byte[] mask, final double[] result) {
+		final int sz = k.length / 2;
+		final double[] tmp = new double[w * h];
+
+		ParallelBands.run(h, MIN_BAND_HEIGHT, new ParallelBands.Band() {
+			@Override
+			public void run(int from, int to) {
+				for (int y = from; y < to; y++) {
+					if (!rowHasData[y]) {
+						continue;
+					}
+					final int o = y * w;
+					for (int x = 0; x < w; x++) {
+						final double v = dtct[o + x];
+						if (v > 0) {
+							final int x1 = Math.max(0, x - sz);
+							final int x2 = Math.min(w - 1, x + sz);
+							for (int xx = x1, ki = x1 - x + sz; xx <= x2; xx++, ki++) {
+								tmp[o + xx] += k[ki] * v;
+							}
+						}
+					}
+				}
+			}
+		});
+
+		ParallelBands.run(h, MIN_BAND_HEIGHT, new ParallelBands.Band() {
+			@Override
+			public void run(int from, int to) {
+				for (int y = from; y < to; y++) {
+					final int o = y * w;
+					int nbInMask = w;
+					if (mask != null) {
+						nbInMask = 0;
+						for (int x = 0; x < w; x++) {
+							if (mask[o + x] == BinaryIcyBufferedImage.TRUE) {
+								nbInMask++;
+							}
+						}
+						if (nbInMask == 0) {
+							continue;
+						}
+					}
+					final int y1 = Math.max(0, y - sz);
+					final int y2 = Math.min(h - 1, y + sz);
+
+					if (4 * nbInMask < w) {
+						// few pixels of the row are needed, column by column
+						for (int x = 0; x < w; x++) {
+							if (mask[o + x] == BinaryIcyBufferedImage.TRUE) {
+								double s = 0;
+								for (int yy = y1, ki = y1 - y + sz; yy <= y2; yy++, ki++) {
+									if (rowHasData[yy]) {
+										s += k[ki] * tmp[yy * w + x];
+									}
+								}
+								result[o + x] = cst * s;
+							}
+						}
+						continue;
+					}
+
+					for (int yy = y1, ki = y1 - y + sz; yy <= y2; yy++, ki++) {
+						if (rowHasData[yy]) {
+							final double c = cst * k[ki];
+							final int oo = yy * w;
+							for (int x = 0; x < w; x++) {
+								result[o + x] += c * tmp[oo + x];
+							}
+						}
+					}
+					applyMask(mask, o, o + w, result);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Computation through the FFT. The data is padded with at least the
+	 * kernel half width of zeros so that the circular convolution does not
+	 * wrap around. The spectrum of the kernel, real as the kernel is
+	 * symmetric, is the product of the spectra of its two 1-D factors. The
+	 * transform leaves a rounding noise, possibly negative, where the map is
+	 * 0 : the pixels outside the support of the detections are set back to 0
+	 * and the others are clamped at 0, as the map is never negative.
+	 *
+	 * @param dtct
+	 *            the dtct
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param k
+	 *            the 1-D kernel
+	 * @param cst
+	 *            the cst
+	 * @param result
+	 *            the result
+	 */
+	private static void computeFFT(double[] dtct, int w, int h, double[] k, double cst, double[] result) {
+		final int sz = k.length / 2;
+		final int fw = ConvolutionKernel2D.getFFTSize(w + sz);
+		final int fh = ConvolutionKernel2D.getFFTSize(h + sz);
+
+		double[][] fd = new double[fh][2 * fw];
+		for (int y = 0; y < h; y++) {
+			final int o = y * w;
+			final double[] row = fd[y];
+			for (int x = 0; x < w; x++) {
+				final double v = dtct[o + x];
+				if (v > 0) {
+					row[2 * x] = v;
+				}
+			}
+		}
+
+		final double[] kx = getSpectrum(k, fw);
+		final double[] ky = getSpectrum(k, fh);
+
+		DoubleFFT_2D fft = new DoubleFFT_2D(fh, fw);
+		fft.complexForward(fd);
+		for (int v = 0; v < fh; v++) {
+			final double[] row = fd[v];
+			final double c = cst * ky[v];
+			for (int u = 0; u < fw; u++) {
+				final double f = c * kx[u];
+				row[2 * u] *= f;
+				row[2 * u + 1] *= f;
+			}
+		}
+		fft.complexInverse(fd, true);
+
+		final byte[] support = getSupport(dtct, w, h, sz);
+		for (int y = 0; y < h; y++) {
+			final int o = y * w;
+			final double[] row = fd[y];
+			for (int x = 0; x < w; x++) {
+				result[o + x] = (support[o + x] == IN_SUPPORT) ? Math.max(0, row[2 * x]) : 0;
+			}
+		}
+	}
+
+	/**
+	 * Gets the support of the saliency map : the pixels at most sz away, on
+	 * both axes, from a detected pixel. It is the detection map dilated by the
+	 * (2 * sz + 1)^2 square, done as a horizontal then a vertical dilation.
+	 *
+	 * @param dtct
+	 *            the dtct
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param sz
+	 *            the kernel half width
+	 * @return the support, IN_SUPPORT for the pixels inside
+	 */
+	private static byte[] getSupport(double[] dtct, int w, int h, int sz) {
+		final byte[] s = new byte[w * h];
+		for (int y = 0; y < h; y++) {
+			final int o = y * w;
+			long last = Integer.MIN_VALUE;
+			for (int x = 0; x < w; x++) {
+				if (dtct[o + x] > 0) {
+					last = x;
+				}
+				if (x - last <= sz) {
+					s[o + x] = IN_ROW_SUPPORT;
+				}
+			}
+			last = Integer.MAX_VALUE;
+			for (int x = w - 1; x >= 0; x--) {
+				if (dtct[o + x] > 0) {
+					last = x;
+				}
+				if (last - x <= sz) {
+					s[o + x] = IN_ROW_SUPPORT;
+				}
+			}
+		}
+		final long[] last = new long[w];
+		Arrays.fill(last, Integer.MIN_VALUE);
+		for (int y = 0; y < h; y++) {
+			final int o = y * w;
+			for (int x = 0; x < w; x++) {
+				if ((s[o + x] & IN_ROW_SUPPORT) != 0) {
+					last[x] = y;
+				}
+			}
+			for (int x = 0; x < w; x++) {
+				if (y - last[x] <= sz) {
+					s[o + x] |= IN_SUPPORT;
+				}
+			}
+		}
+		Arrays.fill(last, Integer.MAX_VALUE);
+		for (int y = h - 1; y >= 0; y--) {
+			final int o = y * w;
+			for (int x = 0; x < w; x++) {
+				if ((s[o + x] & IN_ROW_SUPPORT) != 0) {
+					last[x] = y;
+				}
+			}
+			for (int x = 0; x < w; x++) {
+				if (last[x] - y <= sz) {
+					s[o + x] |= IN_SUPPORT;
+				}
+			}
+		}
+		for (int i = 0; i < s.length; i++) {
+			s[i] &= IN_SUPPORT;
+		}
+		return s;
+	}
+
+	/**
+	 * Gets the discrete Fourier transform of a centered symmetric kernel.
+	 *
+	 * @param k
+	 *            the kernel
+	 * @param n
+	 *            the size of the transform
+	 * @return the spectrum, real
+	 */
+	private static double[] getSpectrum(double[] k, int n) {
+		final int sz = k.length / 2;
+		double[] s = new double[n];
+		for (int u = 0; u < n; u++) {
+			double v = k[sz];
+			for (int j = 1; j <= sz; j++) {
+				v += 2 * k[sz + j] * Math.cos(2 * Math.PI * (((long) u * j) % n) / n);
+			}
+			s[u] = v;
+		}
+		return s;
+	}
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ *
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ *
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.toolboxes;
+
+/**
+ * Span based scanline flood fill, working on a primitive int stack. Each
+ * popped seed is extended to the whole fillable run of its row, and one seed
+ * is pushed for each fillable run of the rows above and below.
+ *
+ * The scratch memory is bounded : when the stack is full, the seeds are
+ * dropped and the fill is completed afterwards by sweeps over the image,
+ * looking for fillable pixels next to filled ones.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class ScanlineFloodFill {
+
+	/**
+	 * The region to fill. Once fill(idx) has been called, isFillable(idx)
+	 * must return false and isFilled(idx) true.
+	 *
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	public interface Region {
+
+		/**
+		 * Checks if a pixel can be filled.
+		 *
+		 * @param idx
+		 *            the pixel index (x + w * y)
+		 * @return true, if the pixel belongs to the region and has not been
+		 *         filled yet
+		 */
+		boolean isFillable(int idx);
+
+		/**
+		 * Fills a pixel.
+		 *
+		 * @param idx
+		 *            the pixel index
+		 */
+		void fill(int idx);
+
+		/**
+		 * Checks if a pixel has been filled. Only used to complete the fill
+		 * when the scratch memory bound has been reached.
+		 *
+		 * @param idx
+		 *            the pixel index
+		 * @return true, if filled
+		 */
+		boolean isFilled(int idx);
+	}
+
+	/**
+	 * A region of a raw binary buffer : the pixels with the from value are
+	 * set to the to value.
+	 *
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	public static class ByteRegion implements Region {
+
+		/** The raw. */
+		private final byte[] raw;
+
+		/** The from. */
+		private final byte from;
+
+		/** The to. */
+		private final byte to;
+
+		/**
+		 * Instantiates a new byte region.
+		 *
+		 * @param raw
+		 *            the raw
+		 * @param from
+		 *            the value of the fillable pixels
+		 * @param to
+		 *            the value of the filled pixels, must be different from
+		 *            all the original values for the completion sweeps to
+		 *            work
+		 */
+		public ByteRegion(byte[] raw, byte from, byte to) {
+			super();
+			this.raw = raw;
+			this.from = from;
+			this.to = to;
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.image.toolboxes.ScanlineFloodFill.Region#isFillable(int)
+		 */
+		@Override
+		public boolean isFillable(int idx) {
+			return raw[idx] == from;
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.image.toolboxes.ScanlineFloodFill.Region#fill(int)
+		 */
+		@Override
+		public void fill(int idx) {
+			raw[idx] = to;
+		}
+
+		/* (non-Javadoc)
+		 * @see plugins.nherve.toolbox.image.toolboxes.ScanlineFloodFill.Region#isFilled(int)
+		 */
+		@Override
+		public boolean isFilled(int idx) {
+			return raw[idx] == to;
+		}
+	}
+
+	/** The Constant DEFAULT_MAX_STACK_SIZE, in seeds. */
+	public final static int DEFAULT_MAX_STACK_SIZE = 1 << 20;
+
+	/** The Constant INITIAL_STACK_SIZE, in seeds. */
+	private final static int INITIAL_STACK_SIZE = 1 << 10;
+
+	/** The width. */
+	private final int w;
+
+	/** The height. */
+	private final int h;
+
+	/** The eight connected. */
+	private final boolean eightConnected;
+
+	/** The max stack size, in seeds. */
+	private int maxStackSize;
+
+	/** The stack, two ints (x, y) per seed. */
+	private int[] stack;
+
+	/** The stack pointer. */
+	private int sp;
+
+	/** Seeds have been dropped. */
+	private boolean overflow;
+
+	/** The bounds of the filled pixels. */
+	private int minX, maxX, minY, maxY;
+
+	/** The nb filled pixels. */
+	private long nbFilled;
+
+	/**
+	 * Instantiates a new scanline flood fill.
+	 *
+	 * @param w
+	 *            the width
+	 * @param h
+	 *            the height
+	 * @param eightConnected
+	 *            true for the 8-connectivity, false for the 4-connectivity
+	 */
+	public ScanlineFloodFill(int w, int h, boolean eightConnected) {
+		super();
+		this.w = w;
+		this.h = h;
+		this.eightConnected = eightConnected;
+		this.maxStackSize = DEFAULT_MAX_STACK_SIZE;
+		this.stack = null;
+		resetBounds();
+	}
+
+	/**
+	 * Sets the max stack size, the hard bound on the scratch memory (two
+	 * ints per seed).
+	 *
+	 * @param maxStackSize
+	 *            the new max stack size, in seeds
+	 */
+	public void setMaxStackSize(int maxStackSize) {
+		this.maxStackSize = Math.max(1, maxStackSize);
+	}
+
+	/**
+	 * Resets the bounds of the filled pixels and their count.
+	 */
+	public void resetBounds() {
+		minX = Integer.MAX_VALUE;
+		minY = Integer.MAX_VALUE;
+		maxX = -1;
+		maxY = -1;
+		nbFilled = 0;
+	}
+
+	/**
+	 * Fills the region connected to a seed.
+	 *
+	 * @param r
+	 *            the region
+	 * @param x
+	 *            the seed x
+	 * @param y
+	 *            the seed y
+	 * @return the number of pixels filled
+	 */
+	public long fill(Region r, int x, int y) {
+		if ((x < 0) || (x >= w) || (y < 0) || (y >= h) || !r.isFillable(x + w * y)) {
+			return 0;
+		}
+		long before = nbFilled;
+		if (stack == null) {
+			stack = new int[2 * Math.min(INITIAL_STACK_SIZE, maxStackSize)];
+		}
+		sp = 0;
+		overflow = false;
+		push(x, y);
+		drain(r);
+		while (overflow) {
+			overflow = false;
+			complete(r);
+		}
+		return nbFilled - before;
+	}
+
+	/**
+	 * Push.
+	 *
+	 * @param x
+	 *            the x
+	 * @param y
+	 *            the y
+	 */
+	private void push(int x, int y) {
+		if (sp == stack.length) {
+			if (sp >= 2 * maxStackSize) {
+				overflow = true;
+				return;
+			}
+			int[] ns = new int[(int) Math.min(2L * maxStackSize, 2L * stack.length)];
+			System.arraycopy(stack, 0, ns, 0, sp);
+			stack = ns;
+		}
+		stack[sp++] = x;
+		stack[sp++] = y;
+	}
+
+	/**
+	 * Processes the seeds until the stack is empty.
+	 *
+	 * @param r
+	 *            the region
+	 */
+	private void drain(Region r) {
+		final int ext = eightConnected ? 1 : 0;
+		while (sp > 0) {
+			final int y = stack[--sp];
+			final int x = stack[--sp];
+			final int o = w * y;
+			if (!r.isFillable(o + x)) {
+				continue;
+			}
+
+			int x1 = x;
+			while ((x1 > 0) && r.isFillable(o + x1 - 1)) {
+				x1--;
+			}
+			int x2 = x;
+			while ((x2 < w - 1) && r.isFillable(o + x2 + 1)) {
+				x2++;
+			}
+			for (int i = x1; i <= x2; i++) {
+				r.fill(o + i);
+			}
+			nbFilled += x2 - x1 + 1;
+			if (x1 < minX) {
+				minX = x1;
+			}
+			if (x2 > maxX) {
+				maxX = x2;
+			}
+			if (y < minY) {
+				minY = y;
+			}
+			if (y > maxY) {
+				maxY = y;
+			}
+
+			final int sx1 = Math.max(0, x1 - ext);
+			final int sx2 = Math.min(w - 1, x2 + ext);
+			if (y > 0) {
+				pushRuns(r, sx1, sx2, y - 1);
+			}
+			if (y < h - 1) {
+				pushRuns(r, sx1, sx2, y + 1);
+			}
+		}
+	}
+
+	/**
+	 * Pushes one seed per fillable run of a row segment.
+	 *
+	 * @param r
+	 *            the region
+	 * @param x1
+	 *            the x1
+	 * @param x2
+	 *            the x2
+	 * @param y
+	 *            the y
+	 */
+	private void pushRuns(Region r, int x1, int x2, int y) {
+		final int o = w * y;
+		boolean inRun = false;
+		for (int x = x1; x <= x2; x++) {
+			if (r.isFillable(o + x)) {
+				if (!inRun) {
+					push(x, y);
+					inRun = true;
+				}
+			} else {
+				inRun = false;
+			}
+		}
+	}
+
+	/**
+	 * Sweeps the image for fillable pixels next to filled ones, after seeds
+	 * have been dropped.
+	 *
+	 * @param r
+	 *            the region
+	 */
+	private void complete(Region r) {
+		boolean found = true;
+		while (found) {
+			found = false;
+			for (int y = 0; y < h; y++) {
+				final int o = w * y;
+				for (int x = 0; x < w; x++) {
+					if (r.isFillable(o + x) && hasFilledNeighbour(r, x, y)) {
+						found = true;
+						push(x, y);
+						drain(r);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks for filled neighbour.
+	 *
+	 * @param r
+	 *            the region
+	 * @param x
+	 *            the x
+	 * @param y
+	 *            the y
+	 * @return true, if successful
+	 */
+	private boolean hasFilledNeighbour(Region r, int x, int y) {
+		for (int dy = -1; dy <= 1; dy++) {
+			final int ny = y + dy;
+			if ((ny < 0) || (ny >= h)) {
+				continue;
+			}
+			for (int dx = -1; dx <= 1; dx++) {
+				final int nx = x + dx;
+				if ((nx < 0) || (nx >= w) || ((dx == 0) && (dy == 0))) {
+					continue;
+				}
+				if (!eightConnected && (dx != 0) && (dy != 0)) {
+					continue;
+				}
+				if (r.isFilled(nx + w * ny)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the min x of the filled pixels.
+	 *
+	 * @return the min x
+	 */
+	public int getMinX() {
+		return minX;
+	}
+
+	/**
+	 * Gets the max x of the filled pixels.
+	 *
+	 * @return the max x
+	 */
+	public int getMaxX() {
+		return maxX;
+	}
+
+	/**
+	 * Gets the min y of the filled pixels.
+	 *
+	 * @return the min y
+	 */
+	public int getMinY() {
+		return minY;
+	}
+
+	/**
+	 * Gets the max y of the filled pixels.
+	 *
+	 * @return the max y
+	 */
+	public int getMaxY() {
+		return maxY;
+	}
+
+	/**
+	 * Gets the number of filled pixels since the last reset.
+	 *
+	 * @return the nb filled
+	 */
+	public long getNbFilled() {
+		return nbFilled;
+	}
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ *
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ *
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.toolboxes;
+
+import java.awt.Polygon;
+import java.awt.Shape;
+import java.awt.geom.PathIterator;
+import java.util.Arrays;
+
+/**
+ * Scanline rasterization of a Shape : the pixel (x, y) is inside when
+ * shape.contains(x, y), the sample point being the integer coordinates, as
+ * in the pixel by pixel loops it replaces.
+ *
+ * The outline is flattened into an edge table once. Each row then
+ * intersects its active edges and fills the spans between them, following
+ * the winding rule of the shape and the crossing rule of Area.contains (an
+ * edge counts for the rows in [ytop, ybottom[ and a pixel is left of an
+ * intersection when x is strictly lower). Polygons are rasterized exactly,
+ * curves up to the flatness. A java.awt.Polygon has its own contains, which
+ * rounds the intersections differently : its rule is followed as well.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class ShapeRasterizer {
+
+	/**
+	 * Receives the spans of the shape.
+	 *
+	 * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+	 */
+	public interface SpanVisitor {
+
+		/**
+		 * A span of the row y.
+		 *
+		 * @param y
+		 *            the y
+		 * @param x1
+		 *            the x1
+		 * @param x2
+		 *            the x2, excluded
+		 */
+		void span(int y, int x1, int x2);
+	}
+
+	/** The Constant DEFAULT_FLATNESS, in pixels. */
+	public final static double DEFAULT_FLATNESS = 1e-4;
+
+	/** The Constant MIN_BAND_HEIGHT. */
+	private final static int MIN_BAND_HEIGHT = 64;
+
+	/** The edges, top point first : x0, y0, x1, y1. */
+	private double[] edges;
+
+	/** The edge directions, 1 when the path goes down, -1 when it goes up. */
+	private int[] dirs;
+
+	/** The nb edges. */
+	private int nbEdges;
+
+	/** The non zero winding rule. */
+	private final boolean nonZero;
+
+	/** The intersections are the ones of Polygon.contains. */
+	private final boolean polygon;
+
+	/** The bounds of the edges. */
+	private double minY, maxY;
+
+	/**
+	 * Instantiates a new shape rasterizer.
+	 *
+	 * @param shape
+	 *            the shape
+	 */
+	public ShapeRasterizer(Shape shape) {
+		this(shape, DEFAULT_FLATNESS);
+	}
+
+	/**
+	 * Instantiates a new shape rasterizer.
+	 *
+	 * @param shape
+	 *            the shape
+	 * @param flatness
+	 *            the flatness used for the curves
+	 */
+	public ShapeRasterizer(Shape shape, double flatness) {
+		super();
+		edges = new double[64];
+		dirs = new int[16];
+		nbEdges = 0;
+		minY = Double.POSITIVE_INFINITY;
+		maxY = Double.NEGATIVE_INFINITY;
+
+		PathIterator it = shape.getPathIterator(null, flatness);
+		nonZero = it.getWindingRule() == PathIterator.WIND_NON_ZERO;
+		polygon = shape instanceof Polygon;
+		double[] c = new double[6];
+		double sx = 0, sy = 0, cx = 0, cy = 0;
+		while (!it.isDone()) {
+			switch (it.currentSegment(c)) {
+			case PathIterator.SEG_MOVETO:
+				addEdge(cx, cy, sx, sy);
+				sx = cx = c[0];
+				sy = cy = c[1];
+				break;
+			case PathIterator.SEG_LINETO:
+				addEdge(cx, cy, c[0], c[1]);
+				cx = c[0];
+				cy = c[1];
+				break;
+			case PathIterator.SEG_CLOSE:
+				addEdge(cx, cy, sx, sy);
+				cx = sx;
+				cy = sy;
+				break;
+			default:
+				break;
+			}
+			it.next();
+		}
+		addEdge(cx, cy, sx, sy);
+	}
+
+	/**
+	 * Adds an edge, horizontal ones are ignored.
+	 *
+	 * @param xa
+	 *            the xa
+	 * @param ya
+	 *            the ya
+	 * @param xb
+	 *            the xb
+	 * @param yb
+	 *            the yb
+	 */
+	private void addEdge(double xa, double ya, double xb, double yb) {
+		if (ya == yb) {
+			return;
+		}
+		if (nbEdges == dirs.length) {
+			dirs = Arrays.copyOf(dirs, 2 * nbEdges);
+			edges = Arrays.copyOf(edges, 8 * nbEdges);
+		}
+		final int o = 4 * nbEdges;
+		if (ya < yb) {
+			edges[o] = xa;
+			edges[o + 1] = ya;
+			edges[o + 2] = xb;
+			edges[o + 3] = yb;
+			dirs[nbEdges] = 1;
+		} else {
+			edges[o] = xb;
+			edges[o + 1] = yb;
+			edges[o + 2] = xa;
+			edges[o + 3] = ya;
+			dirs[nbEdges] = -1;
+		}
+		minY = Math.min(minY, Math.min(ya, yb));
+		maxY = Math.max(maxY, Math.max(ya, yb));
+		nbEdges++;
+	}
+
+	/**
+	 * Visits the spans of the rows [y1, y2[, clipped to [0, w[.
+	 *
+	 * @param w
+	 *            the w
+	 * @param y1
+	 *            the y1
+	 * @param y2
+	 *            the y2, excluded
+	 * @param v
+	 *            the visitor
+	 */
+	public void visit(int w, int y1, int y2, SpanVisitor v) {
+		if (nbEdges == 0) {
+			return;
+		}
+		y1 = Math.max(y1, (int) Math.ceil(minY));
+		y2 = Math.min(y2, (int) Math.ceil(maxY));
+		if (y1 >= y2) {
+			return;
+		}
+
+		// edges crossing the band, bucketed by first row
+		final int nbRows = y2 - y1;
+		int[] rowStart = new int[nbRows + 1];
+		for (int e = 0; e < nbEdges; e++) {
+			final int r = firstRow(e, y1, y2);
+			if (r >= 0) {
+				rowStart[r - y1 + 1]++;
+			}
+		}
+		for (int r = 0; r < nbRows; r++) {
+			rowStart[r + 1] += rowStart[r];
+		}
+		final int nbCandidates = rowStart[nbRows];
+		int[] byRow = new int[nbCandidates];
+		int[] fill = Arrays.copyOf(rowStart, nbRows);
+		for (int e = 0; e < nbEdges; e++) {
+			final int r = firstRow(e, y1, y2);
+			if (r >= 0) {
+				byRow[fill[r - y1]++] = e;
+			}
+		}
+
+		int[] active = new int[nbCandidates];
+		int nbActive = 0;
+		double[] xs = new double[nbCandidates];
+		int[] ds = new int[nbCandidates];
+		for (int y = y1; y < y2; y++) {
+			for (int i = rowStart[y - y1]; i < rowStart[y - y1 + 1]; i++) {
+				active[nbActive++] = byRow[i];
+			}
+			int n = 0;
+			int kept = 0;
+			for (int i = 0; i < nbActive; i++) {
+				final int e = active[i];
+				final int o = 4 * e;
+				if (y < edges[o + 3]) {
+					active[kept++] = e;
+					xs[n] = xForY(o, y);
+					ds[n] = dirs[e];
+					n++;
+				}
+			}
+			nbActive = kept;
+			if (n == 0) {
+				continue;
+			}
+			sortCrossings(xs, ds, n);
+
+			// the pixels in [ceil(xs[i]), ceil(xs[i + 1])[ have the crossings 0 to i at or left of them
+			int wind = 0;
+			int start = -1;
+			for (int i = 0; i < n; i++) {
+				wind += ds[i];
+				final boolean in = nonZero ? (wind != 0) : ((wind & 1) != 0);
+				if (in && (start < 0)) {
+					start = i;
+				} else if (!in && (start >= 0)) {
+					span(v, y, w, xs[start], xs[i]);
+					start = -1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * First row of an edge in [y1, y2[.
+	 *
+	 * @param e
+	 *            the edge
+	 * @param y1
+	 *            the y1
+	 * @param y2
+	 *            the y2
+	 * @return the row, -1 if the edge does not cross any row of the band
+	 */
+	private int firstRow(int e, int y1, int y2) {
+		final double ya = edges[4 * e + 1];
+		final double yb = edges[4 * e + 3];
+		final double r = Math.max(y1, Math.ceil(ya));
+		if ((r >= y2) || (r >= yb)) {
+			return -1;
+		}
+		return (int) r;
+	}
+
+	/**
+	 * Sends a span, clipped to the row.
+	 *
+	 * @param v
+	 *            the visitor
+	 * @param y
+	 *            the y
+	 * @param w
+	 *            the w
+	 * @param xa
+	 *            the left crossing
+	 * @param xb
+	 *            the right crossing
+	 */
+	private static void span(SpanVisitor v, int y, int w, double xa, double xb) {
+		final int x1 = (int) Math.max(0, Math.min(w, Math.ceil(xa)));
+		final int x2 = (int) Math.max(0, Math.min(w, Math.ceil(xb)));
+		if (x1 < x2) {
+			v.span(y, x1, x2);
+		}
+	}
+
+	/**
+	 * X of an edge for a row, computed as Curve.XforY for a line. For a
+	 * Polygon, the pixels left of the edge are the x with x - x0 lower than
+	 * (y - y0) / (y1 - y0) * (x1 - x0), the first pixel that is not is
+	 * returned, clamped to the edge as Polygon.contains does.
+	 *
+	 * @param o
+	 *            the edge offset
+	 * @param y
+	 *            the y
+	 * @return the x
+	 */
+	private double xForY(int o, double y) {
+		final double x0 = edges[o];
+		final double y0 = edges[o + 1];
+		final double x1 = edges[o + 2];
+		final double y1 = edges[o + 3];
+		if ((x0 == x1) || (y <= y0)) {
+			return x0;
+		}
+		if (y >= y1) {
+			return x1;
+		}
+		if (polygon) {
+			final double x = x0 + Math.ceil((y - y0) / (y1 - y0) * (x1 - x0));
+			return Math.min(Math.max(x, Math.min(x0, x1)), Math.max(x0, x1));
+		}
+		return x0 + (y - y0) * (x1 - x0) / (y1 - y0);
+	}
+
+	/**
+	 * Sorts the crossings of a row by x, with their directions. Rows have
+	 * few crossings, an insertion sort is used.
+	 *
+	 * @param xs
+	 *            the xs
+	 * @param ds
+	 *            the ds
+	 * @param n
+	 *            the n
+	 */
+	private static void sortCrossings(double[] xs, int[] ds, int n) {
+		for (int i = 1; i < n; i++) {
+			final double x = xs[i];
+			final int d = ds[i];
+			int j = i - 1;
+			while ((j >= 0) && (xs[j] > x)) {
+				xs[j + 1] = xs[j];
+				ds[j + 1] = ds[j];
+				j--;
+			}
+			xs[j + 1] = x;
+			ds[j + 1] = d;
+		}
+	}
+
+	/**
+	 * Sets the pixels of the shape to a value, the row bands covered by the
+	 * shape being processed in parallel.
+	 *
+	 * @param raw
+	 *            the raw data, w x h
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param val
+	 *            the val
+	 */
+	public void fill(final byte[] raw, final int w, int h, final byte val) {
+		if (nbEdges == 0) {
+			return;
+		}
+		final int y1 = (int) Math.max(0, Math.ceil(minY));
+		final int y2 = (int) Math.min(h, Math.ceil(maxY));
+		if (y1 >= y2) {
+			return;
+		}
+		ParallelBands.run(y2 - y1, MIN_BAND_HEIGHT, new ParallelBands.Band() {
+			@Override
+			public void run(int from, int to) {
+				visit(w, y1 + from, y1 + to, new SpanVisitor() {
+					@Override
+					public void span(int y, int x1, int x2) {
+						Arrays.fill(raw, y * w + x1, y * w + x2, val);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Gets the nb edges of the flattened outline.
+	 *
+	 * @return the nb edges
+	 */
+	public int getNbEdges() {
+		return nbEdges;
+	}
+}
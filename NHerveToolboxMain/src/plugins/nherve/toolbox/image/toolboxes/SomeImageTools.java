@@ -36,7 +36,6 @@ import java.awt.image.Raster;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import loci.formats.FormatException;
@@ -56,6 +55,9 @@ import plugins.nherve.toolbox.image.segmentation.Segmentation;
  * @author Nicolas HERVE - nicolas.herve@pasteur.fr
  */
 public class SomeImageTools {
+
+	/** The Constant COLOR_BAND_HEIGHT, min number of rows of a band of the color conversions. */
+	private final static int COLOR_BAND_HEIGHT = 16;
 	
 	// TODO revoir ce code pourri !
 	/**
@@ -74,43 +76,39 @@ public class SomeImageTools {
 	 * @param thresh
 	 *            the thresh
 	 */
-	public static void binarize(IcyBufferedImage img, BinaryIcyBufferedImage bin, int rowOffset, int colOffset, int scale, double thresh) {
-		Raster raster = img.getRaster();
-		int x = 0;
-		int y = 0;
-
-		double t = 0;
-		int w = bin.getWidth();
-		byte[] raw = bin.getRawData();
-
-		if (img.getSampleModel().getNumBands() == 1) {
-			t = thresh;
-			for (int i = 0; i < raster.getWidth(); i += scale) {
-				for (int j = 0; j < raster.getHeight(); j += scale) {
-					int v = raster.getSample(i, j, 0);
-					if (v < t) {
-						x = (colOffset + i) / scale;
-						y = (rowOffset + j) / scale;
-						raw[x + w * y] = BinaryIcyBufferedImage.TRUE;
+	public static void binarize(IcyBufferedImage img, BinaryIcyBufferedImage bin, final int rowOffset, final int colOffset, final int scale, double thresh) {
+		final Raster raster = img.getRaster();
+		final int rw = raster.getWidth();
+		final int rh = raster.getHeight();
+		final int w = bin.getWidth();
+		final byte[] raw = bin.getRawData();
+		final boolean gray = img.getSampleModel().getNumBands() == 1;
+		final double t = gray ? thresh : 3 * thresh;
+
+		// one raster row out of scale, read in bulk
+		ParallelBands.run((rh + scale - 1) / scale, 64, new ParallelBands.Band() {
+			@Override
+			public void run(int from, int to) {
+				int[] r = new int[rw];
+				int[] g = gray ? null : new int[rw];
+				int[] b = gray ? null : new int[rw];
+				for (int k = from; k < to; k++) {
+					final int j = k * scale;
+					final int o = w * ((rowOffset + j) / scale);
+					raster.getSamples(0, j, rw, 1, 0, r);
+					if (!gray) {
+						raster.getSamples(0, j, rw, 1, 1, g);
+						raster.getSamples(0, j, rw, 1, 2, b);
 					}
-				}
-			}
-		} else {
-			t = 3 * thresh;
-			for (int i = 0; i < raster.getWidth(); i += scale) {
-				for (int j = 0; j < raster.getHeight(); j += scale) {
-					int r = raster.getSample(i, j, 0);
-					int g = raster.getSample(i, j, 1);
-					int b = raster.getSample(i, j, 2);
-					int crit = r + g + b;
-					if (crit < t) {
-						x = (colOffset + i) / scale;
-						y = (rowOffset + j) / scale;
-						raw[x + w * y] = BinaryIcyBufferedImage.TRUE;
+					for (int i = 0; i < rw; i += scale) {
+						final int crit = gray ? r[i] : r[i] + g[i] + b[i];
+						if (crit < t) {
+							raw[o + (colOffset + i) / scale] = BinaryIcyBufferedImage.TRUE;
+						}
 					}
 				}
 			}
-		}
+		});
 	}
 
 	/**
@@ -125,19 +123,10 @@ public class SomeImageTools {
 	public static BinaryIcyBufferedImage binarize(IcyBufferedImage img, double thresh) {
 		int w = img.getWidth();
 		int h = img.getHeight();
-		int s = w * h;
 
 		BinaryIcyBufferedImage ibin = new BinaryIcyBufferedImage(w, h);
-		double[] data = img.getDataXYAsDouble(0);
 		byte[] bool = ibin.getDataXYAsByte(0);
-
-		for (int idx = 0; idx < s; idx++) {
-			if (data[idx] > thresh) {
-				bool[idx] = BinaryIcyBufferedImage.TRUE;
-			} else {
-				bool[idx] = BinaryIcyBufferedImage.FALSE;
-			}
-		}
+		Binarizer.threshold(img, 0, thresh, bool, BinaryIcyBufferedImage.TRUE, BinaryIcyBufferedImage.FALSE);
 
 		return ibin;
 	}
@@ -146,19 +135,10 @@ public class SomeImageTools {
 	public static BinaryIcyBufferedImage toMask(IcyBufferedImage img) {
 		int w = img.getWidth();
 		int h = img.getHeight();
-		int s = w * h;
 
 		BinaryIcyBufferedImage ibin = new BinaryIcyBufferedImage(w, h);
-		double[] data = img.getDataXYAsDouble(0);
 		byte[] bool = ibin.getDataXYAsByte(0);
-
-		for (int idx = 0; idx < s; idx++) {
-			if (data[idx] == 0) {
-				bool[idx] = BinaryIcyBufferedImage.TRUE;
-			} else {
-				bool[idx] = BinaryIcyBufferedImage.FALSE;
-			}
-		}
+		Binarizer.equal(img, 0, 0, bool, BinaryIcyBufferedImage.TRUE, BinaryIcyBufferedImage.FALSE);
 
 		return ibin;
 	}
@@ -178,13 +158,14 @@ public class SomeImageTools {
 		int h = img.getHeight();
 		int s = w * h;
 
-		double[] data = img.getDataXYAsDouble(0);
+		byte[] above = new byte[s];
+		Binarizer.threshold(img, 0, thresh, above, (byte) 1, (byte) 0);
 		byte[] byt0 = toSave.getDataXYAsByte(0);
 		byte[] byt1 = toSave.getDataXYAsByte(1);
 		byte[] byt2 = toSave.getDataXYAsByte(2);
 
 		for (int idx = 0; idx < s; idx++) {
-			if (data[idx] > thresh) {
+			if (above[idx] != 0) {
 				byt0[idx] = (byte) 0;
 				byt1[idx] = (byte) 0;
 				byt2[idx] = (byte) 0;
@@ -206,15 +187,10 @@ public class SomeImageTools {
 	public static IcyBufferedImage binarizeForSave(IcyBufferedImage img, double thresh) {
 		int w = img.getWidth();
 		int h = img.getHeight();
-		int s = w * h;
 
 		IcyBufferedImage toSave = new IcyBufferedImage(w, h, 3, TypeUtil.TYPE_BYTE);
-		double[] data = img.getDataXYAsDouble(0);
 		byte[] byt = toSave.getDataXYAsByte(0);
-
-		for (int idx = 0; idx < s; idx++) {
-			byt[idx] = (data[idx] > thresh) ? (byte) 0 : (byte) -1;
-		}
+		Binarizer.threshold(img, 0, thresh, byt, (byte) 0, (byte) -1);
 
 		toSave.setDataXYAsByte(1, byt.clone());
 		toSave.setDataXYAsByte(2, byt.clone());
@@ -236,32 +212,40 @@ public class SomeImageTools {
 	 *            the max
 	 * @return the icy buffered image
 	 */
-	public static IcyBufferedImage changeColorSpace(IcyBufferedImage img, int cs, double min, double max) {
-		int w = img.getWidth();
+	public static IcyBufferedImage changeColorSpace(final IcyBufferedImage img, final int cs, final double min, final double max) {
+		final int w = img.getWidth();
 		int h = img.getHeight();
 
 		IcyBufferedImage gs = new IcyBufferedImage(w, h, 3, TypeUtil.TYPE_DOUBLE);
-		double[][] id = new double[3][];
+		final double[][] id = new double[3][];
 
 		for (int i = 0; i < 3; i++) {
 			id[i] = gs.getDataXYAsDouble(i);
 		}
 
 		try {
-			for (int x = 0; x < w; x++) {
-				for (int y = 0; y < h; y++) {
-					double[] ihh = ColorSpaceTools.getColorComponentsD_0_255(img, cs, x, y);
-					for (int i = 0; i < 3; i++) {
-						if (ihh[i] > max) {
-							id[i][x + y * w] = max;
-						} else if (ihh[i] < min) {
-							id[i][x + y * w] = min;
-						} else {
-							id[i][x + y * w] = ihh[i];
+			ParallelBands.run(h, COLOR_BAND_HEIGHT, new ParallelBands.Band() {
+				@Override
+				public void run(int from, int to) {
+					ColorSpaceTools.RowConverter rc = new ColorSpaceTools.RowConverter(cs);
+					double[][] row = new double[3][w];
+					for (int y = from; y < to; y++) {
+						rc.convert(img, y, row);
+						for (int i = 0; i < 3; i++) {
+							final double[] ihh = row[i];
+							for (int x = 0; x < w; x++) {
+								if (ihh[x] > max) {
+									id[i][x + y * w] = max;
+								} else if (ihh[x] < min) {
+									id[i][x + y * w] = min;
+								} else {
+									id[i][x + y * w] = ihh[x];
+								}
+							}
 						}
 					}
 				}
-			}
+			});
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -297,26 +281,31 @@ public class SomeImageTools {
 	 *            the n
 	 * @return the icy buffered image
 	 */
-	public static IcyBufferedImage computeGrayScale(IcyBufferedImage img, int cs, int c, int n) {
-		int w = img.getWidth();
+	public static IcyBufferedImage computeGrayScale(final IcyBufferedImage img, final int cs, final int c, int n) {
+		final int w = img.getWidth();
 		int h = img.getHeight();
 
 		IcyBufferedImage gs = new IcyBufferedImage(w, h, n, TypeUtil.TYPE_DOUBLE);
-		ArrayList<double[]> id = new ArrayList<double[]>();
+		final ArrayList<double[]> id = new ArrayList<double[]>();
 
 		for (int i = 0; i < n; i++) {
 			id.add(i, gs.getDataXYAsDouble(i));
 		}
 
 		try {
-			for (int x = 0; x < w; x++) {
-				for (int y = 0; y < h; y++) {
-					double[] ihh = ColorSpaceTools.getColorComponentsD_0_255(img, cs, x, y);
-					for (double[] lid : id) {
-						lid[x + y * w] = ihh[c];
+			ParallelBands.run(h, COLOR_BAND_HEIGHT, new ParallelBands.Band() {
+				@Override
+				public void run(int from, int to) {
+					ColorSpaceTools.RowConverter rc = new ColorSpaceTools.RowConverter(cs);
+					double[][] row = new double[ColorSpaceTools.NB_COLOR_CHANNELS][w];
+					for (int y = from; y < to; y++) {
+						rc.convert(img, y, row);
+						for (double[] lid : id) {
+							System.arraycopy(row[c], 0, lid, y * w, w);
+						}
 					}
 				}
-			}
+			});
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -517,24 +506,7 @@ public class SomeImageTools {
 	 */
 	public static BinaryIcyBufferedImage makeBinary(Area area, int w, int h) {
 		BinaryIcyBufferedImage bin = new BinaryIcyBufferedImage(w, h);
-		float step = 10f;
-		float nextStep = 0;
-		float pct = 0;
-		int idx = 0;
-		byte[] raw = bin.getRawData();
-		for (int y = 0; y < h; y++) {
-			pct = y * 100 / h;
-			while (pct >= nextStep) {
-				Algorithm.out("Transforming : " + (int) pct + " % done");
-				nextStep += step;
-			}
-			for (int x = 0; x < w; x++) {
-				if (area.contains(x, y)) {
-					raw[idx] = BinaryIcyBufferedImage.TRUE;
-				}
-				idx++;
-			}
-		}
+		new ShapeRasterizer(area).fill(bin.getRawData(), w, h, BinaryIcyBufferedImage.TRUE);
 		Algorithm.out("Transforming : done");
 		return bin;
 	}
@@ -601,51 +573,30 @@ public class SomeImageTools {
 	 * @return the icy buffered image
 	 */
 	public static IcyBufferedImage saliency(IcyBufferedImage dtct, double max, double sigma) {
+		return saliency(dtct, max, sigma, null);
+	}
+
+	/**
+	 * Saliency, restricted to a mask. See SaliencyMap.
+	 * 
+	 * @param dtct
+	 *            the dtct
+	 * @param max
+	 *            the max
+	 * @param sigma
+	 *            the sigma
+	 * @param mask
+	 *            the mask, the saliency is 0 outside, may be null
+	 * @return the icy buffered image
+	 */
+	public static IcyBufferedImage saliency(IcyBufferedImage dtct, double max, double sigma, BinaryIcyBufferedImage mask) {
 		int w = dtct.getWidth();
 		int h = dtct.getHeight();
 	
-		int sz = (int) Math.ceil(3 * sigma);
-		int dim = 2 * sz + 1;
-		double[] g = new double[dim * dim];
-		double cst = max / (sigma * Math.sqrt(2 * Math.PI));
-	
-		int idx = 0;
-		// double norm = 0;
-		for (int y = -sz; y <= sz; y++) {
-			for (int x = -sz; x <= sz; x++) {
-				double dst = Math.sqrt(x * x + y * y) / sigma;
-				g[idx] = cst * Math.exp(-0.5 * dst * dst);
-				// norm += g[idx];
-				idx++;
-			}
-		}
-	
 		IcyBufferedImage res = new IcyBufferedImage(w, h, 1, TypeUtil.TYPE_DOUBLE);
 		double[] resData = res.getDataXYAsDouble(0);
 		double[] dtctData = dtct.getDataXYAsDouble(0);
-		Arrays.fill(resData, 0.0);
-	
-		int off = 0;
-		for (int y = 0; y < h; y++) {
-			off = y * w;
-			for (int x = 0; x < w; x++) {
-				if (dtctData[off] > 0) {
-					idx = 0;
-					for (int dy = -sz; dy <= sz; dy++) {
-						for (int dx = -sz; dx <= sz; dx++) {
-							int nx = x + dx;
-							int ny = y + dy;
-							int idx2 = nx + w * ny;
-							if ((nx >= 0) && (nx < w) && (ny >= 0) && (ny < h)) {
-								resData[idx2] += g[idx] * dtctData[off];
-							}
-							idx++;
-						}
-					}
-				}
-				off++;
-			}
-		}
+		SaliencyMap.compute(dtctData, w, h, max, sigma, (mask == null) ? null : mask.getRawData(), resData);
 	
 		res.dataChanged();
 	
@@ -696,9 +647,16 @@ public class SomeImageTools {
 		}
 	
 		HysteresisThresholder hta = new HysteresisThresholder(hh, hl);
-		IcyBufferedImage hyst = hta.work(sal);
+		if (output != null) {
+			return hta.work(sal);
+		}
+
+		// the saliency map is not shown, it is thresholded in place
+		double[] data = sal.getDataXYAsDouble(0);
+		hta.work(data, sal.getWidth(), sal.getHeight(), data);
+		sal.dataChanged();
 	
-		return hyst;
+		return sal;
 	}
 
 	/**
@@ -747,7 +705,7 @@ public class SomeImageTools {
 		for (Mask m : seg) {
 			g.setColor(m.getColor());
 
-			byte[] raw = m.getBinaryData().getRawData();
+			byte[] raw = m.getRawDataView();
 			int idx = 0;
 			for (int j = 0; j < h; j++) {
 				for (int i = 0; i < w; i++) {
@@ -140,15 +140,29 @@ public class SpecificColorSpace {
 	 */
 	public double[] getColorComponents(double r, double v, double b) {
 		double[] res = new double[ColorSpaceTools.NB_COLOR_CHANNELS];
+		getColorComponents(r, v, b, res);
+		return res;
+	}
 
+	/**
+	 * Gets the color components, without allocation.
+	 * 
+	 * @param r
+	 *            the r
+	 * @param v
+	 *            the v
+	 * @param b
+	 *            the b
+	 * @param res
+	 *            the color components
+	 */
+	public void getColorComponents(double r, double v, double b, double[] res) {
 		r -= mr;
 		v -= mv;
 		b -= mb;
 		res[0] = r0 * r + v0 * v + b0 * b;
 		res[1] = r1 * r + v1 * v + b1 * b;
 		res[2] = r2 * r + v2 * v + b2 * b;
-
-		return res;
 	}
 
 	/* (non-Javadoc)
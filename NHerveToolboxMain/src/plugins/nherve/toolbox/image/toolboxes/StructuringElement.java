@@ -0,0 +1,385 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ *
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ *
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.toolboxes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A binary structuring element, defined by a set of offsets around its
+ * center. It is decomposed in a union of rectangles, so that the morphology
+ * operations of BinaryMorphology only cost a few passes per rectangle,
+ * whatever the size of each rectangle. A disk of radius r still gives about
+ * r rectangles : the disks built by disk() remember their radius, so that
+ * BinaryMorphology applies the large ones through the distance transform.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class StructuringElement {
+
+	/** The Constant STD_ELEM, the 3x3 square. */
+	public final static StructuringElement STD_ELEM = square(1);
+
+	/**
+	 * Square structuring element.
+	 *
+	 * @param radius
+	 *            the radius, the side is 2 * radius + 1
+	 * @return the structuring element
+	 */
+	public static StructuringElement square(int radius) {
+		return rectangle(radius, radius);
+	}
+
+	/**
+	 * Rectangle structuring element.
+	 *
+	 * @param rx
+	 *            the horizontal radius
+	 * @param ry
+	 *            the vertical radius
+	 * @return the structuring element
+	 */
+	public static StructuringElement rectangle(int rx, int ry) {
+		StructuringElement se = new StructuringElement(rx, ry);
+		for (int dy = -ry; dy <= ry; dy++) {
+			for (int dx = -rx; dx <= rx; dx++) {
+				se.set(dx, dy);
+			}
+		}
+		return se;
+	}
+
+	/**
+	 * Disk structuring element : all the offsets at a distance lower or
+	 * equal to the radius.
+	 *
+	 * @param radius
+	 *            the radius
+	 * @return the structuring element
+	 */
+	public static StructuringElement disk(int radius) {
+		StructuringElement se = new StructuringElement(radius, radius);
+		se.diskRadius = radius;
+		final int r2 = radius * radius;
+		for (int dy = -radius; dy <= radius; dy++) {
+			for (int dx = -radius; dx <= radius; dx++) {
+				if (dx * dx + dy * dy <= r2) {
+					se.set(dx, dy);
+				}
+			}
+		}
+		return se;
+	}
+
+	/**
+	 * Cross structuring element.
+	 *
+	 * @param radius
+	 *            the length of each arm
+	 * @return the structuring element
+	 */
+	public static StructuringElement cross(int radius) {
+		StructuringElement se = new StructuringElement(radius, radius);
+		for (int d = -radius; d <= radius; d++) {
+			se.set(d, 0);
+			se.set(0, d);
+		}
+		return se;
+	}
+
+	/**
+	 * Line structuring element, centered on the origin.
+	 *
+	 * @param radius
+	 *            the half length of the line
+	 * @param angle
+	 *            the angle, in degrees, counterclockwise from the x axis
+	 *            (y axis pointing down)
+	 * @return the structuring element
+	 */
+	public static StructuringElement line(int radius, double angle) {
+		final double a = Math.toRadians(angle);
+		final double cos = Math.cos(a);
+		final double sin = -Math.sin(a);
+		final boolean horizontal = Math.abs(cos) >= Math.abs(sin);
+		final int n = (int) Math.round(Math.abs(radius * (horizontal ? cos : sin)));
+		int[] dxs = new int[2 * n + 1];
+		int[] dys = new int[2 * n + 1];
+		int rx = 0;
+		int ry = 0;
+		for (int t = -n; t <= n; t++) {
+			if (horizontal) {
+				dxs[t + n] = t;
+				dys[t + n] = (int) Math.round(t * sin / cos);
+			} else {
+				dxs[t + n] = (int) Math.round(t * cos / sin);
+				dys[t + n] = t;
+			}
+			rx = Math.max(rx, Math.abs(dxs[t + n]));
+			ry = Math.max(ry, Math.abs(dys[t + n]));
+		}
+		StructuringElement se = new StructuringElement(rx, ry);
+		for (int i = 0; i < dxs.length; i++) {
+			se.set(dxs[i], dys[i]);
+		}
+		return se;
+	}
+
+	/** The horizontal radius. */
+	private final int rx;
+
+	/** The vertical radius. */
+	private final int ry;
+
+	/** The offsets, row by row. */
+	private final boolean[] elem;
+
+	/** The rectangles, {dx1, dx2, dy1, dy2}, inclusive. */
+	private List<int[]> rectangles;
+
+	/** The radius of the disk, -1 if the element has not been built as a disk. */
+	private int diskRadius;
+
+	/**
+	 * Instantiates a new empty structuring element.
+	 *
+	 * @param rx
+	 *            the horizontal radius
+	 * @param ry
+	 *            the vertical radius
+	 */
+	private StructuringElement(int rx, int ry) {
+		super();
+		this.rx = rx;
+		this.ry = ry;
+		this.elem = new boolean[(2 * rx + 1) * (2 * ry + 1)];
+		this.rectangles = null;
+		this.diskRadius = -1;
+	}
+
+	/**
+	 * Instantiates a new structuring element from a matrix, with the same
+	 * conventions as MorphOp : elem[y][x], non zero values are part of the
+	 * element.
+	 *
+	 * @param matrix
+	 *            the matrix
+	 * @param cx
+	 *            the x of the center in the matrix
+	 * @param cy
+	 *            the y of the center in the matrix
+	 */
+	public StructuringElement(double[][] matrix, int cx, int cy) {
+		this(maxRadiusX(matrix, cx), Math.max(cy, matrix.length - 1 - cy));
+		for (int y = 0; y < matrix.length; y++) {
+			for (int x = 0; x < matrix[y].length; x++) {
+				if (matrix[y][x] != 0) {
+					set(x - cx, y - cy);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Max radius x.
+	 *
+	 * @param matrix
+	 *            the matrix
+	 * @param cx
+	 *            the cx
+	 * @return the radius
+	 */
+	private static int maxRadiusX(double[][] matrix, int cx) {
+		int r = cx;
+		for (double[] row : matrix) {
+			r = Math.max(r, row.length - 1 - cx);
+		}
+		return r;
+	}
+
+	/**
+	 * Sets an offset.
+	 *
+	 * @param dx
+	 *            the dx
+	 * @param dy
+	 *            the dy
+	 */
+	private void set(int dx, int dy) {
+		elem[(dy + ry) * (2 * rx + 1) + dx + rx] = true;
+	}
+
+	/**
+	 * Checks if an offset is part of the element.
+	 *
+	 * @param dx
+	 *            the dx
+	 * @param dy
+	 *            the dy
+	 * @return true, if successful
+	 */
+	public boolean contains(int dx, int dy) {
+		if ((dx < -rx) || (dx > rx) || (dy < -ry) || (dy > ry)) {
+			return false;
+		}
+		return elem[(dy + ry) * (2 * rx + 1) + dx + rx];
+	}
+
+	/**
+	 * Gets the reflection of this element (all offsets negated).
+	 *
+	 * @return the reflection
+	 */
+	public StructuringElement getReflection() {
+		StructuringElement se = new StructuringElement(rx, ry);
+		se.diskRadius = diskRadius;
+		for (int dy = -ry; dy <= ry; dy++) {
+			for (int dx = -rx; dx <= rx; dx++) {
+				if (contains(dx, dy)) {
+					se.set(-dx, -dy);
+				}
+			}
+		}
+		return se;
+	}
+
+	/**
+	 * Gets the radius of the disk.
+	 *
+	 * @return the radius, -1 if the element has not been built by disk()
+	 */
+	public int getDiskRadius() {
+		return diskRadius;
+	}
+
+	/**
+	 * Gets the horizontal radius.
+	 *
+	 * @return the radius x
+	 */
+	public int getRadiusX() {
+		return rx;
+	}
+
+	/**
+	 * Gets the vertical radius.
+	 *
+	 * @return the radius y
+	 */
+	public int getRadiusY() {
+		return ry;
+	}
+
+	/**
+	 * Gets the decomposition of the element in rectangles. For each distinct
+	 * horizontal run of the element, one rectangle is built for each maximal
+	 * range of rows containing this run. Symmetric convex elements (square,
+	 * disk, cross) thus give one rectangle per distinct run width.
+	 *
+	 * @return the rectangles, {dx1, dx2, dy1, dy2}, bounds included
+	 */
+	public synchronized List<int[]> getRectangles() {
+		if (rectangles == null) {
+			rectangles = decompose();
+		}
+		return rectangles;
+	}
+
+	/**
+	 * Decompose.
+	 *
+	 * @return the rectangles
+	 */
+	private List<int[]> decompose() {
+		final int nbRows = 2 * ry + 1;
+		List<List<int[]>> runs = new ArrayList<List<int[]>>(nbRows);
+		List<int[]> distinct = new ArrayList<int[]>();
+		for (int dy = -ry; dy <= ry; dy++) {
+			List<int[]> rowRuns = new ArrayList<int[]>();
+			int dx = -rx;
+			while (dx <= rx) {
+				if (contains(dx, dy)) {
+					int start = dx;
+					while ((dx <= rx) && contains(dx, dy)) {
+						dx++;
+					}
+					int[] run = new int[] { start, dx - 1 };
+					rowRuns.add(run);
+					boolean known = false;
+					for (int[] d : distinct) {
+						if ((d[0] == run[0]) && (d[1] == run[1])) {
+							known = true;
+							break;
+						}
+					}
+					if (!known) {
+						distinct.add(run);
+					}
+				} else {
+					dx++;
+				}
+			}
+			runs.add(rowRuns);
+		}
+
+		List<int[]> res = new ArrayList<int[]>();
+		for (int[] run : distinct) {
+			int dy = 0;
+			while (dy < nbRows) {
+				if (!covers(runs.get(dy), run)) {
+					dy++;
+					continue;
+				}
+				int start = dy;
+				boolean exact = false;
+				while ((dy < nbRows) && covers(runs.get(dy), run)) {
+					for (int[] r : runs.get(dy)) {
+						if ((r[0] == run[0]) && (r[1] == run[1])) {
+							exact = true;
+						}
+					}
+					dy++;
+				}
+				if (exact) {
+					res.add(new int[] { run[0], run[1], start - ry, dy - 1 - ry });
+				}
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Checks if one of the runs of a row contains a run.
+	 *
+	 * @param rowRuns
+	 *            the row runs
+	 * @param run
+	 *            the run
+	 * @return true, if successful
+	 */
+	private static boolean covers(List<int[]> rowRuns, int[] run) {
+		for (int[] r : rowRuns) {
+			if ((r[0] <= run[0]) && (r[1] >= run[1])) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
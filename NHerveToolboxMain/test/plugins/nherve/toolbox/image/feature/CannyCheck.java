@@ -0,0 +1,169 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ *
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ *
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.feature;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import plugins.nherve.toolbox.Algorithm;
+
+/**
+ * Checks that the Canny edges computed by bands, with the union-find
+ * hysteresis, are exactly the ones of the sequential non maximum suppression
+ * and hysteresis, in double and single precision. The hysteresis thresholds
+ * are taken among the gradient amplitudes of each image, so that the weak
+ * edges really depend on their connection to the strong ones, across the
+ * band boundaries as well.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class CannyCheck {
+
+	/** The Constant NB_ITERATIONS. */
+	private final static int NB_ITERATIONS = 40;
+
+	/** The Constant MIN_SIZE, enough rows for several bands. */
+	private final static int MIN_SIZE = 128;
+
+	/** The Constant MAX_SIZE. */
+	private final static int MAX_SIZE = 700;
+
+	/** The Constant SIGMA. */
+	private final static double SIGMA = 1.0;
+
+	/**
+	 * Random image, with blobs : the noise is smoothed by a box filter.
+	 *
+	 * @param rand
+	 *            the rand
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @return the data
+	 */
+	private static double[] createData(Random rand, int w, int h) {
+		double[] noise = new double[w * h];
+		for (int i = 0; i < noise.length; i++) {
+			noise[i] = rand.nextInt(256);
+		}
+		double[] data = new double[w * h];
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				double s = 0;
+				int n = 0;
+				for (int dy = -2; dy <= 2; dy++) {
+					for (int dx = -2; dx <= 2; dx++) {
+						int nx = x + dx;
+						int ny = y + dy;
+						if ((nx >= 0) && (ny >= 0) && (nx < w) && (ny < h)) {
+							s += noise[nx + ny * w];
+							n++;
+						}
+					}
+				}
+				data[x + y * w] = s / n;
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Gets a quantile of the gradient amplitudes.
+	 *
+	 * @param gradient
+	 *            the gradient
+	 * @param q
+	 *            the q, in [0, 1[
+	 * @return the quantile
+	 */
+	private static double getQuantile(double[] gradient, double q) {
+		double[] sorted = gradient.clone();
+		Arrays.sort(sorted);
+		return sorted[(int) (q * sorted.length)];
+	}
+
+	/**
+	 * Counts the pixels that differ.
+	 *
+	 * @param a
+	 *            the a
+	 * @param b
+	 *            the b
+	 * @return the number of differences
+	 */
+	private static int countDifferences(boolean[] a, boolean[] b) {
+		int nb = 0;
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] != b[i]) {
+				nb++;
+			}
+		}
+		return nb;
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args
+	 *            the arguments
+	 */
+	public static void main(String[] args) {
+		Random rand = new Random(42);
+		ConvolutionKernel2D.CannyWorkspace ws = new ConvolutionKernel2D.CannyWorkspace();
+		long nbEdges = 0;
+		long nbDifferences = 0;
+		for (int it = 0; it < NB_ITERATIONS; it++) {
+			int w = MIN_SIZE + rand.nextInt(MAX_SIZE - MIN_SIZE);
+			int h = MIN_SIZE + rand.nextInt(MAX_SIZE - MIN_SIZE);
+			double[] data = createData(rand, w, h);
+
+			double[] gradient = new double[w * h];
+			ConvolutionKernel2D.canny(data, w, h, SIGMA, 0, 0, new boolean[w * h], gradient, null, false);
+			double low = getQuantile(gradient, 0.7);
+			double high = getQuantile(gradient, 0.9);
+
+			boolean[] sequential = new boolean[w * h];
+			ConvolutionKernel2D.canny(data, w, h, SIGMA, low, high, sequential, null, null, false);
+			boolean[] bands = new boolean[w * h];
+			ConvolutionKernel2D.canny(data, w, h, SIGMA, low, high, bands, null, null, true);
+			nbDifferences += countDifferences(sequential, bands);
+
+			float[] fdata = new float[w * h];
+			for (int i = 0; i < fdata.length; i++) {
+				fdata[i] = (float) data[i];
+			}
+			boolean[] fsequential = new boolean[w * h];
+			ConvolutionKernel2D.canny(fdata, w, h, SIGMA, low, high, fsequential, null, null, ws, false);
+			boolean[] fbands = new boolean[w * h];
+			ConvolutionKernel2D.canny(fdata, w, h, SIGMA, low, high, fbands, null, null, ws, true);
+			nbDifferences += countDifferences(fsequential, fbands);
+
+			for (boolean e : sequential) {
+				if (e) {
+					nbEdges++;
+				}
+			}
+		}
+		Algorithm.out("CannyCheck - " + NB_ITERATIONS + " images, " + nbEdges + " edge pixels : " + nbDifferences + " differences between the sequential and the band computations");
+		if (nbDifferences > 0) {
+			System.exit(1);
+		}
+	}
+}
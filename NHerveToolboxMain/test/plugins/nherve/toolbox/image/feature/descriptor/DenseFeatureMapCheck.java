@@ -0,0 +1,160 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ *
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ *
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.feature.descriptor;
+
+import icy.image.IcyBufferedImage;
+import icy.type.TypeUtil;
+
+import java.util.Random;
+
+import plugins.nherve.toolbox.Algorithm;
+import plugins.nherve.toolbox.image.feature.SegmentableIcyBufferedImage;
+import plugins.nherve.toolbox.image.feature.Signature;
+import plugins.nherve.toolbox.image.feature.lbp.LocalBinaryPattern;
+import plugins.nherve.toolbox.image.feature.region.IcyPixel;
+import plugins.nherve.toolbox.image.feature.signature.DefaultVectorSignature;
+import plugins.nherve.toolbox.image.feature.signature.SignatureException;
+import plugins.nherve.toolbox.image.toolboxes.ColorSpaceTools;
+
+/**
+ * Checks the dense feature maps against the signatures extracted pixel by
+ * pixel with extractLocalSignature, on a random image, for the descriptors
+ * able to fill a map directly. The map is filled in two bands. The map is in
+ * single precision and some descriptors sum in another order, so the values
+ * must only agree up to the float rounding.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class DenseFeatureMapCheck {
+
+	/** The Constant W. */
+	private final static int W = 157;
+
+	/** The Constant H. */
+	private final static int H = 113;
+
+	/** The Constant TOLERANCE, relative to the value when greater than 1. */
+	private final static double TOLERANCE = 1e-4;
+
+	/**
+	 * Random RGB image, with flat areas and sharp edges : a few random
+	 * rectangles over a noisy background.
+	 *
+	 * @param rand
+	 *            the rand
+	 * @return the image
+	 */
+	private static SegmentableIcyBufferedImage createImage(Random rand) {
+		IcyBufferedImage img = new IcyBufferedImage(W, H, 3, TypeUtil.TYPE_BYTE);
+		for (int c = 0; c < 3; c++) {
+			byte[] raw = img.getDataXYAsByte(c);
+			for (int i = 0; i < raw.length; i++) {
+				raw[i] = (byte) rand.nextInt(256);
+			}
+			for (int r = 0; r < 10; r++) {
+				int x1 = rand.nextInt(W);
+				int y1 = rand.nextInt(H);
+				int x2 = Math.min(W, x1 + rand.nextInt(W / 2));
+				int y2 = Math.min(H, y1 + rand.nextInt(H / 2));
+				byte v = (byte) rand.nextInt(256);
+				for (int y = y1; y < y2; y++) {
+					for (int x = x1; x < x2; x++) {
+						raw[x + y * W] = v;
+					}
+				}
+			}
+		}
+		img.dataChanged();
+		return new SegmentableIcyBufferedImage(img);
+	}
+
+	/**
+	 * Compares the dense map of a descriptor with its local signatures.
+	 *
+	 * @param <D>
+	 *            the descriptor type
+	 * @param name
+	 *            the name
+	 * @param descriptor
+	 *            the descriptor
+	 * @param img
+	 *            the img
+	 * @return the number of values out of the tolerance
+	 * @throws SignatureException
+	 *             the signature exception
+	 */
+	private static <D extends GlobalAndLocalDescriptor<SegmentableIcyBufferedImage, ? extends Signature> & DenseLocalDescriptor<SegmentableIcyBufferedImage>> int check(String name, D descriptor, SegmentableIcyBufferedImage img) throws SignatureException {
+		if (!descriptor.isDenseExtractionSupported()) {
+			throw new SignatureException(name + " : dense extraction not supported");
+		}
+		final int dim = descriptor.getSignatureSize();
+		DenseFeatureMap map = new DenseFeatureMap(W, H, dim);
+		int nb = 0;
+		double maxDiff = 0;
+		descriptor.preProcess(img);
+		try {
+			descriptor.extractDenseFeatures(img, 0, H / 3, map);
+			descriptor.extractDenseFeatures(img, H / 3, H, map);
+
+			for (int y = 0; y < H; y++) {
+				for (int x = 0; x < W; x++) {
+					DefaultVectorSignature sig = (DefaultVectorSignature) descriptor.extractLocalSignature(img, new IcyPixel(x, y));
+					for (int d = 0; d < dim; d++) {
+						double expected = sig.get(d);
+						double diff = Math.abs(map.get(x, y, d) - expected) / Math.max(1, Math.abs(expected));
+						maxDiff = Math.max(maxDiff, diff);
+						if (diff > TOLERANCE) {
+							nb++;
+						}
+					}
+				}
+			}
+		} finally {
+			descriptor.postProcess(img);
+		}
+		Algorithm.out("DenseFeatureMapCheck - " + name + " : " + nb + " values out of the tolerance, max relative difference " + maxDiff);
+		return nb;
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args
+	 *            the arguments
+	 */
+	public static void main(String[] args) {
+		try {
+			SegmentableIcyBufferedImage img = createImage(new Random(42));
+			int nb = 0;
+			int[] colorSpaces = { ColorSpaceTools.RGB, ColorSpaceTools.RGB_TO_I1H2H3, ColorSpaceTools.RGB_TO_HSV, ColorSpaceTools.RGB_TO_LAB };
+			for (int cs : colorSpaces) {
+				nb += check("ColorPixel " + ColorSpaceTools.COLOR_SPACES[cs], new ColorPixel(cs, ColorPixel.SQUARE_9_NEIGHBOUR, false), img);
+			}
+			nb += check("EdgeOrientationHistogram", new EdgeOrientationHistogram(true, false), img);
+			nb += check("EdgeOrientationHistogram, no smoothing", new EdgeOrientationHistogram(false, false), img);
+			nb += check("LocalBinaryPattern", new LocalBinaryPattern(8, 1.0, 3, true, true, 1, true, false), img);
+			if (nb > 0) {
+				System.exit(1);
+			}
+		} catch (SignatureException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ *
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ *
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.feature.fuzzy;
+
+import icy.image.IcyBufferedImage;
+import icy.type.TypeUtil;
+
+import java.util.LinkedList;
+import java.util.Random;
+
+import plugins.nherve.toolbox.Algorithm;
+
+/**
+ * Checks the HysteresisThresholder against the legacy breadth first
+ * propagation from the strong pixels, on random smoothed images of random
+ * sizes, for the double, float and byte data, signed or not, and for the
+ * images, whose data must be left untouched. The same thresholders are used
+ * for all the images, so that their buffers are reused across the sizes.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class HysteresisThresholderCheck {
+
+	/** The Constant NB_ITERATIONS. */
+	private final static int NB_ITERATIONS = 200;
+
+	/** The Constant MAX_SIZE. */
+	private final static int MAX_SIZE = 400;
+
+	/** The Constant LOW_THRESHOLD. */
+	private final static double LOW_THRESHOLD = 100;
+
+	/** The Constant HIGH_THRESHOLD. */
+	private final static double HIGH_THRESHOLD = 180;
+
+	/** The Constant HIGH_VALUE. */
+	private final static double HIGH_VALUE = 200;
+
+	/** The Constant LOW_VALUE. */
+	private final static double LOW_VALUE = 10;
+
+	/**
+	 * Legacy hysteresis, the pixels being propagated through a queue.
+	 *
+	 * @param data
+	 *            the data
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @return the result
+	 */
+	private static double[] legacyWork(double[] data, int w, int h) {
+		double[] table = data.clone();
+		boolean[] done = new boolean[table.length];
+		LinkedList<int[]> wf = new LinkedList<int[]>();
+		for (int x = 0; x < w; x++) {
+			for (int y = 0; y < h; y++) {
+				int idx = x + w * y;
+				if (table[idx] >= HIGH_THRESHOLD) {
+					table[idx] = HIGH_VALUE;
+					done[idx] = true;
+					wf.addFirst(new int[] { x, y });
+				}
+			}
+		}
+		while (!wf.isEmpty()) {
+			int[] px = wf.removeLast();
+			for (int dx = -1; dx <= 1; dx++) {
+				for (int dy = -1; dy <= 1; dy++) {
+					int nx = px[0] + dx;
+					int ny = px[1] + dy;
+					if ((nx >= 0) && (ny >= 0) && (nx < w) && (ny < h)) {
+						int idx = nx + w * ny;
+						if ((!done[idx]) && (table[idx] >= LOW_THRESHOLD)) {
+							table[idx] = HIGH_VALUE;
+							done[idx] = true;
+							wf.addFirst(new int[] { nx, ny });
+						}
+					}
+				}
+			}
+		}
+		for (int i = 0; i < table.length; i++) {
+			if (table[i] < HIGH_VALUE) {
+				table[i] = LOW_VALUE;
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Random 8 bits image, with connected blobs : the noise is smoothed by a
+	 * few box filters.
+	 *
+	 * @param rand
+	 *            the rand
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @return the data
+	 */
+	private static double[] createData(Random rand, int w, int h) {
+		double[] data = new double[w * h];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = rand.nextInt(256);
+		}
+		double[] tmp = new double[w * h];
+		for (int pass = 0; pass < 2; pass++) {
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					double s = 0;
+					int n = 0;
+					for (int dy = -1; dy <= 1; dy++) {
+						for (int dx = -1; dx <= 1; dx++) {
+							int nx = x + dx;
+							int ny = y + dy;
+							if ((nx >= 0) && (ny >= 0) && (nx < w) && (ny < h)) {
+								s += data[nx + ny * w];
+								n++;
+							}
+						}
+					}
+					tmp[x + y * w] = s / n;
+				}
+			}
+			double[] swp = data;
+			data = tmp;
+			tmp = swp;
+		}
+		// stretched back to [0, 255], so that both thresholds are crossed
+		for (int i = 0; i < data.length; i++) {
+			data[i] = Math.max(0, Math.min(255, Math.round((data[i] - 128) * 4 + 128)));
+		}
+		return data;
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args
+	 *            the arguments
+	 */
+	public static void main(String[] args) {
+		Random rand = new Random(42);
+		HysteresisThresholder thresholder = new HysteresisThresholder(HIGH_THRESHOLD, LOW_THRESHOLD, HIGH_VALUE, LOW_VALUE);
+		// the signed bytes are the values shifted by -128, and so are the parameters and the result
+		HysteresisThresholder signedThresholder = new HysteresisThresholder(HIGH_THRESHOLD - 128, LOW_THRESHOLD - 128, HIGH_VALUE - 128, LOW_VALUE - 128);
+		long nbDifferences = 0;
+		for (int it = 0; it < NB_ITERATIONS; it++) {
+			int w = 1 + rand.nextInt(MAX_SIZE);
+			int h = 1 + rand.nextInt(MAX_SIZE);
+			double[] data = createData(rand, w, h);
+			double[] expected = legacyWork(data, w, h);
+
+			double[] result = new double[w * h];
+			thresholder.work(data, w, h, result);
+
+			IcyBufferedImage gray = new IcyBufferedImage(w, h, 1, TypeUtil.TYPE_DOUBLE);
+			gray.setDataXYAsDouble(0, data.clone());
+			double[] iresult = thresholder.work(gray).getDataXYAsDouble(0);
+
+			float[] fdata = new float[w * h];
+			for (int i = 0; i < fdata.length; i++) {
+				fdata[i] = (float) data[i];
+			}
+			thresholder.work(fdata, w, h, fdata);
+
+			boolean signed = rand.nextBoolean();
+			byte[] bdata = new byte[w * h];
+			for (int i = 0; i < bdata.length; i++) {
+				bdata[i] = (byte) (signed ? data[i] - 128 : data[i]);
+			}
+			(signed ? signedThresholder : thresholder).work(bdata, signed, w, h, bdata);
+
+			for (int i = 0; i < expected.length; i++) {
+				byte bexpected = (byte) (signed ? expected[i] - 128 : expected[i]);
+				if ((result[i] != expected[i]) || (iresult[i] != expected[i]) || (data[i] != gray.getDataXYAsDouble(0)[i]) || (fdata[i] != (float) expected[i]) || (bdata[i] != bexpected)) {
+					nbDifferences++;
+				}
+			}
+		}
+		Algorithm.out("HysteresisThresholderCheck - " + NB_ITERATIONS + " images : " + nbDifferences + " differences with the legacy propagation");
+		if (nbDifferences > 0) {
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ *
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ *
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.mask;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.geom.Area;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import plugins.nherve.toolbox.Algorithm;
+import plugins.nherve.toolbox.PersistenceException;
+
+/**
+ * Checks that the edits saved in a journal survive a stale journal, left by
+ * a save of the main file that did not go through the journal, and a torn
+ * journal, whose last entry is truncated or corrupted : each edit saved
+ * afterwards must be found back by a fresh load.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class JournaledMaskPersistenceCheck {
+
+	/** The Constant W. */
+	private final static int W = 300;
+
+	/** The Constant H. */
+	private final static int H = 200;
+
+	/** The Constant NB_MASKS. */
+	private final static int NB_MASKS = 3;
+
+	/**
+	 * Creates a new persistence, compacting on the saving thread and only on
+	 * demand.
+	 *
+	 * @return the persistence
+	 */
+	private static JournaledMaskPersistenceImpl createPersistence() {
+		JournaledMaskPersistenceImpl p = new JournaledMaskPersistenceImpl();
+		p.setTm(null);
+		p.setCompactionRatio(Double.MAX_VALUE);
+		return p;
+	}
+
+	/**
+	 * Creates a stack of empty masks.
+	 *
+	 * @return the mask stack
+	 * @throws MaskException
+	 *             the mask exception
+	 */
+	private static MaskStack createStack() throws MaskException {
+		MaskStack stack = new MaskStack(W, H);
+		for (int i = 0; i < NB_MASKS; i++) {
+			stack.createNewMask("Mask " + i, false, Color.RED, 1.0f);
+		}
+		return stack;
+	}
+
+	/**
+	 * Adds a random rectangle to a random mask.
+	 *
+	 * @param rand
+	 *            the rand
+	 * @param stack
+	 *            the stack
+	 * @throws MaskException
+	 *             the mask exception
+	 */
+	private static void edit(Random rand, MaskStack stack) throws MaskException {
+		int x = rand.nextInt(W);
+		int y = rand.nextInt(H);
+		Rectangle r = new Rectangle(x, y, 1 + rand.nextInt(W - x), 1 + rand.nextInt(H - y));
+		stack.getByIndex(rand.nextInt(stack.size())).add(new Area(r));
+	}
+
+	/**
+	 * Checks that a fresh load of a file gives the stack back.
+	 *
+	 * @param name
+	 *            the name
+	 * @param stack
+	 *            the expected stack
+	 * @param f
+	 *            the f
+	 * @return true, if the stack is restored identically
+	 * @throws PersistenceException
+	 *             the persistence exception
+	 */
+	private static boolean check(String name, MaskStack stack, File f) throws PersistenceException {
+		MaskStack loaded = createPersistence().loadMaskStack(f);
+		boolean ok = loaded.size() == stack.size();
+		for (int i = 0; ok && (i < stack.size()); i++) {
+			ok = Arrays.equals(loaded.getByIndex(i).getRawDataView(), stack.getByIndex(i).getRawDataView());
+		}
+		Algorithm.out("JournaledMaskPersistenceCheck - " + name + " : " + (ok ? "ok" : "edits lost"));
+		return ok;
+	}
+
+	/**
+	 * A main file rewritten by a plain save : its journal is stale and must
+	 * be neither replayed nor extended, by the instance that wrote it nor by
+	 * a new one.
+	 *
+	 * @param rand
+	 *            the rand
+	 * @param f
+	 *            the f
+	 * @return true, if the check succeeds
+	 * @throws MaskException
+	 *             the mask exception
+	 * @throws PersistenceException
+	 *             the persistence exception
+	 */
+	private static boolean checkStaleJournal(Random rand, File f) throws MaskException, PersistenceException {
+		JournaledMaskPersistenceImpl journaled = createPersistence();
+		MaskStack stack = createStack();
+		journaled.save(stack, f);
+		edit(rand, stack);
+		journaled.save(stack, f);
+
+		MaskStack other = createStack();
+		edit(rand, other);
+		new OptimizedMaskPersistenceImpl().save(other, f);
+		boolean ok = check("stale journal, loaded", other, f);
+
+		edit(rand, stack);
+		journaled.save(stack, f);
+		ok &= check("stale journal, saved by the writer of the journal", stack, f);
+
+		edit(rand, stack);
+		journaled.save(stack, f);
+		new OptimizedMaskPersistenceImpl().save(other, f);
+		JournaledMaskPersistenceImpl fresh = createPersistence();
+		MaskStack reloaded = fresh.loadMaskStack(f);
+		ok &= !journaled.getJournalFile(f).exists();
+		edit(rand, reloaded);
+		fresh.save(reloaded, f);
+		edit(rand, reloaded);
+		fresh.save(reloaded, f);
+		ok &= check("stale journal, saved after a load", reloaded, f);
+		return ok;
+	}
+
+	/**
+	 * A journal ending with a partial entry, then with an entry whose crc
+	 * does not match : the end is cut off and the next entries are replayed.
+	 *
+	 * @param rand
+	 *            the rand
+	 * @param f
+	 *            the f
+	 * @param tail
+	 *            the bytes appended to the journal
+	 * @param name
+	 *            the name
+	 * @return true, if the check succeeds
+	 * @throws MaskException
+	 *             the mask exception
+	 * @throws PersistenceException
+	 *             the persistence exception
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static boolean checkTornJournal(Random rand, File f, byte[] tail, String name) throws MaskException, PersistenceException, IOException {
+		JournaledMaskPersistenceImpl journaled = createPersistence();
+		MaskStack stack = createStack();
+		journaled.save(stack, f);
+		edit(rand, stack);
+		journaled.save(stack, f);
+
+		File journal = journaled.getJournalFile(f);
+		long validLength = journal.length();
+		RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+		try {
+			raf.seek(raf.length());
+			raf.write(tail);
+		} finally {
+			raf.close();
+		}
+
+		JournaledMaskPersistenceImpl fresh = createPersistence();
+		MaskStack reloaded = fresh.loadMaskStack(f);
+		boolean ok = journal.length() == validLength;
+		edit(rand, reloaded);
+		fresh.save(reloaded, f);
+		edit(rand, reloaded);
+		fresh.save(reloaded, f);
+		ok &= check(name, reloaded, f);
+		return ok;
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args
+	 *            the arguments
+	 */
+	public static void main(String[] args) {
+		File f = null;
+		try {
+			Random rand = new Random(42);
+			f = File.createTempFile("journal", new OptimizedMaskPersistenceImpl().getMaskFileExtension());
+			boolean ok = checkStaleJournal(rand, f);
+			// a partial entry : a length announcing more bytes than available
+			ok &= checkTornJournal(rand, f, new byte[] { 0, 0, 1, 0, 1, 2, 3, 4, 5 }, "truncated entry");
+			// a complete entry whose crc does not match
+			ok &= checkTornJournal(rand, f, new byte[] { 0, 0, 0, 4, 1, 2, 3, 4, 0, 0, 0, 0 }, "corrupted entry");
+			if (!ok) {
+				System.exit(1);
+			}
+		} catch (MaskException e) {
+			e.printStackTrace();
+			System.exit(1);
+		} catch (PersistenceException e) {
+			e.printStackTrace();
+			System.exit(1);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		} finally {
+			if (f != null) {
+				new JournaledMaskPersistenceImpl().getJournalFile(f).delete();
+				f.delete();
+			}
+		}
+	}
+}
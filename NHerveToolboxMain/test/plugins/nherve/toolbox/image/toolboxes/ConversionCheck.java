@@ -0,0 +1,101 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ *
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ *
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.toolboxes;
+
+import plugins.nherve.toolbox.Algorithm;
+
+/**
+ * Checks the fused RGB to I1H2H3 conversions of Conversion against the per
+ * channel ones, private_RGB_to_I1, private_RGB_to_H2 and private_RGB_to_H3,
+ * on all the 2^24 colors, and the way back against private_H1H2H3_to_R, G
+ * and B. The planar, interleaved and image variants are all checked. The
+ * check holds all the colors at once and needs about 1 GB of heap.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class ConversionCheck {
+
+	/** The Constant NB_COLORS. */
+	private final static int NB_COLORS = 1 << 24;
+
+	/** The Constant W, the colors are seen as a W x (NB_COLORS / W) image. */
+	private final static int W = 4096;
+
+	/**
+	 * The main method.
+	 *
+	 * @param args
+	 *            the arguments
+	 */
+	public static void main(String[] args) {
+		int[] rgb = new int[NB_COLORS];
+		for (int c = 0; c < NB_COLORS; c++) {
+			rgb[c] = 0xFF000000 | c;
+		}
+
+		int[] i1 = new int[NB_COLORS];
+		int[] h2 = new int[NB_COLORS];
+		int[] h3 = new int[NB_COLORS];
+		Conversion.RGB_to_I1H2H3(rgb, 0, NB_COLORS, i1, h2, h3);
+		int[] interleaved = new int[3 * NB_COLORS];
+		Conversion.RGB_to_I1H2H3(rgb, 0, NB_COLORS, interleaved);
+		int[][] image = new int[3][NB_COLORS];
+		Conversion.image_RGB_to_I1H2H3(rgb, W, NB_COLORS / W, image);
+
+		long nbForward = 0;
+		for (int c = 0; c < NB_COLORS; c++) {
+			int r = (c >> 16) & 0xFF;
+			int g = (c >> 8) & 0xFF;
+			int b = c & 0xFF;
+			int ei1 = Conversion.private_RGB_to_I1(r, g, b);
+			int eh2 = Conversion.private_RGB_to_H2(r, g, b);
+			int eh3 = Conversion.private_RGB_to_H3(r, g, b);
+			if ((i1[c] != ei1) || (h2[c] != eh2) || (h3[c] != eh3)) {
+				nbForward++;
+			} else if ((interleaved[3 * c] != ei1) || (interleaved[3 * c + 1] != eh2) || (interleaved[3 * c + 2] != eh3)) {
+				nbForward++;
+			} else if ((image[0][c] != ei1) || (image[1][c] != eh2) || (image[2][c] != eh3)) {
+				nbForward++;
+			}
+		}
+
+		int[] back = new int[NB_COLORS];
+		Conversion.H1H2H3_to_RGB(i1, h2, h3, 0, NB_COLORS, back);
+		int[] backInterleaved = new int[NB_COLORS];
+		Conversion.H1H2H3_to_RGB(interleaved, 0, NB_COLORS, backInterleaved);
+		int[] backImage = new int[NB_COLORS];
+		Conversion.image_H1H2H3_to_RGB(image, W, NB_COLORS / W, backImage);
+
+		long nbBackward = 0;
+		for (int c = 0; c < NB_COLORS; c++) {
+			int expected = 0xFF000000;
+			expected |= Conversion.private_H1H2H3_to_R(i1[c], h2[c], h3[c]) << 16;
+			expected |= Conversion.private_H1H2H3_to_G(i1[c], h2[c], h3[c]) << 8;
+			expected |= Conversion.private_H1H2H3_to_B(i1[c], h2[c], h3[c]);
+			if ((back[c] != expected) || (backInterleaved[c] != expected) || (backImage[c] != expected)) {
+				nbBackward++;
+			}
+		}
+
+		Algorithm.out("ConversionCheck - " + NB_COLORS + " colors : " + nbForward + " differences to I1H2H3, " + nbBackward + " differences back to RGB");
+		if ((nbForward > 0) || (nbBackward > 0)) {
+			System.exit(1);
+		}
+	}
+}
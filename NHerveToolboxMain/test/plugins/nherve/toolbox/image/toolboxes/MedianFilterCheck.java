@@ -0,0 +1,183 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ *
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ *
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.toolboxes;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import plugins.nherve.toolbox.Algorithm;
+
+/**
+ * Checks that the MedianFilter gives, bit for bit, the values of the legacy
+ * median : the element of rank n / 2 of the whole window, sorted. The 8 bits,
+ * 16 bits and other data paths are all exercised, in double and single
+ * precision, on random sizes and windows, in one call and in two bands.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class MedianFilterCheck {
+
+	/** The Constant NB_ITERATIONS. */
+	private final static int NB_ITERATIONS = 300;
+
+	/** The Constant MAX_SIZE. */
+	private final static int MAX_SIZE = 80;
+
+	/**
+	 * Legacy median, the window being sorted for each pixel.
+	 *
+	 * @param data
+	 *            the data
+	 * @param w
+	 *            the w
+	 * @param h
+	 *            the h
+	 * @param hw
+	 *            the half width
+	 * @param hh
+	 *            the half height
+	 * @return the result
+	 */
+	private static double[] sortedMedian(double[] data, int w, int h, int hw, int hh) {
+		final int mx = w * h;
+		double[] result = new double[mx];
+		double[] window = new double[(2 * hw + 1) * (2 * hh + 1)];
+		for (int p = 0; p < mx; p++) {
+			int n = 0;
+			for (int ky = -hh; ky <= hh; ky++) {
+				int from = Math.max(0, p + ky * w - hw);
+				int to = Math.min(mx - 1, p + ky * w + hw);
+				for (int i = from; i <= to; i++) {
+					window[n++] = data[i];
+				}
+			}
+			Arrays.sort(window, 0, n);
+			result[p] = window[n / 2];
+		}
+		return result;
+	}
+
+	/**
+	 * Random data of the given kind.
+	 *
+	 * @param rand
+	 *            the rand
+	 * @param size
+	 *            the size
+	 * @param kind
+	 *            0 for 8 bits values, 1 for 16 bits values, 2 for any value
+	 * @return the data
+	 */
+	private static double[] createData(Random rand, int size, int kind) {
+		double[] data = new double[size];
+		for (int i = 0; i < size; i++) {
+			switch (kind) {
+			case 0:
+				data[i] = rand.nextInt(256);
+				break;
+			case 1:
+				data[i] = rand.nextInt(65536);
+				break;
+			default:
+				// a few duplicates and signed zeros among the random values
+				int c = rand.nextInt(8);
+				data[i] = (c == 0) ? 0.0 : (c == 1) ? -0.0 : (c == 2) ? 1.5 : rand.nextGaussian() * 100;
+				break;
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Counts the values that differ, bit for bit.
+	 *
+	 * @param expected
+	 *            the expected
+	 * @param result
+	 *            the result
+	 * @return the number of differences
+	 */
+	private static int countDifferences(double[] expected, double[] result) {
+		int nb = 0;
+		for (int i = 0; i < expected.length; i++) {
+			if (Double.doubleToRawLongBits(expected[i]) != Double.doubleToRawLongBits(result[i])) {
+				nb++;
+			}
+		}
+		return nb;
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args
+	 *            the arguments
+	 */
+	public static void main(String[] args) {
+		Random rand = new Random(42);
+		int nbDifferences = 0;
+		for (int it = 0; it < NB_ITERATIONS; it++) {
+			int w = 1 + rand.nextInt(MAX_SIZE);
+			int h = 1 + rand.nextInt(MAX_SIZE);
+			int hw = rand.nextInt(6);
+			int hh = rand.nextInt(6);
+			int kind = it % 3;
+			double[] data = createData(rand, w * h, kind);
+			double[] expected = sortedMedian(data, w, h, hw, hh);
+
+			double[] result = new double[w * h];
+			MedianFilter.median(data, w, h, hw, hh, result, 0, h);
+			nbDifferences += countDifferences(expected, result);
+
+			int split = rand.nextInt(h + 1);
+			result = new double[w * h];
+			MedianFilter.median(data, w, h, hw, hh, result, 0, split);
+			MedianFilter.median(data, w, h, hw, hh, result, split, h);
+			nbDifferences += countDifferences(expected, result);
+
+			float[] fdata = new float[w * h];
+			for (int i = 0; i < fdata.length; i++) {
+				fdata[i] = (float) data[i];
+			}
+			double[] fexpected = sortedMedian(toDouble(fdata), w, h, hw, hh);
+			float[] fresult = new float[w * h];
+			MedianFilter.median(fdata, w, h, hw, hh, fresult, 0, h);
+			nbDifferences += countDifferences(fexpected, toDouble(fresult));
+		}
+		Algorithm.out("MedianFilterCheck - " + NB_ITERATIONS + " images : " + nbDifferences + " differences with the sorted windows");
+		if (nbDifferences > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Widens float values, the conversion being exact.
+	 *
+	 * @param f
+	 *            the f
+	 * @return the double values
+	 */
+	private static double[] toDouble(float[] f) {
+		double[] d = new double[f.length];
+		for (int i = 0; i < f.length; i++) {
+			d[i] = f[i];
+		}
+		return d;
+	}
+}
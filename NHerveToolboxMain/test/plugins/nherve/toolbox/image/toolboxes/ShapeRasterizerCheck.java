@@ -0,0 +1,166 @@
+/*
+ * Copyright 2010, 2011 Institut Pasteur.
+ *
+ * This file is part of NHerve Main Toolbox, which is an ICY plugin.
+ *
+ * NHerve Main Toolbox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NHerve Main Toolbox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NHerve Main Toolbox. If not, see <http://www.gnu.org/licenses/>.
+ */
+package plugins.nherve.toolbox.image.toolboxes;
+
+import java.awt.Polygon;
+import java.awt.Shape;
+import java.awt.geom.Area;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.GeneralPath;
+import java.awt.geom.Rectangle2D;
+import java.util.Random;
+
+import plugins.nherve.toolbox.Algorithm;
+
+/**
+ * Checks the ShapeRasterizer against the pixel by pixel loops it replaces,
+ * shape.contains(x, y) on the integer coordinates. Polygons, rectangles,
+ * paths with both winding rules and areas built from them must give exactly
+ * the same pixels, partly outside the image as well. Curves are flattened,
+ * so the pixels of the ellipses that differ are only reported.
+ *
+ * @author Nicolas HERVE - nicolas.herve@pasteur.fr
+ */
+public class ShapeRasterizerCheck {
+
+	/** The Constant NB_ITERATIONS. */
+	private final static int NB_ITERATIONS = 500;
+
+	/** The Constant W. */
+	private final static int W = 97;
+
+	/** The Constant H. */
+	private final static int H = 83;
+
+	/**
+	 * A random point, on the pixel grid half of the time so that the edges and
+	 * vertices go through the sample points.
+	 *
+	 * @param rand
+	 *            the rand
+	 * @param max
+	 *            the max
+	 * @return the coordinate
+	 */
+	private static double randomCoordinate(Random rand, int max) {
+		double v = rand.nextDouble() * (max + 20) - 10;
+		return rand.nextBoolean() ? Math.floor(v) : v;
+	}
+
+	/**
+	 * A random polygon, possibly self intersecting.
+	 *
+	 * @param rand
+	 *            the rand
+	 * @return the polygon
+	 */
+	private static Polygon createPolygon(Random rand) {
+		Polygon p = new Polygon();
+		int n = 3 + rand.nextInt(8);
+		for (int i = 0; i < n; i++) {
+			p.addPoint((int) randomCoordinate(rand, W), (int) randomCoordinate(rand, H));
+		}
+		return p;
+	}
+
+	/**
+	 * A random path with non integer vertices.
+	 *
+	 * @param rand
+	 *            the rand
+	 * @param windingRule
+	 *            the winding rule
+	 * @return the path
+	 */
+	private static GeneralPath createPath(Random rand, int windingRule) {
+		GeneralPath p = new GeneralPath(windingRule);
+		int n = 3 + rand.nextInt(8);
+		p.moveTo(randomCoordinate(rand, W), randomCoordinate(rand, H));
+		for (int i = 1; i < n; i++) {
+			p.lineTo(randomCoordinate(rand, W), randomCoordinate(rand, H));
+		}
+		p.closePath();
+		return p;
+	}
+
+	/**
+	 * Counts the pixels where the rasterization and contains() differ.
+	 *
+	 * @param shape
+	 *            the shape
+	 * @return the number of differences
+	 */
+	private static int countDifferences(Shape shape) {
+		final byte[] raster = new byte[W * H];
+		new ShapeRasterizer(shape).fill(raster, W, H, (byte) 1);
+
+		final byte[] split = new byte[W * H];
+		ShapeRasterizer sr = new ShapeRasterizer(shape);
+		ShapeRasterizer.SpanVisitor v = new ShapeRasterizer.SpanVisitor() {
+			@Override
+			public void span(int y, int x1, int x2) {
+				for (int x = x1; x < x2; x++) {
+					split[y * W + x]++;
+				}
+			}
+		};
+		sr.visit(W, 0, H / 3, v);
+		sr.visit(W, H / 3, H, v);
+
+		int nb = 0;
+		for (int y = 0, i = 0; y < H; y++) {
+			for (int x = 0; x < W; x++, i++) {
+				byte expected = shape.contains(x, y) ? (byte) 1 : (byte) 0;
+				if ((raster[i] != expected) || (split[i] != expected)) {
+					nb++;
+				}
+			}
+		}
+		return nb;
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args
+	 *            the arguments
+	 */
+	public static void main(String[] args) {
+		Random rand = new Random(42);
+		int nbExact = 0;
+		int nbCurves = 0;
+		for (int it = 0; it < NB_ITERATIONS; it++) {
+			nbExact += countDifferences(createPolygon(rand));
+			nbExact += countDifferences(createPath(rand, GeneralPath.WIND_EVEN_ODD));
+			nbExact += countDifferences(createPath(rand, GeneralPath.WIND_NON_ZERO));
+			nbExact += countDifferences(new Rectangle2D.Double(randomCoordinate(rand, W), randomCoordinate(rand, H), rand.nextDouble() * W, rand.nextDouble() * H));
+
+			Area a = new Area(createPolygon(rand));
+			a.subtract(new Area(createPath(rand, GeneralPath.WIND_NON_ZERO)));
+			a.add(new Area(createPolygon(rand)));
+			nbExact += countDifferences(a);
+
+			nbCurves += countDifferences(new Ellipse2D.Double(randomCoordinate(rand, W), randomCoordinate(rand, H), rand.nextDouble() * W, rand.nextDouble() * H));
+		}
+		Algorithm.out("ShapeRasterizerCheck - " + NB_ITERATIONS + " iterations : " + nbExact + " differences with contains() on the polygonal shapes, " + nbCurves + " on the ellipses");
+		if (nbExact > 0) {
+			System.exit(1);
+		}
+	}
+}